@@ -0,0 +1,90 @@
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.cv.common.model.BoundingBox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.bson.io.BasicOutputBuffer;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * Cost of validating a request bounding box and building the geospatial query document,
+ * everything DatabaseHelper does per request before the database round trip. The encoded
+ * variants also write the query as BSON, the way the driver does when sending it, comparing
+ * the BoundingBox and BasicDBObject path with the primitive one; run with -prof gc to compare
+ * their allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseHelperBenchmark {
+
+	private DiscoverModel model;
+	private final BasicOutputBuffer buffer = new BasicOutputBuffer();
+	private final DefaultDBEncoder dbEncoder = new DefaultDBEncoder();
+
+	@Setup
+	public void setUp() {
+		model = Fixtures.discoverRequest(42);
+	}
+
+	/**
+	 * Validation the query path did before validateBoundingBox, kept as the baseline it is measured against.
+	 */
+	private static BoundingBox buildBoundingBox(DiscoverModel discoverModel) {
+		BoundingBox bb = new BoundingBox.Builder()
+			.setNWLat(discoverModel.nwPos.lat).setNWLon(discoverModel.nwPos.lon)
+			.setSELat(discoverModel.sePos.lat).setSELon(discoverModel.sePos.lon)
+			.build();
+		if (!bb.isValid())
+			throw new IllegalArgumentException(bb.getValidationError());
+		return bb;
+	}
+
+	@Benchmark
+	public BasicDBObject boundingBoxAndQuery() {
+		buildBoundingBox(model);
+		return DatabaseHelper.buildQuery("region", model.serviceId,
+				model.nwPos.lat, model.nwPos.lon, model.sePos.lat, model.sePos.lon);
+	}
+
+	@Benchmark
+	public BasicDBObject polygon() {
+		return DatabaseHelper.buildPolygon(model.nwPos.lat, model.nwPos.lon, model.sePos.lat, model.sePos.lon);
+	}
+
+	@Benchmark
+	public int encodedQuery() {
+		buildBoundingBox(model);
+		BasicDBObject query = DatabaseHelper.buildQuery("region", model.serviceId,
+				model.nwPos.lat, model.nwPos.lon, model.sePos.lat, model.sePos.lon);
+		buffer.truncateToPosition(0);
+		return dbEncoder.writeObject(buffer, query);
+	}
+
+	@Benchmark
+	public int encodedPrimitiveQuery() {
+		DatabaseHelper.validateBoundingBox(model.nwPos.lat, model.nwPos.lon, model.sePos.lat, model.sePos.lon);
+		BoundingBoxQuery query = new BoundingBoxQuery("region", model.serviceId,
+				model.nwPos.lat, model.nwPos.lon, model.sePos.lat, model.sePos.lon);
+		buffer.truncateToPosition(0);
+		buffer.writeBytes(query.toBytes());
+		return buffer.getPosition();
+	}
+}
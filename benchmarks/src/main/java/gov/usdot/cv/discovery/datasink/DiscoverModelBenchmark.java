@@ -0,0 +1,53 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares decoding an ingested discovery record by serializing it back to JSON text for
+ * Jackson with filling the model straight from the JSONObject.
+ *
+ * Run with {@code -prof gc} to see the allocation rate of each path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoverModelBenchmark {
+
+	private JSONObject record;
+
+	@Setup
+	public void setUp() {
+		record = JSONObject.fromObject(Fixtures.discoverRequestJson(42));
+	}
+
+	@Benchmark
+	public DiscoverModel jacksonFromString() throws IOException {
+		DiscoverModel model = DiscoverModel.fromJSON(record.toString());
+		model.validate();
+		return model;
+	}
+
+	@Benchmark
+	public DiscoverModel fromJSONObject() {
+		DiscoverModel model = DiscoverModel.fromJSONObject(record);
+		model.validate();
+		return model;
+	}
+}
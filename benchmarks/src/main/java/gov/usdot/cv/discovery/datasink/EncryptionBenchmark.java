@@ -0,0 +1,64 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of encrypting a ten record response for a requester, with and without the
+ * certificate registration cache.
+ *
+ * Needs a requester certificate: {@code java -Dbenchmark.certificate=<file> -jar benchmarks.jar Encryption}.
+ * The forked benchmark JVMs inherit the property.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncryptionBenchmark {
+
+	@Param({"false", "true"})
+	public boolean certificateCache;
+
+	private ResponseSender responseSender;
+	private DiscoverModel model;
+	private byte[] payload;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		responseSender = new ResponseSender(null, 0, false);
+		if (certificateCache) {
+			responseSender.enableCertificateCache(100, 3600000);
+		}
+		model = Fixtures.discoverRequest(42);
+		model.certificate = Fixtures.certificate();
+		payload = responseSender.encodeDiscoveryData(responseSender.buildDiscoveryData(model,
+				responseSender.extractRegistrationRecords(Fixtures.registrations(10, 42).iterator(),
+						new ArrayList<RegistrationRecord>())));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		responseSender.close(0);
+	}
+
+	@Benchmark
+	public byte[] encrypt() throws Exception {
+		return responseSender.encryptPayload(model, payload);
+	}
+}
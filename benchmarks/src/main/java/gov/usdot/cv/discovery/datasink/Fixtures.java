@@ -0,0 +1,131 @@
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.asn1.generated.j2735.J2735;
+import gov.usdot.asn1.generated.j2735.dsrc.Latitude;
+import gov.usdot.asn1.generated.j2735.dsrc.Longitude;
+import gov.usdot.asn1.generated.j2735.dsrc.Position3D;
+import gov.usdot.asn1.generated.j2735.semi.ConnectionPoint;
+import gov.usdot.asn1.generated.j2735.semi.GeoRegion;
+import gov.usdot.asn1.generated.j2735.semi.ObjectRegistrationData;
+import gov.usdot.asn1.generated.j2735.semi.PortNumber;
+import gov.usdot.asn1.generated.j2735.semi.Psid;
+import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
+import gov.usdot.asn1.generated.j2735.semi.SemiSequenceID;
+import gov.usdot.asn1.generated.j2735.semi.ServiceID;
+import gov.usdot.asn1.generated.j2735.semi.ServiceProviderID;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRecord;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRecord.ConnectionPoints;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRecord.SvcPSIDs;
+import gov.usdot.cv.common.asn1.GroupIDHelper;
+import gov.usdot.cv.common.asn1.TemporaryIDHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.bson.types.ObjectId;
+
+import com.oss.asn1.Coder;
+
+/**
+ * Synthetic, reproducible inputs for the benchmarks. Nothing is read from the network.
+ */
+final class Fixtures {
+
+	// Around Detroit, where the test bed registrations live
+	static final double CENTER_LAT = 42.3314;
+	static final double CENTER_LON = -83.0458;
+
+	// System property naming a file with a Base64 encoded requester certificate
+	static final String CERTIFICATE_PROPERTY = "benchmark.certificate";
+
+	private Fixtures() {
+	}
+
+	/**
+	 * @return a discovery request record with a bounding box of about a kilometer near the center
+	 */
+	static String discoverRequestJson(long seed) {
+		Random random = new Random(seed);
+		double lat = CENTER_LAT + (random.nextDouble() - 0.5) * 0.2;
+		double lon = CENTER_LON + (random.nextDouble() - 0.5) * 0.2;
+		return String.format(Locale.US,
+				"{\"dialogId\":%d,\"receiptId\":\"receipt-%d\",\"sequenceId\":3,\"groupId\":%d,\"requestId\":%d,"
+				+ "\"serviceId\":2,\"destHost\":\"127.0.0.1\",\"destPort\":46751,\"fromForwarder\":\"true\","
+				+ "\"nwPos\":{\"lat\":%.9f,\"lon\":%.9f},\"sePos\":{\"lat\":%.9f,\"lon\":%.9f}}",
+				SemiDialogID.objDisc.longValue(), seed, random.nextInt(), random.nextInt(),
+				lat + 0.005, lon - 0.005, lat - 0.005, lon + 0.005);
+	}
+
+	static DiscoverModel discoverRequest(long seed) {
+		return DiscoverModel.fromJSONObject(net.sf.json.JSONObject.fromObject(discoverRequestJson(seed)));
+	}
+
+	/**
+	 * @return registration records, newest first, carrying PER encoded ObjectRegistrationData
+	 * with distinct ids so that no cache can collapse them
+	 */
+	static List<RegistrationRecord> registrations(int count, long seed) throws Exception {
+		J2735.initialize();
+		Coder coder = J2735.getPERUnalignedCoder();
+		Random random = new Random(seed);
+		long now = System.currentTimeMillis();
+		List<RegistrationRecord> records = new ArrayList<RegistrationRecord>(count);
+		for (int i = 0; i < count; i++) {
+			ByteArrayOutputStream sink = new ByteArrayOutputStream();
+			coder.encode(registration(random), sink);
+			records.add(new RegistrationRecord(new ObjectId(), new Date(now - i * 1000L),
+					Base64.encodeBase64String(sink.toByteArray())));
+		}
+		return records;
+	}
+
+	private static ObjectRegistrationData registration(Random random) {
+		ServiceRecord serviceRecord = new ServiceRecord();
+		ConnectionPoints cps = new ConnectionPoints();
+		cps.add(new ConnectionPoint(new PortNumber(46751 + random.nextInt(100))));
+		serviceRecord.setConnectionPoints(cps);
+		serviceRecord.setSvcProvider(new ServiceProviderID(ByteBuffer.allocate(4).putInt(random.nextInt()).array()));
+		SvcPSIDs psids = new SvcPSIDs();
+		psids.add(new Psid(ByteBuffer.allocate(4).putInt(0x2fe1).array()));
+		serviceRecord.setSvcPSIDs(psids);
+
+		double lat = CENTER_LAT + (random.nextDouble() - 0.5) * 0.2;
+		double lon = CENTER_LON + (random.nextDouble() - 0.5) * 0.2;
+		Position3D nw = new Position3D(new Latitude(toTenthMicrodegrees(lat + 0.01)), new Longitude(toTenthMicrodegrees(lon - 0.01)));
+		Position3D se = new Position3D(new Latitude(toTenthMicrodegrees(lat - 0.01)), new Longitude(toTenthMicrodegrees(lon + 0.01)));
+		serviceRecord.setServiceRegion(new GeoRegion(nw, se));
+
+		ObjectRegistrationData registration = new ObjectRegistrationData();
+		registration.setDialogID(SemiDialogID.objReg);
+		registration.setSeqID(SemiSequenceID.data);
+		registration.setGroupID(GroupIDHelper.toGroupID(0));
+		registration.setRequestID(TemporaryIDHelper.toTemporaryID(random.nextInt()));
+		registration.setServiceID(new ServiceID(2));
+		registration.setServiceRecord(serviceRecord);
+		return registration;
+	}
+
+	private static int toTenthMicrodegrees(double degrees) {
+		return (int) Math.round(degrees * 1e7);
+	}
+
+	/**
+	 * @return the requester certificate named by the {@value #CERTIFICATE_PROPERTY} system property
+	 */
+	static String certificate() throws IOException {
+		String path = System.getProperty(CERTIFICATE_PROPERTY);
+		if (path == null) {
+			throw new IllegalStateException("Set -D" + CERTIFICATE_PROPERTY + "=<file with a Base64 encoded certificate> to run the encryption benchmarks");
+		}
+		return FileUtils.readFileToString(new File(path)).trim();
+	}
+}
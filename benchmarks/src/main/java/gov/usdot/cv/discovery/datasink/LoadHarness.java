@@ -0,0 +1,390 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import net.sf.json.JSONObject;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Drives ObjectDiscovery at a fixed request rate against local stand-ins and reports latency
+ * percentiles and throughput per stage.
+ *
+ * <ul>
+ * <li>Registrations live in an in-memory {@link RegistrationIndex} instead of MongoDB.</li>
+ * <li>Responses go to a local UDP socket that counts them.</li>
+ * <li>Receipts go to an embedded ActiveMQ broker. The harness subscribes to the receipt topic
+ * and uses each receipt to measure the end-to-end latency of its request.</li>
+ * </ul>
+ *
+ * Requests are issued open loop: latency is measured from the time a request was scheduled
+ * to arrive, so a sink that falls behind shows the queueing delay instead of hiding it.
+ *
+ * Settings are system properties:
+ * <pre>
+ *   load.rate             requests per second (500)
+ *   load.durationSec      measured run time (30)
+ *   load.warmupSec        unmeasured run time before it (10)
+ *   load.registrations    registrations in the stand-in store (5000)
+ *   load.boxes            request boxes: fixed, uniform or hotspot (uniform)
+ *   load.boxKm            request box edge length in kilometers (1)
+ *   sink.&lt;property&gt;       any ObjectDiscovery property, for example -Dsink.pipelineEnabled=true
+ * </pre>
+ */
+public class LoadHarness {
+
+	private static final String TOPIC = "cv.objectdiscovery.receipts";
+	private static final Pattern RECEIPT_ID = Pattern.compile("load-(\\d+)");
+	// Registrations and requests are spread over this many degrees around the center
+	private static final double AREA_DEGREES = 0.2;
+	private static final double KM_PER_DEGREE = 111.0;
+
+	private final int rate;
+	private final int durationSec;
+	private final int warmupSec;
+	private final int registrations;
+	private final String boxes;
+	private final double boxDegrees;
+	private final Random random = new Random(42);
+	private final AtomicLong requestIds = new AtomicLong();
+
+	private final Histogram ingest = new ConcurrentHistogram(3);
+	private final Histogram query = new ConcurrentHistogram(3);
+	private final Histogram encode = new ConcurrentHistogram(3);
+	private final Histogram send = new ConcurrentHistogram(3);
+	private final Histogram receipt = new ConcurrentHistogram(3);
+	private final Histogram endToEnd = new ConcurrentHistogram(3);
+	private final Map<Long, Long> scheduledAt = new ConcurrentHashMap<Long, Long>();
+	private final AtomicLong responsesReceived = new AtomicLong();
+	private final AtomicLong receiptsReceived = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		new LoadHarness(System.getProperties()).run(System.out);
+		System.exit(0);
+	}
+
+	public LoadHarness(Properties properties) {
+		this.rate = Integer.parseInt(properties.getProperty("load.rate", "500"));
+		this.durationSec = Integer.parseInt(properties.getProperty("load.durationSec", "30"));
+		this.warmupSec = Integer.parseInt(properties.getProperty("load.warmupSec", "10"));
+		this.registrations = Integer.parseInt(properties.getProperty("load.registrations", "5000"));
+		this.boxes = properties.getProperty("load.boxes", "uniform");
+		this.boxDegrees = Double.parseDouble(properties.getProperty("load.boxKm", "1")) / KM_PER_DEGREE;
+	}
+
+	public void run(PrintStream out) throws Exception {
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName("loadharness");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.start();
+		broker.waitUntilStarted();
+		String brokerUrl = "vm://loadharness?create=false";
+
+		Connection receiptConnection = subscribeToReceipts(brokerUrl);
+		DatagramSocket udpSink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		Thread udpReader = startUdpSink(udpSink);
+
+		ObjectDiscovery sink = new ObjectDiscovery();
+		applySinkProperties(sink, System.getProperties(), out);
+		sink.initialize(new TimedDatabaseHelper(loadRegistrations(sink.getRegistrationIndexTileLevel())), new TimedResponseSender(),
+				new TimedReceiptSender(brokerUrl));
+
+		out.println(String.format("Running %d requests/s with %s %.1f km boxes against %d registrations, %d s warmup and %d s measured ...",
+				rate, boxes, boxDegrees * KM_PER_DEGREE, registrations, warmupSec, durationSec));
+		drive(sink, udpSink.getLocalPort(), warmupSec, null);
+		resetHistograms();
+		long start = System.nanoTime();
+		long issued = drive(sink, udpSink.getLocalPort(), durationSec, out);
+		sink.flush();
+		double elapsedSec = (System.nanoTime() - start) / 1e9;
+		// Give the last receipts a moment to arrive
+		Thread.sleep(500);
+
+		out.println();
+		out.println(String.format("Issued %d requests in %.1f s: %.0f requests/s, %.0f responses/s, %.0f receipts/s",
+				issued, elapsedSec, issued / elapsedSec, responsesReceived.get() / elapsedSec, receiptsReceived.get() / elapsedSec));
+		out.println(String.format("%-12s %10s %10s %10s %10s %10s %10s", "stage (ms)", "count", "p50", "p90", "p99", "p99.9", "max"));
+		report(out, "ingest", ingest);
+		report(out, "query", query);
+		report(out, "encode", encode);
+		report(out, "send", send);
+		report(out, "receipt", receipt);
+		report(out, "end-to-end", endToEnd);
+
+		sink.dispose();
+		udpSink.close();
+		udpReader.join(1000);
+		receiptConnection.close();
+		broker.stop();
+	}
+
+	/**
+	 * Issues requests at the configured rate for the given time.
+	 * @return the number of requests issued
+	 */
+	private long drive(ObjectDiscovery sink, int udpPort, int seconds, PrintStream progress) throws InterruptedException {
+		long periodNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		long total = (long) rate * seconds;
+		long start = System.nanoTime();
+		long nextReport = start + TimeUnit.SECONDS.toNanos(5);
+		for (long i = 0; i < total; i++) {
+			long intended = start + i * periodNanos;
+			long wait = intended - System.nanoTime();
+			if (wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			long requestId = requestIds.incrementAndGet();
+			JSONObject record = request(requestId, udpPort);
+			scheduledAt.put(requestId, intended);
+			sink.process(record);
+			ingest.recordValue(System.nanoTime() - intended);
+
+			if (progress != null && System.nanoTime() > nextReport) {
+				progress.println(String.format("  %d s: %d requests issued, %d responses, %d receipts",
+						TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), i + 1, responsesReceived.get(), receiptsReceived.get()));
+				nextReport += TimeUnit.SECONDS.toNanos(5);
+			}
+		}
+		return total;
+	}
+
+	private JSONObject request(long requestId, int udpPort) {
+		double lat;
+		double lon;
+		if ("fixed".equals(boxes)) {
+			lat = Fixtures.CENTER_LAT;
+			lon = Fixtures.CENTER_LON;
+		} else if ("hotspot".equals(boxes)) {
+			// Most requests come from a handful of busy intersections
+			int spot = random.nextInt(10) < 8 ? random.nextInt(5) : random.nextInt(1000);
+			Random spots = new Random(spot);
+			lat = Fixtures.CENTER_LAT + (spots.nextDouble() - 0.5) * AREA_DEGREES;
+			lon = Fixtures.CENTER_LON + (spots.nextDouble() - 0.5) * AREA_DEGREES;
+		} else {
+			lat = Fixtures.CENTER_LAT + (random.nextDouble() - 0.5) * AREA_DEGREES;
+			lon = Fixtures.CENTER_LON + (random.nextDouble() - 0.5) * AREA_DEGREES;
+		}
+		double half = boxDegrees / 2;
+
+		JSONObject nwPos = new JSONObject();
+		nwPos.put("lat", lat + half);
+		nwPos.put("lon", lon - half);
+		JSONObject sePos = new JSONObject();
+		sePos.put("lat", lat - half);
+		sePos.put("lon", lon + half);
+
+		JSONObject record = new JSONObject();
+		record.put("dialogId", 161);
+		record.put("receiptId", "load-" + requestId);
+		record.put("sequenceId", 3);
+		record.put("groupId", 0);
+		record.put("requestId", (int) requestId);
+		record.put("serviceId", 2);
+		record.put("destHost", "127.0.0.1");
+		record.put("destPort", udpPort);
+		record.put("fromForwarder", "false");
+		record.put("nwPos", nwPos);
+		record.put("sePos", sePos);
+		return record;
+	}
+
+	private RegistrationIndex loadRegistrations(int tileLevel) throws Exception {
+		RegistrationIndex index = new RegistrationIndex(null, DatabaseHelper.SERVICE_ID_FIELD, "region", DatabaseHelper.TIMESTAMP_FIELD);
+		index.setTileLevel(tileLevel);
+		List<RegistrationRecord> records = Fixtures.registrations(registrations, 7);
+		for (RegistrationRecord record : records) {
+			double lat = Fixtures.CENTER_LAT + (random.nextDouble() - 0.5) * AREA_DEGREES;
+			double lon = Fixtures.CENTER_LON + (random.nextDouble() - 0.5) * AREA_DEGREES;
+			double size = 0.001 + random.nextDouble() * 0.01;
+			DBObject document = new BasicDBObject(RegistrationRecord.ID_FIELD, record.getId());
+			document.put(DatabaseHelper.SERVICE_ID_FIELD, 2);
+			document.put("region", DatabaseHelper.buildPolygon(lat + size, lon - size, lat - size, lon + size));
+			document.put(DatabaseHelper.TIMESTAMP_FIELD, record.getTimestamp());
+			document.put(RegistrationRecord.ENCODED_MSG_FIELD, record.getEncodedMsg());
+			index.upsert(document);
+		}
+		index.rebuild();
+		return index;
+	}
+
+	private Connection subscribeToReceipts(String brokerUrl) throws JMSException {
+		Connection connection = new ActiveMQConnectionFactory(brokerUrl).createConnection();
+		Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		session.createConsumer(session.createTopic(TOPIC)).setMessageListener(new MessageListener() {
+			public void onMessage(Message message) {
+				try {
+					Matcher matcher = RECEIPT_ID.matcher(((TextMessage) message).getText());
+					if (matcher.find()) {
+						Long intended = scheduledAt.remove(Long.valueOf(matcher.group(1)));
+						if (intended != null) {
+							endToEnd.recordValue(System.nanoTime() - intended);
+						}
+					}
+					receiptsReceived.incrementAndGet();
+				} catch (JMSException ex) {
+					ex.printStackTrace();
+				}
+			}
+		});
+		connection.start();
+		return connection;
+	}
+
+	private Thread startUdpSink(final DatagramSocket socket) {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+				while (! socket.isClosed()) {
+					try {
+						socket.receive(packet);
+						responsesReceived.incrementAndGet();
+					} catch (SocketException closed) {
+						return;
+					} catch (Exception ex) {
+						ex.printStackTrace();
+					}
+				}
+			}
+		}, "loadharness-udp-sink");
+		reader.setDaemon(true);
+		reader.start();
+		return reader;
+	}
+
+	/**
+	 * Applies every sink.&lt;property&gt; system property through the matching ObjectDiscovery setter.
+	 */
+	static void applySinkProperties(ObjectDiscovery sink, Properties properties, PrintStream out) throws Exception {
+		for (String name : properties.stringPropertyNames()) {
+			if (! name.startsWith("sink.")) {
+				continue;
+			}
+			String property = name.substring("sink.".length());
+			String setter = "set" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
+			String value = properties.getProperty(name);
+			Method method = findSetter(setter);
+			Class<?> type = method.getParameterTypes()[0];
+			if (type == int.class) {
+				method.invoke(sink, Integer.parseInt(value));
+			} else if (type == boolean.class) {
+				method.invoke(sink, Boolean.parseBoolean(value));
+			} else {
+				method.invoke(sink, value);
+			}
+			out.println(String.format("Sink property %s = %s", property, value));
+		}
+	}
+
+	private static Method findSetter(String name) {
+		for (Method method : ObjectDiscovery.class.getMethods()) {
+			if (method.getName().equals(name) && method.getParameterTypes().length == 1) {
+				return method;
+			}
+		}
+		throw new IllegalArgumentException("ObjectDiscovery has no property setter " + name);
+	}
+
+	private void resetHistograms() {
+		for (Histogram histogram : new Histogram[] { ingest, query, encode, send, receipt, endToEnd }) {
+			histogram.reset();
+		}
+	}
+
+	private static void report(PrintStream out, String stage, Histogram histogram) {
+		out.println(String.format(Locale.US, "%-12s %10d %10.3f %10.3f %10.3f %10.3f %10.3f", stage, histogram.getTotalCount(),
+				millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+				millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+				millis(histogram.getMaxValue())));
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private class TimedDatabaseHelper extends DatabaseHelper {
+		TimedDatabaseHelper(RegistrationIndex index) {
+			super(index);
+		}
+
+		@Override
+		public RegistrationCursor query(DiscoverModel discoverModel) {
+			long start = System.nanoTime();
+			try {
+				return super.query(discoverModel);
+			} finally {
+				query.recordValue(System.nanoTime() - start);
+			}
+		}
+	}
+
+	private class TimedResponseSender extends ResponseSender {
+		TimedResponseSender() throws Exception {
+			super(null, 0, false);
+		}
+
+		@Override
+		public byte[] encodeResponse(DiscoverModel discoverModel, RegistrationCursor result) throws Exception {
+			long start = System.nanoTime();
+			try {
+				return super.encodeResponse(discoverModel, result);
+			} finally {
+				encode.recordValue(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public void sendPayload(DiscoverModel discoverModel, byte[] payload, DeliveryListener listener) throws Exception {
+			long start = System.nanoTime();
+			try {
+				super.sendPayload(discoverModel, payload, listener);
+			} finally {
+				send.recordValue(System.nanoTime() - start);
+			}
+		}
+	}
+
+	private class TimedReceiptSender extends ReceiptSender {
+		TimedReceiptSender(String brokerUrl) {
+			super(brokerUrl, null, null, TOPIC);
+		}
+
+		@Override
+		public void sendReceipt(DiscoverModel model) {
+			long start = System.nanoTime();
+			try {
+				super.sendReceipt(model);
+			} finally {
+				receipt.recordValue(System.nanoTime() - start);
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.asn1.generated.j2735.semi.ObjectRegistrationData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning query results into a response: decoding the stored registrations, then
+ * building and PER encoding the ObjectDiscoveryData.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseSenderBenchmark {
+
+	// Documents returned by the query
+	@Param({"10", "100", "400"})
+	public int results;
+
+	// Share of the returned documents that are not ObjectRegistrationData and get skipped
+	@Param({"0", "90"})
+	public int skippedPercent;
+
+	private ResponseSender responseSender;
+	private DiscoverModel model;
+	private List<RegistrationRecord> records;
+	private List<ObjectRegistrationData> decoded;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		responseSender = new ResponseSender(null, 0, false);
+		model = Fixtures.discoverRequest(42);
+
+		byte[] discoveryData = responseSender.encodeDiscoveryData(responseSender.buildDiscoveryData(model, null));
+		String otherMessage = Base64.encodeBase64String(discoveryData);
+		Random random = new Random(7);
+		records = new ArrayList<RegistrationRecord>(Fixtures.registrations(results, 42));
+		for (int i = 0; i < records.size(); i++) {
+			if (random.nextInt(100) < skippedPercent) {
+				RegistrationRecord record = records.get(i);
+				records.set(i, new RegistrationRecord(new ObjectId(), record.getTimestamp(), otherMessage));
+			}
+		}
+		records = Collections.unmodifiableList(records);
+
+		decoded = responseSender.extractRegistrationRecords(records.iterator(), new ArrayList<RegistrationRecord>());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		responseSender.close(0);
+	}
+
+	@Benchmark
+	public List<ObjectRegistrationData> extractRegistrationRecords() throws Exception {
+		return responseSender.extractRegistrationRecords(records.iterator(), new ArrayList<RegistrationRecord>());
+	}
+
+	@Benchmark
+	public byte[] buildAndEncode() throws Exception {
+		return responseSender.encodeDiscoveryData(responseSender.buildDiscoveryData(model, decoded));
+	}
+
+	@Benchmark
+	public byte[] encodeResponse() throws Exception {
+		return responseSender.encodeResponse(model, RegistrationCursor.fromCollection(records));
+	}
+}
@@ -0,0 +1,153 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a discovery request may still query the database. A request is shed when it
+ * has used up its deadline, counted from its arrival, or would by the time a typical query
+ * returns, and when the number of queries in flight has reached the concurrency limit.
+ *
+ * The typical query latency is only learned from admitted queries, so it is halved for every
+ * deadline that passes without one finishing, and a request is always admitted while no query
+ * is in flight. Otherwise a single slow query could leave a latency estimate above the deadline
+ * that no admitted query would ever correct.
+ *
+ * The limit adapts to the query latency the way TCP congestion control adapts its window
+ * (AIMD): every query that finishes within the target latency raises the limit by 1/limit, so
+ * by about one per limit's worth of queries, and a slower or failed query cuts it by a fraction,
+ * at most once per target latency so a burst of slow queries counts as one congestion event.
+ */
+public class AdmissionController {
+
+	// Share of the limit kept when a query is too slow
+	static final double BACKOFF_RATIO = 0.9;
+
+	// Weight of the newest sample in the query latency average
+	private static final double LATENCY_WEIGHT = 0.1;
+
+	public enum Decision {
+		ADMITTED, EXPIRED, OVER_LIMIT
+	}
+
+	private final long deadlineNanos;
+	private final long targetLatencyNanos;
+	private final int minLimit;
+	private final int maxLimit;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile double limit;
+	private volatile long averageLatencyNanos = 0;
+	private volatile long lastReleaseNanos = System.nanoTime();
+	private long lastDecreaseNanos;
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong overLimit = new AtomicLong();
+
+	/**
+	 * The limit starts at maxLimit and is lowered once queries get slower than the target.
+	 */
+	public AdmissionController(long deadlineMs, long targetLatencyMs, int minLimit, int maxLimit) {
+		this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, deadlineMs));
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = this.maxLimit;
+		this.lastDecreaseNanos = System.nanoTime() - targetLatencyNanos;
+	}
+
+	/**
+	 * Takes a slot for a query of a request that arrived at receivedNanos (System.nanoTime).
+	 * Every admitted request must {@link #release} its slot.
+	 */
+	public Decision tryAcquire(long receivedNanos) {
+		long now = System.nanoTime();
+		long waited = now - receivedNanos;
+		if (waited > deadlineNanos || (waited + expectedLatencyNanos(now) > deadlineNanos && inFlight.get() > 0)) {
+			expired.incrementAndGet();
+			return Decision.EXPIRED;
+		}
+		return acquireSlot();
+	}
+
+	private Decision acquireSlot() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= (int) limit) {
+				overLimit.incrementAndGet();
+				return Decision.OVER_LIMIT;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				admitted.incrementAndGet();
+				return Decision.ADMITTED;
+			}
+		}
+	}
+
+	/**
+	 * @return the average query latency, halved for every deadline since a query last finished
+	 */
+	private long expectedLatencyNanos(long now) {
+		long idlePeriods = (now - lastReleaseNanos) / deadlineNanos;
+		return idlePeriods >= 63 ? 0 : averageLatencyNanos >> idlePeriods;
+	}
+
+	/**
+	 * Gives back the slot of a query that started at startNanos and adjusts the limit to how it went.
+	 */
+	public void release(long startNanos, boolean succeeded) {
+		inFlight.decrementAndGet();
+		long now = System.nanoTime();
+		long latency = now - startNanos;
+		synchronized (this) {
+			long previous = expectedLatencyNanos(now);
+			lastReleaseNanos = now;
+			averageLatencyNanos = previous == 0 ? latency
+					: (long) (previous + LATENCY_WEIGHT * (latency - previous));
+			if (succeeded && latency <= targetLatencyNanos) {
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+			} else if (now - lastDecreaseNanos >= targetLatencyNanos) {
+				limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+				lastDecreaseNanos = now;
+			}
+		}
+	}
+
+	public int getLimit() {
+		return (int) limit;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getAverageLatencyMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(expectedLatencyNanos(System.nanoTime()));
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	/**
+	 * @return number of requests shed because they could no longer meet their deadline
+	 */
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * @return number of requests shed because the concurrency limit was reached
+	 */
+	public long getOverLimit() {
+		return overLimit.get();
+	}
+
+	@Override
+	public String toString() {
+		return "AdmissionController [limit=" + getLimit() + ", inFlight=" + getInFlight() + ", admitted=" + getAdmitted()
+				+ ", expired=" + getExpired() + ", overLimit=" + getOverLimit() + "]";
+	}
+}
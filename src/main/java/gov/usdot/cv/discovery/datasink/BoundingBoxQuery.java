@@ -0,0 +1,133 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * Discovery query filter written straight from the corner coordinates,
+ * { serviceId: n, region: { $geoIntersects: { $geometry: { type: "Polygon", coordinates: [ ring ] } } } },
+ * the same document {@link DatabaseHelper#buildQuery} builds, without the tree of BasicDBObjects,
+ * BasicDBLists and boxed Doubles.
+ *
+ * The layout of the BSON only depends on the geospatial field name, so it is encoded once per
+ * name into a template and each query copies the template and writes the service id and the ten
+ * ring coordinates over it at their known offsets. The driver sends the bytes as they are.
+ */
+final class BoundingBoxQuery implements Bson {
+
+	private static final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+	private static final class Template {
+		final byte[] bytes;
+		final int serviceIdOffset;
+		// Offsets of the ring coordinates in the order they are written
+		final int[] coordinateOffsets = new int[10];
+
+		Template(String geoSpatialFieldName) {
+			BasicOutputBuffer buffer = new BasicOutputBuffer();
+			BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+			writer.writeStartDocument();
+			writer.writeInt32(DatabaseHelper.SERVICE_ID_FIELD, 0);
+			serviceIdOffset = buffer.getPosition() - 4;
+			writer.writeStartDocument(geoSpatialFieldName);
+			writer.writeStartDocument("$geoIntersects");
+			writer.writeStartDocument("$geometry");
+			writer.writeString("type", DatabaseHelper.POLYGON_TYPE);
+			writer.writeStartArray("coordinates");
+			writer.writeStartArray();
+			for (int i = 0; i < coordinateOffsets.length; i += 2) {
+				writer.writeStartArray();
+				writer.writeDouble(0);
+				coordinateOffsets[i] = buffer.getPosition() - 8;
+				writer.writeDouble(0);
+				coordinateOffsets[i + 1] = buffer.getPosition() - 8;
+				writer.writeEndArray();
+			}
+			writer.writeEndArray();
+			writer.writeEndArray();
+			writer.writeEndDocument();
+			writer.writeEndDocument();
+			writer.writeEndDocument();
+			writer.writeEndDocument();
+			writer.close();
+			bytes = buffer.toByteArray();
+		}
+	}
+
+	private final String geoSpatialFieldName;
+	private final int serviceId;
+	private final double nwLat;
+	private final double nwLon;
+	private final double seLat;
+	private final double seLon;
+
+	BoundingBoxQuery(String geoSpatialFieldName, int serviceId, double nwLat, double nwLon, double seLat, double seLon) {
+		this.geoSpatialFieldName = geoSpatialFieldName;
+		this.serviceId = serviceId;
+		this.nwLat = nwLat;
+		this.nwLon = nwLon;
+		this.seLat = seLat;
+		this.seLon = seLon;
+	}
+
+	public <TDocument> BsonDocument toBsonDocument(Class<TDocument> documentClass, CodecRegistry codecRegistry) {
+		return new RawBsonDocument(toBytes());
+	}
+
+	/**
+	 * @return the query encoded as a BSON document
+	 */
+	byte[] toBytes() {
+		Template template = templates.get(geoSpatialFieldName);
+		if (template == null) {
+			template = new Template(geoSpatialFieldName);
+			templates.putIfAbsent(geoSpatialFieldName, template);
+		}
+
+		byte[] bytes = template.bytes.clone();
+		putInt(bytes, template.serviceIdOffset, serviceId);
+		// Note: MongoDB requires that all geometry shape start and end at the same point,
+		// and GeoJSON positions are longitude first
+		int[] offsets = template.coordinateOffsets;
+		putDouble(bytes, offsets[0], nwLon);
+		putDouble(bytes, offsets[1], nwLat);
+		putDouble(bytes, offsets[2], seLon);
+		putDouble(bytes, offsets[3], nwLat);
+		putDouble(bytes, offsets[4], seLon);
+		putDouble(bytes, offsets[5], seLat);
+		putDouble(bytes, offsets[6], nwLon);
+		putDouble(bytes, offsets[7], seLat);
+		putDouble(bytes, offsets[8], nwLon);
+		putDouble(bytes, offsets[9], nwLat);
+		return bytes;
+	}
+
+	// BSON numbers are little endian
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >>> 8);
+		bytes[offset + 2] = (byte) (value >>> 16);
+		bytes[offset + 3] = (byte) (value >>> 24);
+	}
+
+	private static void putDouble(byte[] bytes, int offset, double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		for (int i = 0; i < 8; i++) {
+			bytes[offset + i] = (byte) (bits >>> (8 * i));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BoundingBoxQuery [serviceId=" + serviceId + ", nwLat=" + nwLat + ", nwLon=" + nwLon
+				+ ", seLat=" + seLat + ", seLon=" + seLon + "]";
+	}
+}
@@ -0,0 +1,112 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded LRU cache of requester certificates that have already been registered with
+ * the security library, keyed by the Base64 certificate text as it arrives in the request
+ * and holding the certID8 the registration produced. Vehicles reuse their certificate for
+ * many discovery dialogs, so a hit skips both the Base64 decode and the registration.
+ *
+ * A certID8 names the certificate in the security library's process wide certificate store,
+ * not in the CryptoProvider that registered it, which is why one entry serves every provider
+ * of the pool. It is only good while the store holds the certificate: entries expire after a
+ * fixed time, and ResponseSender removes an entry and registers the certificate again when
+ * encrypting with the cached certID8 fails.
+ */
+public class CertificateRegistrationCache {
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final Map<String, CacheEntry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	private static final class CacheEntry {
+		final byte[] certId8;
+		final long expiresAt;
+
+		CacheEntry(byte[] certId8, long expiresAt) {
+			this.certId8 = certId8;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public CertificateRegistrationCache(final int maxEntries, long ttlMs) {
+		this.maxEntries = maxEntries;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > CertificateRegistrationCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the certID8 of a registered certificate or null if it isn't cached or has expired
+	 */
+	public synchronized byte[] get(String certificate) {
+		CacheEntry entry = entries.get(certificate);
+		if (entry != null && System.nanoTime() - entry.expiresAt > 0) {
+			entries.remove(certificate);
+			expirations.incrementAndGet();
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.certId8;
+	}
+
+	public synchronized void put(String certificate, byte[] certId8) {
+		entries.put(certificate, new CacheEntry(certId8, System.nanoTime() + ttlNanos));
+	}
+
+	public synchronized void remove(String certificate) {
+		entries.remove(certificate);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CertificateRegistrationCache [size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+				+ ", evictions=" + getEvictions() + ", expirations=" + getExpirations() + "]";
+	}
+}
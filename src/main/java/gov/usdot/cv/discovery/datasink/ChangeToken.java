@@ -0,0 +1,55 @@
+package gov.usdot.cv.discovery.datasink;
+
+/**
+ * Ordered position in a registration change feed. Tokens are only comparable with tokens of
+ * the same source, an oplog timestamp for the oplog source and a document timestamp for the
+ * polling source.
+ */
+public final class ChangeToken implements Comparable<ChangeToken> {
+
+	public static final String OPLOG = "oplog";
+	public static final String POLLING = "polling";
+
+	private final String source;
+	private final Object position;
+
+	public ChangeToken(String source, Object position) {
+		this.source = source;
+		this.position = position;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public Object getPosition() {
+		return position;
+	}
+
+	public int compareTo(ChangeToken other) {
+		if (! source.equals(other.source)) {
+			throw new IllegalArgumentException("Can't compare " + source + " and " + other.source + " change tokens");
+		}
+		return RegistrationIndex.compareTimestamps(position, other.position);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * source.hashCode() + (position == null ? 0 : position.hashCode());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof ChangeToken))
+			return false;
+		ChangeToken other = (ChangeToken) obj;
+		return source.equals(other.source) && (position == null ? other.position == null : position.equals(other.position));
+	}
+
+	@Override
+	public String toString() {
+		return source + ":" + position;
+	}
+}
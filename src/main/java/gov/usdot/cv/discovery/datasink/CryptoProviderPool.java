@@ -0,0 +1,41 @@
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.cv.security.crypto.CryptoProvider;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed set of {@link CryptoProvider}s shared by the threads encrypting responses. A provider
+ * holds cipher state and must only be used by one thread at a time, so callers borrow one for
+ * the duration of an operation and wait when all of them are in use.
+ */
+public class CryptoProviderPool {
+
+	private final BlockingQueue<CryptoProvider> providers;
+	private final int size;
+
+	public CryptoProviderPool(int size) {
+		this.size = size;
+		this.providers = new ArrayBlockingQueue<CryptoProvider>(size);
+		for (int i = 0; i < size; i++) {
+			providers.add(new CryptoProvider());
+		}
+	}
+
+	public CryptoProvider borrow() throws InterruptedException {
+		return providers.take();
+	}
+
+	public void release(CryptoProvider provider) {
+		providers.add(provider);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getAvailable() {
+		return providers.size();
+	}
+}
@@ -1,111 +1,546 @@
-package gov.usdot.cv.discovery.datasink;
-
-import gov.usdot.cv.common.database.mongodb.MongoOptionsBuilder;
-import gov.usdot.cv.common.database.mongodb.dao.QueryObjectRegistrationDataDao;
-import gov.usdot.cv.common.database.mongodb.geospatial.Coordinates;
-import gov.usdot.cv.common.database.mongodb.geospatial.Geometry;
-import gov.usdot.cv.common.database.mongodb.geospatial.Point;
-import gov.usdot.cv.common.model.BoundingBox;
-import gov.usdot.cv.common.util.PropertyLocator;
-
-import java.net.UnknownHostException;
-import java.util.Collection;
-
-import org.apache.log4j.Logger;
-
-import com.mongodb.DBObject;
-
-public class DatabaseHelper {
-
-	private final Logger logger = Logger.getLogger(getClass());
-	
-	public static final String TIMESTAMP_FIELD		= "timestamp";
-	public static final int MAX_RECORDS = 400;
-	
-	private String collectionName;
-	private String geoSpatialFieldName;
-	
-	private QueryObjectRegistrationDataDao objectRegistrationQueryDao;
-	
-	public DatabaseHelper(String mongoServerHost, int mongoServerPort, 
-			String databaseName, boolean autoConnectRetry, int connectTimeoutMs, 
-			String collectionName, String geospatialFieldName) throws UnknownHostException {
-		
-		logger.info("Constructing MongoDB data access object ...");
-		MongoOptionsBuilder optionsBuilder = new MongoOptionsBuilder();
-		optionsBuilder.setAutoConnectRetry(autoConnectRetry).setConnectTimeoutMs(connectTimeoutMs);
-		
-		if (mongoServerHost.endsWith("%s")) {
-			String domain = PropertyLocator.getString("RTWS_DOMAIN", null);
-			mongoServerHost = String.format(mongoServerHost, domain);
-		}
-		
-		this.objectRegistrationQueryDao = QueryObjectRegistrationDataDao.newInstance(
-			mongoServerHost, 
-			mongoServerPort, 
-			optionsBuilder.build(),
-			databaseName);
-		
-		this.collectionName = collectionName;
-		this.geoSpatialFieldName = geospatialFieldName;
-	}
-	
-	public Collection<DBObject> query(DiscoverModel discoverModel) throws IllegalArgumentException {
-		BoundingBox bb = buildBoundingBox(discoverModel);
-		
-		Point nwCorner = buildPoint(bb.getNWLat(), bb.getNWLon());
-		Point neCorner = buildPoint(bb.getNWLat(), bb.getSELon());
-		Point seCorner = buildPoint(bb.getSELat(), bb.getSELon());
-		Point swCorner = buildPoint(bb.getSELat(), bb.getNWLon());
-
-		Geometry geometry = buildGeometry(
-			Geometry.POLYGON_TYPE, 
-			buildCoordinates(
-				nwCorner, 
-				neCorner, 
-				seCorner, 
-				swCorner));
-
-		return objectRegistrationQueryDao.findAll(collectionName, discoverModel.serviceId, 
-				geoSpatialFieldName, geometry, TIMESTAMP_FIELD, MAX_RECORDS);
-	}
-	
-	private BoundingBox buildBoundingBox(DiscoverModel discoverModel) throws IllegalArgumentException {
-		Double nwLat = discoverModel.nwPos.lat;
-		Double nwLon = discoverModel.nwPos.lon;
-		Double seLat = discoverModel.sePos.lat;
-		Double seLon = discoverModel.sePos.lon;
-			
-		BoundingBox.Builder builder = new BoundingBox.Builder();
-		builder.setNWLat(nwLat).setNWLon(nwLon).setSELat(seLat).setSELon(seLon);
-		BoundingBox bb = builder.build();
-		
-		if (!bb.isValid())
-			throw new IllegalArgumentException(bb.getValidationError());
-		
-		return bb;
-	}
-	
-	private Point buildPoint(double lat, double lon) {
-		Point.Builder builder = new Point.Builder();
-		builder.setLat(lat).setLon(lon);
-		return builder.build();
-	}
-	
-	private Coordinates buildCoordinates(
-			Point nwCorner, 
-			Point neCorner, 
-			Point seCorner, 
-			Point swCorner) {
-		Coordinates.Builder builder = new Coordinates.Builder();
-		// Note: MongoDB requires that all geometry shape start and end at the same point
-		builder.addPoint(nwCorner).addPoint(neCorner).addPoint(seCorner).addPoint(swCorner).addPoint(nwCorner);
-		return builder.build();
-	}
-	
-	private Geometry buildGeometry(String type, Coordinates coordinates) {
-		Geometry.Builder builder = new Geometry.Builder();
-		builder.setType(type).setCoordinates(coordinates);
-		return builder.build();
-	}
-}
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.cv.common.util.PropertyLocator;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bson.codecs.configuration.CodecRegistries;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+public class DatabaseHelper {
+
+	private final Logger logger = Logger.getLogger(getClass());
+	
+	// The field the cv-common DAO sorted registrations by, newest first
+	public static final String TIMESTAMP_FIELD		= "timestamp";
+	// The field the DAO matched the requested serviceId against, see verifySchema()
+	public static final String SERVICE_ID_FIELD		= "serviceId";
+	public static final String POLYGON_TYPE		= "Polygon";
+	// Upper bound on the query limit, matches what the DAO used to fetch per request
+	public static final int MAX_RECORDS = 400;
+	
+	// Only the fields a discovery response reads, _id is included by default
+	private static final BasicDBObject RECORD_PROJECTION = new BasicDBObject(RegistrationRecord.ENCODED_MSG_FIELD, 1)
+		.append(TIMESTAMP_FIELD, 1);
+	private static final BasicDBObject NEWEST_FIRST = new BasicDBObject(TIMESTAMP_FIELD, -1);
+	
+	private String geoSpatialFieldName;
+	private int queryLimit = MAX_RECORDS;
+	private int queryMaxTimeMs = 0;
+	
+	private BasicDBObject recordProjection = RECORD_PROJECTION;
+	private final AtomicLong requeried = new AtomicLong();
+	
+	private MongoClient mongoClient;
+	private DBCollection registrationCollection;
+	private MongoCollection<RegistrationRecord> registrationRecords;
+	
+	private QueryResultCache resultCache;
+	private QueryCoalescer coalescer;
+	private QueryBatcher batcher;
+	private int queryGridMicrodegrees;
+	private RegistrationChangeFeed changeFeed;
+	private RegistrationIndex registrationIndex;
+	private DiscoveryMetrics metrics = new DiscoveryMetrics();
+	
+	public DatabaseHelper(String mongoServerHost, int mongoServerPort, 
+			String databaseName, boolean autoConnectRetry, int connectTimeoutMs, 
+			String collectionName, String geospatialFieldName) throws UnknownHostException {
+		this(mongoServerHost, mongoServerPort, databaseName, 
+				applyAutoConnectRetry(MongoClientOptions.builder().connectTimeout(connectTimeoutMs), 
+						autoConnectRetry, connectTimeoutMs).build(), 
+				collectionName, geospatialFieldName);
+	}
+	
+	/**
+	 * @param mongoServerHosts a host or a comma separated list of replica set members as host or
+	 * host:port, the port defaults to mongoServerPort
+	 */
+	public DatabaseHelper(String mongoServerHosts, int mongoServerPort, String databaseName, 
+			MongoClientOptions clientOptions, String collectionName, String geospatialFieldName) throws UnknownHostException {
+		
+		logger.info("Constructing MongoDB data access object ...");
+		if (mongoServerHosts.endsWith("%s")) {
+			String domain = PropertyLocator.getString("RTWS_DOMAIN", null);
+			mongoServerHosts = String.format(mongoServerHosts, domain);
+		}
+		
+		List<ServerAddress> seeds = parseServerAddresses(mongoServerHosts, mongoServerPort);
+		logger.info(String.format("Connecting to MongoDB %s with %d connections per host and %s read preference.", 
+				seeds, clientOptions.getConnectionsPerHost(), clientOptions.getReadPreference()));
+		if (seeds.size() == 1 && clientOptions.getRequiredReplicaSetName() == null) {
+			// A single address connects to that server directly, as before
+			this.mongoClient = new MongoClient(seeds.get(0), clientOptions);
+		} else {
+			this.mongoClient = new MongoClient(seeds, clientOptions);
+		}
+		this.registrationCollection = mongoClient.getDB(databaseName).getCollection(collectionName);
+		// Discovery queries decode straight into RegistrationRecords, other users see DBObjects
+		this.registrationRecords = mongoClient.getDatabase(databaseName)
+			.getCollection(collectionName, RegistrationRecord.class)
+			.withCodecRegistry(CodecRegistries.fromRegistries(
+				CodecRegistries.fromCodecs(new RegistrationRecordCodec(geospatialFieldName)),
+				MongoClient.getDefaultCodecRegistry()));
+		
+		this.geoSpatialFieldName = geospatialFieldName;
+	}
+	
+	/**
+	 * Answers every query from the given in-memory index without a database connection.
+	 * Used by the load harness to stand in for MongoDB.
+	 */
+	DatabaseHelper(RegistrationIndex registrationIndex) {
+		this.registrationIndex = registrationIndex;
+	}
+	
+	/**
+	 * Sets the maximum number of documents a query returns. Defaults to MAX_RECORDS, as many as
+	 * the DAO fetched. Responses take the first registrations that decode as
+	 * ObjectRegistrationData, so a limit below the number of other documents in a box can leave
+	 * responses short. Database cursors fetch one response worth of documents at a time whatever
+	 * the limit.
+	 */
+	public void setQueryLimit(int queryLimit) {
+		if (queryLimit < 1 || queryLimit > MAX_RECORDS) {
+			throw new IllegalArgumentException("Query limit must be between 1 and " + MAX_RECORDS);
+		}
+		this.queryLimit = queryLimit;
+	}
+	
+	public int getQueryLimit() {
+		return this.queryLimit;
+	}
+	
+	/**
+	 * Bounds the time the server spends on a discovery query, 0 for no limit.
+	 */
+	public void setQueryMaxTimeMs(int queryMaxTimeMs) {
+		this.queryMaxTimeMs = queryMaxTimeMs;
+	}
+	
+	public int getQueryMaxTimeMs() {
+		return this.queryMaxTimeMs;
+	}
+	
+	/**
+	 * Builds client options from the sink properties.
+	 * @param autoConnectRetry false to give up on an unreachable server after the connect timeout
+	 * @param readPreference a read preference name such as primary, secondaryPreferred or nearest
+	 * @param replicaSetName required replica set name or null to accept any
+	 */
+	public static MongoClientOptions buildClientOptions(boolean autoConnectRetry, int connectTimeoutMs, int connectionsPerHost, 
+			int maxWaitTimeMs, int socketTimeoutMs, String readPreference, String replicaSetName) {
+		MongoClientOptions.Builder builder = MongoClientOptions.builder()
+			.connectTimeout(connectTimeoutMs)
+			.connectionsPerHost(connectionsPerHost)
+			.maxWaitTime(maxWaitTimeMs)
+			.socketTimeout(socketTimeoutMs)
+			.readPreference(ReadPreference.valueOf(readPreference));
+		if (replicaSetName != null && ! replicaSetName.trim().isEmpty()) {
+			builder.requiredReplicaSetName(replicaSetName.trim());
+		}
+		return applyAutoConnectRetry(builder, autoConnectRetry, connectTimeoutMs).build();
+	}
+	
+	/**
+	 * The 2.x driver option autoConnectRetry kept retrying to reach a server, the 3.x driver
+	 * always does until the server selection timeout expires. Without retries a request now
+	 * gives up once the connect timeout has passed, as a single connect attempt did.
+	 */
+	static MongoClientOptions.Builder applyAutoConnectRetry(MongoClientOptions.Builder builder, 
+			boolean autoConnectRetry, int connectTimeoutMs) {
+		if (! autoConnectRetry && connectTimeoutMs > 0) {
+			builder.serverSelectionTimeout(connectTimeoutMs);
+		}
+		return builder;
+	}
+	
+	/**
+	 * Warns when the registration collection doesn't look the way discovery queries expect: the
+	 * newest document lacks the serviceId, geospatial or timestamp field, or no index covers the
+	 * geospatial field. Does nothing without a database.
+	 */
+	public void verifySchema() {
+		if (registrationCollection == null) {
+			return;
+		}
+		try {
+			DBCursor newest = registrationCollection.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+			try {
+				if (newest.hasNext()) {
+					DBObject document = newest.next();
+					for (String field : new String[] { SERVICE_ID_FIELD, geoSpatialFieldName, TIMESTAMP_FIELD }) {
+						if (! document.containsField(field)) {
+							logger.warn(String.format("Object registration %s has no '%s' field, discovery queries will not match it.", 
+									document.get("_id"), field));
+						}
+					}
+				}
+			} finally {
+				newest.close();
+			}
+			for (DBObject index : registrationCollection.getIndexInfo()) {
+				if (((DBObject) index.get("key")).containsField(geoSpatialFieldName)) {
+					return;
+				}
+			}
+			logger.warn(String.format("No index on '%s' of %s, discovery queries scan the collection.", 
+					geoSpatialFieldName, registrationCollection.getFullName()));
+		} catch (MongoException ex) {
+			logger.warn("Failed to verify the object registration collection.", ex);
+		}
+	}
+	
+	static List<ServerAddress> parseServerAddresses(String hosts, int defaultPort) {
+		List<ServerAddress> addresses = new ArrayList<ServerAddress>();
+		for (String host : hosts.split(",")) {
+			host = host.trim();
+			if (host.isEmpty()) {
+				continue;
+			}
+			int colon = host.lastIndexOf(':');
+			if (colon > 0 && host.indexOf(':') == colon) {
+				addresses.add(new ServerAddress(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1))));
+			} else {
+				addresses.add(new ServerAddress(host, defaultPort));
+			}
+		}
+		if (addresses.isEmpty()) {
+			throw new IllegalArgumentException("No MongoDB host in '" + hosts + "'");
+		}
+		return addresses;
+	}
+	
+	/**
+	 * Publishes the writes to the registration collection as they happen, from the oplog when
+	 * the server has one and by polling every pollIntervalMs otherwise. Enable it before the
+	 * result cache and the registration index so they follow the feed instead of polling.
+	 */
+	public void enableChangeFeed(long pollIntervalMs) {
+		enableChangeFeed(RegistrationChangeFeed.forCollection(mongoClient, registrationCollection, TIMESTAMP_FIELD, pollIntervalMs));
+	}
+	
+	void enableChangeFeed(RegistrationChangeFeed changeFeed) {
+		logger.info("Enabling registration change feed ...");
+		this.changeFeed = changeFeed;
+		this.changeFeed.start();
+	}
+	
+	public RegistrationChangeFeed getChangeFeed() {
+		return this.changeFeed;
+	}
+	
+	/**
+	 * Caches query results by serviceId and bounding box snapped outward to a grid. The cache is
+	 * cleared on every change the registration change feed reports; the feed is started with
+	 * changePollIntervalMs if it is not enabled yet. Each request gets the cached result cut down
+	 * to its own box, see {@link #narrow}.
+	 */
+	public void enableResultCache(int maxEntries, long ttlMs, int gridMicrodegrees, long changePollIntervalMs) {
+		logger.info(String.format("Enabling query result cache with %d entries, %d ms ttl and %d microdegree grid.", 
+				maxEntries, ttlMs, gridMicrodegrees));
+		this.queryGridMicrodegrees = gridMicrodegrees;
+		this.resultCache = new QueryResultCache(maxEntries, ttlMs);
+		fetchRegions();
+		if (changeFeed == null) {
+			enableChangeFeed(changePollIntervalMs);
+		}
+		changeFeed.addListener(new RegistrationChangeFeed.Listener() {
+			public void registrationsChanged(List<RegistrationChange> changes) {
+				resultCache.invalidateAll();
+				logger.debug(String.format("%d object registrations changed, cleared %s", changes.size(), resultCache));
+			}
+		});
+	}
+	
+	/**
+	 * Lets concurrent requests for the same serviceId and bounding box snapped outward to a grid
+	 * share one in-flight query. When the result cache is enabled its grid is used instead. Each
+	 * request gets the shared result cut down to its own box, see {@link #narrow}.
+	 */
+	public void enableQueryCoalescing(int gridMicrodegrees) {
+		if (resultCache == null) {
+			this.queryGridMicrodegrees = gridMicrodegrees;
+		}
+		fetchRegions();
+		logger.info(String.format("Enabling query coalescing with %d microdegree grid.", queryGridMicrodegrees));
+		this.coalescer = new QueryCoalescer();
+	}
+	
+	public QueryCoalescer getCoalescer() {
+		return this.coalescer;
+	}
+	
+	/**
+	 * Cached and coalesced results for snapped keys are cut down to each request's box by region,
+	 * so queries fetch it.
+	 */
+	private void fetchRegions() {
+		if (geoSpatialFieldName != null) {
+			this.recordProjection = new BasicDBObject(RECORD_PROJECTION).append(geoSpatialFieldName, 1);
+		}
+	}
+	
+	/**
+	 * @return number of requests whose snapped key result could not be cut down to their own
+	 * box and that were queried on their own
+	 */
+	public long getRequeried() {
+		return requeried.get();
+	}
+	
+	/**
+	 * Combines the database queries of requests arriving within the window, up to maxRequests,
+	 * into one query. Has no effect on queries answered by the registration index.
+	 */
+	public void enableQueryBatching(long windowMs, int maxRequests) {
+		logger.info(String.format("Enabling query batching with %d ms window and up to %d requests per batch.", windowMs, maxRequests));
+		this.batcher = new QueryBatcher(new QueryBatcher.Finder() {
+			public List<DBObject> find(DBObject query, DBObject projection, int limit) {
+				DBCursor cursor = registrationCollection.find(query, projection)
+					.sort(new BasicDBObject(TIMESTAMP_FIELD, -1))
+					.limit(limit);
+				if (queryMaxTimeMs > 0) {
+					cursor.maxTime(queryMaxTimeMs, TimeUnit.MILLISECONDS);
+				}
+				try {
+					List<DBObject> documents = new ArrayList<DBObject>();
+					while (cursor.hasNext()) {
+						documents.add(cursor.next());
+					}
+					return documents;
+				} finally {
+					cursor.close();
+				}
+			}
+		}, geoSpatialFieldName, windowMs, maxRequests);
+	}
+	
+	public QueryBatcher getBatcher() {
+		return this.batcher;
+	}
+	
+	/**
+	 * Answers queries from an in memory replica of the registration collection instead of MongoDB.
+	 */
+	public void enableRegistrationIndex(long refreshIntervalMs) {
+		enableRegistrationIndex(refreshIntervalMs, 0);
+	}
+	
+	/**
+	 * Answers queries from an in memory replica of the registration collection bucketed by the
+	 * tiles of the given level, or held in an R-tree when the level is 0.
+	 */
+	public void enableRegistrationIndex(long refreshIntervalMs, int tileLevel) {
+		logger.info(tileLevel > 0 ? "Enabling in memory registration index with level " + tileLevel + " tiles ..."
+				: "Enabling in memory registration index ...");
+		this.registrationIndex = new RegistrationIndex(registrationCollection, 
+				SERVICE_ID_FIELD, geoSpatialFieldName, TIMESTAMP_FIELD);
+		this.registrationIndex.setTileLevel(tileLevel);
+		if (changeFeed != null) {
+			// Listen before loading so that no change made during the load is missed
+			changeFeed.addListener(new RegistrationChangeFeed.Listener() {
+				public void registrationsChanged(List<RegistrationChange> changes) {
+					registrationIndex.apply(changes);
+				}
+			});
+			this.registrationIndex.load();
+			return;
+		}
+		this.registrationIndex.start(refreshIntervalMs);
+	}
+	
+	public void setMetrics(DiscoveryMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public QueryResultCache getResultCache() {
+		return this.resultCache;
+	}
+	
+	public void close() {
+		if (changeFeed != null) {
+			changeFeed.stop();
+			logger.info("Closing " + changeFeed);
+		}
+		if (registrationIndex != null) {
+			registrationIndex.stop();
+		}
+		if (resultCache != null) {
+			logger.info("Closing " + resultCache);
+		}
+		if (coalescer != null) {
+			logger.info("Closing " + coalescer);
+		}
+		if (batcher != null) {
+			batcher.close();
+			logger.info("Closing " + batcher);
+		}
+		if (mongoClient != null) {
+			mongoClient.close();
+		}
+	}
+	
+	/**
+	 * Returns the registrations for the requested service that intersect the request bounding box,
+	 * newest first. The caller must close the returned cursor.
+	 */
+	public RegistrationCursor query(DiscoverModel discoverModel) throws IllegalArgumentException {
+		long start = System.nanoTime();
+		try {
+			final int serviceId = discoverModel.serviceId;
+			final double nwLat = discoverModel.nwPos.lat;
+			final double nwLon = discoverModel.nwPos.lon;
+			final double seLat = discoverModel.sePos.lat;
+			final double seLon = discoverModel.sePos.lon;
+			validateBoundingBox(nwLat, nwLon, seLat, seLon);
+			if (resultCache == null && coalescer == null) {
+				return query(serviceId, nwLat, nwLon, seLat, seLon);
+			}
+			
+			final QueryKey key = QueryKey.fromModel(discoverModel, queryGridMicrodegrees);
+			List<RegistrationRecord> result = resultCache != null ? resultCache.get(key) : null;
+			if (result != null) {
+				return RegistrationCursor.fromCollection(narrow(result, serviceId, nwLat, nwLon, seLat, seLon));
+			}
+			if (coalescer != null) {
+				return coalescer.query(key, new Callable<List<RegistrationRecord>>() {
+					public List<RegistrationRecord> call() {
+						return load(key);
+					}
+				}, new QueryCoalescer.ResultFilter() {
+					public List<RegistrationRecord> filter(List<RegistrationRecord> shared) {
+						return narrow(shared, serviceId, nwLat, nwLon, seLat, seLon);
+					}
+				});
+			}
+			return RegistrationCursor.fromCollection(narrow(load(key), serviceId, nwLat, nwLon, seLat, seLon));
+		} finally {
+			metrics.recordSince(DiscoveryMetrics.Stage.QUERY, start);
+		}
+	}
+	
+	/**
+	 * Runs the query for a snapped key to completion and caches the result when caching is on.
+	 */
+	private List<RegistrationRecord> load(QueryKey key) {
+		long generation = resultCache != null ? resultCache.getGeneration() : 0;
+		List<RegistrationRecord> result = Collections.unmodifiableList(query(key.getServiceId(), 
+				key.getNWLat(), key.getNWLon(), key.getSELat(), key.getSELon()).toList());
+		if (resultCache != null) {
+			resultCache.put(key, result, generation);
+		}
+		return result;
+	}
+	
+	/**
+	 * Cuts the newest first result of a snapped key, shared or cached, down to the registrations whose region
+	 * intersects the request box. That is the request's whole answer unless the snapped query
+	 * was cut at the query limit and registrations outside the request box took places in it;
+	 * the request box is then queried on its own.
+	 */
+	List<RegistrationRecord> narrow(List<RegistrationRecord> shared, int serviceId,
+			double nwLat, double nwLon, double seLat, double seLon) {
+		List<RegistrationRecord> result = new ArrayList<RegistrationRecord>(shared.size());
+		for (RegistrationRecord record : shared) {
+			RegionGeometry region = record.getRegion();
+			if (region == null || region.intersects(nwLat, nwLon, seLat, seLon)) {
+				result.add(record);
+			}
+		}
+		if (result.size() == shared.size()) {
+			return shared;
+		}
+		if (shared.size() < queryLimit) {
+			return result;
+		}
+		requeried.incrementAndGet();
+		return query(serviceId, nwLat, nwLon, seLat, seLon).toList();
+	}
+	
+	private RegistrationCursor query(int serviceId, double nwLat, double nwLon, double seLat, double seLon) {
+		if (registrationIndex != null) {
+			return RegistrationCursor.fromCollection(
+					registrationIndex.query(serviceId, nwLat, nwLon, seLat, seLon, queryLimit));
+		}
+		if (batcher != null) {
+			return RegistrationCursor.fromCollection(batcher.query(serviceId, nwLat, nwLon, seLat, seLon, queryLimit));
+		}
+		
+		BoundingBoxQuery query = new BoundingBoxQuery(geoSpatialFieldName, serviceId, nwLat, nwLon, seLat, seLon);
+		
+		// Batches are sized to one response so consumers that stop early leave the rest on the server
+		MongoCursor<RegistrationRecord> cursor = registrationRecords.find(query)
+			.projection(recordProjection)
+			.sort(NEWEST_FIRST)
+			.limit(queryLimit)
+			.batchSize(Math.min(queryLimit, ResponseSender.MAX_SERVICE_RECORDS))
+			.maxTime(queryMaxTimeMs, TimeUnit.MILLISECONDS)
+			.iterator();
+		return RegistrationCursor.fromCursor(cursor);
+	}
+	
+	// Package private static helpers so the benchmarks can measure them without a database
+	
+	static BasicDBObject buildQuery(String geoSpatialFieldName, int serviceId, double nwLat, double nwLon, double seLat, double seLon) {
+		BasicDBObject geometry = buildPolygon(nwLat, nwLon, seLat, seLon);
+		return new BasicDBObject(SERVICE_ID_FIELD, serviceId)
+			.append(geoSpatialFieldName, new BasicDBObject("$geoIntersects", new BasicDBObject("$geometry", geometry)));
+	}
+	
+	/**
+	 * Checks that the corners are finite coordinates, latitudes within [-90, 90] and longitudes
+	 * within [-180, 180], and that the NW corner is strictly north and west of the SE corner.
+	 * A box of a single point or line is rejected.
+	 */
+	static void validateBoundingBox(double nwLat, double nwLon, double seLat, double seLon) throws IllegalArgumentException {
+		if (!(nwLat >= -90.0 && nwLat <= 90.0 && seLat >= -90.0 && seLat <= 90.0))
+			throw new IllegalArgumentException("Bounding box latitudes must be between -90 and 90: " + nwLat + ", " + seLat);
+		if (!(nwLon >= -180.0 && nwLon <= 180.0 && seLon >= -180.0 && seLon <= 180.0))
+			throw new IllegalArgumentException("Bounding box longitudes must be between -180 and 180: " + nwLon + ", " + seLon);
+		if (!(nwLat > seLat && nwLon < seLon))
+			throw new IllegalArgumentException("Bounding box NW corner " + nwLat + ", " + nwLon 
+					+ " must be north west of SE corner " + seLat + ", " + seLon);
+	}
+	
+	static BasicDBObject buildPolygon(double nwLat, double nwLon, double seLat, double seLon) {
+		BasicDBList ring = new BasicDBList();
+		// Note: MongoDB requires that all geometry shape start and end at the same point
+		ring.add(buildPosition(nwLat, nwLon));
+		ring.add(buildPosition(nwLat, seLon));
+		ring.add(buildPosition(seLat, seLon));
+		ring.add(buildPosition(seLat, nwLon));
+		ring.add(buildPosition(nwLat, nwLon));
+		
+		BasicDBList coordinates = new BasicDBList();
+		coordinates.add(ring);
+		return new BasicDBObject("type", POLYGON_TYPE).append("coordinates", coordinates);
+	}
+	
+	private static BasicDBList buildPosition(double lat, double lon) {
+		// GeoJSON positions are longitude first
+		BasicDBList position = new BasicDBList();
+		position.add(lon);
+		position.add(lat);
+		return position;
+	}
+}
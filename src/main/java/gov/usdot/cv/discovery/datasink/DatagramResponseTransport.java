@@ -0,0 +1,308 @@
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.cv.common.inet.InetPacket;
+import gov.usdot.cv.common.inet.InetPoint;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends discovery responses over a single shared non-blocking {@link DatagramChannel}.
+ *
+ * Payloads are copied into pooled direct buffers and sent straight from the calling thread.
+ * When the socket send buffer is full the datagram is queued instead, and a flusher thread
+ * writes out everything queued each time the channel becomes writable again. Destination
+ * addresses are resolved once and cached for a limited time.
+ *
+ * Routing follows InetPacketSender: responses to requests that came through the forwarder,
+ * or all responses when forwardAll is set, are wrapped in an InetPacket bundle and sent to
+ * the forwarder; everything else goes directly to the requester.
+ */
+public class DatagramResponseTransport {
+
+	private static final Logger logger = Logger.getLogger(DatagramResponseTransport.class);
+	private static final SampledLogger requestLogger = SampledLogger.getLogger(DatagramResponseTransport.class);
+
+	// Caps the resolved address cache if requests arrive from many distinct hosts
+	private static final int MAX_CACHED_DESTINATIONS = 10000;
+
+	private final InetSocketAddress forwarderAddress;
+	private final boolean forwardAll;
+	private final int bufferSize;
+	private final int maxPooledBuffers;
+	private final long addressTtlMs;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Thread flusher;
+	private volatile boolean closed;
+
+	private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooledBuffers = new AtomicInteger();
+	private final Queue<Datagram> pending = new ConcurrentLinkedQueue<Datagram>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicInteger pendingHighWater = new AtomicInteger();
+	private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong resolutions = new AtomicLong();
+
+	/**
+	 * @param forwarderPoint the bundle forwarder or null to always send directly
+	 * @param bufferSize size of the pooled direct buffers, larger payloads use a one off heap buffer
+	 * @param maxPooledBuffers number of direct buffers kept for reuse
+	 * @param addressTtlMs how long a resolved destination address is reused
+	 */
+	public DatagramResponseTransport(InetPoint forwarderPoint, boolean forwardAll,
+			int bufferSize, int maxPooledBuffers, long addressTtlMs) throws IOException {
+		this.forwarderAddress = forwarderPoint != null
+				? new InetSocketAddress(InetAddress.getByAddress(forwarderPoint.address), forwarderPoint.port) : null;
+		this.forwardAll = forwardAll;
+		this.bufferSize = bufferSize;
+		this.maxPooledBuffers = maxPooledBuffers;
+		this.addressTtlMs = addressTtlMs;
+
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(selector, 0);
+
+		this.flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "objectdiscovery-datagram-flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+
+		logger.info(String.format("Constructed datagram response transport with %d byte buffers, forwarder %s, forward all %s.",
+				bufferSize, forwarderAddress, forwardAll));
+	}
+
+	/**
+	 * Sends the payload to the destination, or queues it when the socket can't take it right now.
+	 * @throws IOException if the destination can't be resolved or the send fails
+	 */
+	public void send(String destHost, int destPort, boolean fromForwarder, byte[] payload) throws IOException {
+		if (closed) {
+			throw new IOException("Datagram response transport is closed");
+		}
+		Destination destination = resolve(destHost, destPort);
+
+		InetSocketAddress target = destination.address;
+		byte[] datagram = payload;
+		if (forwarderAddress != null && (fromForwarder || forwardAll)) {
+			target = forwarderAddress;
+			datagram = new InetPacket(destination.point, payload).getBundle();
+		}
+
+		ByteBuffer buffer = acquire(datagram.length);
+		buffer.put(datagram);
+		buffer.flip();
+
+		// Keep datagrams in order behind anything already waiting for the flusher
+		if (pendingCount.get() == 0) {
+			try {
+				if (channel.send(buffer, target) > 0) {
+					sent.incrementAndGet();
+					release(buffer);
+					return;
+				}
+			} catch (IOException ex) {
+				failed.incrementAndGet();
+				release(buffer);
+				throw ex;
+			}
+		}
+		enqueue(new Datagram(buffer, target));
+	}
+
+	private void enqueue(Datagram datagram) {
+		pending.add(datagram);
+		queued.incrementAndGet();
+		int depth = pendingCount.incrementAndGet();
+		int highWater = pendingHighWater.get();
+		while (depth > highWater && ! pendingHighWater.compareAndSet(highWater, depth)) {
+			highWater = pendingHighWater.get();
+		}
+		if (depth == 1) {
+			selector.wakeup();
+		}
+	}
+
+	private void flushLoop() {
+		SelectionKey key = channel.keyFor(selector);
+		while (! closed || pendingCount.get() > 0) {
+			try {
+				boolean blocked = flushPending();
+				key.interestOps(blocked ? SelectionKey.OP_WRITE : 0);
+				selector.select(blocked ? 0 : 100);
+				selector.selectedKeys().clear();
+			} catch (Exception ex) {
+				if (! selector.isOpen() || ! channel.isOpen()) {
+					break;
+				}
+				logger.error("Datagram response flusher failed.", ex);
+			}
+		}
+	}
+
+	/**
+	 * Writes out queued datagrams until the queue is empty or the socket is full.
+	 * @return true if the socket filled up and there is still data to send
+	 */
+	private boolean flushPending() {
+		Datagram datagram;
+		while ((datagram = pending.peek()) != null) {
+			try {
+				if (channel.send(datagram.buffer, datagram.target) == 0) {
+					return true;
+				}
+				sent.incrementAndGet();
+			} catch (IOException ex) {
+				failed.incrementAndGet();
+				requestLogger.error(ex, "Failed to send queued discovery response to %s", datagram.target);
+			}
+			pending.poll();
+			pendingCount.decrementAndGet();
+			release(datagram.buffer);
+		}
+		return false;
+	}
+
+	private Destination resolve(String host, int port) throws UnknownHostException {
+		String key = host + ':' + port;
+		long now = System.nanoTime();
+		Destination destination = destinations.get(key);
+		if (destination == null || now - destination.resolvedAt > TimeUnit.MILLISECONDS.toNanos(addressTtlMs)) {
+			InetAddress address = InetAddress.getByName(host);
+			resolutions.incrementAndGet();
+			destination = new Destination(new InetSocketAddress(address, port),
+					new InetPoint(address.getAddress(), port, forwardAll), now);
+			if (destinations.size() >= MAX_CACHED_DESTINATIONS) {
+				destinations.clear();
+			}
+			destinations.put(key, destination);
+		}
+		return destination;
+	}
+
+	private ByteBuffer acquire(int length) {
+		if (length > bufferSize) {
+			return ByteBuffer.allocate(length);
+		}
+		ByteBuffer buffer = bufferPool.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooledBuffers.decrementAndGet();
+		return buffer;
+	}
+
+	private void release(ByteBuffer buffer) {
+		if (! buffer.isDirect() || pooledBuffers.get() >= maxPooledBuffers) {
+			return;
+		}
+		buffer.clear();
+		pooledBuffers.incrementAndGet();
+		bufferPool.offer(buffer);
+	}
+
+	/**
+	 * Stops accepting datagrams and waits up to the timeout for queued ones to be sent.
+	 */
+	public void close(long timeoutMs) {
+		closed = true;
+		selector.wakeup();
+		try {
+			flusher.join(timeoutMs);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (pendingCount.get() > 0) {
+			logger.warn(String.format("Dropping %d queued discovery responses on close.", pendingCount.get()));
+		}
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException ex) {
+			logger.warn("Failed to close datagram channel.", ex);
+		}
+		logger.info("Closed " + this);
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	public long getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return datagrams waiting for the flusher
+	 */
+	public int getPending() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * @return the most datagrams that have waited for the flusher at once
+	 */
+	public int getPendingHighWater() {
+		return pendingHighWater.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getResolutions() {
+		return resolutions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DatagramResponseTransport [sent=" + getSent() + ", queued=" + getQueued() + ", pendingHighWater=" + getPendingHighWater() + ", failed=" + getFailed()
+				+ ", resolutions=" + getResolutions() + "]";
+	}
+
+	private static final class Destination {
+		final InetSocketAddress address;
+		final InetPoint point;
+		final long resolvedAt;
+
+		Destination(InetSocketAddress address, InetPoint point, long resolvedAt) {
+			this.address = address;
+			this.point = point;
+			this.resolvedAt = resolvedAt;
+		}
+	}
+
+	private static final class Datagram {
+		final ByteBuffer buffer;
+		final InetSocketAddress target;
+
+		Datagram(ByteBuffer buffer, InetSocketAddress target) {
+			this.buffer = buffer;
+			this.target = target;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.asn1.generated.j2735.semi.ObjectRegistrationData;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded LRU cache of decoded registrations keyed by document id and timestamp, so that an
+ * updated registration is decoded again while an unchanged one is decoded only once.
+ * Documents that don't hold an ObjectRegistrationData are remembered as well so they are skipped
+ * without decoding.
+ */
+public class DecodedRecordCache {
+
+	/**
+	 * Cached value for documents whose encoded message is not an ObjectRegistrationData.
+	 */
+	public static final ObjectRegistrationData NOT_A_REGISTRATION = new ObjectRegistrationData();
+
+	private final int maxEntries;
+	private final Map<Key, ObjectRegistrationData> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public DecodedRecordCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<Key, ObjectRegistrationData>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, ObjectRegistrationData> eldest) {
+				if (size() > DecodedRecordCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the decoded registration, {@link #NOT_A_REGISTRATION} or null when not cached
+	 */
+	public synchronized ObjectRegistrationData get(Object id, Object timestamp) {
+		ObjectRegistrationData record = entries.get(new Key(id, timestamp));
+		if (record == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return record;
+	}
+
+	public synchronized void put(Object id, Object timestamp, ObjectRegistrationData record) {
+		entries.put(new Key(id, timestamp), record);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DecodedRecordCache [size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+				+ ", evictions=" + getEvictions() + "]";
+	}
+
+	private static final class Key {
+		private final Object id;
+		private final Object timestamp;
+
+		Key(Object id, Object timestamp) {
+			this.id = id;
+			this.timestamp = timestamp;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * id.hashCode() + (timestamp == null ? 0 : timestamp.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return id.equals(other.id) && (timestamp == null ? other.timestamp == null : timestamp.equals(other.timestamp));
+		}
+	}
+}
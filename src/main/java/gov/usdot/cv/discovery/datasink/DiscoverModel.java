@@ -1,100 +1,215 @@
-package gov.usdot.cv.discovery.datasink;
-
-import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
-
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-
-import org.codehaus.jackson.JsonParseException;
-import org.codehaus.jackson.annotate.JsonIgnoreProperties;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
-
-@JsonIgnoreProperties(ignoreUnknown = true)
-public class DiscoverModel {
-
-	private static final ObjectMapper mapper;
-	
-	static {
-		mapper = new ObjectMapper();
-	}
-	
-	public static DiscoverModel fromJSON(String json) throws JsonParseException, JsonMappingException, IOException {
-		InputStream is = new ByteArrayInputStream(json.getBytes());
-		DiscoverModel model = mapper.readValue(is, DiscoverModel.class);
-		return model;
-	}
-	
-	public int dialogId;
-	public String receiptId;
-	public int sequenceId;
-	public int groupId;
-	public int requestId;
-	public int serviceId;
-	
-	public String destHost;
-	public int destPort;
-	public String fromForwarder;
-	public String certificate;
-	
-	public Position nwPos;
-	public Position sePos;
-	
-	public static class Position {
-		public double lat;
-		public double lon;
-	}
-	
-	public void validate() {
-		if (dialogId != SemiDialogID.objDisc.longValue()) {
-			throw new IllegalArgumentException("Invalid dialogId " + dialogId + " for DiscoveryDataRequest");
-		}
-		
-		if (destHost == null || destPort == 0) {
-			throw new IllegalArgumentException("Destination host/port is missing, ignoring data request.");
-		}
-		
-		if (nwPos == null) {
-			throw new IllegalArgumentException("Missing northwest position object.");
-		} else {
-			validateLat("nwPos.lat", nwPos.lat);
-			validateLon("nwPos.lon", nwPos.lon);
-		}
-		
-		if (sePos == null) {
-			throw new IllegalArgumentException("Missing southeast position object.");
-		} else {
-			validateLat("sePos.lat", sePos.lat);
-			validateLon("sePos.lon", sePos.lon);
-		}
-	}
-	
-	private void validateLat(String name, double lat) {
-		// 0.0 is invalid for our purposes, catches uninitialized values
-		if (lat == 0.0)
-			throw new IllegalArgumentException(name + " is required");
-		if (lat < -90.0 | lat > 90.0)
-			throw new IllegalArgumentException(name + " " + lat + " is not a valid Latitude value");
-	}
-	
-	private void validateLon(String name, double lon) {
-		// 0.0 is invalid for our purposes, catches uninitialized values
-		if (lon == 0.0)
-			throw new IllegalArgumentException(name + " is required");
-		if (lon < -180.0 | lon > 180.0)
-			throw new IllegalArgumentException(name + " " + lon + " is not a valid Longitude value");
-	}
-
-	@Override
-	public String toString() {
-		return "DiscoverModel [dialogId=" + dialogId + ", receiptId="
-				+ receiptId + ", sequenceId=" + sequenceId + ", groupId="
-				+ groupId + ", requestId=" + requestId + ", serviceId="
-				+ serviceId + ", destHost=" + destHost + ", destPort="
-				+ destPort + ", fromForwarder=" + fromForwarder
-				+ ", certificate=" + certificate + ", nwPos=" + nwPos
-				+ ", sePos=" + sePos + "]";
-	}
-	
-}
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.map.JsonMappingException;
+import org.codehaus.jackson.map.ObjectMapper;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DiscoverModel {
+
+	private static final ObjectMapper mapper;
+	
+	static {
+		mapper = new ObjectMapper();
+	}
+	
+	public static DiscoverModel fromJSON(String json) throws JsonParseException, JsonMappingException, IOException {
+		InputStream is = new ByteArrayInputStream(json.getBytes());
+		DiscoverModel model = mapper.readValue(is, DiscoverModel.class);
+		return model;
+	}
+	
+	/**
+	 * Fills a model straight from the ingested record without serializing it back to a JSON
+	 * string. Follows the Jackson mapping used by {@link #fromJSON(String)}: unknown fields are
+	 * ignored, missing or null fields keep their defaults, numeric strings are parsed and
+	 * scalar values are accepted for string fields. Numbers that aren't whole or don't fit an
+	 * int are rejected rather than truncated.
+	 */
+	public static DiscoverModel fromJSONObject(JSONObject json) {
+		DiscoverModel model = new DiscoverModel();
+		model.dialogId = intValue(json, "dialogId");
+		model.receiptId = stringValue(json, "receiptId");
+		model.sequenceId = intValue(json, "sequenceId");
+		model.groupId = intValue(json, "groupId");
+		model.requestId = intValue(json, "requestId");
+		model.serviceId = intValue(json, "serviceId");
+		model.destHost = stringValue(json, "destHost");
+		model.destPort = intValue(json, "destPort");
+		model.fromForwarder = stringValue(json, "fromForwarder");
+		model.certificate = stringValue(json, "certificate");
+		model.nwPos = positionValue(json, "nwPos");
+		model.sePos = positionValue(json, "sePos");
+		return model;
+	}
+	
+	private static Object value(JSONObject json, String key) {
+		Object value = json.opt(key);
+		return value instanceof JSONNull ? null : value;
+	}
+	
+	private static int intValue(JSONObject json, String key) {
+		Object value = value(json, key);
+		if (value == null) {
+			return 0;
+		} else if (value instanceof Number) {
+			// Only whole numbers within the int range, instead of truncating them
+			try {
+				return new BigDecimal(value.toString()).intValueExact();
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(key + " value '" + value + "' is not a valid int");
+			} catch (ArithmeticException ex) {
+				throw new IllegalArgumentException(key + " value '" + value + "' is not a valid int");
+			}
+		} else if (value instanceof String) {
+			String text = ((String) value).trim();
+			if (text.isEmpty()) {
+				return 0;
+			}
+			try {
+				return Integer.parseInt(text);
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(key + " value '" + value + "' is not a valid int");
+			}
+		}
+		throw new IllegalArgumentException(key + " value '" + value + "' is not a valid int");
+	}
+	
+	private static double doubleValue(JSONObject json, String key) {
+		Object value = value(json, key);
+		if (value == null) {
+			return 0.0;
+		} else if (value instanceof Float) {
+			// json-lib narrows some parsed decimals to Float, read them the way their JSON text reads
+			return Double.parseDouble(value.toString());
+		} else if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		} else if (value instanceof String) {
+			String text = ((String) value).trim();
+			if (text.isEmpty()) {
+				return 0.0;
+			}
+			try {
+				return Double.parseDouble(text);
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(key + " value '" + value + "' is not a valid double");
+			}
+		}
+		throw new IllegalArgumentException(key + " value '" + value + "' is not a valid double");
+	}
+	
+	private static String stringValue(JSONObject json, String key) {
+		Object value = value(json, key);
+		if (value == null || value instanceof String) {
+			return (String) value;
+		} else if (value instanceof Number || value instanceof Boolean) {
+			return value.toString();
+		}
+		throw new IllegalArgumentException(key + " value '" + value + "' is not a valid string");
+	}
+	
+	private static Position positionValue(JSONObject json, String key) {
+		Object value = value(json, key);
+		if (value == null) {
+			return null;
+		} else if (! (value instanceof JSONObject)) {
+			throw new IllegalArgumentException(key + " value '" + value + "' is not a valid position");
+		}
+		JSONObject object = (JSONObject) value;
+		if (object.isNullObject()) {
+			return null;
+		}
+		Position position = new Position();
+		position.lat = doubleValue(object, "lat");
+		position.lon = doubleValue(object, "lon");
+		return position;
+	}
+	
+	public int dialogId;
+	public String receiptId;
+	public int sequenceId;
+	public int groupId;
+	public int requestId;
+	public int serviceId;
+	
+	public String destHost;
+	public int destPort;
+	public String fromForwarder;
+	public String certificate;
+	
+	public Position nwPos;
+	public Position sePos;
+	
+	public static class Position {
+		public double lat;
+		public double lon;
+		
+		@Override
+		public String toString() {
+			return "Position [lat=" + lat + ", lon=" + lon + "]";
+		}
+	}
+	
+	public void validate() {
+		if (dialogId != SemiDialogID.objDisc.longValue()) {
+			throw new IllegalArgumentException("Invalid dialogId " + dialogId + " for DiscoveryDataRequest");
+		}
+		
+		if (destHost == null || destPort == 0) {
+			throw new IllegalArgumentException("Destination host/port is missing, ignoring data request.");
+		}
+		
+		if (nwPos == null) {
+			throw new IllegalArgumentException("Missing northwest position object.");
+		} else {
+			validateLat("nwPos.lat", nwPos.lat);
+			validateLon("nwPos.lon", nwPos.lon);
+		}
+		
+		if (sePos == null) {
+			throw new IllegalArgumentException("Missing southeast position object.");
+		} else {
+			validateLat("sePos.lat", sePos.lat);
+			validateLon("sePos.lon", sePos.lon);
+		}
+	}
+	
+	private void validateLat(String name, double lat) {
+		// 0.0 is invalid for our purposes, catches uninitialized values
+		if (lat == 0.0)
+			throw new IllegalArgumentException(name + " is required");
+		if (lat < -90.0 | lat > 90.0)
+			throw new IllegalArgumentException(name + " " + lat + " is not a valid Latitude value");
+	}
+	
+	private void validateLon(String name, double lon) {
+		// 0.0 is invalid for our purposes, catches uninitialized values
+		if (lon == 0.0)
+			throw new IllegalArgumentException(name + " is required");
+		if (lon < -180.0 | lon > 180.0)
+			throw new IllegalArgumentException(name + " " + lon + " is not a valid Longitude value");
+	}
+
+	@Override
+	public String toString() {
+		return "DiscoverModel [dialogId=" + dialogId + ", receiptId="
+				+ receiptId + ", sequenceId=" + sequenceId + ", groupId="
+				+ groupId + ", requestId=" + requestId + ", serviceId="
+				+ serviceId + ", destHost=" + destHost + ", destPort="
+				+ destPort + ", fromForwarder=" + fromForwarder
+				+ ", certificate=" + certificate + ", nwPos=" + nwPos
+				+ ", sePos=" + sePos + "]";
+	}
+	
+}
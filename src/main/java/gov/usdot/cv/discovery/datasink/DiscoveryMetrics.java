@@ -0,0 +1,238 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Latency timers per processing stage and counters for the discovery sink. Recording is a few
+ * atomic increments, so the metrics are always collected; they are read over JMX as a read only
+ * MBean and optionally logged as a periodic snapshot.
+ *
+ * Components that already count their own activity (caches, the send policy) are published as
+ * gauges instead of being counted twice.
+ */
+public class DiscoveryMetrics implements DynamicMBean {
+
+	private static final Logger logger = Logger.getLogger(DiscoveryMetrics.class);
+
+	public static final String DOMAIN = "gov.usdot.cv.discovery.datasink";
+
+	public enum Stage {
+		PARSE, VALIDATE, QUERY, DECODE, ENCODE, ENCRYPT, SEND, RECEIPT;
+
+		final String attributeName = toCamelCase(name());
+	}
+
+	public enum Counter {
+		REQUESTS, FAILURES, SHED, RECORDS_RETURNED, RECORDS_USED, SEND_FAILURES, RECEIPT_FAILURES;
+
+		final String attributeName = toCamelCase(name());
+	}
+
+	public interface Gauge {
+		long getValue();
+	}
+
+	private final Map<Stage, LatencyTimer> timers = new EnumMap<Stage, LatencyTimer>(Stage.class);
+	private final Map<Counter, AtomicLong> counters = new EnumMap<Counter, AtomicLong>(Counter.class);
+	private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+
+	private ObjectName objectName;
+	private ScheduledExecutorService snapshotLogger;
+
+	public DiscoveryMetrics() {
+		for (Stage stage : Stage.values()) {
+			timers.put(stage, new LatencyTimer());
+		}
+		for (Counter counter : Counter.values()) {
+			counters.put(counter, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Records the time elapsed since startNanos, a value of System.nanoTime(), for the stage.
+	 */
+	public void recordSince(Stage stage, long startNanos) {
+		timers.get(stage).recordSince(startNanos);
+	}
+
+	public void increment(Counter counter) {
+		counters.get(counter).incrementAndGet();
+	}
+
+	public void add(Counter counter, long delta) {
+		counters.get(counter).addAndGet(delta);
+	}
+
+	public LatencyTimer getTimer(Stage stage) {
+		return timers.get(stage);
+	}
+
+	public long getCount(Counter counter) {
+		return counters.get(counter).get();
+	}
+
+	/**
+	 * Publishes a value owned by another component, for example a cache's hit count.
+	 * Gauges must be registered before the MBean is.
+	 */
+	public synchronized void registerGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public synchronized void registerMBean(String name) throws Exception {
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=ObjectDiscovery,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.objectName = objectName;
+		logger.info("Registered discovery metrics as " + objectName);
+	}
+
+	/**
+	 * Logs a snapshot of all metrics at INFO every interval.
+	 */
+	public synchronized void startSnapshotLogging(long intervalMs) {
+		snapshotLogger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "objectdiscovery-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		snapshotLogger.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				logger.info("Discovery metrics: " + DiscoveryMetrics.this);
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void close() {
+		if (snapshotLogger != null) {
+			snapshotLogger.shutdownNow();
+			snapshotLogger = null;
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception ex) {
+				logger.warn("Failed to unregister " + objectName, ex);
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * @return the current value of every attribute by name, in MBean order
+	 */
+	public synchronized Map<String, Long> snapshot() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for (Counter counter : Counter.values()) {
+			values.put(counter.attributeName, getCount(counter));
+		}
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			values.put(gauge.getKey(), gauge.getValue().getValue());
+		}
+		for (Stage stage : Stage.values()) {
+			LatencyTimer timer = timers.get(stage);
+			values.put(stage.attributeName + "Count", timer.getCount());
+			values.put(stage.attributeName + "MeanMicros", timer.getMeanMicros());
+			values.put(stage.attributeName + "P50Micros", timer.getPercentileMicros(50));
+			values.put(stage.attributeName + "P99Micros", timer.getPercentileMicros(99));
+			values.put(stage.attributeName + "MaxMicros", timer.getMaxMicros());
+		}
+		return values;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Long> values = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			if (values.containsKey(attribute)) {
+				list.add(new Attribute(attribute, values.get(attribute)));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Discovery metrics are read only: " + attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : snapshot().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Object discovery latency and counters",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Counter counter : Counter.values()) {
+			sb.append(counter.attributeName).append('=').append(getCount(counter)).append(", ");
+		}
+		synchronized (this) {
+			for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+				sb.append(gauge.getKey()).append('=').append(gauge.getValue().getValue()).append(", ");
+			}
+		}
+		for (Stage stage : Stage.values()) {
+			LatencyTimer timer = timers.get(stage);
+			if (timer.getCount() > 0) {
+				sb.append(stage.attributeName).append(" [").append(timer).append("], ");
+			}
+		}
+		return sb.length() == 0 ? "" : sb.substring(0, sb.length() - 2);
+	}
+
+	private static String toCamelCase(String constant) {
+		StringBuilder sb = new StringBuilder();
+		boolean upper = false;
+		for (char c : constant.toCharArray()) {
+			if (c == '_') {
+				upper = true;
+			} else {
+				sb.append(upper ? c : Character.toLowerCase(c));
+				upper = false;
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,325 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs discovery requests through four stages (query, encode, send, receipt), each backed by
+ * its own bounded queue and worker pool. When a stage queue is full the submitting thread runs
+ * the task itself, which throttles the DigitalEdge ingest thread instead of dropping requests.
+ */
+public class DiscoveryPipeline {
+
+	private static final Logger logger = Logger.getLogger(DiscoveryPipeline.class);
+	private static final SampledLogger requestLogger = SampledLogger.getLogger(DiscoveryPipeline.class);
+
+	private final DatabaseHelper dbHelper;
+	private final ResponseSender responseSender;
+	private final ReceiptSender receiptSender;
+
+	private ThreadPoolExecutor queryStage;
+	private final ThreadPoolExecutor encodeStage;
+	private final ThreadPoolExecutor sendStage;
+	private final ThreadPoolExecutor receiptStage;
+	private final int queryThreads;
+	private ServiceLaneScheduler lanes;
+
+	private DiscoveryMetrics metrics = new DiscoveryMetrics();
+	private AdmissionController admission;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final Object drainLock = new Object();
+
+	public DiscoveryPipeline(
+			DatabaseHelper dbHelper,
+			ResponseSender responseSender,
+			ReceiptSender receiptSender,
+			int queueCapacity,
+			int queryThreads,
+			int encodeThreads,
+			int sendThreads) {
+
+		this.dbHelper = dbHelper;
+		this.responseSender = responseSender;
+		this.receiptSender = receiptSender;
+
+		logger.info(String.format("Constructing discovery pipeline with queue capacity %d, %d query, %d encode and %d send threads ...",
+				queueCapacity, queryThreads, encodeThreads, sendThreads));
+
+		this.queryThreads = queryThreads;
+		this.queryStage = newStage("query", queryThreads, queueCapacity);
+		this.encodeStage = newStage("encode", encodeThreads, queueCapacity);
+		this.sendStage = newStage("send", sendThreads, queueCapacity);
+		// JMS sessions are single threaded
+		this.receiptStage = newStage("receipt", 1, queueCapacity);
+	}
+
+	public void setMetrics(DiscoveryMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sheds requests the controller doesn't admit when they reach the query stage.
+	 */
+	public void setAdmissionController(AdmissionController admission) {
+		this.admission = admission;
+	}
+
+	/**
+	 * Queues requests for the query stage on one lane per service. The shared query stage is
+	 * stopped; the service lanes are served by the same number of threads. Requests for a full
+	 * lane are shed. Other requests are timed per lane from arrival until they leave the pipeline.
+	 * Call after setMetrics and before submitting. The lanes report to the metrics set when they
+	 * are created.
+	 */
+	public void enableServiceLanes(int laneCapacity, int laneConcurrency, int maxLanes, Map<Integer, Integer> weights) {
+		logger.info(String.format("Enabling up to %d service lanes with capacity %d, concurrency %d and weights %s ...",
+				maxLanes, laneCapacity, laneConcurrency, weights));
+		this.lanes = new ServiceLaneScheduler("lane", queryThreads, laneCapacity, laneConcurrency, maxLanes, weights, metrics);
+		stopStage(queryStage);
+		this.queryStage = null;
+	}
+
+	public ServiceLaneScheduler getServiceLanes() {
+		return lanes;
+	}
+
+	public void submit(DiscoverModel discoverModel) {
+		submit(discoverModel, System.nanoTime());
+	}
+
+	/**
+	 * @param receivedNanos System.nanoTime() when the request arrived, the start of its deadline
+	 */
+	public void submit(final DiscoverModel discoverModel, final long receivedNanos) {
+		inFlight.incrementAndGet();
+		StageTask queryTask = new StageTask(discoverModel, receivedNanos) {
+			protected void execute() throws Exception {
+				if (admission != null && ! admitted(admission, admission.tryAcquire(receivedNanos), metrics, discoverModel)) {
+					finish();
+					return;
+				}
+				final RegistrationCursor result = query(dbHelper, admission, discoverModel);
+				encodeStage.execute(new StageTask(discoverModel, receivedNanos) {
+					protected void execute() throws Exception {
+						final byte[] payload = responseSender.encodeResponse(discoverModel, result);
+						sendStage.execute(new StageTask(discoverModel, receivedNanos) {
+							protected void execute() throws Exception {
+								// Retries finish on the send policy's scheduler, the receipt waits for the outcome
+								responseSender.sendPayload(discoverModel, payload, new ResponseSender.DeliveryListener() {
+									public void delivered(DiscoverModel model) {
+										receiptStage.execute(new StageTask(discoverModel, receivedNanos) {
+											protected void execute() throws Exception {
+												receiptSender.sendReceipt(discoverModel);
+												finish();
+											}
+										});
+									}
+									
+									public void failed(DiscoverModel model) {
+										finish();
+									}
+								});
+							}
+						});
+					}
+					
+					protected void abandon() {
+						result.close();
+					}
+				});
+			}
+		};
+		if (lanes == null) {
+			queryStage.execute(queryTask);
+		} else if (! lanes.submit(discoverModel.serviceId, queryTask)) {
+			metrics.increment(DiscoveryMetrics.Counter.SHED);
+			requestLogger.warn("Shedding discovery request %d, lane of service %d is full.", discoverModel.requestId, discoverModel.serviceId);
+			complete();
+		}
+	}
+
+	/**
+	 * Counts and logs a request the admission controller turned away.
+	 * @return true if the request was admitted
+	 */
+	private static boolean admitted(AdmissionController admission, AdmissionController.Decision decision,
+			DiscoveryMetrics metrics, DiscoverModel discoverModel) {
+		if (decision == AdmissionController.Decision.ADMITTED) {
+			return true;
+		}
+		metrics.increment(DiscoveryMetrics.Counter.SHED);
+		requestLogger.warn("Shedding discovery request %d (%s): %s", discoverModel.requestId, decision, admission);
+		return false;
+	}
+
+	/**
+	 * Runs the query through its first batch, and gives back the slot of an admitted request
+	 * when admission is not null.
+	 */
+	private static RegistrationCursor query(DatabaseHelper dbHelper, AdmissionController admission, DiscoverModel discoverModel) {
+		requestLogger.debug("Running Object Discover Query for %s", discoverModel);
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		RegistrationCursor result = null;
+		try {
+			result = dbHelper.query(discoverModel);
+			// Fetch the first batch here so the database round trip stays in the query stage
+			result.hasNext();
+			succeeded = true;
+			return result;
+		} catch (RuntimeException ex) {
+			if (result != null) {
+				result.close();
+			}
+			throw ex;
+		} finally {
+			if (admission != null) {
+				admission.release(start, succeeded);
+			}
+		}
+	}
+
+	/**
+	 * Blocks until every submitted request has left the pipeline or the timeout expires.
+	 * @return true if the pipeline is empty
+	 */
+	public boolean drain(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		synchronized (drainLock) {
+			while (inFlight.get() > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				drainLock.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	public void shutdown(long timeoutMs) {
+		try {
+			if (! drain(timeoutMs)) {
+				logger.warn(String.format("Discovery pipeline shutting down with %d requests still in flight.", inFlight.get()));
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Stages are stopped upstream first so that no stage receives work after it is shut down
+		if (lanes != null) {
+			lanes.shutdown(5000);
+		}
+		if (queryStage != null) {
+			stopStage(queryStage);
+		}
+		stopStage(encodeStage);
+		stopStage(sendStage);
+		stopStage(receiptStage);
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	private void complete() {
+		if (inFlight.decrementAndGet() == 0) {
+			synchronized (drainLock) {
+				drainLock.notifyAll();
+			}
+		}
+	}
+
+	private void stopStage(ThreadPoolExecutor stage) {
+		stage.shutdown();
+		try {
+			if (! stage.awaitTermination(5, TimeUnit.SECONDS)) {
+				stage.shutdownNow();
+			}
+		} catch (InterruptedException ex) {
+			stage.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private ThreadPoolExecutor newStage(final String name, int threads, int queueCapacity) {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "objectdiscovery-" + name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, new CallerRunsUnlessShutdown());
+	}
+
+	/**
+	 * Applies backpressure by running the task on the submitting thread. Once the stage is shut down
+	 * the task is dropped and the request is counted as complete so that drain() cannot hang.
+	 */
+	private class CallerRunsUnlessShutdown implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				requestLogger.warn("Discovery pipeline stage is shut down, dropping request.");
+				if (r instanceof StageTask) {
+					((StageTask) r).abandon();
+					((StageTask) r).finish();
+				} else {
+					complete();
+				}
+			} else {
+				r.run();
+			}
+		}
+	}
+
+	private abstract class StageTask implements Runnable {
+
+		private final DiscoverModel discoverModel;
+		private final long receivedNanos;
+
+		StageTask(DiscoverModel discoverModel, long receivedNanos) {
+			this.discoverModel = discoverModel;
+			this.receivedNanos = receivedNanos;
+		}
+
+		protected abstract void execute() throws Exception;
+		
+		/**
+		 * Releases what the task holds when it is dropped without running.
+		 */
+		protected void abandon() {
+		}
+		
+		/**
+		 * Marks the request as having left the pipeline.
+		 */
+		protected void finish() {
+			if (lanes != null) {
+				lanes.recordLatency(discoverModel.serviceId, receivedNanos);
+			}
+			complete();
+		}
+
+		public void run() {
+			try {
+				execute();
+			} catch (Exception ex) {
+				metrics.increment(DiscoveryMetrics.Counter.FAILURES);
+				requestLogger.error(ex, "Failed to process discovery request: %s", discoverModel);
+				finish();
+			}
+		}
+	}
+}
@@ -1,259 +1,1446 @@
-package gov.usdot.cv.discovery.datasink;
-
-import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
-
-import java.util.Collection;
-
-import javax.validation.constraints.Max;
-import javax.validation.constraints.Min;
-import javax.validation.constraints.NotNull;
-
-import net.sf.json.JSONObject;
-
-import org.apache.log4j.Logger;
-
-import com.deleidos.rtws.commons.exception.InitializationException;
-import com.deleidos.rtws.core.framework.Description;
-import com.deleidos.rtws.core.framework.SystemConfigured;
-import com.deleidos.rtws.core.framework.UserConfigured;
-import com.deleidos.rtws.core.framework.processor.AbstractDataSink;
-import com.mongodb.DBObject;
-
-@Description("Processes object discovery requests against the object registration database")
-public class ObjectDiscovery extends AbstractDataSink {
-	
-	private final Logger logger = Logger.getLogger(getClass());
-	
-	// Mongo
-	private String 			mongoServerHost;
-	private int    			mongoServerPort;
-	private String 			databaseName;
-	private boolean 		autoConnectRetry = true;
-	private int 			connectTimeoutMs = 0;
-	private String			collectionName;
-	private String			geospatialFieldName;
-	// ResponseSender
-	private boolean			forwardAll = false;
-	private String 			bundleForwarderHost;
-	private int    			bundleForwarderPort = -1;
-	// ReceiptSender
-	private String			receiptJmsHost;
-	private int				receiptJmsPort = -1;
-	private String 			topicName;
-	
-	private DatabaseHelper dbHelper;
-	private ResponseSender responseSender;
-	private ReceiptSender  receiptSender;
-	
-	@Override
-	@SystemConfigured(value = "Object Discovery DataSink")
-	public void setName(String name) {
-		super.setName(name);
-	}
-	
-	@Override
-	@SystemConfigured(value = "objectdiscovery")
-	public void setShortname(String shortname) {
-		super.setShortname(shortname);
-	}
-	
-	@UserConfigured(value="cvdb", description="The name of the object registration database")
-	public void setDatabaseName(String databaseName) {
-		this.databaseName = databaseName;
-	}
-	
-	public String getDatabaseName() {
-		return this.databaseName;
-	}
-	
-	@UserConfigured(
-		value= "127.0.0.1", 
-		description="The MongoDB server hostname.", 
-		flexValidator={"StringValidator minLength=2 maxLength=1024"})
-	public void setMongoServerHost(String mongoServerHost) {
-		if (mongoServerHost != null) {
-			this.mongoServerHost = mongoServerHost.trim();
-		}
-	}
-		
-	@NotNull
-	public String getMongoServerHost() {
-		return this.mongoServerHost;
-	}
-		
-	@UserConfigured(
-		value = "27017", 
-		description = "The MongoDB server port number.", 
-		flexValidator = "NumberValidator minValue=0 maxValue=65535")
-	public void setMongoServerPort(int mongoServerPort) {
-		this.mongoServerPort = mongoServerPort;
-	}
-		
-	@Min(0)
-	@Max(65535)
-	public int getMongoServerPort() {
-		return this.mongoServerPort;
-	}
-	
-	@UserConfigured(
-		value = "true",
-		description = "MongoDB client auto connect retry flag.",
-		flexValidator = {"RegExpValidator expression=true|false"})
-	public void setAutoConnectRetry(boolean autoConnectRetry) {
-		this.autoConnectRetry = autoConnectRetry;
-	}
-	
-	@NotNull
-	public boolean getAutoConnectRetry() {
-		return this.autoConnectRetry;
-	}
-		
-	@UserConfigured(
-		value = "3000",
-		description = "Time (in milliseconds) to wait for a successful connection.",
-		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
-	public void setConnectTimeoutMs(int connectTimeoutMs) {
-		this.connectTimeoutMs = connectTimeoutMs;
-	}
-	
-	@NotNull
-	public int getConnectTimeoutMs() {
-		return this.connectTimeoutMs;
-	}
-	
-	@UserConfigured(
-		value = "true",
-		description = "Flag indicating if all responses will be forwarded or not.",
-		flexValidator = {"RegExpValidator expression=true|false"})
-	public void setForwardAll(boolean forwardAll) {
-		this.forwardAll = forwardAll;
-	}
-	
-	@NotNull
-	public boolean getForwardAll() {
-		return this.forwardAll;
-	}
-	
-	@UserConfigured(
-		value= "127.0.0.1", 
-		description="The bundle forwarder host.", 
-		flexValidator={"StringValidator minLength=2 maxLength=1024"})
-	public void setBundleForwarderHost(String bundleForwarderHost) {
-		this.bundleForwarderHost = bundleForwarderHost;
-	}
-			
-	@NotNull
-	public String getBundleForwarderHost() {
-		return this.bundleForwarderHost;
-	}
-			
-	@UserConfigured(
-		value = "46761", 
-		description = "The bundle forwarder port number.", 
-		flexValidator = "NumberValidator minValue=0 maxValue=65535")
-	public void setBundleForwarderPort(int bundleForwarderPort) {
-		this.bundleForwarderPort = bundleForwarderPort;
-	}
-			
-	@Min(0)
-	@Max(65535)
-	public int getBundleForwarderPort() {
-		return this.bundleForwarderPort;
-	}
-	
-	@UserConfigured(
-		value= "", 
-		description="The receipt jms server hostname.", 
-		flexValidator={"StringValidator minLength=0 maxLength=1024"})
-	public void setReceiptJmsHost(String receiptJmsHost) {
-		this.receiptJmsHost = receiptJmsHost;
-	}
-	
-	@NotNull
-	public String getReceiptJmsHost() {
-		return this.receiptJmsHost;
-	}
-	
-	@UserConfigured(
-		value = "61617", 
-		description = "The receipt jms server port.", 
-		flexValidator = "NumberValidator minValue=0 maxValue=65535")
-	public void setReceiptJmsPort(int receiptJmsPort) {
-		this.receiptJmsPort = receiptJmsPort;
-	}
-	
-	@Min(0)
-	@Max(65535)
-	public int getReceiptJmsPort() {
-		return this.receiptJmsPort;
-	}
-	
-	@UserConfigured(
-		value = "cv.receipts",
-		description = "The jms topic to place receipts.",
-		flexValidator = {"StringValidator minLength=2 maxLength=1024"})
-	public void setReceiptTopicName(String topicName) {
-		this.topicName = topicName;
-	}
-	
-	@UserConfigured(
-		value = "region",
-		description = "Name of the field to perform geospatial query.",
-		flexValidator = {"StringValidator minLength=2 maxLength=1024"})
-	public void setGeospatialFieldName(String geospatialFieldName) {
-		this.geospatialFieldName = geospatialFieldName;
-	}
-	
-	@UserConfigured(value = "objectRegister", description = "Name of the object registration data collection.", 
-			flexValidator = { "StringValidator minLength=2 maxLength=1024" })
-	public void setCollectionName(String collectionName) {
-		this.collectionName = collectionName;
-	}
-	
-	public void initialize() throws InitializationException {
-		try {
-			dbHelper = new DatabaseHelper(mongoServerHost, mongoServerPort, 
-				databaseName, autoConnectRetry, connectTimeoutMs, collectionName, geospatialFieldName);
-			receiptSender = new ReceiptSender(receiptJmsHost, receiptJmsPort, topicName);
-			responseSender = new ResponseSender(bundleForwarderHost, bundleForwarderPort, forwardAll);
-		} catch (Exception ex) {
-			throw new InitializationException("Failed to initialize QueryProcessor.", ex);
-		}
-	}
-	
-	public void dispose() {
-		if (this.receiptSender != null) {
-			this.receiptSender.close();
-			this.receiptSender = null;
-		}
-	}
-
-	@Override
-	protected void processInternal(JSONObject record, FlushCounter counter) {
-		try {
-			logger.debug("Processing discovery request: " + record.toString());
-			
-			long dialogId = record.getInt("dialogId");
-			if (dialogId == SemiDialogID.objDisc.longValue()) {
-				DiscoverModel discoverModel = DiscoverModel.fromJSON(record.toString());
-				discoverModel.validate();
-				logger.debug("Running Object Discover Query for " + discoverModel);
-				Collection<DBObject> result = dbHelper.query(discoverModel);
-				logger.debug("Query results " + result);
-				responseSender.sendResponse(discoverModel, result);
-				receiptSender.sendReceipt(discoverModel);
-			} else {
-				logger.error("Received unexpected dialogId: " + dialogId + " expected dialogId:" + SemiDialogID.objDisc.longValue());
-			}
-			
-		} catch (Exception ex) {
-			logger.error(String.format("Failed to process discovery request: %s", record.toString()), ex);
-		} finally {
-			counter.noop();
-		}
-	}
-	
-	public void flush() {
-		logger.debug(String.format("The method flush() is not used by this class '%s'.", this.getClass().getName()));
-	}
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+
+import com.deleidos.rtws.commons.exception.InitializationException;
+import com.deleidos.rtws.core.framework.Description;
+import com.deleidos.rtws.core.framework.SystemConfigured;
+import com.deleidos.rtws.core.framework.UserConfigured;
+import com.deleidos.rtws.core.framework.processor.AbstractDataSink;
+
+@Description("Processes object discovery requests against the object registration database")
+public class ObjectDiscovery extends AbstractDataSink {
+	
+	private final Logger logger = Logger.getLogger(getClass());
+	private static final SampledLogger requestLogger = SampledLogger.getLogger(ObjectDiscovery.class);
+	
+	// Mongo
+	private String 			mongoServerHost;
+	private int    			mongoServerPort;
+	private String 			databaseName;
+	private boolean 		autoConnectRetry = true;
+	private int 			connectTimeoutMs = 0;
+	private int				mongoConnectionsPerHost = 100;
+	private int				mongoMaxWaitTimeMs = 120000;
+	private int				mongoSocketTimeoutMs = 0;
+	private String			mongoReadPreference = "primary";
+	private String			mongoReplicaSetName;
+	private int				mongoQueryMaxTimeMs = 0;
+	private String			collectionName;
+	private String			geospatialFieldName;
+	private int				queryLimit = DatabaseHelper.MAX_RECORDS;
+	// ResponseSender
+	private boolean			forwardAll = false;
+	private String 			bundleForwarderHost;
+	private int    			bundleForwarderPort = -1;
+	private boolean			decodedRecordCacheEnabled = false;
+	private int				decodedRecordCacheMaxEntries = 50000;
+	private boolean			responseTemplateCacheEnabled = false;
+	private int				responseTemplateCacheMaxEntries = 10000;
+	private int				sendRateLimitPerSecond = 0;
+	private int				sendRateBurst = 10;
+	private int				sendMaxAttempts = 3;
+	private int				sendRetryBaseBackoffMs = 10;
+	private int				sendRetryMaxBackoffMs = 1000;
+	private int				sendRetryBudgetPercent = 20;
+	private boolean			datagramTransportEnabled = false;
+	private int				datagramBufferSize = 2048;
+	private int				datagramBufferPoolSize = 256;
+	private int				destinationAddressTtlMs = 60000;
+	private boolean			certificateCacheEnabled = false;
+	private int				certificateCacheMaxEntries = 10000;
+	private int				certificateCacheTtlMs = 3600000;
+	private int				cryptoProviderPoolSize = 1;
+	private int				parallelDecodeThreads = 0;
+	private int				parallelDecodeThreshold = 4;
+	// ReceiptSender
+	private String			receiptJmsHost;
+	private int				receiptJmsPort = -1;
+	private String 			topicName;
+	private boolean			receiptBatchingEnabled = false;
+	private int				receiptQueueCapacity = 10000;
+	private int				receiptBatchSize = 100;
+	private int				receiptFlushIntervalMs = 50;
+	private int				receiptQueueTimeoutMs = 1000;
+	// DiscoveryPipeline
+	private boolean			pipelineEnabled = false;
+	private int				pipelineQueueCapacity = 1000;
+	private int				pipelineQueryThreads = 4;
+	private int				pipelineEncodeThreads = 1;
+	private int				pipelineSendThreads = 2;
+	private int				pipelineDrainTimeoutMs = 30000;
+	// QueryResultCache
+	private boolean			resultCacheEnabled = false;
+	private int				resultCacheMaxEntries = 10000;
+	private int				resultCacheTtlMs = 60000;
+	private int				resultCacheGridMicrodegrees = 1000;
+	private int				registrationPollIntervalMs = 1000;
+	// RegistrationIndex
+	private boolean			registrationIndexEnabled = false;
+	private int				registrationIndexRefreshMs = 1000;
+	private int				registrationIndexTileLevel = 0;
+	// QueryCoalescer
+	private boolean			queryCoalescingEnabled = false;
+	private int				queryCoalescingGridMicrodegrees = 1000;
+	// QueryBatcher
+	private boolean			queryBatchingEnabled = false;
+	private int				queryBatchWindowMs = 2;
+	private int				queryBatchMaxRequests = 32;
+	// DiscoveryMetrics
+	private boolean			metricsJmxEnabled = false;
+	private int				metricsLogIntervalMs = 0;
+	// SampledLogger
+	private int				requestLogEventsPerSecond = 0;
+	// RegistrationChangeFeed
+	private boolean			changeFeedEnabled = false;
+	// AdmissionController
+	private boolean			admissionControlEnabled = false;
+	private int				requestDeadlineMs = 1000;
+	private int				admissionTargetLatencyMs = 100;
+	private int				admissionMinConcurrency = 1;
+	private int				admissionMaxConcurrency = 64;
+	// ServiceLaneScheduler
+	private boolean			serviceLanesEnabled = false;
+	private int				serviceLaneCapacity = 100;
+	private int				serviceLaneConcurrency = 2;
+	private int				serviceLaneMaxLanes = 32;
+	private String			serviceLaneWeights = "";
+	
+	private DatabaseHelper dbHelper;
+	private ResponseSender responseSender;
+	private ReceiptSender  receiptSender;
+	private DiscoveryPipeline pipeline;
+	private final DiscoveryMetrics metrics = new DiscoveryMetrics();
+	private AdmissionController admission;
+	// Sends the receipt once the response went out, retries are delivered from the send scheduler
+	private final ResponseSender.DeliveryListener receiptOnDelivery = new ResponseSender.DeliveryListener() {
+		public void delivered(DiscoverModel discoverModel) {
+			receiptSender.sendReceipt(discoverModel);
+		}
+		
+		public void failed(DiscoverModel discoverModel) {
+		}
+	};
+	
+	@Override
+	@SystemConfigured(value = "Object Discovery DataSink")
+	public void setName(String name) {
+		super.setName(name);
+	}
+	
+	@Override
+	@SystemConfigured(value = "objectdiscovery")
+	public void setShortname(String shortname) {
+		super.setShortname(shortname);
+	}
+	
+	@UserConfigured(value="cvdb", description="The name of the object registration database")
+	public void setDatabaseName(String databaseName) {
+		this.databaseName = databaseName;
+	}
+	
+	public String getDatabaseName() {
+		return this.databaseName;
+	}
+	
+	@UserConfigured(
+		value= "127.0.0.1", 
+		description="The MongoDB server hostname, or a comma separated list of replica set members as host or host:port.", 
+		flexValidator={"StringValidator minLength=2 maxLength=1024"})
+	public void setMongoServerHost(String mongoServerHost) {
+		if (mongoServerHost != null) {
+			this.mongoServerHost = mongoServerHost.trim();
+		}
+	}
+		
+	@NotNull
+	public String getMongoServerHost() {
+		return this.mongoServerHost;
+	}
+		
+	@UserConfigured(
+		value = "27017", 
+		description = "The MongoDB server port number.", 
+		flexValidator = "NumberValidator minValue=0 maxValue=65535")
+	public void setMongoServerPort(int mongoServerPort) {
+		this.mongoServerPort = mongoServerPort;
+	}
+		
+	@Min(0)
+	@Max(65535)
+	public int getMongoServerPort() {
+		return this.mongoServerPort;
+	}
+	
+	@UserConfigured(
+		value = "true",
+		description = "MongoDB client auto connect retry flag. When false, a request gives up on an unreachable server once connectTimeoutMs has passed instead of waiting for the driver's server selection timeout.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setAutoConnectRetry(boolean autoConnectRetry) {
+		this.autoConnectRetry = autoConnectRetry;
+	}
+	
+	@NotNull
+	public boolean getAutoConnectRetry() {
+		return this.autoConnectRetry;
+	}
+		
+	@UserConfigured(
+		value = "3000",
+		description = "Time (in milliseconds) to wait for a successful connection.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setConnectTimeoutMs(int connectTimeoutMs) {
+		this.connectTimeoutMs = connectTimeoutMs;
+	}
+	
+	@NotNull
+	public int getConnectTimeoutMs() {
+		return this.connectTimeoutMs;
+	}
+	
+	@UserConfigured(
+		value = "100",
+		description = "Maximum number of pooled connections to each MongoDB server.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=10000"})
+	public void setMongoConnectionsPerHost(int mongoConnectionsPerHost) {
+		this.mongoConnectionsPerHost = mongoConnectionsPerHost;
+	}
+	
+	@Min(1)
+	@Max(10000)
+	public int getMongoConnectionsPerHost() {
+		return this.mongoConnectionsPerHost;
+	}
+	
+	@UserConfigured(
+		value = "120000",
+		description = "Time (in milliseconds) a query waits for a pooled connection before failing.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setMongoMaxWaitTimeMs(int mongoMaxWaitTimeMs) {
+		this.mongoMaxWaitTimeMs = mongoMaxWaitTimeMs;
+	}
+	
+	@Min(0)
+	public int getMongoMaxWaitTimeMs() {
+		return this.mongoMaxWaitTimeMs;
+	}
+	
+	@UserConfigured(
+		value = "0",
+		description = "Time (in milliseconds) to wait for a MongoDB response on an open connection, 0 to wait indefinitely.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setMongoSocketTimeoutMs(int mongoSocketTimeoutMs) {
+		this.mongoSocketTimeoutMs = mongoSocketTimeoutMs;
+	}
+	
+	@Min(0)
+	public int getMongoSocketTimeoutMs() {
+		return this.mongoSocketTimeoutMs;
+	}
+	
+	@UserConfigured(
+		value = "primary",
+		description = "Replica set members discovery queries read from: primary, primaryPreferred, secondary, secondaryPreferred or nearest.",
+		flexValidator = {"RegExpValidator expression=primary|primaryPreferred|secondary|secondaryPreferred|nearest"})
+	public void setMongoReadPreference(String mongoReadPreference) {
+		if (mongoReadPreference != null) {
+			this.mongoReadPreference = mongoReadPreference.trim();
+		}
+	}
+	
+	@NotNull
+	public String getMongoReadPreference() {
+		return this.mongoReadPreference;
+	}
+	
+	@UserConfigured(
+		value = "",
+		description = "Name of the MongoDB replica set. When set, or when the host lists several servers, the replica set members are discovered.",
+		flexValidator = {"StringValidator minLength=0 maxLength=1024"})
+	public void setMongoReplicaSetName(String mongoReplicaSetName) {
+		this.mongoReplicaSetName = mongoReplicaSetName;
+	}
+	
+	public String getMongoReplicaSetName() {
+		return this.mongoReplicaSetName;
+	}
+	
+	@UserConfigured(
+		value = "0",
+		description = "Maximum time (in milliseconds) the server may spend on one discovery query, 0 for no limit.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setMongoQueryMaxTimeMs(int mongoQueryMaxTimeMs) {
+		this.mongoQueryMaxTimeMs = mongoQueryMaxTimeMs;
+	}
+	
+	@Min(0)
+	public int getMongoQueryMaxTimeMs() {
+		return this.mongoQueryMaxTimeMs;
+	}
+	
+	@UserConfigured(
+		value = "true",
+		description = "Flag indicating if all responses will be forwarded or not.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setForwardAll(boolean forwardAll) {
+		this.forwardAll = forwardAll;
+	}
+	
+	@NotNull
+	public boolean getForwardAll() {
+		return this.forwardAll;
+	}
+	
+	@UserConfigured(
+		value= "127.0.0.1", 
+		description="The bundle forwarder host.", 
+		flexValidator={"StringValidator minLength=2 maxLength=1024"})
+	public void setBundleForwarderHost(String bundleForwarderHost) {
+		this.bundleForwarderHost = bundleForwarderHost;
+	}
+			
+	@NotNull
+	public String getBundleForwarderHost() {
+		return this.bundleForwarderHost;
+	}
+			
+	@UserConfigured(
+		value = "46761", 
+		description = "The bundle forwarder port number.", 
+		flexValidator = "NumberValidator minValue=0 maxValue=65535")
+	public void setBundleForwarderPort(int bundleForwarderPort) {
+		this.bundleForwarderPort = bundleForwarderPort;
+	}
+			
+	@Min(0)
+	@Max(65535)
+	public int getBundleForwarderPort() {
+		return this.bundleForwarderPort;
+	}
+	
+	@UserConfigured(
+		value= "", 
+		description="The receipt jms server hostname.", 
+		flexValidator={"StringValidator minLength=0 maxLength=1024"})
+	public void setReceiptJmsHost(String receiptJmsHost) {
+		this.receiptJmsHost = receiptJmsHost;
+	}
+	
+	@NotNull
+	public String getReceiptJmsHost() {
+		return this.receiptJmsHost;
+	}
+	
+	@UserConfigured(
+		value = "61617", 
+		description = "The receipt jms server port.", 
+		flexValidator = "NumberValidator minValue=0 maxValue=65535")
+	public void setReceiptJmsPort(int receiptJmsPort) {
+		this.receiptJmsPort = receiptJmsPort;
+	}
+	
+	@Min(0)
+	@Max(65535)
+	public int getReceiptJmsPort() {
+		return this.receiptJmsPort;
+	}
+	
+	@UserConfigured(
+		value = "cv.receipts",
+		description = "The jms topic to place receipts.",
+		flexValidator = {"StringValidator minLength=2 maxLength=1024"})
+	public void setReceiptTopicName(String topicName) {
+		this.topicName = topicName;
+	}
+	
+	@UserConfigured(
+		value = "region",
+		description = "Name of the field to perform geospatial query.",
+		flexValidator = {"StringValidator minLength=2 maxLength=1024"})
+	public void setGeospatialFieldName(String geospatialFieldName) {
+		this.geospatialFieldName = geospatialFieldName;
+	}
+	
+	@UserConfigured(value = "objectRegister", description = "Name of the object registration data collection.", 
+			flexValidator = { "StringValidator minLength=2 maxLength=1024" })
+	public void setCollectionName(String collectionName) {
+		this.collectionName = collectionName;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if discovery requests are processed by the staged asynchronous pipeline.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setPipelineEnabled(boolean pipelineEnabled) {
+		this.pipelineEnabled = pipelineEnabled;
+	}
+	
+	@NotNull
+	public boolean getPipelineEnabled() {
+		return this.pipelineEnabled;
+	}
+	
+	@UserConfigured(
+		value = "1000",
+		description = "Maximum number of requests waiting in each pipeline stage before the ingest thread is throttled.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setPipelineQueueCapacity(int pipelineQueueCapacity) {
+		this.pipelineQueueCapacity = pipelineQueueCapacity;
+	}
+	
+	@Min(1)
+	public int getPipelineQueueCapacity() {
+		return this.pipelineQueueCapacity;
+	}
+	
+	@UserConfigured(
+		value = "4",
+		description = "Number of pipeline threads running database queries concurrently.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=256"})
+	public void setPipelineQueryThreads(int pipelineQueryThreads) {
+		this.pipelineQueryThreads = pipelineQueryThreads;
+	}
+	
+	@Min(1)
+	@Max(256)
+	public int getPipelineQueryThreads() {
+		return this.pipelineQueryThreads;
+	}
+	
+	@UserConfigured(
+		value = "1",
+		description = "Number of pipeline threads building, encoding and encrypting responses concurrently.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=256"})
+	public void setPipelineEncodeThreads(int pipelineEncodeThreads) {
+		this.pipelineEncodeThreads = pipelineEncodeThreads;
+	}
+	
+	@Min(1)
+	@Max(256)
+	public int getPipelineEncodeThreads() {
+		return this.pipelineEncodeThreads;
+	}
+	
+	@UserConfigured(
+		value = "2",
+		description = "Number of pipeline threads sending discovery responses.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=256"})
+	public void setPipelineSendThreads(int pipelineSendThreads) {
+		this.pipelineSendThreads = pipelineSendThreads;
+	}
+	
+	@Min(1)
+	@Max(256)
+	public int getPipelineSendThreads() {
+		return this.pipelineSendThreads;
+	}
+	
+	@UserConfigured(
+		value = "30000",
+		description = "Time (in milliseconds) to wait for in flight requests on flush and dispose.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setPipelineDrainTimeoutMs(int pipelineDrainTimeoutMs) {
+		this.pipelineDrainTimeoutMs = pipelineDrainTimeoutMs;
+	}
+	
+	@Min(0)
+	public int getPipelineDrainTimeoutMs() {
+		return this.pipelineDrainTimeoutMs;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if query results are cached by serviceId and bounding box.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setResultCacheEnabled(boolean resultCacheEnabled) {
+		this.resultCacheEnabled = resultCacheEnabled;
+	}
+	
+	@NotNull
+	public boolean getResultCacheEnabled() {
+		return this.resultCacheEnabled;
+	}
+	
+	@UserConfigured(
+		value = "10000",
+		description = "Maximum number of query results held in the result cache.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setResultCacheMaxEntries(int resultCacheMaxEntries) {
+		this.resultCacheMaxEntries = resultCacheMaxEntries;
+	}
+	
+	@Min(1)
+	public int getResultCacheMaxEntries() {
+		return this.resultCacheMaxEntries;
+	}
+	
+	@UserConfigured(
+		value = "60000",
+		description = "Time (in milliseconds) a cached query result stays valid.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setResultCacheTtlMs(int resultCacheTtlMs) {
+		this.resultCacheTtlMs = resultCacheTtlMs;
+	}
+	
+	@Min(0)
+	public int getResultCacheTtlMs() {
+		return this.resultCacheTtlMs;
+	}
+	
+	@UserConfigured(
+		value = "1000",
+		description = "Grid size (in millionths of a degree) bounding boxes are snapped to before caching.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=1000000"})
+	public void setResultCacheGridMicrodegrees(int resultCacheGridMicrodegrees) {
+		this.resultCacheGridMicrodegrees = resultCacheGridMicrodegrees;
+	}
+	
+	@Min(1)
+	@Max(1000000)
+	public int getResultCacheGridMicrodegrees() {
+		return this.resultCacheGridMicrodegrees;
+	}
+	
+	@UserConfigured(
+		value = "1000",
+		description = "Time (in milliseconds) between checks of the object registration collection for changes.",
+		flexValidator = {"NumberValidator minValue=10 maxValue=" + Integer.MAX_VALUE})
+	public void setRegistrationPollIntervalMs(int registrationPollIntervalMs) {
+		this.registrationPollIntervalMs = registrationPollIntervalMs;
+	}
+	
+	@Min(10)
+	public int getRegistrationPollIntervalMs() {
+		return this.registrationPollIntervalMs;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if queries are answered from an in memory replica of the registration collection.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setRegistrationIndexEnabled(boolean registrationIndexEnabled) {
+		this.registrationIndexEnabled = registrationIndexEnabled;
+	}
+	
+	@NotNull
+	public boolean getRegistrationIndexEnabled() {
+		return this.registrationIndexEnabled;
+	}
+	
+	@UserConfigured(
+		value = "1000",
+		description = "Time (in milliseconds) between refreshes of the in memory registration replica.",
+		flexValidator = {"NumberValidator minValue=10 maxValue=" + Integer.MAX_VALUE})
+	public void setRegistrationIndexRefreshMs(int registrationIndexRefreshMs) {
+		this.registrationIndexRefreshMs = registrationIndexRefreshMs;
+	}
+	
+	@Min(10)
+	public int getRegistrationIndexRefreshMs() {
+		return this.registrationIndexRefreshMs;
+	}
+	
+	@UserConfigured(
+		value = "0",
+		description = "Level of the tiles (2^level by 2^level over the world) the in memory registration replica is bucketed by, 0 to hold it in an R-tree.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + TileIndex.MAX_LEVEL})
+	public void setRegistrationIndexTileLevel(int registrationIndexTileLevel) {
+		this.registrationIndexTileLevel = registrationIndexTileLevel;
+	}
+	
+	@Min(0)
+	@Max(TileIndex.MAX_LEVEL)
+	public int getRegistrationIndexTileLevel() {
+		return this.registrationIndexTileLevel;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if decoded registration records are reused across requests.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setDecodedRecordCacheEnabled(boolean decodedRecordCacheEnabled) {
+		this.decodedRecordCacheEnabled = decodedRecordCacheEnabled;
+	}
+	
+	@NotNull
+	public boolean getDecodedRecordCacheEnabled() {
+		return this.decodedRecordCacheEnabled;
+	}
+	
+	@UserConfigured(
+		value = "50000",
+		description = "Maximum number of decoded registration records held in memory.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setDecodedRecordCacheMaxEntries(int decodedRecordCacheMaxEntries) {
+		this.decodedRecordCacheMaxEntries = decodedRecordCacheMaxEntries;
+	}
+	
+	@Min(1)
+	public int getDecodedRecordCacheMaxEntries() {
+		return this.decodedRecordCacheMaxEntries;
+	}
+	
+	@UserConfigured(
+		value = "400",
+		description = "Maximum number of documents a query returns. Responses take the first 10 that decode as ObjectRegistrationData, lowering the limit can leave them short when the collection holds other records.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + DatabaseHelper.MAX_RECORDS})
+	public void setQueryLimit(int queryLimit) {
+		this.queryLimit = queryLimit;
+	}
+	
+	@Min(1)
+	@Max(DatabaseHelper.MAX_RECORDS)
+	public int getQueryLimit() {
+		return this.queryLimit;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if encoded responses are reused for identical sets of registrations.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setResponseTemplateCacheEnabled(boolean responseTemplateCacheEnabled) {
+		this.responseTemplateCacheEnabled = responseTemplateCacheEnabled;
+	}
+	
+	@NotNull
+	public boolean getResponseTemplateCacheEnabled() {
+		return this.responseTemplateCacheEnabled;
+	}
+	
+	@UserConfigured(
+		value = "10000",
+		description = "Maximum number of encoded response templates held in memory.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setResponseTemplateCacheMaxEntries(int responseTemplateCacheMaxEntries) {
+		this.responseTemplateCacheMaxEntries = responseTemplateCacheMaxEntries;
+	}
+	
+	@Min(1)
+	public int getResponseTemplateCacheMaxEntries() {
+		return this.responseTemplateCacheMaxEntries;
+	}
+	
+	@UserConfigured(
+		value = "0",
+		description = "Maximum responses per second sent to one destination, 0 for no limit.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setSendRateLimitPerSecond(int sendRateLimitPerSecond) {
+		this.sendRateLimitPerSecond = sendRateLimitPerSecond;
+	}
+	
+	@Min(0)
+	public int getSendRateLimitPerSecond() {
+		return this.sendRateLimitPerSecond;
+	}
+	
+	@UserConfigured(
+		value = "10",
+		description = "Number of responses a destination may receive back to back before the rate limit applies.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setSendRateBurst(int sendRateBurst) {
+		this.sendRateBurst = sendRateBurst;
+	}
+	
+	@Min(1)
+	public int getSendRateBurst() {
+		return this.sendRateBurst;
+	}
+	
+	@UserConfigured(
+		value = "3",
+		description = "Maximum number of attempts to send a response, including the first one.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=100"})
+	public void setSendMaxAttempts(int sendMaxAttempts) {
+		this.sendMaxAttempts = sendMaxAttempts;
+	}
+	
+	@Min(1)
+	@Max(100)
+	public int getSendMaxAttempts() {
+		return this.sendMaxAttempts;
+	}
+	
+	@UserConfigured(
+		value = "10",
+		description = "Backoff (in milliseconds) before the first retry of a failed send, doubled for each further retry.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setSendRetryBaseBackoffMs(int sendRetryBaseBackoffMs) {
+		this.sendRetryBaseBackoffMs = sendRetryBaseBackoffMs;
+	}
+	
+	@Min(0)
+	public int getSendRetryBaseBackoffMs() {
+		return this.sendRetryBaseBackoffMs;
+	}
+	
+	@UserConfigured(
+		value = "1000",
+		description = "Maximum backoff (in milliseconds) between retries of a failed send.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setSendRetryMaxBackoffMs(int sendRetryMaxBackoffMs) {
+		this.sendRetryMaxBackoffMs = sendRetryMaxBackoffMs;
+	}
+	
+	@Min(0)
+	public int getSendRetryMaxBackoffMs() {
+		return this.sendRetryMaxBackoffMs;
+	}
+	
+	@UserConfigured(
+		value = "20",
+		description = "Retries allowed per hundred responses sent, limits extra load while destinations are failing.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=100"})
+	public void setSendRetryBudgetPercent(int sendRetryBudgetPercent) {
+		this.sendRetryBudgetPercent = sendRetryBudgetPercent;
+	}
+	
+	@Min(0)
+	@Max(100)
+	public int getSendRetryBudgetPercent() {
+		return this.sendRetryBudgetPercent;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if responses are sent through a shared non-blocking datagram channel.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setDatagramTransportEnabled(boolean datagramTransportEnabled) {
+		this.datagramTransportEnabled = datagramTransportEnabled;
+	}
+	
+	@NotNull
+	public boolean getDatagramTransportEnabled() {
+		return this.datagramTransportEnabled;
+	}
+	
+	@UserConfigured(
+		value = "2048",
+		description = "Size (in bytes) of the pooled datagram buffers, larger responses use a temporary buffer.",
+		flexValidator = {"NumberValidator minValue=512 maxValue=65507"})
+	public void setDatagramBufferSize(int datagramBufferSize) {
+		this.datagramBufferSize = datagramBufferSize;
+	}
+	
+	@Min(512)
+	@Max(65507)
+	public int getDatagramBufferSize() {
+		return this.datagramBufferSize;
+	}
+	
+	@UserConfigured(
+		value = "256",
+		description = "Number of datagram buffers kept for reuse.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setDatagramBufferPoolSize(int datagramBufferPoolSize) {
+		this.datagramBufferPoolSize = datagramBufferPoolSize;
+	}
+	
+	@Min(1)
+	public int getDatagramBufferPoolSize() {
+		return this.datagramBufferPoolSize;
+	}
+	
+	@UserConfigured(
+		value = "60000",
+		description = "Time (in milliseconds) a resolved response destination address is reused.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setDestinationAddressTtlMs(int destinationAddressTtlMs) {
+		this.destinationAddressTtlMs = destinationAddressTtlMs;
+	}
+	
+	@Min(0)
+	public int getDestinationAddressTtlMs() {
+		return this.destinationAddressTtlMs;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if receipts are queued and published in batches from a background thread.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setReceiptBatchingEnabled(boolean receiptBatchingEnabled) {
+		this.receiptBatchingEnabled = receiptBatchingEnabled;
+	}
+	
+	@NotNull
+	public boolean getReceiptBatchingEnabled() {
+		return this.receiptBatchingEnabled;
+	}
+	
+	@UserConfigured(
+		value = "10000",
+		description = "Maximum number of receipts waiting to be published.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setReceiptQueueCapacity(int receiptQueueCapacity) {
+		this.receiptQueueCapacity = receiptQueueCapacity;
+	}
+	
+	@Min(1)
+	public int getReceiptQueueCapacity() {
+		return this.receiptQueueCapacity;
+	}
+	
+	@UserConfigured(
+		value = "100",
+		description = "Maximum number of receipts published in one JMS transaction.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=10000"})
+	public void setReceiptBatchSize(int receiptBatchSize) {
+		this.receiptBatchSize = receiptBatchSize;
+	}
+	
+	@Min(1)
+	@Max(10000)
+	public int getReceiptBatchSize() {
+		return this.receiptBatchSize;
+	}
+	
+	@UserConfigured(
+		value = "50",
+		description = "Maximum time (in milliseconds) a queued receipt waits for its batch to fill.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setReceiptFlushIntervalMs(int receiptFlushIntervalMs) {
+		this.receiptFlushIntervalMs = receiptFlushIntervalMs;
+	}
+	
+	@Min(0)
+	public int getReceiptFlushIntervalMs() {
+		return this.receiptFlushIntervalMs;
+	}
+	
+	@UserConfigured(
+		value = "1000",
+		description = "Time (in milliseconds) to wait for room in a full receipt queue before dropping the receipt.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setReceiptQueueTimeoutMs(int receiptQueueTimeoutMs) {
+		this.receiptQueueTimeoutMs = receiptQueueTimeoutMs;
+	}
+	
+	@Min(0)
+	public int getReceiptQueueTimeoutMs() {
+		return this.receiptQueueTimeoutMs;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if registered requester certificates are remembered across requests.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setCertificateCacheEnabled(boolean certificateCacheEnabled) {
+		this.certificateCacheEnabled = certificateCacheEnabled;
+	}
+	
+	@NotNull
+	public boolean getCertificateCacheEnabled() {
+		return this.certificateCacheEnabled;
+	}
+	
+	@UserConfigured(
+		value = "10000",
+		description = "Maximum number of registered requester certificates remembered.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setCertificateCacheMaxEntries(int certificateCacheMaxEntries) {
+		this.certificateCacheMaxEntries = certificateCacheMaxEntries;
+	}
+	
+	@Min(1)
+	public int getCertificateCacheMaxEntries() {
+		return this.certificateCacheMaxEntries;
+	}
+	
+	@UserConfigured(
+		value = "3600000",
+		description = "Time (in milliseconds) after which a remembered certificate is registered again.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setCertificateCacheTtlMs(int certificateCacheTtlMs) {
+		this.certificateCacheTtlMs = certificateCacheTtlMs;
+	}
+	
+	@Min(1)
+	public int getCertificateCacheTtlMs() {
+		return this.certificateCacheTtlMs;
+	}
+	
+	@UserConfigured(
+		value = "1",
+		description = "Number of crypto providers, bounds how many responses are encrypted concurrently.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=256"})
+	public void setCryptoProviderPoolSize(int cryptoProviderPoolSize) {
+		this.cryptoProviderPoolSize = cryptoProviderPoolSize;
+	}
+	
+	@Min(1)
+	@Max(256)
+	public int getCryptoProviderPoolSize() {
+		return this.cryptoProviderPoolSize;
+	}
+	
+	@UserConfigured(
+		value = "0",
+		description = "Number of threads shared for decoding the registrations of a response, 0 to decode on the calling thread.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=256"})
+	public void setParallelDecodeThreads(int parallelDecodeThreads) {
+		this.parallelDecodeThreads = parallelDecodeThreads;
+	}
+	
+	@Min(0)
+	@Max(256)
+	public int getParallelDecodeThreads() {
+		return this.parallelDecodeThreads;
+	}
+	
+	@UserConfigured(
+		value = "4",
+		description = "Minimum number of registrations to decode before decoding is spread over the decode threads.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + ResponseSender.MAX_SERVICE_RECORDS})
+	public void setParallelDecodeThreshold(int parallelDecodeThreshold) {
+		this.parallelDecodeThreshold = parallelDecodeThreshold;
+	}
+	
+	@Min(1)
+	@Max(ResponseSender.MAX_SERVICE_RECORDS)
+	public int getParallelDecodeThreshold() {
+		return this.parallelDecodeThreshold;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if stage latencies and counters are published as a JMX MBean.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setMetricsJmxEnabled(boolean metricsJmxEnabled) {
+		this.metricsJmxEnabled = metricsJmxEnabled;
+	}
+	
+	@NotNull
+	public boolean getMetricsJmxEnabled() {
+		return this.metricsJmxEnabled;
+	}
+	
+	@UserConfigured(
+		value = "0",
+		description = "Interval (in milliseconds) between logged snapshots of stage latencies and counters, 0 to not log them.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setMetricsLogIntervalMs(int metricsLogIntervalMs) {
+		this.metricsLogIntervalMs = metricsLogIntervalMs;
+	}
+	
+	@Min(0)
+	public int getMetricsLogIntervalMs() {
+		return this.metricsLogIntervalMs;
+	}
+	
+	@UserConfigured(
+		value = "0",
+		description = "Maximum INFO and WARN messages per second each class logs while processing requests, 0 to log every message.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=" + Integer.MAX_VALUE})
+	public void setRequestLogEventsPerSecond(int requestLogEventsPerSecond) {
+		this.requestLogEventsPerSecond = requestLogEventsPerSecond;
+	}
+	
+	@Min(0)
+	public int getRequestLogEventsPerSecond() {
+		return this.requestLogEventsPerSecond;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if concurrent requests for the same service and area share one query.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setQueryCoalescingEnabled(boolean queryCoalescingEnabled) {
+		this.queryCoalescingEnabled = queryCoalescingEnabled;
+	}
+	
+	@NotNull
+	public boolean getQueryCoalescingEnabled() {
+		return this.queryCoalescingEnabled;
+	}
+	
+	@UserConfigured(
+		value = "1000",
+		description = "Grid size (in millionths of a degree) bounding boxes are snapped to before matching in-flight queries. The result cache grid is used when the result cache is enabled.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=1000000"})
+	public void setQueryCoalescingGridMicrodegrees(int queryCoalescingGridMicrodegrees) {
+		this.queryCoalescingGridMicrodegrees = queryCoalescingGridMicrodegrees;
+	}
+	
+	@Min(1)
+	@Max(1000000)
+	public int getQueryCoalescingGridMicrodegrees() {
+		return this.queryCoalescingGridMicrodegrees;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if requests arriving close together are answered by one combined database query.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setQueryBatchingEnabled(boolean queryBatchingEnabled) {
+		this.queryBatchingEnabled = queryBatchingEnabled;
+	}
+	
+	@NotNull
+	public boolean getQueryBatchingEnabled() {
+		return this.queryBatchingEnabled;
+	}
+	
+	@UserConfigured(
+		value = "2",
+		description = "Time (in milliseconds) a batch waits for more requests after its first one.",
+		flexValidator = {"NumberValidator minValue=0 maxValue=1000"})
+	public void setQueryBatchWindowMs(int queryBatchWindowMs) {
+		this.queryBatchWindowMs = queryBatchWindowMs;
+	}
+	
+	@Min(0)
+	@Max(1000)
+	public int getQueryBatchWindowMs() {
+		return this.queryBatchWindowMs;
+	}
+	
+	@UserConfigured(
+		value = "32",
+		description = "Maximum number of requests combined into one database query.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=1000"})
+	public void setQueryBatchMaxRequests(int queryBatchMaxRequests) {
+		this.queryBatchMaxRequests = queryBatchMaxRequests;
+	}
+	
+	@Min(1)
+	@Max(1000)
+	public int getQueryBatchMaxRequests() {
+		return this.queryBatchMaxRequests;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if the registration replica follows the oplog (or, without one, a poll every registrationPollIntervalMs) instead of polling on its own. The result cache always follows the change feed.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setChangeFeedEnabled(boolean changeFeedEnabled) {
+		this.changeFeedEnabled = changeFeedEnabled;
+	}
+	
+	@NotNull
+	public boolean getChangeFeedEnabled() {
+		return this.changeFeedEnabled;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if pipeline requests that can't meet their deadline or exceed the adaptive query concurrency limit are shed without querying the database.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setAdmissionControlEnabled(boolean admissionControlEnabled) {
+		this.admissionControlEnabled = admissionControlEnabled;
+	}
+	
+	@NotNull
+	public boolean getAdmissionControlEnabled() {
+		return this.admissionControlEnabled;
+	}
+	
+	@UserConfigured(
+		value = "1000",
+		description = "Time (in milliseconds) from being handed to the sink within which a pipeline request must be answered to be of use, requests that can't make it are shed. Without the pipeline only the concurrency limit applies.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setRequestDeadlineMs(int requestDeadlineMs) {
+		this.requestDeadlineMs = requestDeadlineMs;
+	}
+	
+	@Min(1)
+	public int getRequestDeadlineMs() {
+		return this.requestDeadlineMs;
+	}
+	
+	@UserConfigured(
+		value = "100",
+		description = "Query latency (in milliseconds) above which the concurrent query limit is lowered, below it the limit grows.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setAdmissionTargetLatencyMs(int admissionTargetLatencyMs) {
+		this.admissionTargetLatencyMs = admissionTargetLatencyMs;
+	}
+	
+	@Min(1)
+	public int getAdmissionTargetLatencyMs() {
+		return this.admissionTargetLatencyMs;
+	}
+	
+	@UserConfigured(
+		value = "1",
+		description = "Lowest the adaptive concurrent query limit goes.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setAdmissionMinConcurrency(int admissionMinConcurrency) {
+		this.admissionMinConcurrency = admissionMinConcurrency;
+	}
+	
+	@Min(1)
+	public int getAdmissionMinConcurrency() {
+		return this.admissionMinConcurrency;
+	}
+	
+	@UserConfigured(
+		value = "64",
+		description = "Highest the adaptive concurrent query limit goes, and where it starts.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setAdmissionMaxConcurrency(int admissionMaxConcurrency) {
+		this.admissionMaxConcurrency = admissionMaxConcurrency;
+	}
+	
+	@Min(1)
+	public int getAdmissionMaxConcurrency() {
+		return this.admissionMaxConcurrency;
+	}
+	
+	@UserConfigured(
+		value = "false",
+		description = "Flag indicating if pipeline queries are queued and scheduled per serviceId so one busy service can't starve the others.",
+		flexValidator = {"RegExpValidator expression=true|false"})
+	public void setServiceLanesEnabled(boolean serviceLanesEnabled) {
+		this.serviceLanesEnabled = serviceLanesEnabled;
+	}
+	
+	@NotNull
+	public boolean getServiceLanesEnabled() {
+		return this.serviceLanesEnabled;
+	}
+	
+	@UserConfigured(
+		value = "100",
+		description = "Maximum number of requests waiting in the lane of a service, further requests for it are shed.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setServiceLaneCapacity(int serviceLaneCapacity) {
+		this.serviceLaneCapacity = serviceLaneCapacity;
+	}
+	
+	@Min(1)
+	public int getServiceLaneCapacity() {
+		return this.serviceLaneCapacity;
+	}
+	
+	@UserConfigured(
+		value = "2",
+		description = "Maximum number of query threads working on requests of one service at a time.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setServiceLaneConcurrency(int serviceLaneConcurrency) {
+		this.serviceLaneConcurrency = serviceLaneConcurrency;
+	}
+	
+	@Min(1)
+	public int getServiceLaneConcurrency() {
+		return this.serviceLaneConcurrency;
+	}
+	
+	@UserConfigured(
+		value = "32",
+		description = "Number of open lanes after which services without a weight share one lane, so lanes stay bounded however many serviceIds are seen.",
+		flexValidator = {"NumberValidator minValue=1 maxValue=" + Integer.MAX_VALUE})
+	public void setServiceLaneMaxLanes(int serviceLaneMaxLanes) {
+		this.serviceLaneMaxLanes = serviceLaneMaxLanes;
+	}
+	
+	@Min(1)
+	public int getServiceLaneMaxLanes() {
+		return this.serviceLaneMaxLanes;
+	}
+	
+	@UserConfigured(
+		value = "",
+		description = "Share of the query threads per service as comma separated serviceId:weight pairs, e.g. 2:4,5:1. Services not listed have weight 1.",
+		flexValidator = {"RegExpValidator expression=(\\d+:\\d+(,\\d+:\\d+)*)?"})
+	public void setServiceLaneWeights(String serviceLaneWeights) {
+		this.serviceLaneWeights = serviceLaneWeights;
+	}
+	
+	public String getServiceLaneWeights() {
+		return this.serviceLaneWeights;
+	}
+	
+	public void initialize() throws InitializationException {
+		try {
+			initialize(
+				new DatabaseHelper(mongoServerHost, mongoServerPort, databaseName, 
+					DatabaseHelper.buildClientOptions(autoConnectRetry, connectTimeoutMs, mongoConnectionsPerHost, 
+						mongoMaxWaitTimeMs, mongoSocketTimeoutMs, mongoReadPreference, mongoReplicaSetName), 
+					collectionName, geospatialFieldName),
+				new ResponseSender(bundleForwarderHost, bundleForwarderPort, forwardAll),
+				new ReceiptSender(receiptJmsHost, receiptJmsPort, topicName));
+		} catch (Exception ex) {
+			throw new InitializationException("Failed to initialize QueryProcessor.", ex);
+		}
+	}
+	
+	/**
+	 * Configures the given components from the sink properties and wires them together.
+	 * Package private so the load harness can run the sink against local stand-ins.
+	 */
+	void initialize(DatabaseHelper dbHelper, ResponseSender responseSender, ReceiptSender receiptSender) throws Exception {
+		this.dbHelper = dbHelper;
+		this.responseSender = responseSender;
+		this.receiptSender = receiptSender;
+		
+		SampledLogger.setEventsPerSecond(requestLogEventsPerSecond);
+		dbHelper.setMetrics(metrics);
+		responseSender.setMetrics(metrics);
+		receiptSender.setMetrics(metrics);
+		
+		dbHelper.setQueryLimit(queryLimit);
+		dbHelper.setQueryMaxTimeMs(mongoQueryMaxTimeMs);
+		dbHelper.verifySchema();
+		if (changeFeedEnabled) {
+			dbHelper.enableChangeFeed(registrationPollIntervalMs);
+		}
+		if (registrationIndexEnabled) {
+			dbHelper.enableRegistrationIndex(registrationIndexRefreshMs, registrationIndexTileLevel);
+		}
+		if (resultCacheEnabled) {
+			dbHelper.enableResultCache(resultCacheMaxEntries, resultCacheTtlMs, 
+				resultCacheGridMicrodegrees, registrationPollIntervalMs);
+		}
+		if (queryCoalescingEnabled) {
+			dbHelper.enableQueryCoalescing(queryCoalescingGridMicrodegrees);
+		}
+		if (queryBatchingEnabled) {
+			dbHelper.enableQueryBatching(queryBatchWindowMs, queryBatchMaxRequests);
+		}
+		if (receiptBatchingEnabled) {
+			receiptSender.enableBatchedPublishing(receiptQueueCapacity, receiptBatchSize, 
+				receiptFlushIntervalMs, receiptQueueTimeoutMs);
+		}
+		responseSender.setSendPolicy(new ResponseSendPolicy(sendRateLimitPerSecond, sendRateBurst, sendMaxAttempts, 
+			sendRetryBaseBackoffMs, sendRetryMaxBackoffMs, sendRetryBudgetPercent));
+		if (datagramTransportEnabled) {
+			responseSender.enableDatagramTransport(datagramBufferSize, datagramBufferPoolSize, destinationAddressTtlMs);
+		}
+		responseSender.setCryptoProviderPoolSize(cryptoProviderPoolSize);
+		if (certificateCacheEnabled) {
+			responseSender.enableCertificateCache(certificateCacheMaxEntries, certificateCacheTtlMs);
+		}
+		if (parallelDecodeThreads > 0) {
+			responseSender.enableParallelDecode(parallelDecodeThreads, parallelDecodeThreshold);
+		}
+		if (decodedRecordCacheEnabled) {
+			responseSender.enableDecodedRecordCache(decodedRecordCacheMaxEntries);
+		}
+		if (responseTemplateCacheEnabled) {
+			responseSender.enableResponseTemplateCache(responseTemplateCacheMaxEntries);
+		}
+		if (pipelineEnabled) {
+			if (admissionControlEnabled) {
+				logger.info(String.format("Enabling admission control with %d ms deadline, %d ms target query latency and %d to %d concurrent queries.",
+					requestDeadlineMs, admissionTargetLatencyMs, admissionMinConcurrency, admissionMaxConcurrency));
+				admission = new AdmissionController(requestDeadlineMs, admissionTargetLatencyMs, 
+					admissionMinConcurrency, admissionMaxConcurrency);
+			}
+			pipeline = new DiscoveryPipeline(dbHelper, responseSender, receiptSender, 
+				pipelineQueueCapacity, pipelineQueryThreads, pipelineEncodeThreads, pipelineSendThreads);
+			pipeline.setMetrics(metrics);
+			pipeline.setAdmissionController(admission);
+			if (serviceLanesEnabled) {
+				pipeline.enableServiceLanes(serviceLaneCapacity, serviceLaneConcurrency, serviceLaneMaxLanes,
+					ServiceLaneScheduler.parseWeights(serviceLaneWeights));
+			}
+		} else {
+			if (admissionControlEnabled) {
+				logger.warn("Admission control limits the pipeline's concurrent queries, ignoring admissionControlEnabled without pipelineEnabled.");
+			}
+			if (serviceLanesEnabled) {
+				logger.warn("Service lanes schedule the pipeline's query stage, ignoring serviceLanesEnabled without pipelineEnabled.");
+			}
+		}
+		registerGauges();
+		if (metricsJmxEnabled) {
+			try {
+				metrics.registerMBean("objectdiscovery-" + Integer.toHexString(System.identityHashCode(this)));
+			} catch (Exception ex) {
+				logger.warn("Failed to register discovery metrics MBean.", ex);
+			}
+		}
+		if (metricsLogIntervalMs > 0) {
+			metrics.startSnapshotLogging(metricsLogIntervalMs);
+		}
+	}
+	
+	/**
+	 * Publishes the statistics the caches and the send policy already keep alongside the metrics.
+	 */
+	private void registerGauges() {
+		final ResponseSendPolicy sendPolicy = responseSender.getSendPolicy();
+		metrics.registerGauge("sendRetries", new DiscoveryMetrics.Gauge() {
+			public long getValue() { return sendPolicy.getRetries(); }
+		});
+		metrics.registerGauge("sendRetriesDenied", new DiscoveryMetrics.Gauge() {
+			public long getValue() { return sendPolicy.getRetriesDenied(); }
+		});
+		metrics.registerGauge("sendsPaced", new DiscoveryMetrics.Gauge() {
+			public long getValue() { return sendPolicy.getPaced(); }
+		});
+		metrics.registerGauge("sendsDropped", new DiscoveryMetrics.Gauge() {
+			public long getValue() { return sendPolicy.getDropped(); }
+		});
+		final QueryResultCache resultCache = dbHelper.getResultCache();
+		if (resultCache != null) {
+			metrics.registerGauge("resultCacheHits", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return resultCache.getHits(); }
+			});
+			metrics.registerGauge("resultCacheMisses", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return resultCache.getMisses(); }
+			});
+		}
+		final QueryCoalescer coalescer = dbHelper.getCoalescer();
+		if (coalescer != null) {
+			metrics.registerGauge("queriesCoalesced", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return coalescer.getCoalesced(); }
+			});
+		}
+		final QueryBatcher batcher = dbHelper.getBatcher();
+		if (batcher != null) {
+			metrics.registerGauge("queryBatches", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return batcher.getBatches(); }
+			});
+			metrics.registerGauge("queryBatchedRequests", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return batcher.getBatchedRequests(); }
+			});
+			metrics.registerGauge("queryBatchFallbacks", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return batcher.getFallbacks(); }
+			});
+		}
+		if (admission != null) {
+			metrics.registerGauge("admissionLimit", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return admission.getLimit(); }
+			});
+			metrics.registerGauge("admissionShedExpired", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return admission.getExpired(); }
+			});
+			metrics.registerGauge("admissionShedOverLimit", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return admission.getOverLimit(); }
+			});
+		}
+		final RegistrationChangeFeed changeFeed = dbHelper.getChangeFeed();
+		if (changeFeed != null) {
+			metrics.registerGauge("registrationChanges", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return changeFeed.getChanges(); }
+			});
+			metrics.registerGauge("registrationFeedFailures", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return changeFeed.getFailures(); }
+			});
+		}
+		final DecodedRecordCache decodedRecordCache = responseSender.getDecodedRecordCache();
+		if (decodedRecordCache != null) {
+			metrics.registerGauge("decodedRecordCacheHits", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return decodedRecordCache.getHits(); }
+			});
+			metrics.registerGauge("decodedRecordCacheMisses", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return decodedRecordCache.getMisses(); }
+			});
+		}
+		final ResponseTemplateCache responseTemplateCache = responseSender.getResponseTemplateCache();
+		if (responseTemplateCache != null) {
+			metrics.registerGauge("responseTemplateCacheHits", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return responseTemplateCache.getHits(); }
+			});
+			metrics.registerGauge("responseTemplateCacheMisses", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return responseTemplateCache.getMisses(); }
+			});
+		}
+		final CertificateRegistrationCache certificateCache = responseSender.getCertificateCache();
+		if (certificateCache != null) {
+			metrics.registerGauge("certificateCacheHits", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return certificateCache.getHits(); }
+			});
+			metrics.registerGauge("certificateCacheMisses", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return certificateCache.getMisses(); }
+			});
+		}
+	}
+	
+	public DiscoveryMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	public void dispose() {
+		if (this.pipeline != null) {
+			this.pipeline.shutdown(pipelineDrainTimeoutMs);
+			this.pipeline = null;
+		}
+		if (this.responseSender != null) {
+			this.responseSender.close(pipelineDrainTimeoutMs);
+		}
+		if (this.receiptSender != null) {
+			this.receiptSender.close(pipelineDrainTimeoutMs);
+			this.receiptSender = null;
+		}
+		if (this.responseSender != null && this.responseSender.getDecodedRecordCache() != null) {
+			logger.info("Disposing " + this.responseSender.getDecodedRecordCache());
+		}
+		if (this.responseSender != null && this.responseSender.getResponseTemplateCache() != null) {
+			logger.info("Disposing " + this.responseSender.getResponseTemplateCache());
+		}
+		if (this.responseSender != null && this.responseSender.getCertificateCache() != null) {
+			logger.info("Disposing " + this.responseSender.getCertificateCache());
+		}
+		if (this.dbHelper != null) {
+			this.dbHelper.close();
+			this.dbHelper = null;
+		}
+		logger.info("Disposing with discovery metrics: " + metrics);
+		metrics.close();
+	}
+
+	@Override
+	protected void processInternal(JSONObject record, FlushCounter counter) {
+		try {
+			process(record);
+		} finally {
+			counter.noop();
+		}
+	}
+	
+	void process(JSONObject record) {
+		// The earliest time known for the request, the deadline also counts time queued in the pipeline
+		long received = System.nanoTime();
+		try {
+			requestLogger.debug("Processing discovery request: %s", record);
+			
+			long dialogId = record.getInt("dialogId");
+			if (dialogId == SemiDialogID.objDisc.longValue()) {
+				metrics.increment(DiscoveryMetrics.Counter.REQUESTS);
+				long start = System.nanoTime();
+				DiscoverModel discoverModel = DiscoverModel.fromJSONObject(record);
+				metrics.recordSince(DiscoveryMetrics.Stage.PARSE, start);
+				start = System.nanoTime();
+				discoverModel.validate();
+				metrics.recordSince(DiscoveryMetrics.Stage.VALIDATE, start);
+				if (pipeline != null) {
+					pipeline.submit(discoverModel, received);
+				} else {
+					requestLogger.debug("Running Object Discover Query for %s", discoverModel);
+					RegistrationCursor result = dbHelper.query(discoverModel);
+					responseSender.sendResponse(discoverModel, result, receiptOnDelivery);
+				}
+			} else {
+				logger.error("Received unexpected dialogId: " + dialogId + " expected dialogId:" + SemiDialogID.objDisc.longValue());
+			}
+			
+		} catch (Exception ex) {
+			metrics.increment(DiscoveryMetrics.Counter.FAILURES);
+			requestLogger.error(ex, "Failed to process discovery request: %s", record);
+		}
+	}
+	
+	public void flush() {
+		if (pipeline == null) {
+			logger.debug(String.format("The method flush() is not used by this class '%s'.", this.getClass().getName()));
+			return;
+		}
+		
+		try {
+			if (! pipeline.drain(pipelineDrainTimeoutMs)) {
+				logger.warn(String.format("Flush timed out with %d discovery requests in flight.", pipeline.getInFlight()));
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
 }
\ No newline at end of file
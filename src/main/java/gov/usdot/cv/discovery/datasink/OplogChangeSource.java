@@ -0,0 +1,142 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.types.BSONTimestamp;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CursorType;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Reads the changes of a collection from the replica set oplog with a tailable cursor. Change
+ * streams need MongoDB 3.6, the oplog is what they are built on. Oplog updates only carry the
+ * modification, so the document is read back from the collection; an update whose document is
+ * gone by then is skipped, its delete follows in the oplog.
+ */
+public class OplogChangeSource implements RegistrationChangeFeed.Source {
+
+	private static final Logger logger = Logger.getLogger(OplogChangeSource.class);
+
+	static final String OPLOG_DATABASE = "local";
+	static final String OPLOG_COLLECTION = "oplog.rs";
+
+	// Longest the server holds a getMore open waiting for new entries, bounds how long the end of
+	// a burst of changes waits before it is published
+	private static final long AWAIT_MS = 100;
+
+	private final MongoCollection<BasicDBObject> oplog;
+	private final DBCollection collection;
+	private MongoCursor<BasicDBObject> cursor;
+
+	public OplogChangeSource(MongoClient mongoClient, DBCollection collection) {
+		this.oplog = mongoClient.getDatabase(OPLOG_DATABASE).getCollection(OPLOG_COLLECTION, BasicDBObject.class);
+		this.collection = collection;
+	}
+
+	/**
+	 * @return true if the server keeps an oplog the client may read
+	 */
+	public static boolean isAvailable(MongoClient mongoClient) {
+		try {
+			for (String name : mongoClient.getDatabase(OPLOG_DATABASE).listCollectionNames()) {
+				if (OPLOG_COLLECTION.equals(name)) {
+					return true;
+				}
+			}
+			return false;
+		} catch (MongoException ex) {
+			logger.debug("Can't read the oplog: " + ex.getMessage());
+			return false;
+		}
+	}
+
+	public ChangeToken open(ChangeToken resumeAfter) {
+		BSONTimestamp after;
+		if (resumeAfter != null) {
+			if (! ChangeToken.OPLOG.equals(resumeAfter.getSource())) {
+				throw new IllegalArgumentException("Can't resume the oplog after " + resumeAfter);
+			}
+			after = (BSONTimestamp) resumeAfter.getPosition();
+		} else {
+			BasicDBObject newest = oplog.find().sort(new BasicDBObject("$natural", -1)).limit(1).first();
+			// An empty oplog is read from its start
+			after = newest == null ? new BSONTimestamp(0, 0) : (BSONTimestamp) newest.get("ts");
+		}
+
+		BasicDBObject query = new BasicDBObject("ns", collection.getFullName());
+		if (after != null) {
+			query.append("ts", new BasicDBObject("$gt", after));
+		}
+		FindIterable<BasicDBObject> entries = oplog.find(query)
+			.cursorType(CursorType.TailableAwait)
+			.noCursorTimeout(true)
+			.maxAwaitTime(AWAIT_MS, TimeUnit.MILLISECONDS);
+		if (after != null) {
+			// Lets the server start the scan at the timestamp, it requires a ts condition
+			entries.oplogReplay(true);
+		}
+		cursor = entries.iterator();
+		logger.debug(String.format("Tailing oplog for '%s' after %s.", collection.getFullName(), after));
+		return resumeAfter != null ? resumeAfter : new ChangeToken(ChangeToken.OPLOG, after);
+	}
+
+	public List<RegistrationChange> poll(int maxChanges, long waitMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + waitMs;
+		List<RegistrationChange> changes = null;
+		while (changes == null || changes.size() < maxChanges) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			BasicDBObject entry = cursor.tryNext();
+			if (entry == null) {
+				if (changes != null || System.currentTimeMillis() >= deadline) {
+					break;
+				}
+				continue;
+			}
+			RegistrationChange change = toChange(entry);
+			if (change != null) {
+				if (changes == null) {
+					changes = new ArrayList<RegistrationChange>();
+				}
+				changes.add(change);
+			}
+		}
+		return changes == null ? Collections.<RegistrationChange>emptyList() : changes;
+	}
+
+	private RegistrationChange toChange(DBObject entry) {
+		ChangeToken token = new ChangeToken(ChangeToken.OPLOG, entry.get("ts"));
+		String op = (String) entry.get("op");
+		DBObject o = (DBObject) entry.get("o");
+		if ("i".equals(op)) {
+			return new RegistrationChange(RegistrationChange.Type.INSERT, o.get(RegistrationIndex.ID_FIELD), o, token);
+		} else if ("u".equals(op)) {
+			Object id = ((DBObject) entry.get("o2")).get(RegistrationIndex.ID_FIELD);
+			DBObject document = collection.findOne(new BasicDBObject(RegistrationIndex.ID_FIELD, id));
+			return document == null ? null : new RegistrationChange(RegistrationChange.Type.UPDATE, id, document, token);
+		} else if ("d".equals(op)) {
+			return new RegistrationChange(RegistrationChange.Type.DELETE, o.get(RegistrationIndex.ID_FIELD), null, token);
+		}
+		// No-ops and commands
+		return null;
+	}
+
+	public void close() {
+		if (cursor != null) {
+			cursor.close();
+			cursor = null;
+		}
+	}
+}
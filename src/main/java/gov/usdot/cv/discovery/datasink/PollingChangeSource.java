@@ -0,0 +1,248 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Derives the changes of a collection without an oplog by polling it for documents at or after
+ * the newest timestamp seen, the way {@link RegistrationIndex} refreshes. Documents are compared
+ * with the timestamp and content hash seen last to tell inserts from updates and unchanged
+ * documents, so only ids are kept rather than copies of the collection, and every few polls
+ * the ids are swept for deletes.
+ *
+ * Tokens are document timestamps. Reopening the source, as the feed does after a failure,
+ * compares the collection with what was seen before and publishes the inserts, updates and
+ * deletes in between. A new source resuming after a token replays the documents at or after it
+ * as updates; deletes made while the feed was stopped are not seen.
+ */
+public class PollingChangeSource implements RegistrationChangeFeed.Source {
+
+	private static final int DELETE_SWEEP_INTERVAL = 10;
+
+	/**
+	 * Reads the registration collection.
+	 */
+	public interface Reader {
+		/**
+		 * @return the documents whose timestamp is at or after the given one, all documents if it
+		 * is null, oldest first
+		 */
+		public List<DBObject> findSince(Object timestamp);
+
+		public Set<Object> findIds();
+
+		public String getTimestampFieldName();
+	}
+
+	public static class CollectionReader implements Reader {
+		private final DBCollection collection;
+		private final String timestampFieldName;
+
+		public CollectionReader(DBCollection collection, String timestampFieldName) {
+			this.collection = collection;
+			this.timestampFieldName = timestampFieldName;
+		}
+
+		public List<DBObject> findSince(Object timestamp) {
+			BasicDBObject query = new BasicDBObject();
+			if (timestamp != null) {
+				query.put(timestampFieldName, new BasicDBObject("$gte", timestamp));
+			}
+			DBCursor cursor = collection.find(query).sort(new BasicDBObject(timestampFieldName, 1));
+			try {
+				List<DBObject> documents = new ArrayList<DBObject>();
+				while (cursor.hasNext()) {
+					documents.add(cursor.next());
+				}
+				return documents;
+			} finally {
+				cursor.close();
+			}
+		}
+
+		public Set<Object> findIds() {
+			Set<Object> ids = new HashSet<Object>();
+			DBCursor cursor = collection.find(new BasicDBObject(), new BasicDBObject(RegistrationIndex.ID_FIELD, 1));
+			try {
+				while (cursor.hasNext()) {
+					ids.add(cursor.next().get(RegistrationIndex.ID_FIELD));
+				}
+			} finally {
+				cursor.close();
+			}
+			return ids;
+		}
+
+		public String getTimestampFieldName() {
+			return timestampFieldName;
+		}
+	}
+
+	private final Reader reader;
+	private final String timestampFieldName;
+	private final long pollIntervalMs;
+
+	private final Map<Object, Version> seen = new HashMap<Object, Version>();
+	private final Deque<RegistrationChange> pending = new ArrayDeque<RegistrationChange>();
+	private Object newestTimestamp;
+	private long nextPollAt;
+	private int pollCount;
+	private boolean opened;
+
+	public PollingChangeSource(Reader reader, long pollIntervalMs) {
+		this.reader = reader;
+		this.timestampFieldName = reader.getTimestampFieldName();
+		this.pollIntervalMs = pollIntervalMs;
+	}
+
+	public ChangeToken open(ChangeToken resumeAfter) {
+		if (resumeAfter != null && ! ChangeToken.POLLING.equals(resumeAfter.getSource())) {
+			throw new IllegalArgumentException("Can't resume polling after " + resumeAfter);
+		}
+		// The collection as it is now is the baseline, only what changes after it is published.
+		// It is built aside so that a failed read leaves the previous one in place.
+		Object resumeTimestamp = resumeAfter == null ? null : resumeAfter.getPosition();
+		Map<Object, Version> baseline = new HashMap<Object, Version>();
+		List<RegistrationChange> changes = new ArrayList<RegistrationChange>();
+		Object newest = null;
+		for (DBObject document : reader.findSince(null)) {
+			Object id = document.get(RegistrationIndex.ID_FIELD);
+			Object timestamp = document.get(timestampFieldName);
+			Version version = new Version(document, timestamp);
+			baseline.put(id, version);
+			if (RegistrationIndex.compareTimestamps(timestamp, newest) > 0) {
+				newest = timestamp;
+			}
+			ChangeToken token = new ChangeToken(ChangeToken.POLLING, timestamp);
+			if (opened) {
+				Version previous = seen.get(id);
+				if (previous == null) {
+					changes.add(new RegistrationChange(RegistrationChange.Type.INSERT, id, document, token));
+				} else if (! previous.equals(version)) {
+					changes.add(new RegistrationChange(RegistrationChange.Type.UPDATE, id, document, token));
+				}
+			} else if (resumeAfter != null && RegistrationIndex.compareTimestamps(timestamp, resumeTimestamp) >= 0) {
+				changes.add(new RegistrationChange(RegistrationChange.Type.UPDATE, id, document, token));
+			}
+		}
+		if (opened) {
+			for (Object id : seen.keySet()) {
+				if (! baseline.containsKey(id)) {
+					changes.add(new RegistrationChange(RegistrationChange.Type.DELETE, id, null,
+							new ChangeToken(ChangeToken.POLLING, newest)));
+				}
+			}
+		}
+
+		// Changes detected before a reopen but not handed out yet stay ahead of the new ones
+		seen.clear();
+		seen.putAll(baseline);
+		pending.addAll(changes);
+		newestTimestamp = newest;
+		pollCount = 0;
+		opened = true;
+		nextPollAt = System.currentTimeMillis() + pollIntervalMs;
+		return resumeAfter != null ? resumeAfter : new ChangeToken(ChangeToken.POLLING, newestTimestamp);
+	}
+
+	public List<RegistrationChange> poll(int maxChanges, long waitMs) throws InterruptedException {
+		if (pending.isEmpty()) {
+			long wait = nextPollAt - System.currentTimeMillis();
+			if (wait > 0) {
+				Thread.sleep(Math.min(wait, waitMs));
+				if (wait > waitMs) {
+					return new ArrayList<RegistrationChange>();
+				}
+			}
+			nextPollAt = System.currentTimeMillis() + pollIntervalMs;
+			detectChanges();
+		}
+
+		List<RegistrationChange> changes = new ArrayList<RegistrationChange>(Math.min(maxChanges, pending.size()));
+		while (changes.size() < maxChanges && ! pending.isEmpty()) {
+			changes.add(pending.poll());
+		}
+		return changes;
+	}
+
+	void detectChanges() {
+		// $gte rather than $gt so updates sharing the newest timestamp are not missed
+		for (DBObject document : reader.findSince(newestTimestamp)) {
+			Object id = document.get(RegistrationIndex.ID_FIELD);
+			Object timestamp = document.get(timestampFieldName);
+			Version version = new Version(document, timestamp);
+			Version previous = seen.put(id, version);
+			advance(timestamp);
+			if (previous == null) {
+				pending.add(new RegistrationChange(RegistrationChange.Type.INSERT, id, document,
+						new ChangeToken(ChangeToken.POLLING, timestamp)));
+			} else if (! previous.equals(version)) {
+				pending.add(new RegistrationChange(RegistrationChange.Type.UPDATE, id, document,
+						new ChangeToken(ChangeToken.POLLING, timestamp)));
+			}
+		}
+
+		if (++pollCount % DELETE_SWEEP_INTERVAL == 0) {
+			Set<Object> ids = reader.findIds();
+			for (Iterator<Object> it = seen.keySet().iterator(); it.hasNext();) {
+				Object id = it.next();
+				if (! ids.contains(id)) {
+					it.remove();
+					pending.add(new RegistrationChange(RegistrationChange.Type.DELETE, id, null,
+							new ChangeToken(ChangeToken.POLLING, newestTimestamp)));
+				}
+			}
+		}
+	}
+
+	private void advance(Object timestamp) {
+		if (RegistrationIndex.compareTimestamps(timestamp, newestTimestamp) > 0) {
+			newestTimestamp = timestamp;
+		}
+	}
+
+	/**
+	 * Keeps what was seen, so that reopening publishes what changed while the source was closed.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * What is kept of a document to tell whether it changed between polls.
+	 */
+	private static final class Version {
+		private final Object timestamp;
+		// Hash of the canonical BSON encoding, independent of field order
+		private final int hash;
+
+		Version(DBObject document, Object timestamp) {
+			this.timestamp = timestamp;
+			this.hash = document.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * hash + (timestamp == null ? 0 : timestamp.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Version))
+				return false;
+			Version other = (Version) obj;
+			return hash == other.hash && (timestamp == null ? other.timestamp == null : timestamp.equals(other.timestamp));
+		}
+	}
+}
@@ -0,0 +1,373 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Answers discovery queries arriving within a short window with one combined database query.
+ *
+ * A dispatcher thread collects requests until the window closes or the batch is full and hands
+ * the batch to the thread of its first request, which queries the union of their bounding
+ * boxes per serviceId ($or over the services), newest first, and gives each request the
+ * documents whose region intersects its own box (see {@link RegionGeometry}). The dispatcher
+ * never waits on the database, so the next batch accumulates while earlier ones are still
+ * being queried, each on its own connection.
+ *
+ * The combined query is limited to the sum of the request limits. If it hits that limit a
+ * request that didn't fill its own limit may have lost matches to its neighbours and is
+ * queried on its own, by its own thread. So is every request of the service of a document
+ * whose region can't be read, and every request if the service id can't be read either,
+ * leaving the match to the database.
+ */
+public class QueryBatcher {
+
+	private static final Logger logger = Logger.getLogger(QueryBatcher.class);
+
+	// Longest a request waits for its batch, the batcher is broken if a query takes longer
+	static final long MAX_WAIT_MS = 60000;
+
+	/**
+	 * Runs a query against the registration collection.
+	 */
+	public interface Finder {
+		/**
+		 * @return at most limit matching documents, newest first, with the projected fields
+		 */
+		List<DBObject> find(DBObject query, DBObject projection, int limit);
+	}
+
+	private final Finder finder;
+	private final String geoSpatialFieldName;
+	private final DBObject projection;
+	private final long windowNanos;
+	private final int maxRequests;
+
+	private final BlockingQueue<PendingQuery> queue = new LinkedBlockingQueue<PendingQuery>();
+	private final Thread dispatcher;
+	private volatile boolean closed = false;
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong batchedRequests = new AtomicLong();
+	private final AtomicLong fallbacks = new AtomicLong();
+	private final AtomicLong unreadable = new AtomicLong();
+
+	private static final class PendingQuery {
+		final int serviceId;
+		final double nwLat;
+		final double nwLon;
+		final double seLat;
+		final double seLon;
+		final int limit;
+		final CountDownLatch done = new CountDownLatch(1);
+		// Set on the first request of a batch, whose thread runs the batch
+		List<PendingQuery> batch;
+		// Set when the request has to be queried on its own
+		boolean alone;
+		List<RegistrationRecord> result;
+		RuntimeException failure;
+
+		PendingQuery(int serviceId, double nwLat, double nwLon, double seLat, double seLon, int limit) {
+			this.serviceId = serviceId;
+			this.nwLat = nwLat;
+			this.nwLon = nwLon;
+			this.seLat = seLat;
+			this.seLon = seLon;
+			this.limit = limit;
+		}
+
+		// Only called by the thread that owns the batch, the first outcome wins
+		private boolean open() {
+			return result == null && failure == null && ! alone;
+		}
+
+		void complete(List<RegistrationRecord> result) {
+			if (open()) {
+				this.result = result;
+				done.countDown();
+			}
+		}
+
+		void completeAlone() {
+			if (open()) {
+				alone = true;
+				done.countDown();
+			}
+		}
+
+		void fail(RuntimeException failure) {
+			if (open()) {
+				this.failure = failure;
+				done.countDown();
+			}
+		}
+
+		void handOff(List<PendingQuery> batch) {
+			this.batch = batch;
+			done.countDown();
+		}
+	}
+
+	public QueryBatcher(Finder finder, String geoSpatialFieldName, long windowMs, int maxRequests) {
+		this.finder = finder;
+		this.geoSpatialFieldName = geoSpatialFieldName;
+		this.projection = new BasicDBObject(RegistrationRecord.ENCODED_MSG_FIELD, 1)
+			.append(DatabaseHelper.TIMESTAMP_FIELD, 1)
+			.append(DatabaseHelper.SERVICE_ID_FIELD, 1)
+			.append(geoSpatialFieldName, 1);
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		this.maxRequests = Math.max(1, maxRequests);
+
+		this.dispatcher = new Thread(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		}, "objectdiscovery-query-batcher");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Queues the query for the next batch and waits for its result.
+	 * @return the registrations for the service whose region intersects the box, newest first
+	 */
+	public List<RegistrationRecord> query(int serviceId, double nwLat, double nwLon, double seLat, double seLon, int limit) {
+		PendingQuery query = new PendingQuery(serviceId, nwLat, nwLon, seLat, seLon, limit);
+		queue.add(query);
+		if (closed && queue.remove(query)) {
+			throw new IllegalStateException("Query batcher is closed");
+		}
+
+		await(query);
+		if (query.batch != null) {
+			execute(query.batch);
+		}
+		if (query.alone) {
+			return querySingle(query);
+		}
+		if (query.failure != null) {
+			throw query.failure;
+		}
+		return query.result;
+	}
+
+	private void await(PendingQuery query) {
+		boolean interrupted = false;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS);
+		try {
+			while (true) {
+				try {
+					if (query.done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+						return;
+					}
+					queue.remove(query);
+					throw new IllegalStateException("No answer to the batched discovery query within " + MAX_WAIT_MS + " ms");
+				} catch (InterruptedException ex) {
+					// The query may already be part of a batch, the answer comes regardless
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void dispatch() {
+		List<PendingQuery> batch = new ArrayList<PendingQuery>(maxRequests);
+		while (! closed) {
+			try {
+				PendingQuery first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + windowNanos;
+				while (batch.size() < maxRequests) {
+					PendingQuery next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				batches.incrementAndGet();
+				batchedRequests.addAndGet(batch.size());
+				if (batch.size() == 1) {
+					first.completeAlone();
+				} else {
+					first.handOff(new ArrayList<PendingQuery>(batch));
+				}
+			} catch (InterruptedException ex) {
+				for (PendingQuery query : batch) {
+					query.fail(new IllegalStateException("Query batcher is closed"));
+				}
+				break;
+			} catch (Throwable ex) {
+				logger.error("Failed to dispatch batched discovery queries.", ex);
+				for (PendingQuery query : batch) {
+					query.fail(failure(ex));
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Runs a batch on the thread of its first request and completes every request in it.
+	 */
+	private void execute(List<PendingQuery> batch) {
+		try {
+			executeCombined(batch);
+		} catch (Throwable ex) {
+			logger.error("Failed to run batched discovery query.", ex);
+			for (PendingQuery query : batch) {
+				query.fail(failure(ex));
+			}
+			if (ex instanceof Error) {
+				throw (Error) ex;
+			}
+		}
+	}
+
+	private static RuntimeException failure(Throwable ex) {
+		return ex instanceof RuntimeException ? (RuntimeException) ex
+				: new IllegalStateException("Failed to run batched discovery query", ex);
+	}
+
+	private void executeCombined(List<PendingQuery> batch) {
+		// Union box of the requests for each service
+		Map<Integer, double[]> unions = new LinkedHashMap<Integer, double[]>();
+		int combinedLimit = 0;
+		for (PendingQuery query : batch) {
+			double[] union = unions.get(query.serviceId);
+			if (union == null) {
+				unions.put(query.serviceId, new double[] { query.nwLat, query.nwLon, query.seLat, query.seLon });
+			} else {
+				union[0] = Math.max(union[0], query.nwLat);
+				union[1] = Math.min(union[1], query.nwLon);
+				union[2] = Math.min(union[2], query.seLat);
+				union[3] = Math.max(union[3], query.seLon);
+			}
+			combinedLimit += query.limit;
+		}
+
+		BasicDBList clauses = new BasicDBList();
+		for (Map.Entry<Integer, double[]> entry : unions.entrySet()) {
+			double[] union = entry.getValue();
+			clauses.add(DatabaseHelper.buildQuery(geoSpatialFieldName, entry.getKey(), union[0], union[1], union[2], union[3]));
+		}
+		DBObject combined = clauses.size() == 1 ? (DBObject) clauses.get(0) : new BasicDBObject("$or", clauses);
+		List<DBObject> documents = finder.find(combined, projection, combinedLimit);
+
+		List<List<RegistrationRecord>> results = new ArrayList<List<RegistrationRecord>>(batch.size());
+		for (PendingQuery query : batch) {
+			results.add(new ArrayList<RegistrationRecord>(query.limit));
+		}
+		boolean[] alone = new boolean[batch.size()];
+		for (DBObject document : documents) {
+			RegistrationIndex.Registration registration = RegistrationIndex.Registration.fromDocument(document,
+					DatabaseHelper.SERVICE_ID_FIELD, geoSpatialFieldName, document.get(DatabaseHelper.TIMESTAMP_FIELD));
+			if (registration == null) {
+				unreadable.incrementAndGet();
+				logger.warn(String.format("Querying requests alone for registration %s without a readable service id or region.",
+						document.get(RegistrationIndex.ID_FIELD)));
+				Object serviceId = document.get(DatabaseHelper.SERVICE_ID_FIELD);
+				for (int i = 0; i < batch.size(); i++) {
+					if (! (serviceId instanceof Number) || batch.get(i).serviceId == ((Number) serviceId).intValue()) {
+						alone[i] = true;
+					}
+				}
+				continue;
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				PendingQuery query = batch.get(i);
+				List<RegistrationRecord> result = results.get(i);
+				if (query.serviceId == registration.getServiceId() && result.size() < query.limit
+						&& registration.intersects(query.nwLat, query.nwLon, query.seLat, query.seLon)) {
+					result.add(registration.getRecord());
+				}
+			}
+		}
+
+		boolean truncated = documents.size() >= combinedLimit;
+		for (int i = 0; i < batch.size(); i++) {
+			PendingQuery query = batch.get(i);
+			if (alone[i] || truncated && results.get(i).size() < query.limit) {
+				fallbacks.incrementAndGet();
+				query.completeAlone();
+			} else {
+				query.complete(results.get(i));
+			}
+		}
+	}
+
+	private List<RegistrationRecord> querySingle(PendingQuery query) {
+		List<DBObject> documents = finder.find(DatabaseHelper.buildQuery(geoSpatialFieldName, query.serviceId,
+				query.nwLat, query.nwLon, query.seLat, query.seLon), projection, query.limit);
+		List<RegistrationRecord> result = new ArrayList<RegistrationRecord>(documents.size());
+		for (DBObject document : documents) {
+			result.add(RegistrationRecord.fromDocument(document, geoSpatialFieldName));
+		}
+		return result;
+	}
+
+	/**
+	 * Stops the dispatcher; queries still queued fail.
+	 */
+	public void close() {
+		closed = true;
+		dispatcher.interrupt();
+		try {
+			dispatcher.join(5000);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		PendingQuery query;
+		while ((query = queue.poll()) != null) {
+			query.fail(new IllegalStateException("Query batcher is closed"));
+		}
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getBatchedRequests() {
+		return batchedRequests.get();
+	}
+
+	/**
+	 * @return number of documents of combined queries without a readable service id or region
+	 */
+	public long getUnreadable() {
+		return unreadable.get();
+	}
+
+	/**
+	 * @return number of requests queried on their own after a truncated combined query or an
+	 * unreadable document
+	 */
+	public long getFallbacks() {
+		return fallbacks.get();
+	}
+
+	@Override
+	public String toString() {
+		return "QueryBatcher [batches=" + getBatches() + ", requests=" + getBatchedRequests()
+				+ ", fallbacks=" + getFallbacks() + ", unreadable=" + getUnreadable() + "]";
+	}
+}
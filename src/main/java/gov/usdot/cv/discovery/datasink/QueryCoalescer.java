@@ -0,0 +1,123 @@
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.asn1.generated.j2735.semi.ObjectRegistrationData;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single flight execution of discovery queries. The first request for a key runs the query,
+ * requests for the same key arriving while it is in flight wait for and share its result
+ * instead of issuing their own. Requests sharing a result also share the registrations decoded
+ * while answering them, so each registration is decoded once per flight.
+ *
+ * Nothing is kept once a query completes; caching results is the job of {@link QueryResultCache}.
+ */
+public class QueryCoalescer {
+
+	private final ConcurrentMap<QueryKey, Flight> inFlight = new ConcurrentHashMap<QueryKey, Flight>();
+
+	/**
+	 * Turns the shared result into the result of one request.
+	 */
+	public interface ResultFilter {
+		public List<RegistrationRecord> filter(List<RegistrationRecord> shared);
+	}
+
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	private static final class Flight {
+		final FutureTask<List<RegistrationRecord>> task;
+		final ConcurrentMap<RegistrationRecord, ObjectRegistrationData> decoded =
+				new ConcurrentHashMap<RegistrationRecord, ObjectRegistrationData>();
+
+		Flight(Callable<List<RegistrationRecord>> query) {
+			this.task = new FutureTask<List<RegistrationRecord>>(query);
+		}
+	}
+
+	/**
+	 * Runs the query unless one for the same key is already running, in which case its result
+	 * is waited for. Failures of a shared query are thrown to every request waiting for it.
+	 */
+	public RegistrationCursor query(QueryKey key, Callable<List<RegistrationRecord>> query) {
+		return query(key, query, null);
+	}
+
+	/**
+	 * Like {@link #query(QueryKey, Callable)}, handing each request the shared result as passed
+	 * through its filter, when one is given.
+	 */
+	public RegistrationCursor query(QueryKey key, Callable<List<RegistrationRecord>> query, ResultFilter filter) {
+		Flight flight = new Flight(query);
+		Flight running = inFlight.putIfAbsent(key, flight);
+		if (running == null) {
+			queries.incrementAndGet();
+			try {
+				flight.task.run();
+			} finally {
+				inFlight.remove(key, flight);
+			}
+		} else {
+			coalesced.incrementAndGet();
+			flight = running;
+		}
+		List<RegistrationRecord> result = await(flight);
+		return RegistrationCursor.fromCollection(filter != null ? filter.filter(result) : result, flight.decoded);
+	}
+
+	private static List<RegistrationRecord> await(Flight flight) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return flight.task.get();
+				} catch (InterruptedException ex) {
+					// The leader doesn't give up on its query, neither do the requests sharing it
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Discovery query failed", cause);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return number of queries executed
+	 */
+	public long getQueries() {
+		return queries.get();
+	}
+
+	/**
+	 * @return number of requests answered by another request's query
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	@Override
+	public String toString() {
+		return "QueryCoalescer [queries=" + getQueries() + ", coalesced=" + getCoalesced() + "]";
+	}
+}
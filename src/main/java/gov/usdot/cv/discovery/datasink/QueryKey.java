@@ -0,0 +1,101 @@
+package gov.usdot.cv.discovery.datasink;
+
+/**
+ * Identifies a discovery query by serviceId and a bounding box snapped outward to a fixed grid.
+ * Requests whose boxes snap to the same grid cells share the same key and are answered by the
+ * same (slightly larger) query.
+ */
+public final class QueryKey {
+
+	private static final double MICRODEGREES = 1000000.0;
+
+	private final int serviceId;
+	private final long nwLat;
+	private final long nwLon;
+	private final long seLat;
+	private final long seLon;
+	private final int gridMicrodegrees;
+	private final int hash;
+
+	private QueryKey(int serviceId, long nwLat, long nwLon, long seLat, long seLon, int gridMicrodegrees) {
+		this.serviceId = serviceId;
+		this.nwLat = nwLat;
+		this.nwLon = nwLon;
+		this.seLat = seLat;
+		this.seLon = seLon;
+		this.gridMicrodegrees = gridMicrodegrees;
+
+		int h = serviceId;
+		h = 31 * h + (int)(nwLat ^ (nwLat >>> 32));
+		h = 31 * h + (int)(nwLon ^ (nwLon >>> 32));
+		h = 31 * h + (int)(seLat ^ (seLat >>> 32));
+		h = 31 * h + (int)(seLon ^ (seLon >>> 32));
+		this.hash = h;
+	}
+
+	/**
+	 * Builds a key by growing the request bounding box to the enclosing grid cells.
+	 * @param gridMicrodegrees grid cell size in millionths of a degree, 1 keeps the box as is
+	 */
+	public static QueryKey fromModel(DiscoverModel discoverModel, int gridMicrodegrees) {
+		if (gridMicrodegrees < 1) {
+			throw new IllegalArgumentException("Grid size must be at least 1 microdegree");
+		}
+		double grid = gridMicrodegrees;
+		long nwLat = (long)Math.ceil(discoverModel.nwPos.lat * MICRODEGREES / grid);
+		long nwLon = (long)Math.floor(discoverModel.nwPos.lon * MICRODEGREES / grid);
+		long seLat = (long)Math.floor(discoverModel.sePos.lat * MICRODEGREES / grid);
+		long seLon = (long)Math.ceil(discoverModel.sePos.lon * MICRODEGREES / grid);
+		return new QueryKey(discoverModel.serviceId, nwLat, nwLon, seLat, seLon, gridMicrodegrees);
+	}
+
+	public int getServiceId() {
+		return serviceId;
+	}
+
+	public double getNWLat() {
+		return clamp(toDegrees(nwLat), 90.0);
+	}
+
+	public double getNWLon() {
+		return clamp(toDegrees(nwLon), 180.0);
+	}
+
+	public double getSELat() {
+		return clamp(toDegrees(seLat), 90.0);
+	}
+
+	public double getSELon() {
+		return clamp(toDegrees(seLon), 180.0);
+	}
+
+	private double toDegrees(long cells) {
+		return cells * (double)gridMicrodegrees / MICRODEGREES;
+	}
+
+	private static double clamp(double value, double limit) {
+		return Math.max(-limit, Math.min(limit, value));
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof QueryKey))
+			return false;
+		QueryKey other = (QueryKey) obj;
+		return serviceId == other.serviceId && nwLat == other.nwLat && nwLon == other.nwLon
+				&& seLat == other.seLat && seLon == other.seLon && gridMicrodegrees == other.gridMicrodegrees;
+	}
+
+	@Override
+	public String toString() {
+		return "QueryKey [serviceId=" + serviceId + ", nwLat=" + getNWLat() + ", nwLon=" + getNWLon()
+				+ ", seLat=" + getSELat() + ", seLon=" + getSELon() + "]";
+	}
+}
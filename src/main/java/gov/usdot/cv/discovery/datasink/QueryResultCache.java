@@ -0,0 +1,110 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded LRU cache of discovery query results with a time to live per entry.
+ * Entries stored under an older generation than the current one are never returned,
+ * so a query that was running while the cache was invalidated cannot put stale results back.
+ */
+public class QueryResultCache {
+
+	private final int maxEntries;
+	private final long ttlMs;
+
+	private final Map<QueryKey, CacheEntry> entries;
+	private long generation = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public QueryResultCache(final int maxEntries, long ttlMs) {
+		this.maxEntries = maxEntries;
+		this.ttlMs = ttlMs;
+		this.entries = new LinkedHashMap<QueryKey, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<QueryKey, CacheEntry> eldest) {
+				if (size() > QueryResultCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public synchronized List<RegistrationRecord> get(QueryKey key) {
+		CacheEntry entry = entries.get(key);
+		if (entry != null && System.currentTimeMillis() - entry.created > ttlMs) {
+			entries.remove(key);
+			evictions.incrementAndGet();
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.result;
+	}
+
+	/**
+	 * @return the generation to pass to {@link #put(QueryKey, List, long)} for a query about to run
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	public synchronized void put(QueryKey key, List<RegistrationRecord> result, long queryGeneration) {
+		if (queryGeneration == generation) {
+			entries.put(key, new CacheEntry(result));
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		generation++;
+		entries.clear();
+		invalidations.incrementAndGet();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "QueryResultCache [size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+				+ ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + "]";
+	}
+
+	private static class CacheEntry {
+		private final List<RegistrationRecord> result;
+		private final long created = System.currentTimeMillis();
+
+		CacheEntry(List<RegistrationRecord> result) {
+			this.result = result;
+		}
+	}
+}
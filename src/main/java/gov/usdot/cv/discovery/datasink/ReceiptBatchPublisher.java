@@ -0,0 +1,212 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Publishes receipts from a background thread so that discovery requests don't wait on the
+ * broker. Receipts are buffered in a bounded queue and sent in batches, one JMS transaction
+ * per batch, when either the batch size is reached or the flush interval has passed since
+ * the first receipt of the batch was queued.
+ *
+ * A batch that fails to send is rolled back and dropped, matching the behavior of the
+ * synchronous sender, and the connection is re-established for the next batch.
+ */
+public class ReceiptBatchPublisher {
+
+	private static final Logger logger = Logger.getLogger(ReceiptBatchPublisher.class);
+
+	// Longest the worker waits for receipts before checking whether it was closed
+	private static final long POLL_MS = 100;
+	// How long close() waits for the worker after interrupting it
+	private static final long INTERRUPT_WAIT_MS = 1000;
+
+	private final ActiveMQConnectionFactory connectionFactory;
+	private final String topicName;
+	private final int batchSize;
+	private final long flushIntervalMs;
+	private final long offerTimeoutMs;
+	private final BlockingQueue<String> queue;
+	private final Thread worker;
+	private volatile boolean closed;
+
+	private Connection connection;
+	private Session session;
+	private MessageProducer producer;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param queueCapacity receipts buffered before callers have to wait
+	 * @param batchSize maximum number of receipts committed in one transaction
+	 * @param flushIntervalMs longest time a queued receipt waits for its batch to fill
+	 * @param offerTimeoutMs how long a caller waits for room in a full queue before the receipt is dropped
+	 */
+	public ReceiptBatchPublisher(String brokerUrl, String username, String password, String topicName,
+			int queueCapacity, int batchSize, long flushIntervalMs, long offerTimeoutMs) {
+		this.connectionFactory = new ActiveMQConnectionFactory(username, password, brokerUrl);
+		this.topicName = topicName;
+		this.batchSize = batchSize;
+		this.flushIntervalMs = flushIntervalMs;
+		this.offerTimeoutMs = offerTimeoutMs;
+		this.queue = new ArrayBlockingQueue<String>(queueCapacity);
+
+		logger.info(String.format("Constructing batched receipt publisher for topic '%s' with queue capacity %d, batch size %d and flush interval %d ms.",
+				topicName, queueCapacity, batchSize, flushIntervalMs));
+
+		this.worker = new Thread(new Runnable() {
+			public void run() {
+				publishLoop();
+			}
+		}, "objectdiscovery-receipt-publisher");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Queues a receipt for publishing.
+	 * @return false if the receipt was dropped because the queue stayed full or the publisher is closed
+	 */
+	public boolean publish(String receipt) {
+		if (! closed) {
+			try {
+				if (queue.offer(receipt, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	private void publishLoop() {
+		List<String> batch = new ArrayList<String>(batchSize);
+		try {
+			while (! closed || ! queue.isEmpty()) {
+				String first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if (batch.size() >= batchSize || remaining <= 0 || closed) {
+						break;
+					}
+					// Wait in slices so that closing flushes the batch without waiting out the interval
+					String next = queue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_MS)), TimeUnit.NANOSECONDS);
+					if (next != null) {
+						batch.add(next);
+					}
+				}
+				send(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException ex) {
+			// close() gave up waiting, nothing left is published
+			int lost = batch.size() + queue.drainTo(batch);
+			dropped.addAndGet(lost);
+			logger.warn(String.format("Dropped %d receipts on close.", lost));
+		}
+		disconnect();
+	}
+
+	private void send(List<String> batch) {
+		try {
+			if (session == null) {
+				connect();
+			}
+			for (String receipt : batch) {
+				producer.send(session.createTextMessage(receipt));
+			}
+			session.commit();
+			published.addAndGet(batch.size());
+			batches.incrementAndGet();
+			if (logger.isDebugEnabled()) {
+				logger.debug(String.format("Published batch of %d receipts.", batch.size()));
+			}
+		} catch (JMSException ex) {
+			dropped.addAndGet(batch.size());
+			logger.error(String.format("Failed to publish batch of %d receipts to external jms server.", batch.size()), ex);
+			disconnect();
+		}
+	}
+
+	private void connect() throws JMSException {
+		connection = connectionFactory.createConnection();
+		connection.start();
+		session = connection.createSession(true, Session.SESSION_TRANSACTED);
+		producer = session.createProducer(session.createTopic(topicName));
+	}
+
+	private void disconnect() {
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (JMSException ex) {
+				logger.warn("Failed to close receipt publisher connection.", ex);
+			}
+		}
+		connection = null;
+		session = null;
+		producer = null;
+	}
+
+	/**
+	 * Stops accepting receipts and waits up to the timeout for the queued ones to be published.
+	 * Receipts still queued after that are dropped and counted.
+	 */
+	public void close(long timeoutMs) {
+		closed = true;
+		try {
+			worker.join(timeoutMs);
+			if (worker.isAlive()) {
+				worker.interrupt();
+				worker.join(INTERRUPT_WAIT_MS);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (! worker.isAlive()) {
+			// Receipts queued by callers that raced with close
+			dropped.addAndGet(queue.drainTo(new ArrayList<String>()));
+		}
+		logger.info("Closed " + this);
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ReceiptBatchPublisher [published=" + getPublished() + ", batches=" + getBatches()
+				+ ", dropped=" + getDropped() + "]";
+	}
+}
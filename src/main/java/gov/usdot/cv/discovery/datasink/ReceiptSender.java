@@ -1,71 +1,148 @@
-package gov.usdot.cv.discovery.datasink;
-
-import gov.usdot.cv.common.dialog.Receipt;
-import gov.usdot.cv.common.util.PropertyLocator;
-
-import org.apache.commons.lang.StringUtils;
-import org.apache.log4j.Logger;
-
-import com.deleidos.rtws.commons.exception.InitializationException;
-
-public class ReceiptSender {
-
-	private final Logger logger = Logger.getLogger(getClass());
-	
-	private gov.usdot.cv.common.dialog.ReceiptSender rSender;
-	
-	public ReceiptSender(String receiptJmsHost, int receiptJmsPort, String topicName) {
-		
-		logger.info("Constructing receipt sender ...");
-		String brokerUrl = null;
-		if (! StringUtils.isEmpty(receiptJmsHost) && receiptJmsPort != -1) {
-			StringBuilder sb = new StringBuilder();
-			sb.append("nio://").append(receiptJmsHost).append(':').append(receiptJmsPort);
-			brokerUrl = sb.toString();
-		} else {
-			brokerUrl = PropertyLocator.getString("messaging.external.connection.url");
-		}
-		
-		if (brokerUrl == null) {
-			throw new InitializationException("Missing property 'messaging.external.connection.url'.");
-		}
-	
-		String username = PropertyLocator.getString("messaging.external.connection.user");
-		if (username == null) {
-			throw new InitializationException("Missing property 'messaging.external.connection.user'.");
-		}
-	
-		String password = PropertyLocator.getString("messaging.external.connection.password");
-		if (password == null) {
-			throw new InitializationException("Missing property 'messaging.external.connection.password'.");
-		}
-	
-		gov.usdot.cv.common.dialog.ReceiptSender.Builder receiptSenderBuilder = 
-				new gov.usdot.cv.common.dialog.ReceiptSender.Builder();
-		receiptSenderBuilder.setBrokerUrl(brokerUrl).setUsername(username)
-			.setPassword(password).setTopicName(topicName);
-		
-		this.rSender = receiptSenderBuilder.build();
-	}
-	
-	public void sendReceipt(DiscoverModel model) {
-		try {
-			String receiptId = model.receiptId;
-			if (receiptId != null) {
-				Receipt.Builder builder = new Receipt.Builder();
-				builder.setReceiptId(receiptId);
-				
-				logger.info(String.format("Sent receipt '%s' for '%s'.", model.receiptId, model.destHost));
-				this.rSender.send(builder.build().toString());
-			} else {
-				logger.warn("Receipt not sent because 'receiptId' field doesn't exist. Record: " + model.toString());
-			}
-		} catch (Exception ex) {
-			logger.error("Failed to send receipt to external jms server.", ex);
-		}
-	}
-	
-	public void close() {
-		this.rSender.close();
-	}
-}
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.cv.common.dialog.Receipt;
+import gov.usdot.cv.common.util.PropertyLocator;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.deleidos.rtws.commons.exception.InitializationException;
+
+public class ReceiptSender {
+
+	private final Logger logger = Logger.getLogger(getClass());
+	private static final SampledLogger requestLogger = SampledLogger.getLogger(ReceiptSender.class);
+	
+	private static final long DEFAULT_CLOSE_TIMEOUT_MS = 5000;
+	
+	private final String brokerUrl;
+	private final String username;
+	private final String password;
+	private final String topicName;
+	
+	private gov.usdot.cv.common.dialog.ReceiptSender rSender;
+	private ReceiptBatchPublisher batchPublisher;
+	private final Object sendLock = new Object();
+	private DiscoveryMetrics metrics = new DiscoveryMetrics();
+	
+	public ReceiptSender(String receiptJmsHost, int receiptJmsPort, String topicName) {
+		
+		logger.info("Constructing receipt sender ...");
+		String brokerUrl = null;
+		if (! StringUtils.isEmpty(receiptJmsHost) && receiptJmsPort != -1) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("nio://").append(receiptJmsHost).append(':').append(receiptJmsPort);
+			brokerUrl = sb.toString();
+		} else {
+			brokerUrl = PropertyLocator.getString("messaging.external.connection.url");
+		}
+		
+		if (brokerUrl == null) {
+			throw new InitializationException("Missing property 'messaging.external.connection.url'.");
+		}
+	
+		String username = PropertyLocator.getString("messaging.external.connection.user");
+		if (username == null) {
+			throw new InitializationException("Missing property 'messaging.external.connection.user'.");
+		}
+	
+		String password = PropertyLocator.getString("messaging.external.connection.password");
+		if (password == null) {
+			throw new InitializationException("Missing property 'messaging.external.connection.password'.");
+		}
+		
+		this.brokerUrl = brokerUrl;
+		this.username = username;
+		this.password = password;
+		this.topicName = topicName;
+		this.rSender = buildSender();
+	}
+	
+	/**
+	 * Connects to the given broker without looking up the messaging properties. Used by the
+	 * load harness to publish to a local broker.
+	 */
+	ReceiptSender(String brokerUrl, String username, String password, String topicName) {
+		this.brokerUrl = brokerUrl;
+		this.username = username;
+		this.password = password;
+		this.topicName = topicName;
+		this.rSender = buildSender();
+	}
+	
+	private gov.usdot.cv.common.dialog.ReceiptSender buildSender() {
+		gov.usdot.cv.common.dialog.ReceiptSender.Builder receiptSenderBuilder = 
+				new gov.usdot.cv.common.dialog.ReceiptSender.Builder();
+		receiptSenderBuilder.setBrokerUrl(brokerUrl).setUsername(username)
+			.setPassword(password).setTopicName(topicName);
+		
+		return receiptSenderBuilder.build();
+	}
+	
+	/**
+	 * Publishes receipts in batched transactions from a background thread instead of sending
+	 * each one synchronously on the caller's thread.
+	 */
+	public void enableBatchedPublishing(int queueCapacity, int batchSize, long flushIntervalMs, long offerTimeoutMs) {
+		this.batchPublisher = new ReceiptBatchPublisher(brokerUrl, username, password, topicName, 
+				queueCapacity, batchSize, flushIntervalMs, offerTimeoutMs);
+		this.rSender.close();
+		this.rSender = null;
+	}
+	
+	public void setMetrics(DiscoveryMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public ReceiptBatchPublisher getBatchPublisher() {
+		return this.batchPublisher;
+	}
+	
+	public void sendReceipt(DiscoverModel model) {
+		long start = System.nanoTime();
+		try {
+			String receiptId = model.receiptId;
+			if (receiptId != null) {
+				String receipt = new Receipt.Builder().setReceiptId(receiptId).build().toString();
+				if (this.batchPublisher != null) {
+					if (! this.batchPublisher.publish(receipt)) {
+						metrics.increment(DiscoveryMetrics.Counter.RECEIPT_FAILURES);
+						requestLogger.warn("Dropped receipt '%s' because the receipt queue is full.", receiptId);
+					} else {
+						requestLogger.debug("Queued receipt '%s' for '%s'.", receiptId, model.destHost);
+					}
+					return;
+				}
+				
+				// Receipts for retried responses arrive from the send scheduler, JMS sessions are single threaded
+				synchronized (sendLock) {
+					this.rSender.send(receipt);
+				}
+				requestLogger.info("Sent receipt '%s' for '%s'.", receiptId, model.destHost);
+			} else {
+				requestLogger.warn("Receipt not sent because 'receiptId' field doesn't exist. Record: %s", model);
+			}
+		} catch (Exception ex) {
+			metrics.increment(DiscoveryMetrics.Counter.RECEIPT_FAILURES);
+			logger.error("Failed to send receipt to external jms server.", ex);
+		} finally {
+			metrics.recordSince(DiscoveryMetrics.Stage.RECEIPT, start);
+		}
+	}
+	
+	public void close() {
+		close(DEFAULT_CLOSE_TIMEOUT_MS);
+	}
+	
+	/**
+	 * Closes the sender, waiting up to the timeout for batched receipts to be published.
+	 */
+	public void close(long timeoutMs) {
+		if (this.batchPublisher != null) {
+			this.batchPublisher.close(timeoutMs);
+		}
+		if (this.rSender != null) {
+			this.rSender.close();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import com.mongodb.DBObject;
+
+/**
+ * GeoJSON geometry of a registration region, for deciding in process whether it intersects a
+ * query box the way $geoIntersects does rather than by its envelope alone.
+ *
+ * The test is planar in degrees. Rectangular regions, by far the most common, are answered from
+ * the envelope; other shapes are tested edge by edge, and polygons also by whether they contain
+ * the box. Holes and the polygons of a MultiPolygon are handled by the even-odd rule.
+ */
+final class RegionGeometry {
+
+	// Positions of each ring, line or point as lon, lat pairs
+	private final double[][] paths;
+	private final boolean areal;
+	private final boolean rectangle;
+
+	private final double minLat;
+	private final double maxLat;
+	private final double minLon;
+	private final double maxLon;
+
+	private RegionGeometry(double[][] paths, boolean areal) {
+		double[] envelope = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+				Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (double[] path : paths) {
+			for (int i = 0; i < path.length; i += 2) {
+				envelope[0] = Math.min(envelope[0], path[i + 1]);
+				envelope[1] = Math.max(envelope[1], path[i + 1]);
+				envelope[2] = Math.min(envelope[2], path[i]);
+				envelope[3] = Math.max(envelope[3], path[i]);
+			}
+		}
+		this.paths = paths;
+		this.areal = areal;
+		this.minLat = envelope[0];
+		this.maxLat = envelope[1];
+		this.minLon = envelope[2];
+		this.maxLon = envelope[3];
+		this.rectangle = areal && paths.length == 1 && isRectangle(paths[0]);
+	}
+
+	/**
+	 * @return the geometry of a GeoJSON object, or null if it has no positions
+	 */
+	static RegionGeometry fromGeoJson(Object region) {
+		if (! (region instanceof DBObject)) {
+			return null;
+		}
+		List<double[]> paths = new ArrayList<double[]>();
+		collect(((DBObject) region).get("coordinates"), paths);
+		if (paths.isEmpty()) {
+			return null;
+		}
+		Object type = ((DBObject) region).get("type");
+		boolean areal = type instanceof String && ((String) type).endsWith("Polygon");
+		return new RegionGeometry(paths.toArray(new double[paths.size()][]), areal);
+	}
+
+	/**
+	 * @return the geometry of a GeoJSON document read with the driver's BSON API, or null if it
+	 * has no positions
+	 */
+	static RegionGeometry fromBson(BsonDocument region) {
+		List<double[]> paths = new ArrayList<double[]>();
+		collect(toList(region.get("coordinates")), paths);
+		if (paths.isEmpty()) {
+			return null;
+		}
+		BsonValue type = region.get("type");
+		boolean areal = type != null && type.isString() && type.asString().getValue().endsWith("Polygon");
+		return new RegionGeometry(paths.toArray(new double[paths.size()][]), areal);
+	}
+
+	/**
+	 * @return nested lists of Doubles for the arrays and numbers of the value, null for anything else
+	 */
+	private static Object toList(BsonValue value) {
+		if (value == null) {
+			return null;
+		}
+		if (value.isNumber()) {
+			return value.asNumber().doubleValue();
+		}
+		if (value.isArray()) {
+			BsonArray array = value.asArray();
+			List<Object> list = new ArrayList<Object>(array.size());
+			for (BsonValue element : array) {
+				list.add(toList(element));
+			}
+			return list;
+		}
+		return null;
+	}
+
+	/**
+	 * Walks GeoJSON coordinates of any nesting depth down to the lists of positions.
+	 */
+	private static void collect(Object coordinates, List<double[]> paths) {
+		if (! (coordinates instanceof List) || ((List<?>) coordinates).isEmpty()) {
+			return;
+		}
+		List<?> list = (List<?>) coordinates;
+		if (isPosition(list)) {
+			// A Point
+			paths.add(new double[] { lon(list), lat(list) });
+			return;
+		}
+		if (list.get(0) instanceof List && isPosition((List<?>) list.get(0))) {
+			double[] path = new double[2 * list.size()];
+			int count = 0;
+			for (Object position : list) {
+				if (position instanceof List && isPosition((List<?>) position)) {
+					path[count++] = lon((List<?>) position);
+					path[count++] = lat((List<?>) position);
+				}
+			}
+			if (count < path.length) {
+				double[] trimmed = new double[count];
+				System.arraycopy(path, 0, trimmed, 0, count);
+				path = trimmed;
+			}
+			paths.add(path);
+			return;
+		}
+		for (Object child : list) {
+			collect(child, paths);
+		}
+	}
+
+	private static boolean isPosition(List<?> list) {
+		return list.size() >= 2 && list.get(0) instanceof Number && list.get(1) instanceof Number;
+	}
+
+	private static double lon(List<?> position) {
+		return ((Number) position.get(0)).doubleValue();
+	}
+
+	private static double lat(List<?> position) {
+		return ((Number) position.get(1)).doubleValue();
+	}
+
+	/**
+	 * @return true if the closed ring visits the four corners of its envelope and nothing else
+	 */
+	private boolean isRectangle(double[] ring) {
+		if (ring.length != 10) {
+			return false;
+		}
+		int corners = 0;
+		for (int i = 0; i < ring.length; i += 2) {
+			if ((ring[i] != minLon && ring[i] != maxLon) || (ring[i + 1] != minLat && ring[i + 1] != maxLat)) {
+				return false;
+			}
+			if (i < 8) {
+				corners |= 1 << ((ring[i] == minLon ? 0 : 1) + (ring[i + 1] == minLat ? 0 : 2));
+			}
+		}
+		return corners == 15;
+	}
+
+	/**
+	 * @return true if the region intersects the box, edges included
+	 */
+	boolean intersects(double nwLat, double nwLon, double seLat, double seLon) {
+		if (minLat > nwLat || maxLat < seLat || minLon > seLon || maxLon < nwLon) {
+			return false;
+		}
+		if (rectangle || (minLat >= seLat && maxLat <= nwLat && minLon >= nwLon && maxLon <= seLon)) {
+			return true;
+		}
+		for (double[] path : paths) {
+			for (int i = 0; i < path.length; i += 2) {
+				if (path[i] >= nwLon && path[i] <= seLon && path[i + 1] >= seLat && path[i + 1] <= nwLat) {
+					return true;
+				}
+				if (i + 3 < path.length && crossesBox(path[i], path[i + 1], path[i + 2], path[i + 3], nwLat, nwLon, seLat, seLon)) {
+					return true;
+				}
+			}
+		}
+		// No edge reaches into the box, so either the box lies inside the polygon or they are apart
+		return areal && contains(nwLon, nwLat);
+	}
+
+	private static boolean crossesBox(double lon1, double lat1, double lon2, double lat2,
+			double nwLat, double nwLon, double seLat, double seLon) {
+		return segmentsIntersect(lon1, lat1, lon2, lat2, nwLon, nwLat, seLon, nwLat)
+				|| segmentsIntersect(lon1, lat1, lon2, lat2, seLon, nwLat, seLon, seLat)
+				|| segmentsIntersect(lon1, lat1, lon2, lat2, seLon, seLat, nwLon, seLat)
+				|| segmentsIntersect(lon1, lat1, lon2, lat2, nwLon, seLat, nwLon, nwLat);
+	}
+
+	private static boolean segmentsIntersect(double ax, double ay, double bx, double by,
+			double cx, double cy, double dx, double dy) {
+		double d1 = cross(cx, cy, dx, dy, ax, ay);
+		double d2 = cross(cx, cy, dx, dy, bx, by);
+		double d3 = cross(ax, ay, bx, by, cx, cy);
+		double d4 = cross(ax, ay, bx, by, dx, dy);
+		if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) {
+			return true;
+		}
+		return (d1 == 0 && onSegment(cx, cy, dx, dy, ax, ay)) || (d2 == 0 && onSegment(cx, cy, dx, dy, bx, by))
+				|| (d3 == 0 && onSegment(ax, ay, bx, by, cx, cy)) || (d4 == 0 && onSegment(ax, ay, bx, by, dx, dy));
+	}
+
+	private static double cross(double ox, double oy, double ax, double ay, double bx, double by) {
+		return (ax - ox) * (by - oy) - (ay - oy) * (bx - ox);
+	}
+
+	private static boolean onSegment(double ax, double ay, double bx, double by, double px, double py) {
+		return px >= Math.min(ax, bx) && px <= Math.max(ax, bx) && py >= Math.min(ay, by) && py <= Math.max(ay, by);
+	}
+
+	/**
+	 * Even-odd ray cast over every ring.
+	 */
+	private boolean contains(double lon, double lat) {
+		boolean inside = false;
+		for (double[] ring : paths) {
+			for (int i = 0, j = ring.length - 2; i < ring.length; j = i, i += 2) {
+				if ((ring[i + 1] > lat) != (ring[j + 1] > lat)
+						&& lon < (ring[j] - ring[i]) * (lat - ring[i + 1]) / (ring[j + 1] - ring[i + 1]) + ring[i]) {
+					inside = ! inside;
+				}
+			}
+		}
+		return inside;
+	}
+
+	public double getMinLat() {
+		return minLat;
+	}
+
+	public double getMaxLat() {
+		return maxLat;
+	}
+
+	public double getMinLon() {
+		return minLon;
+	}
+
+	public double getMaxLon() {
+		return maxLon;
+	}
+}
@@ -0,0 +1,53 @@
+package gov.usdot.cv.discovery.datasink;
+
+import com.mongodb.DBObject;
+
+/**
+ * A write to the object registration collection as seen by the {@link RegistrationChangeFeed}.
+ */
+public final class RegistrationChange {
+
+	public enum Type {
+		INSERT, UPDATE, DELETE
+	}
+
+	private final Type type;
+	private final Object id;
+	private final DBObject document;
+	private final ChangeToken token;
+
+	public RegistrationChange(Type type, Object id, DBObject document, ChangeToken token) {
+		this.type = type;
+		this.id = id;
+		this.document = document;
+		this.token = token;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public Object getId() {
+		return id;
+	}
+
+	/**
+	 * @return the document after the change, null for deletes
+	 */
+	public DBObject getDocument() {
+		return document;
+	}
+
+	/**
+	 * @return the position of the change in the feed, pass it to {@link RegistrationChangeFeed#start}
+	 * to resume after this change
+	 */
+	public ChangeToken getToken() {
+		return token;
+	}
+
+	@Override
+	public String toString() {
+		return "RegistrationChange [type=" + type + ", id=" + id + ", token=" + token + "]";
+	}
+}
@@ -0,0 +1,207 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+
+/**
+ * Publishes inserts, updates and deletes of the object registration collection to in process
+ * listeners. A single thread reads the changes from a {@link Source} and hands them to every
+ * listener in order, in batches of whatever was available at once, so a listener can apply a
+ * burst of writes and then rebuild or invalidate once.
+ *
+ * Every change carries a {@link ChangeToken}. The feed resumes after the last change delivered,
+ * or where the source opened if none was, when its source fails, and
+ * {@link #start(ChangeToken)} resumes after a token kept by a
+ * listener across restarts. Delivery is at least once, listeners must tolerate seeing a change
+ * twice.
+ */
+public class RegistrationChangeFeed {
+
+	private static final Logger logger = Logger.getLogger(RegistrationChangeFeed.class);
+
+	// Most changes handed to the listeners at once
+	static final int MAX_BATCH = 1000;
+
+	// Longest the source blocks waiting for changes before checking whether the feed stopped
+	private static final long WAIT_MS = 1000;
+
+	public interface Listener {
+		/**
+		 * @param changes one or more changes, oldest first
+		 */
+		public void registrationsChanged(List<RegistrationChange> changes);
+	}
+
+	/**
+	 * Reads changes of the registration collection in order.
+	 */
+	public interface Source {
+		/**
+		 * Positions the source after the token, or at the current end of the collection's
+		 * changes when the token is null.
+		 * @return the position opened at, the token if one was given; reopening after it
+		 * delivers every change made since
+		 */
+		public ChangeToken open(ChangeToken resumeAfter);
+
+		/**
+		 * @return up to maxChanges changes, oldest first, waiting up to waitMs for the first one;
+		 * empty if there were none
+		 */
+		public List<RegistrationChange> poll(int maxChanges, long waitMs) throws InterruptedException;
+
+		public void close();
+	}
+
+	private final Source source;
+	private final long retryIntervalMs;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private final AtomicLong changes = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	private Thread reader;
+	private volatile boolean running = false;
+	private volatile ChangeToken lastToken;
+
+	public RegistrationChangeFeed(Source source, long retryIntervalMs) {
+		this.source = source;
+		this.retryIntervalMs = retryIntervalMs;
+	}
+
+	/**
+	 * Tails the oplog of the collection when the server keeps one (replica set members) and the
+	 * user may read it, otherwise polls the collection by timestamp every pollIntervalMs.
+	 */
+	public static RegistrationChangeFeed forCollection(MongoClient mongoClient, DBCollection collection,
+			String timestampFieldName, long pollIntervalMs) {
+		Source source;
+		if (OplogChangeSource.isAvailable(mongoClient)) {
+			logger.info(String.format("Following changes of '%s' in the oplog.", collection.getFullName()));
+			source = new OplogChangeSource(mongoClient, collection);
+		} else {
+			logger.info(String.format("No readable oplog, polling '%s' for changes every %d ms.",
+					collection.getFullName(), pollIntervalMs));
+			source = new PollingChangeSource(new PollingChangeSource.CollectionReader(collection, timestampFieldName), pollIntervalMs);
+		}
+		return new RegistrationChangeFeed(source, pollIntervalMs);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void start() {
+		start(null);
+	}
+
+	/**
+	 * Starts delivering the changes made after the token, or after now if the token is null.
+	 */
+	public synchronized void start(ChangeToken resumeAfter) {
+		if (running) {
+			return;
+		}
+		// Open before returning so that changes made once start returns are not missed, and
+		// resume from there if the source fails before the first change is published
+		lastToken = source.open(resumeAfter);
+		running = true;
+		reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "objectdiscovery-registration-feed");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public synchronized void stop() {
+		if (! running) {
+			return;
+		}
+		running = false;
+		reader.interrupt();
+		try {
+			reader.join(5000);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		reader = null;
+		source.close();
+	}
+
+	private void read() {
+		while (running) {
+			try {
+				List<RegistrationChange> batch = source.poll(MAX_BATCH, WAIT_MS);
+				if (batch.isEmpty()) {
+					continue;
+				}
+				publish(batch);
+			} catch (InterruptedException ex) {
+				break;
+			} catch (RuntimeException ex) {
+				failures.incrementAndGet();
+				logger.error("Failed to read object registration changes, resuming after " + lastToken, ex);
+				try {
+					Thread.sleep(retryIntervalMs);
+					source.close();
+					source.open(lastToken);
+				} catch (InterruptedException ie) {
+					break;
+				} catch (RuntimeException rex) {
+					logger.error("Failed to reopen object registration change source.", rex);
+				}
+			}
+		}
+	}
+
+	private void publish(List<RegistrationChange> batch) {
+		batches.incrementAndGet();
+		changes.addAndGet(batch.size());
+		for (Listener listener : listeners) {
+			try {
+				listener.registrationsChanged(batch);
+			} catch (RuntimeException ex) {
+				logger.error("Object registration change listener failed.", ex);
+			}
+		}
+		lastToken = batch.get(batch.size() - 1).getToken();
+		logger.debug(String.format("Published %d registration changes up to %s.", batch.size(), lastToken));
+	}
+
+	/**
+	 * @return token of the last change delivered to the listeners
+	 */
+	public ChangeToken getLastToken() {
+		return lastToken;
+	}
+
+	public long getChanges() {
+		return changes.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * @return number of times the source failed and was reopened
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "RegistrationChangeFeed [changes=" + getChanges() + ", batches=" + getBatches()
+				+ ", failures=" + getFailures() + ", lastToken=" + lastToken + "]";
+	}
+}
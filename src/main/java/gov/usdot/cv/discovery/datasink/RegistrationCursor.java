@@ -0,0 +1,94 @@
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.asn1.generated.j2735.semi.ObjectRegistrationData;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Lazy, single pass view of the registrations matching a discovery query.
+ * Documents are only pulled from the server as they are consumed, so a caller that stops
+ * early never fetches the rest. Callers must close the cursor when done.
+ */
+public abstract class RegistrationCursor implements Iterator<RegistrationRecord>, Closeable {
+
+	public static RegistrationCursor fromCursor(final MongoCursor<RegistrationRecord> cursor) {
+		return new RegistrationCursor() {
+			public boolean hasNext() {
+				return cursor.hasNext();
+			}
+
+			public RegistrationRecord next() {
+				return cursor.next();
+			}
+
+			public void close() {
+				cursor.close();
+			}
+		};
+	}
+
+	public static RegistrationCursor fromCollection(Collection<RegistrationRecord> records) {
+		return fromCollection(records, null);
+	}
+
+	/**
+	 * @param sharedDecodes registrations already decoded by other requests reading the same
+	 * records, filled in as this cursor's records are decoded
+	 */
+	public static RegistrationCursor fromCollection(Collection<RegistrationRecord> records,
+			final ConcurrentMap<RegistrationRecord, ObjectRegistrationData> sharedDecodes) {
+		final Iterator<RegistrationRecord> it = records.iterator();
+		return new RegistrationCursor() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public RegistrationRecord next() {
+				return it.next();
+			}
+
+			public void close() {
+			}
+
+			@Override
+			public ConcurrentMap<RegistrationRecord, ObjectRegistrationData> getSharedDecodes() {
+				return sharedDecodes;
+			}
+		};
+	}
+
+	/**
+	 * @return decoded registrations shared with other requests reading the same records or null
+	 */
+	public ConcurrentMap<RegistrationRecord, ObjectRegistrationData> getSharedDecodes() {
+		return null;
+	}
+
+	/**
+	 * Consumes and closes the cursor.
+	 */
+	public List<RegistrationRecord> toList() {
+		List<RegistrationRecord> records = new ArrayList<RegistrationRecord>();
+		try {
+			while (hasNext()) {
+				records.add(next());
+			}
+		} finally {
+			close();
+		}
+		return records;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("Registration cursors are read only");
+	}
+
+	public abstract void close();
+}
@@ -0,0 +1,330 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * In memory replica of the object registration collection that answers discovery queries
+ * from one STR packed R-tree per serviceId.
+ *
+ * The replica is refreshed by polling for documents whose timestamp is at or after the newest
+ * one already seen. Deleted documents are found by a periodic sweep of the document ids.
+ * The trees are searched by region envelope and the candidates are then tested against the
+ * region itself, see {@link RegionGeometry}.
+ */
+public class RegistrationIndex {
+
+	private static final Logger logger = Logger.getLogger(RegistrationIndex.class);
+
+	public static final String ID_FIELD = "_id";
+	// Number of refreshes between sweeps for deleted documents
+	private static final int DELETE_SWEEP_INTERVAL = 10;
+
+	private final DBCollection collection;
+	private final String serviceIdFieldName;
+	private final String geospatialFieldName;
+	private final String timestampFieldName;
+
+	private final Map<Object, Registration> registrations = new HashMap<Object, Registration>();
+	private Object newestTimestamp;
+	private int refreshCount = 0;
+
+	private int tileLevel = 0;
+	private volatile Map<Integer, SpatialIndex<Registration>> trees = Collections.emptyMap();
+	private ScheduledExecutorService scheduler;
+
+	public RegistrationIndex(DBCollection collection, String serviceIdFieldName,
+			String geospatialFieldName, String timestampFieldName) {
+		this.collection = collection;
+		this.serviceIdFieldName = serviceIdFieldName;
+		this.geospatialFieldName = geospatialFieldName;
+		this.timestampFieldName = timestampFieldName;
+	}
+
+	/**
+	 * Buckets registrations by the tiles of the given level instead of an R-tree, 0 for the
+	 * R-tree. Takes effect on the next rebuild.
+	 */
+	public synchronized void setTileLevel(int tileLevel) {
+		if (tileLevel < 0 || tileLevel > TileIndex.MAX_LEVEL) {
+			throw new IllegalArgumentException("Tile level must be between 0 and " + TileIndex.MAX_LEVEL + ", not " + tileLevel);
+		}
+		this.tileLevel = tileLevel;
+	}
+
+	public synchronized void start(long refreshIntervalMs) {
+		if (scheduler != null) {
+			return;
+		}
+		refresh();
+		logger.info(String.format("Loaded %d registrations from '%s', refreshing every %d ms.",
+				size(), collection.getName(), refreshIntervalMs));
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "objectdiscovery-registration-index");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refresh();
+				} catch (Exception ex) {
+					logger.error("Failed to refresh registration index.", ex);
+				}
+			}
+		}, refreshIntervalMs, refreshIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Loads the collection once, further changes are expected through {@link #apply(List)}.
+	 */
+	public synchronized void load() {
+		refresh();
+		logger.info(String.format("Loaded %d registrations from '%s', following the change feed.",
+				size(), collection.getName()));
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Returns the registrations for the service whose region intersects the box, newest first.
+	 */
+	public List<RegistrationRecord> query(int serviceId, double nwLat, double nwLon, double seLat, double seLon, int limit) {
+		SpatialIndex<Registration> tree = trees.get(serviceId);
+		if (tree == null) {
+			return Collections.emptyList();
+		}
+
+		List<Registration> matches = new ArrayList<Registration>();
+		tree.search(seLat, nwLat, nwLon, seLon, matches);
+		Collections.sort(matches, NEWEST_FIRST);
+
+		List<RegistrationRecord> result = new ArrayList<RegistrationRecord>(Math.min(limit, matches.size()));
+		for (int i = 0; i < matches.size() && result.size() < limit; i++) {
+			Registration registration = matches.get(i);
+			if (registration.intersects(nwLat, nwLon, seLat, seLon)) {
+				result.add(registration.record);
+			}
+		}
+		return result;
+	}
+
+	public synchronized int size() {
+		return registrations.size();
+	}
+
+	/**
+	 * Pulls new and updated documents and, every few calls, drops documents that were deleted.
+	 */
+	public synchronized void refresh() {
+		boolean changed = false;
+
+		BasicDBObject query = new BasicDBObject();
+		if (newestTimestamp != null) {
+			// $gte rather than $gt so updates sharing the newest timestamp are not missed
+			query.put(timestampFieldName, new BasicDBObject("$gte", newestTimestamp));
+		}
+		DBCursor cursor = collection.find(query);
+		try {
+			while (cursor.hasNext()) {
+				changed |= upsert(cursor.next());
+			}
+		} finally {
+			cursor.close();
+		}
+
+		if (++refreshCount % DELETE_SWEEP_INTERVAL == 0) {
+			Set<Object> ids = new HashSet<Object>();
+			DBCursor idCursor = collection.find(new BasicDBObject(), new BasicDBObject(ID_FIELD, 1));
+			try {
+				while (idCursor.hasNext()) {
+					ids.add(idCursor.next().get(ID_FIELD));
+				}
+			} finally {
+				idCursor.close();
+			}
+			changed |= registrations.keySet().retainAll(ids);
+		}
+
+		if (changed) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Applies changes published by a {@link RegistrationChangeFeed}, rebuilding once per batch.
+	 */
+	public synchronized void apply(List<RegistrationChange> changes) {
+		boolean changed = false;
+		for (RegistrationChange change : changes) {
+			if (change.getType() == RegistrationChange.Type.DELETE) {
+				changed |= remove(change.getId());
+			} else {
+				changed |= upsert(change.getDocument());
+			}
+		}
+		if (changed) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * @return true if the document was added or replaced
+	 */
+	synchronized boolean upsert(DBObject document) {
+		Object id = document.get(ID_FIELD);
+		Object timestamp = document.get(timestampFieldName);
+		if (compareTimestamps(timestamp, newestTimestamp) > 0) {
+			newestTimestamp = timestamp;
+		}
+
+		Registration existing = registrations.get(id);
+		if (existing != null && existing.document.equals(document)) {
+			return false;
+		}
+
+		Registration registration = Registration.fromDocument(document, serviceIdFieldName, geospatialFieldName, timestamp);
+		if (registration == null) {
+			logger.debug(String.format("Skipping registration %s without a service id or region.", id));
+			return registrations.remove(id) != null;
+		}
+		registrations.put(id, registration);
+		return true;
+	}
+
+	synchronized boolean remove(Object id) {
+		return registrations.remove(id) != null;
+	}
+
+	synchronized void rebuild() {
+		Map<Integer, List<Registration>> byService = new HashMap<Integer, List<Registration>>();
+		for (Registration registration : registrations.values()) {
+			List<Registration> list = byService.get(registration.serviceId);
+			if (list == null) {
+				list = new ArrayList<Registration>();
+				byService.put(registration.serviceId, list);
+			}
+			list.add(registration);
+		}
+
+		Map<Integer, SpatialIndex<Registration>> rebuilt = new HashMap<Integer, SpatialIndex<Registration>>();
+		for (Map.Entry<Integer, List<Registration>> entry : byService.entrySet()) {
+			rebuilt.put(entry.getKey(), tileLevel > 0
+					? new TileIndex<Registration>(entry.getValue(), tileLevel)
+					: new StrTree<Registration>(entry.getValue()));
+		}
+		trees = rebuilt;
+		logger.debug(String.format("Rebuilt registration index with %d registrations for %d services.",
+				registrations.size(), rebuilt.size()));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compareTimestamps(Object a, Object b) {
+		if (a == null || b == null) {
+			return a == null ? (b == null ? 0 : -1) : 1;
+		}
+		if (a instanceof Date && b instanceof Date) {
+			return ((Date) a).compareTo((Date) b);
+		}
+		if (a instanceof Number && b instanceof Number) {
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		if (a instanceof Comparable && a.getClass() == b.getClass()) {
+			return ((Comparable) a).compareTo(b);
+		}
+		return 0;
+	}
+
+	private static final Comparator<Registration> NEWEST_FIRST = new Comparator<Registration>() {
+		public int compare(Registration a, Registration b) {
+			return compareTimestamps(b.timestamp, a.timestamp);
+		}
+	};
+
+	static final class Registration implements StrTree.Bounded {
+		private final DBObject document;
+		private final RegistrationRecord record;
+		private final int serviceId;
+		private final Object timestamp;
+		private final RegionGeometry region;
+
+		private Registration(DBObject document, int serviceId, Object timestamp, RegionGeometry region) {
+			this.document = document;
+			RegistrationRecord fields = RegistrationRecord.fromDocument(document);
+			this.record = new RegistrationRecord(fields.getId(), fields.getTimestamp(), fields.getEncodedMsg(), region);
+			this.serviceId = serviceId;
+			this.timestamp = timestamp;
+			this.region = region;
+		}
+
+		static Registration fromDocument(DBObject document, String serviceIdFieldName,
+				String geospatialFieldName, Object timestamp) {
+			Object serviceId = document.get(serviceIdFieldName);
+			if (! (serviceId instanceof Number)) {
+				return null;
+			}
+			RegionGeometry region = RegionGeometry.fromGeoJson(document.get(geospatialFieldName));
+			if (region == null) {
+				return null;
+			}
+			return new Registration(document, ((Number) serviceId).intValue(), timestamp, region);
+		}
+
+		RegistrationRecord getRecord() {
+			return record;
+		}
+
+		int getServiceId() {
+			return serviceId;
+		}
+
+		/**
+		 * @return true if the region intersects the box
+		 */
+		boolean intersects(double nwLat, double nwLon, double seLat, double seLon) {
+			return region.intersects(nwLat, nwLon, seLat, seLon);
+		}
+
+		public double getMinLat() {
+			return region.getMinLat();
+		}
+
+		public double getMaxLat() {
+			return region.getMaxLat();
+		}
+
+		public double getMinLon() {
+			return region.getMinLon();
+		}
+
+		public double getMaxLon() {
+			return region.getMaxLon();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package gov.usdot.cv.discovery.datasink;
+
+import com.mongodb.DBObject;
+
+/**
+ * The fields of an object registration document that a discovery response needs, and the
+ * region when the query asked for it.
+ */
+public final class RegistrationRecord {
+
+	public static final String ID_FIELD = "_id";
+	public static final String ENCODED_MSG_FIELD = "encodedMsg";
+
+	private final Object id;
+	private final Object timestamp;
+	private final String encodedMsg;
+	private final RegionGeometry region;
+
+	public RegistrationRecord(Object id, Object timestamp, String encodedMsg) {
+		this(id, timestamp, encodedMsg, null);
+	}
+
+	RegistrationRecord(Object id, Object timestamp, String encodedMsg, RegionGeometry region) {
+		this.id = id;
+		this.timestamp = timestamp;
+		this.encodedMsg = encodedMsg;
+		this.region = region;
+	}
+
+	public static RegistrationRecord fromDocument(DBObject document) {
+		return fromDocument(document, null);
+	}
+
+	/**
+	 * @param geoSpatialFieldName field holding the region, null to leave it out
+	 */
+	public static RegistrationRecord fromDocument(DBObject document, String geoSpatialFieldName) {
+		Object encodedMsg = document.get(ENCODED_MSG_FIELD);
+		return new RegistrationRecord(document.get(ID_FIELD), document.get(DatabaseHelper.TIMESTAMP_FIELD),
+				encodedMsg instanceof String ? (String) encodedMsg : null,
+				geoSpatialFieldName != null ? RegionGeometry.fromGeoJson(document.get(geoSpatialFieldName)) : null);
+	}
+
+	public Object getId() {
+		return id;
+	}
+
+	public Object getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the Base64 encoded registration message or null if the document has none
+	 */
+	public String getEncodedMsg() {
+		return encodedMsg;
+	}
+
+	/**
+	 * @return the region or null if the query didn't fetch it
+	 */
+	RegionGeometry getRegion() {
+		return region;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = id == null ? 0 : id.hashCode();
+		result = 31 * result + (timestamp == null ? 0 : timestamp.hashCode());
+		result = 31 * result + (encodedMsg == null ? 0 : encodedMsg.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof RegistrationRecord))
+			return false;
+		RegistrationRecord other = (RegistrationRecord) obj;
+		return equal(id, other.id) && equal(timestamp, other.timestamp) && equal(encodedMsg, other.encodedMsg);
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@Override
+	public String toString() {
+		return "RegistrationRecord [id=" + id + ", timestamp=" + timestamp + "]";
+	}
+}
@@ -0,0 +1,92 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.Date;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Reads registration documents straight from BSON into {@link RegistrationRecord}s without
+ * building an intermediate document map. Fields other than the id, timestamp, encoded message
+ * and, when a field name is given, the region are skipped. The codec is read only.
+ */
+public class RegistrationRecordCodec implements Codec<RegistrationRecord> {
+
+	private final BsonValueCodec fallbackCodec = new BsonValueCodec();
+	private final String geoSpatialFieldName;
+
+	public RegistrationRecordCodec() {
+		this(null);
+	}
+
+	/**
+	 * @param geoSpatialFieldName field holding the region, null to skip it
+	 */
+	public RegistrationRecordCodec(String geoSpatialFieldName) {
+		this.geoSpatialFieldName = geoSpatialFieldName;
+	}
+
+	public RegistrationRecord decode(BsonReader reader, DecoderContext decoderContext) {
+		Object id = null;
+		Object timestamp = null;
+		String encodedMsg = null;
+		RegionGeometry region = null;
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String name = reader.readName();
+			if (RegistrationRecord.ID_FIELD.equals(name)) {
+				id = readValue(reader, decoderContext);
+			} else if (DatabaseHelper.TIMESTAMP_FIELD.equals(name)) {
+				timestamp = readValue(reader, decoderContext);
+			} else if (RegistrationRecord.ENCODED_MSG_FIELD.equals(name) && reader.getCurrentBsonType() == BsonType.STRING) {
+				encodedMsg = reader.readString();
+			} else if (name.equals(geoSpatialFieldName) && reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+				region = RegionGeometry.fromBson(fallbackCodec.decode(reader, decoderContext).asDocument());
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+
+		return new RegistrationRecord(id, timestamp, encodedMsg, region);
+	}
+
+	/**
+	 * Reads ids and timestamps as the same Java types the legacy DBObject API produces.
+	 */
+	private Object readValue(BsonReader reader, DecoderContext decoderContext) {
+		switch (reader.getCurrentBsonType()) {
+		case OBJECT_ID:
+			return reader.readObjectId();
+		case STRING:
+			return reader.readString();
+		case INT32:
+			return reader.readInt32();
+		case INT64:
+			return reader.readInt64();
+		case DOUBLE:
+			return reader.readDouble();
+		case DATE_TIME:
+			return new Date(reader.readDateTime());
+		case NULL:
+			reader.readNull();
+			return null;
+		default:
+			return fallbackCodec.decode(reader, decoderContext);
+		}
+	}
+
+	public void encode(BsonWriter writer, RegistrationRecord value, EncoderContext encoderContext) {
+		throw new UnsupportedOperationException("Registration records are read only");
+	}
+
+	public Class<RegistrationRecord> getEncoderClass() {
+		return RegistrationRecord.class;
+	}
+}
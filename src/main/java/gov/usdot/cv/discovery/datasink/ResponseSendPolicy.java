@@ -0,0 +1,234 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pacing and retry rules for discovery responses.
+ *
+ * Each destination gets a token bucket; a send that finds the bucket empty is scheduled for
+ * when its token becomes available instead of blocking the caller. Failed sends are retried
+ * later with exponential backoff and jitter. Retries draw from a budget that grows with the
+ * number of first attempts, so a failing destination can't multiply the send load.
+ */
+public class ResponseSendPolicy {
+
+	private static final Logger logger = Logger.getLogger(ResponseSendPolicy.class);
+
+	// Discovery answers are stale for a moving vehicle after this long
+	public static final long MAX_PACING_DELAY_MS = 1000;
+	// Destinations idle for this long drop their token bucket
+	private static final long IDLE_BUCKET_MS = 60000;
+	// Retries that may be banked regardless of the attempt rate
+	private static final double MAX_RETRY_BUDGET = 100;
+
+	private final double ratePerSecond;
+	private final int burst;
+	private final int maxAttempts;
+	private final long baseBackoffMs;
+	private final long maxBackoffMs;
+	private final double retryBudgetRatio;
+
+	private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+	private final Random random = new Random();
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	private double retryBudget = MAX_RETRY_BUDGET;
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong retriesDenied = new AtomicLong();
+	private final AtomicLong paced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param ratePerSecond sends per second allowed to one destination, 0 for no limit
+	 * @param burst sends a destination may receive back to back
+	 * @param maxAttempts attempts per response including the first one
+	 * @param retryBudgetPercent retries allowed per hundred first attempts
+	 */
+	public ResponseSendPolicy(double ratePerSecond, int burst, int maxAttempts,
+			long baseBackoffMs, long maxBackoffMs, int retryBudgetPercent) {
+		this.ratePerSecond = ratePerSecond;
+		this.burst = Math.max(1, burst);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseBackoffMs = baseBackoffMs;
+		this.maxBackoffMs = Math.max(baseBackoffMs, maxBackoffMs);
+		this.retryBudgetRatio = retryBudgetPercent / 100.0;
+
+		this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "objectdiscovery-send-scheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (ratePerSecond > 0) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					removeIdleBuckets();
+				}
+			}, IDLE_BUCKET_MS, IDLE_BUCKET_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Takes a send token for the destination.
+	 * @return 0 to send now, the delay in milliseconds until the token is available, or -1 when
+	 * the delay would exceed {@link #MAX_PACING_DELAY_MS} and the response should be dropped
+	 */
+	public long reserve(String destination) {
+		if (ratePerSecond <= 0) {
+			return 0;
+		}
+		TokenBucket bucket = buckets.get(destination);
+		if (bucket == null) {
+			TokenBucket created = new TokenBucket(ratePerSecond, burst);
+			bucket = buckets.putIfAbsent(destination, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		long delayMs = bucket.reserve(MAX_PACING_DELAY_MS);
+		if (delayMs < 0) {
+			dropped.incrementAndGet();
+		} else if (delayMs > 0) {
+			paced.incrementAndGet();
+		}
+		return delayMs;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Adds to the retry budget for a first attempt.
+	 */
+	public synchronized void recordFirstAttempt() {
+		retryBudget = Math.min(MAX_RETRY_BUDGET, retryBudget + retryBudgetRatio);
+	}
+
+	/**
+	 * @return true if another attempt is allowed and the retry budget covers it
+	 */
+	public synchronized boolean tryAcquireRetry(int attempt) {
+		if (attempt >= maxAttempts || retryBudget < 1) {
+			retriesDenied.incrementAndGet();
+			return false;
+		}
+		retryBudget -= 1;
+		retries.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return the delay before the given retry, full backoff doubled per attempt with up to half taken off
+	 */
+	public long backoffMs(int attempt) {
+		long backoff = Math.min(maxBackoffMs, baseBackoffMs << Math.min(attempt - 1, 30));
+		double jitter;
+		synchronized (random) {
+			jitter = random.nextDouble();
+		}
+		return backoff - (long) (backoff * jitter / 2);
+	}
+
+	public void schedule(Runnable task, long delayMs) {
+		scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the sends and retries already scheduled, waiting up to the timeout.
+	 */
+	public void shutdown(long timeoutMs) {
+		scheduler.shutdown();
+		try {
+			if (! scheduler.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+				logger.warn(String.format("Dropping %d scheduled discovery responses on shutdown.", scheduler.getQueue().size()));
+				scheduler.shutdownNow();
+			}
+		} catch (InterruptedException ex) {
+			scheduler.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void removeIdleBuckets() {
+		long now = System.nanoTime();
+		Iterator<TokenBucket> it = buckets.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isIdle(now, IDLE_BUCKET_MS)) {
+				it.remove();
+			}
+		}
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public long getRetriesDenied() {
+		return retriesDenied.get();
+	}
+
+	public long getPaced() {
+		return paced.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ResponseSendPolicy [retries=" + getRetries() + ", retriesDenied=" + getRetriesDenied()
+				+ ", paced=" + getPaced() + ", dropped=" + getDropped() + "]";
+	}
+
+	/**
+	 * Token bucket that hands out future tokens, letting its balance go negative so that
+	 * delayed sends are spaced at the configured rate.
+	 */
+	static final class TokenBucket {
+		private final double tokensPerNano;
+		private final double capacity;
+		private double tokens;
+		private long lastRefill;
+
+		TokenBucket(double ratePerSecond, int burst) {
+			this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+			this.capacity = burst;
+			this.tokens = burst;
+			this.lastRefill = System.nanoTime();
+		}
+
+		synchronized long reserve(long maxDelayMs) {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+			lastRefill = now;
+
+			if (tokens >= 1) {
+				tokens -= 1;
+				return 0;
+			}
+			long delayMs = (long) Math.ceil((1 - tokens) / tokensPerNano / TimeUnit.MILLISECONDS.toNanos(1));
+			if (delayMs > maxDelayMs) {
+				return -1;
+			}
+			tokens -= 1;
+			return delayMs;
+		}
+
+		synchronized boolean isIdle(long now, long idleMs) {
+			long idleNanos = now - lastRefill;
+			return idleNanos > TimeUnit.MILLISECONDS.toNanos(idleMs) && tokens + idleNanos * tokensPerNano >= capacity;
+		}
+	}
+}
@@ -1,214 +1,657 @@
-package gov.usdot.cv.discovery.datasink;
-
-import gov.usdot.asn1.generated.j2735.J2735;
-import gov.usdot.asn1.generated.j2735.dsrc.Count;
-import gov.usdot.asn1.generated.j2735.dsrc.Latitude;
-import gov.usdot.asn1.generated.j2735.dsrc.Longitude;
-import gov.usdot.asn1.generated.j2735.dsrc.Position3D;
-import gov.usdot.asn1.generated.j2735.semi.ConnectionPoint;
-import gov.usdot.asn1.generated.j2735.semi.GeoRegion;
-import gov.usdot.asn1.generated.j2735.semi.ObjectDiscoveryData;
-import gov.usdot.asn1.generated.j2735.semi.ObjectDiscoveryData.ServiceInfo;
-import gov.usdot.asn1.generated.j2735.semi.ObjectDiscoveryData.ServiceInfo.ServiceRecords;
-import gov.usdot.asn1.generated.j2735.semi.ObjectRegistrationData;
-import gov.usdot.asn1.generated.j2735.semi.PortNumber;
-import gov.usdot.asn1.generated.j2735.semi.Psid;
-import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
-import gov.usdot.asn1.generated.j2735.semi.SemiSequenceID;
-import gov.usdot.asn1.generated.j2735.semi.ServiceProviderID;
-import gov.usdot.asn1.generated.j2735.semi.ServiceRecord;
-import gov.usdot.asn1.generated.j2735.semi.ServiceRecord.ConnectionPoints;
-import gov.usdot.asn1.generated.j2735.semi.ServiceRecord.SvcPSIDs;
-import gov.usdot.asn1.j2735.J2735Util;
-import gov.usdot.cv.common.asn1.GroupIDHelper;
-import gov.usdot.cv.common.asn1.TemporaryIDHelper;
-import gov.usdot.cv.common.inet.InetPacketSender;
-import gov.usdot.cv.common.inet.InetPoint;
-import gov.usdot.cv.security.SecurityHelper;
-import gov.usdot.cv.security.crypto.CryptoProvider;
-
-import java.io.ByteArrayOutputStream;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.List;
-
-import org.apache.commons.codec.binary.Base64;
-import org.apache.log4j.Logger;
-
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
-import com.oss.asn1.AbstractData;
-import com.oss.asn1.Coder;
-import com.oss.asn1.ControlTableNotFoundException;
-import com.oss.asn1.DecodeFailedException;
-import com.oss.asn1.DecodeNotSupportedException;
-import com.oss.asn1.InitializationException;
-
-public class ResponseSender {
-
-	private static final Logger logger = Logger.getLogger(ResponseSender.class);
-	
-	private static final String ENCODED_MSG_KEY = "encodedMsg";
-	private CryptoProvider cryptoProvider = new CryptoProvider();
-	private Coder coder;
-	private InetPacketSender dataBundleSender;
-	
-	public ResponseSender (String bundleForwarderHost, int bundleForwarderPort, boolean forwardAll) 
-			throws ControlTableNotFoundException, InitializationException {
-		
-		J2735.initialize();
-		coder = J2735.getPERUnalignedCoder();
-		SecurityHelper.initSecurity();
-		
-		InetPoint forwarderPoint = null;
-		if (bundleForwarderHost != null && bundleForwarderPort != 0) {
-			try {
-				forwarderPoint = new InetPoint(InetAddress.getByName(bundleForwarderHost).getAddress(),
-						bundleForwarderPort);
-			} catch (UnknownHostException e) {
-				logger.error("Error creating forwarder InetPoint ", e);
-			}
-		}
-		
-		logger.info(String.format("Forwarder host '%s' and port '%s'.", bundleForwarderHost, bundleForwarderPort));
-		logger.info(String.format("Packet sender forwarding all response: %s", forwardAll));
-		
-		logger.info("Constructing result processors ...");
-		dataBundleSender = new InetPacketSender(forwarderPoint);
-		dataBundleSender.setForwardAll(forwardAll);
-	}
-	
-	public void sendResponse(DiscoverModel discoverModel, Collection<DBObject> result) throws Exception {
-		List<ObjectRegistrationData> records = extractRegistrationRecords(result);
-		ObjectDiscoveryData discoveryData = buildDiscoveryData(discoverModel, records);
-		sendDiscoveryData(discoverModel, discoveryData);
-	}
-	
-	private List<ObjectRegistrationData> extractRegistrationRecords(Collection<DBObject> result) throws DecodeFailedException, DecodeNotSupportedException {
-		List<ObjectRegistrationData> records = new ArrayList<ObjectRegistrationData>();
-		Iterator<DBObject> it = result.iterator();
-		while(it.hasNext()) {
-			DBObject dbObj = it.next();
-			if (dbObj instanceof BasicDBObject) {
-				BasicDBObject objectRegistrationDataObj = (BasicDBObject) dbObj;
-				if (objectRegistrationDataObj.containsField(ENCODED_MSG_KEY)) {
-					byte [] message = Base64.decodeBase64(objectRegistrationDataObj.getString(ENCODED_MSG_KEY));
-					AbstractData berEncoded = J2735Util.decode(coder, message);
-					if (berEncoded instanceof ObjectRegistrationData) {
-						records.add((ObjectRegistrationData)berEncoded);
-					} else {
-						logger.debug(String.format("Encoded message is not of type ObjectRegistrationData: %s", berEncoded.toString()));
-						continue;
-					}
-				}
-			}
-		}
-		return records;
-	}
-	
-	protected ObjectDiscoveryData buildDiscoveryData(
-			DiscoverModel discoverModel, 
-			List<ObjectRegistrationData> registrationRecords) {
-		
-		ObjectDiscoveryData discoveryData = new ObjectDiscoveryData();
-		discoveryData.setDialogID(SemiDialogID.objDisc);
-		discoveryData.setSeqID(SemiSequenceID.data);
-		discoveryData.setRequestID(TemporaryIDHelper.toTemporaryID(discoverModel.requestId));
-		discoveryData.setGroupID(GroupIDHelper.toGroupID(discoverModel.groupId));
-		
-		if (registrationRecords == null || registrationRecords.size() == 0) {
-			logger.debug("0 ObjectRegistrationData records where found from the database.");
-			ServiceInfo serviceInfo = new ServiceInfo();
-			// The ASN1 spec does not allow for 0 service records, so setting count to 0 and using "blank" record
-			serviceInfo.setCountRecords(new Count(0));
-			ServiceRecords serviceRecords = new ServiceRecords();
-			serviceRecords.addElement(buildBlankServiceRecord());
-			serviceInfo.setServiceRecords(serviceRecords);
-			discoveryData.setServiceInfo(serviceInfo);
-		} else {
-			logger.debug(registrationRecords.size() + " ObjectRegistrationData records where found from the database.");
-			
-			ServiceInfo serviceInfo = new ServiceInfo();
-			// The ASN1 spec maxes out at 10 records, if we have more than 10 we just send the first 10
-			int count = registrationRecords.size() > 10 ? 10 : registrationRecords.size();
-			serviceInfo.setCountRecords(new Count(count));
-			ServiceRecords serviceRecords = new ServiceRecords();
-			for (int i=0; i<count; i++) {
-				serviceRecords.addElement(registrationRecords.get(i).getServiceRecord());
-			}
-			serviceInfo.setServiceRecords(serviceRecords);
-			discoveryData.setServiceInfo(serviceInfo);
-		}
-		return discoveryData;
-	}
-	
-	private ServiceRecord buildBlankServiceRecord() {
-		ServiceRecord serviceRecord = new ServiceRecord();
-		ConnectionPoint cp = new ConnectionPoint(new PortNumber(0));
-		ConnectionPoints cps = new ConnectionPoints();
-		cps.add(cp);
-		serviceRecord.setConnectionPoints(cps);
-		
-		serviceRecord.setSvcProvider(new ServiceProviderID(ByteBuffer.allocate(4).putInt(0).array()));
-		Psid psidObj = new Psid(ByteBuffer.allocate(4).putInt(0).array());
-		SvcPSIDs psids = new SvcPSIDs();
-		psids.add(psidObj);
-		serviceRecord.setSvcPSIDs(psids);
-		
-		Position3D pos = new Position3D(new Latitude(-900000000), new Longitude(-1800000000));
-		GeoRegion geoRegion = new GeoRegion(pos, pos);
-		serviceRecord.setServiceRegion(geoRegion);
-		
-		return serviceRecord;
-	}
-	
-	private void sendDiscoveryData(
-			DiscoverModel discoverModel,
-			ObjectDiscoveryData discoveryData) throws Exception {
-		
-		ByteArrayOutputStream sink = new ByteArrayOutputStream();
-		coder.encode(discoveryData, sink);
-		byte [] payload = sink.toByteArray();
-		
-		byte[] certificate = discoverModel.certificate != null ? Base64.decodeBase64(discoverModel.certificate): null;
-		if (certificate != null) {
-			try {
-				byte[] certID8 = SecurityHelper.registerCert(certificate, cryptoProvider);
-				payload = SecurityHelper.encrypt(payload, certID8, cryptoProvider, SecurityHelper.DEFAULT_PSID);
-			} catch (Exception ex) {
-				logger.error("Couldn't encrypt outgoing message. Reason: " + ex.getMessage(), ex);
-			}
-		}
-		
-		int retries = 3;
-		Exception lastEx = null;
-		boolean sent = false;
-		while (retries > 0) {
-			try {
-				logger.debug(String.format("Sending Object Discovery data for requestID %s", 
-						TemporaryIDHelper.fromTemporaryID(discoveryData.getRequestID())));
-				InetPoint destPoint = new InetPoint(discoverModel.destHost, 
-						discoverModel.destPort, dataBundleSender.isForwardAll());
-				dataBundleSender.forward(destPoint, payload, Boolean.valueOf(discoverModel.fromForwarder));
-				sent = true;
-				break;
-			} catch (Exception ex) {
-				logger.error(String.format("Failed to send Object Discovery data for requestID %s", 
-						TemporaryIDHelper.fromTemporaryID(discoveryData.getRequestID())));
-				lastEx = ex;
-			} finally {
-				retries--;
-			}
-			
-			try { Thread.sleep(10); } catch (InterruptedException ignore) {}
-		}
-		
-		if (! sent && lastEx != null) throw lastEx;
-		
-		try { Thread.sleep(10); } catch (InterruptedException ignore) {}
-	}
-}
\ No newline at end of file
+package gov.usdot.cv.discovery.datasink;
+
+import gov.usdot.asn1.generated.j2735.J2735;
+import gov.usdot.asn1.generated.j2735.dsrc.Count;
+import gov.usdot.asn1.generated.j2735.dsrc.Latitude;
+import gov.usdot.asn1.generated.j2735.dsrc.Longitude;
+import gov.usdot.asn1.generated.j2735.dsrc.Position3D;
+import gov.usdot.asn1.generated.j2735.semi.ConnectionPoint;
+import gov.usdot.asn1.generated.j2735.semi.GeoRegion;
+import gov.usdot.asn1.generated.j2735.semi.ObjectDiscoveryData;
+import gov.usdot.asn1.generated.j2735.semi.ObjectDiscoveryData.ServiceInfo;
+import gov.usdot.asn1.generated.j2735.semi.ObjectDiscoveryData.ServiceInfo.ServiceRecords;
+import gov.usdot.asn1.generated.j2735.semi.ObjectRegistrationData;
+import gov.usdot.asn1.generated.j2735.semi.PortNumber;
+import gov.usdot.asn1.generated.j2735.semi.Psid;
+import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
+import gov.usdot.asn1.generated.j2735.semi.SemiSequenceID;
+import gov.usdot.asn1.generated.j2735.semi.ServiceProviderID;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRecord;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRecord.ConnectionPoints;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRecord.SvcPSIDs;
+import gov.usdot.asn1.j2735.J2735Util;
+import gov.usdot.cv.common.asn1.GroupIDHelper;
+import gov.usdot.cv.common.asn1.TemporaryIDHelper;
+import gov.usdot.cv.common.inet.InetPacketSender;
+import gov.usdot.cv.common.inet.InetPoint;
+import gov.usdot.cv.security.SecurityHelper;
+import gov.usdot.cv.security.crypto.CryptoProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+
+import com.oss.asn1.AbstractData;
+import com.oss.asn1.Coder;
+import com.oss.asn1.ControlTableNotFoundException;
+import com.oss.asn1.DecodeFailedException;
+import com.oss.asn1.DecodeNotSupportedException;
+import com.oss.asn1.InitializationException;
+
+/**
+ * Builds, encodes and sends ObjectDiscoveryData responses. Safe for concurrent callers: ASN.1
+ * coders are confined to their thread, crypto providers are borrowed from a pool and the
+ * caches synchronize internally.
+ */
+public class ResponseSender {
+
+	private static final Logger logger = Logger.getLogger(ResponseSender.class);
+	private static final SampledLogger requestLogger = SampledLogger.getLogger(ResponseSender.class);
+	
+	// The ASN1 spec maxes out at 10 service records per ObjectDiscoveryData
+	public static final int MAX_SERVICE_RECORDS = 10;
+	
+	// Cached response templates are built with zero ids and patched per request
+	private static final DiscoverModel TEMPLATE_MODEL = new DiscoverModel();
+	
+	private CryptoProviderPool cryptoProviders = new CryptoProviderPool(1);
+	private CertificateRegistrationCache certificateCache;
+	private final Object certificateRegistrationLock = new Object();
+	// OSS coders keep per call state, every thread encodes and decodes with its own
+	private final ThreadLocal<Coder> coders = new ThreadLocal<Coder>() {
+		@Override
+		protected Coder initialValue() {
+			return J2735.getPERUnalignedCoder();
+		}
+	};
+	private ExecutorService decodeExecutor;
+	private int parallelDecodeThreshold;
+	private InetPacketSender dataBundleSender;
+	private InetPoint forwarderPoint;
+	private DatagramResponseTransport transport;
+	private DecodedRecordCache decodedRecordCache;
+	private ResponseTemplateCache responseTemplateCache;
+	private ResponseSendPolicy sendPolicy = new ResponseSendPolicy(0, 1, 3, 10, 1000, 20);
+	private DiscoveryMetrics metrics = new DiscoveryMetrics();
+	
+	public ResponseSender (String bundleForwarderHost, int bundleForwarderPort, boolean forwardAll) 
+			throws ControlTableNotFoundException, InitializationException {
+		
+		J2735.initialize();
+		SecurityHelper.initSecurity();
+		
+		if (bundleForwarderHost != null && bundleForwarderPort != 0) {
+			try {
+				forwarderPoint = new InetPoint(InetAddress.getByName(bundleForwarderHost).getAddress(),
+						bundleForwarderPort);
+			} catch (UnknownHostException e) {
+				logger.error("Error creating forwarder InetPoint ", e);
+			}
+		}
+		
+		logger.info(String.format("Forwarder host '%s' and port '%s'.", bundleForwarderHost, bundleForwarderPort));
+		logger.info(String.format("Packet sender forwarding all response: %s", forwardAll));
+		
+		logger.info("Constructing result processors ...");
+		dataBundleSender = new InetPacketSender(forwarderPoint);
+		dataBundleSender.setForwardAll(forwardAll);
+	}
+	
+	/**
+	 * Sends responses through a shared non-blocking datagram channel with pooled buffers and
+	 * cached destination addresses instead of the per packet InetPacketSender.
+	 */
+	public void enableDatagramTransport(int bufferSize, int maxPooledBuffers, long addressTtlMs) throws IOException {
+		logger.info(String.format("Enabling datagram response transport with %d pooled buffers.", maxPooledBuffers));
+		this.transport = new DatagramResponseTransport(forwarderPoint, dataBundleSender.isForwardAll(), 
+				bufferSize, maxPooledBuffers, addressTtlMs);
+	}
+	
+	public DatagramResponseTransport getDatagramTransport() {
+		return this.transport;
+	}
+	
+	/**
+	 * Reuses decoded registrations across requests instead of decoding every result document.
+	 */
+	public void enableDecodedRecordCache(int maxEntries) {
+		logger.info(String.format("Enabling decoded registration cache with %d entries.", maxEntries));
+		this.decodedRecordCache = new DecodedRecordCache(maxEntries);
+	}
+	
+	/**
+	 * Replaces the default policy, which doesn't pace and retries twice with backoff.
+	 * Must be called before any response is sent.
+	 */
+	public void setSendPolicy(ResponseSendPolicy sendPolicy) {
+		this.sendPolicy.shutdown(0);
+		this.sendPolicy = sendPolicy;
+	}
+	
+	public void setMetrics(DiscoveryMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public ResponseSendPolicy getSendPolicy() {
+		return this.sendPolicy;
+	}
+	
+	/**
+	 * Remembers registered requester certificates so that repeat requesters skip the Base64
+	 * decode and registration of their certificate.
+	 */
+	public void enableCertificateCache(int maxEntries, long ttlMs) {
+		logger.info(String.format("Enabling certificate registration cache with %d entries and %d ms TTL.", maxEntries, ttlMs));
+		this.certificateCache = new CertificateRegistrationCache(maxEntries, ttlMs);
+	}
+	
+	public CertificateRegistrationCache getCertificateCache() {
+		return this.certificateCache;
+	}
+	
+	/**
+	 * Sets the number of crypto providers, which bounds how many responses are encrypted at once.
+	 */
+	public void setCryptoProviderPoolSize(int size) {
+		logger.info(String.format("Using %d crypto providers.", size));
+		this.cryptoProviders = new CryptoProviderPool(size);
+	}
+	
+	/**
+	 * Decodes the registrations of a response on a shared pool of threads once at least
+	 * threshold of them have to be decoded; smaller sets are decoded on the caller's thread.
+	 */
+	public void enableParallelDecode(int threads, int threshold) {
+		logger.info(String.format("Enabling parallel registration decode with %d threads for %d or more records.", threads, threshold));
+		this.parallelDecodeThreshold = threshold;
+		this.decodeExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "objectdiscovery-decode-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	public DecodedRecordCache getDecodedRecordCache() {
+		return this.decodedRecordCache;
+	}
+	
+	/**
+	 * Reuses encoded responses for identical sets of registrations, only patching in the request's
+	 * requestID and groupID. The position of both fields in the PER encoding is found by encoding
+	 * probe responses; if they can't be located the cache stays disabled.
+	 */
+	public synchronized void enableResponseTemplateCache(int maxEntries) {
+		try {
+			byte[] base = encodeProbe(0, 0);
+			int groupIdBitOffset = ResponseTemplateCache.locateField(base, encodeProbe(0, -1));
+			int requestIdBitOffset = ResponseTemplateCache.locateField(base, encodeProbe(-1, 0));
+			if (groupIdBitOffset < 0 || requestIdBitOffset < 0) {
+				logger.warn("Unable to locate requestID and groupID in encoded ObjectDiscoveryData, response template cache disabled.");
+				return;
+			}
+			
+			ResponseTemplateCache cache = new ResponseTemplateCache(maxEntries, groupIdBitOffset, requestIdBitOffset);
+			int requestId = 0x12345678;
+			int groupId = 0x0A0B0C0D;
+			if (! Arrays.equals(encodeProbe(requestId, groupId), cache.render(base, requestId, groupId))) {
+				logger.warn("Patched ObjectDiscoveryData doesn't match the encoder output, response template cache disabled.");
+				return;
+			}
+			
+			logger.info(String.format("Enabling response template cache with %d entries, groupID at bit %d and requestID at bit %d.", 
+					maxEntries, groupIdBitOffset, requestIdBitOffset));
+			this.responseTemplateCache = cache;
+		} catch (Exception ex) {
+			logger.warn("Failed to probe ObjectDiscoveryData encoding, response template cache disabled.", ex);
+		}
+	}
+	
+	public ResponseTemplateCache getResponseTemplateCache() {
+		return this.responseTemplateCache;
+	}
+	
+	private byte [] encodeProbe(int requestId, int groupId) throws Exception {
+		DiscoverModel probe = new DiscoverModel();
+		probe.requestId = requestId;
+		probe.groupId = groupId;
+		return encodeDiscoveryData(buildDiscoveryData(probe, null));
+	}
+	
+	public void sendResponse(DiscoverModel discoverModel, RegistrationCursor result) throws Exception {
+		sendResponse(discoverModel, result, null);
+	}
+	
+	/**
+	 * @see #sendPayload(DiscoverModel, byte[], DeliveryListener)
+	 */
+	public void sendResponse(DiscoverModel discoverModel, RegistrationCursor result, DeliveryListener listener) throws Exception {
+		byte [] payload = encodeResponse(discoverModel, result);
+		sendPayload(discoverModel, payload, listener);
+	}
+	
+	/**
+	 * Builds the encoded (and when a certificate is present encrypted) response. Closes the cursor.
+	 */
+	public byte [] encodeResponse(DiscoverModel discoverModel, RegistrationCursor result) throws Exception {
+		return encryptPayload(discoverModel, encodeDiscoveryResponse(discoverModel, result));
+	}
+	
+	private byte [] encodeDiscoveryResponse(DiscoverModel discoverModel, RegistrationCursor result) throws Exception {
+		List<ObjectRegistrationData> records;
+		List<RegistrationRecord> usedRecords = new ArrayList<RegistrationRecord>(MAX_SERVICE_RECORDS);
+		long start = System.nanoTime();
+		try {
+			records = extractRegistrationRecords(result, usedRecords);
+		} finally {
+			result.close();
+			metrics.recordSince(DiscoveryMetrics.Stage.DECODE, start);
+		}
+		metrics.add(DiscoveryMetrics.Counter.RECORDS_USED, usedRecords.size());
+		
+		start = System.nanoTime();
+		List<Object> templateKey = responseTemplateCache != null ? ResponseTemplateCache.keyFor(usedRecords) : null;
+		byte [] payload;
+		if (templateKey != null) {
+			byte [] template = responseTemplateCache.get(templateKey);
+			if (template == null) {
+				template = encodeDiscoveryData(buildDiscoveryData(TEMPLATE_MODEL, records));
+				responseTemplateCache.put(templateKey, template);
+			}
+			payload = responseTemplateCache.render(template, discoverModel.requestId, discoverModel.groupId);
+		} else {
+			payload = encodeDiscoveryData(buildDiscoveryData(discoverModel, records));
+		}
+		metrics.recordSince(DiscoveryMetrics.Stage.ENCODE, start);
+		return payload;
+	}
+	
+	List<ObjectRegistrationData> extractRegistrationRecords(Iterator<RegistrationRecord> it, 
+			List<RegistrationRecord> usedRecords) throws DecodeFailedException, DecodeNotSupportedException {
+		List<ObjectRegistrationData> records = new ArrayList<ObjectRegistrationData>();
+		ConcurrentMap<RegistrationRecord, ObjectRegistrationData> sharedDecodes = 
+				it instanceof RegistrationCursor ? ((RegistrationCursor) it).getSharedDecodes() : null;
+		if (decodeExecutor != null) {
+			extractRegistrationRecordsInParallel(it, records, usedRecords, sharedDecodes);
+			return records;
+		}
+		// Stop pulling documents once the response is full
+		while(records.size() < MAX_SERVICE_RECORDS && it.hasNext()) {
+			RegistrationRecord registrationRecord = it.next();
+			metrics.increment(DiscoveryMetrics.Counter.RECORDS_RETURNED);
+			if (registrationRecord.getEncodedMsg() != null) {
+				ObjectRegistrationData record = decodeRegistrationRecord(registrationRecord, sharedDecodes);
+				if (record != DecodedRecordCache.NOT_A_REGISTRATION) {
+					records.add(record);
+					usedRecords.add(registrationRecord);
+				}
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Pulls as many documents as the response still has room for and decodes them concurrently,
+	 * repeating while some of them turn out not to be registrations. Keeps the cursor order.
+	 */
+	private void extractRegistrationRecordsInParallel(Iterator<RegistrationRecord> it, List<ObjectRegistrationData> records, 
+			List<RegistrationRecord> usedRecords, ConcurrentMap<RegistrationRecord, ObjectRegistrationData> sharedDecodes) 
+			throws DecodeFailedException, DecodeNotSupportedException {
+		List<RegistrationRecord> batch = new ArrayList<RegistrationRecord>(MAX_SERVICE_RECORDS);
+		while (records.size() < MAX_SERVICE_RECORDS && it.hasNext()) {
+			batch.clear();
+			while (batch.size() < MAX_SERVICE_RECORDS - records.size() && it.hasNext()) {
+				RegistrationRecord registrationRecord = it.next();
+				metrics.increment(DiscoveryMetrics.Counter.RECORDS_RETURNED);
+				if (registrationRecord.getEncodedMsg() != null) {
+					batch.add(registrationRecord);
+				}
+			}
+			List<ObjectRegistrationData> decoded = decodeRegistrationRecords(batch, sharedDecodes);
+			for (int i = 0; i < batch.size(); i++) {
+				if (decoded.get(i) != DecodedRecordCache.NOT_A_REGISTRATION) {
+					records.add(decoded.get(i));
+					usedRecords.add(batch.get(i));
+				}
+			}
+		}
+	}
+	
+	private List<ObjectRegistrationData> decodeRegistrationRecords(List<RegistrationRecord> batch, 
+			final ConcurrentMap<RegistrationRecord, ObjectRegistrationData> sharedDecodes) 
+			throws DecodeFailedException, DecodeNotSupportedException {
+		List<ObjectRegistrationData> decoded = new ArrayList<ObjectRegistrationData>(batch.size());
+		if (batch.size() < parallelDecodeThreshold) {
+			for (RegistrationRecord registrationRecord : batch) {
+				decoded.add(decodeRegistrationRecord(registrationRecord, sharedDecodes));
+			}
+			return decoded;
+		}
+		
+		List<Future<ObjectRegistrationData>> futures = new ArrayList<Future<ObjectRegistrationData>>(batch.size());
+		for (final RegistrationRecord registrationRecord : batch) {
+			futures.add(decodeExecutor.submit(new Callable<ObjectRegistrationData>() {
+				public ObjectRegistrationData call() throws Exception {
+					return decodeRegistrationRecord(registrationRecord, sharedDecodes);
+				}
+			}));
+		}
+		try {
+			for (Future<ObjectRegistrationData> future : futures) {
+				decoded.add(future.get());
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while decoding registrations", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof DecodeFailedException) {
+				throw (DecodeFailedException) cause;
+			} else if (cause instanceof DecodeNotSupportedException) {
+				throw (DecodeNotSupportedException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Failed to decode registration", cause);
+		} finally {
+			for (Future<ObjectRegistrationData> future : futures) {
+				future.cancel(false);
+			}
+		}
+		return decoded;
+	}
+	
+	private ObjectRegistrationData decodeRegistrationRecord(RegistrationRecord registrationRecord, 
+			ConcurrentMap<RegistrationRecord, ObjectRegistrationData> sharedDecodes) throws DecodeFailedException, DecodeNotSupportedException {
+		if (sharedDecodes != null) {
+			ObjectRegistrationData shared = sharedDecodes.get(registrationRecord);
+			if (shared != null) {
+				return shared;
+			}
+		}
+		ObjectRegistrationData record = decodeRegistrationRecord(registrationRecord);
+		if (sharedDecodes != null) {
+			sharedDecodes.putIfAbsent(registrationRecord, record);
+		}
+		return record;
+	}
+	
+	private ObjectRegistrationData decodeRegistrationRecord(RegistrationRecord registrationRecord) throws DecodeFailedException, DecodeNotSupportedException {
+		Object id = registrationRecord.getId();
+		Object timestamp = registrationRecord.getTimestamp();
+		boolean cacheable = decodedRecordCache != null && id != null;
+		if (cacheable) {
+			ObjectRegistrationData cached = decodedRecordCache.get(id, timestamp);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		
+		ObjectRegistrationData record;
+		byte [] message = Base64.decodeBase64(registrationRecord.getEncodedMsg());
+		AbstractData berEncoded = J2735Util.decode(coders.get(), message);
+		if (berEncoded instanceof ObjectRegistrationData) {
+			record = (ObjectRegistrationData)berEncoded;
+		} else {
+			requestLogger.debug("Encoded message is not of type ObjectRegistrationData: %s", berEncoded);
+			record = DecodedRecordCache.NOT_A_REGISTRATION;
+		}
+		
+		if (cacheable) {
+			decodedRecordCache.put(id, timestamp, record);
+		}
+		return record;
+	}
+	
+	protected ObjectDiscoveryData buildDiscoveryData(
+			DiscoverModel discoverModel, 
+			List<ObjectRegistrationData> registrationRecords) {
+		
+		ObjectDiscoveryData discoveryData = new ObjectDiscoveryData();
+		discoveryData.setDialogID(SemiDialogID.objDisc);
+		discoveryData.setSeqID(SemiSequenceID.data);
+		discoveryData.setRequestID(TemporaryIDHelper.toTemporaryID(discoverModel.requestId));
+		discoveryData.setGroupID(GroupIDHelper.toGroupID(discoverModel.groupId));
+		
+		if (registrationRecords == null || registrationRecords.size() == 0) {
+			requestLogger.debug("0 ObjectRegistrationData records where found from the database.");
+			ServiceInfo serviceInfo = new ServiceInfo();
+			// The ASN1 spec does not allow for 0 service records, so setting count to 0 and using "blank" record
+			serviceInfo.setCountRecords(new Count(0));
+			ServiceRecords serviceRecords = new ServiceRecords();
+			serviceRecords.addElement(buildBlankServiceRecord());
+			serviceInfo.setServiceRecords(serviceRecords);
+			discoveryData.setServiceInfo(serviceInfo);
+		} else {
+			requestLogger.debug("%d ObjectRegistrationData records where found from the database.", registrationRecords.size());
+			
+			ServiceInfo serviceInfo = new ServiceInfo();
+			// The ASN1 spec maxes out at 10 records, if we have more than 10 we just send the first 10
+			int count = registrationRecords.size() > MAX_SERVICE_RECORDS ? MAX_SERVICE_RECORDS : registrationRecords.size();
+			serviceInfo.setCountRecords(new Count(count));
+			ServiceRecords serviceRecords = new ServiceRecords();
+			for (int i=0; i<count; i++) {
+				serviceRecords.addElement(registrationRecords.get(i).getServiceRecord());
+			}
+			serviceInfo.setServiceRecords(serviceRecords);
+			discoveryData.setServiceInfo(serviceInfo);
+		}
+		return discoveryData;
+	}
+	
+	private ServiceRecord buildBlankServiceRecord() {
+		ServiceRecord serviceRecord = new ServiceRecord();
+		ConnectionPoint cp = new ConnectionPoint(new PortNumber(0));
+		ConnectionPoints cps = new ConnectionPoints();
+		cps.add(cp);
+		serviceRecord.setConnectionPoints(cps);
+		
+		serviceRecord.setSvcProvider(new ServiceProviderID(ByteBuffer.allocate(4).putInt(0).array()));
+		Psid psidObj = new Psid(ByteBuffer.allocate(4).putInt(0).array());
+		SvcPSIDs psids = new SvcPSIDs();
+		psids.add(psidObj);
+		serviceRecord.setSvcPSIDs(psids);
+		
+		Position3D pos = new Position3D(new Latitude(-900000000), new Longitude(-1800000000));
+		GeoRegion geoRegion = new GeoRegion(pos, pos);
+		serviceRecord.setServiceRegion(geoRegion);
+		
+		return serviceRecord;
+	}
+	
+	byte [] encodeDiscoveryData(ObjectDiscoveryData discoveryData) throws Exception {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		coders.get().encode(discoveryData, sink);
+		return sink.toByteArray();
+	}
+	
+	byte [] encryptPayload(DiscoverModel discoverModel, byte [] payload) throws InterruptedException {
+		if (discoverModel.certificate == null) {
+			return payload;
+		}
+		long start = System.nanoTime();
+		CryptoProvider cryptoProvider = cryptoProviders.borrow();
+		try {
+			byte[] certID8 = certificateCache != null ? certificateCache.get(discoverModel.certificate) : null;
+			if (certID8 != null) {
+				try {
+					return SecurityHelper.encrypt(payload, certID8, cryptoProvider, SecurityHelper.DEFAULT_PSID);
+				} catch (Exception ex) {
+					// The certificate store may have dropped the certificate since it was cached
+					requestLogger.warn("Encrypting with cached certificate failed, registering it again. Reason: %s", ex.getMessage());
+					certificateCache.remove(discoverModel.certificate);
+				}
+			}
+			certID8 = registerCertificate(discoverModel.certificate, cryptoProvider);
+			if (certID8 != null) {
+				payload = SecurityHelper.encrypt(payload, certID8, cryptoProvider, SecurityHelper.DEFAULT_PSID);
+			}
+		} catch (Exception ex) {
+			requestLogger.error(ex, "Couldn't encrypt outgoing message. Reason: %s", ex.getMessage());
+		} finally {
+			cryptoProviders.release(cryptoProvider);
+			metrics.recordSince(DiscoveryMetrics.Stage.ENCRYPT, start);
+		}
+		return payload;
+	}
+	
+	private byte [] registerCertificate(String encodedCertificate, CryptoProvider cryptoProvider) throws Exception {
+		byte[] certificate = Base64.decodeBase64(encodedCertificate);
+		if (certificate == null) {
+			return null;
+		}
+		byte[] certID8;
+		// Registration updates the security library's certificate store, keep it to one thread
+		synchronized (certificateRegistrationLock) {
+			certID8 = SecurityHelper.registerCert(certificate, cryptoProvider);
+		}
+		if (certificateCache != null) {
+			certificateCache.put(encodedCertificate, certID8);
+		}
+		return certID8;
+	}
+	
+	/**
+	 * Told once how the delivery of a response ended, on the thread that made the last attempt.
+	 */
+	public interface DeliveryListener {
+		public void delivered(DiscoverModel discoverModel);
+		
+		/**
+		 * The response was dropped or every attempt allowed to it failed.
+		 */
+		public void failed(DiscoverModel discoverModel);
+	}
+	
+	public void sendPayload(DiscoverModel discoverModel, byte [] payload) throws Exception {
+		sendPayload(discoverModel, payload, null);
+	}
+	
+	/**
+	 * Sends the payload now or, when the destination is being paced, schedules it for when its
+	 * send token becomes available. Later attempts run on the policy's scheduler. Without a
+	 * listener a failed first attempt made on the caller's thread is thrown once the retry policy
+	 * gives up on it; with one every outcome is reported to the listener instead.
+	 */
+	public void sendPayload(final DiscoverModel discoverModel, final byte [] payload, DeliveryListener listener) throws Exception {
+		long delayMs = sendPolicy.reserve(discoverModel.destHost + ':' + discoverModel.destPort);
+		if (delayMs < 0) {
+			requestLogger.warn("Dropping Object Discovery data for requestID %s, destination %s:%d is over its send rate", 
+					discoverModel.requestId, discoverModel.destHost, discoverModel.destPort);
+			failed(listener, discoverModel);
+			return;
+		}
+		sendPolicy.recordFirstAttempt();
+		if (delayMs > 0) {
+			scheduleAttempt(discoverModel, payload, 1, delayMs, listener);
+			return;
+		}
+		Exception ex = attemptSend(discoverModel, payload);
+		if (ex == null) {
+			delivered(listener, discoverModel);
+		} else if (! retryLater(discoverModel, payload, 1, listener)) {
+			metrics.increment(DiscoveryMetrics.Counter.SEND_FAILURES);
+			if (listener == null) {
+				throw ex;
+			}
+			requestLogger.error(ex, "Giving up on Object Discovery data for requestID %s after 1 attempt", discoverModel.requestId);
+			listener.failed(discoverModel);
+		}
+	}
+	
+	private static void delivered(DeliveryListener listener, DiscoverModel discoverModel) {
+		if (listener != null) {
+			listener.delivered(discoverModel);
+		}
+	}
+	
+	private static void failed(DeliveryListener listener, DiscoverModel discoverModel) {
+		if (listener != null) {
+			listener.failed(discoverModel);
+		}
+	}
+	
+	private Exception attemptSend(DiscoverModel discoverModel, byte [] payload) {
+		long start = System.nanoTime();
+		try {
+			requestLogger.debug("Sending Object Discovery data for requestID %s", discoverModel.requestId);
+			if (transport != null) {
+				transport.send(discoverModel.destHost, discoverModel.destPort, Boolean.valueOf(discoverModel.fromForwarder), payload);
+				return null;
+			}
+			InetPoint destPoint = new InetPoint(discoverModel.destHost, 
+					discoverModel.destPort, dataBundleSender.isForwardAll());
+			dataBundleSender.forward(destPoint, payload, Boolean.valueOf(discoverModel.fromForwarder));
+			return null;
+		} catch (Exception ex) {
+			requestLogger.warn("Failed to send Object Discovery data for requestID %s: %s", discoverModel.requestId, ex);
+			return ex;
+		} finally {
+			metrics.recordSince(DiscoveryMetrics.Stage.SEND, start);
+		}
+	}
+	
+	private boolean retryLater(DiscoverModel discoverModel, byte [] payload, int attempt, DeliveryListener listener) {
+		if (! sendPolicy.tryAcquireRetry(attempt)) {
+			return false;
+		}
+		scheduleAttempt(discoverModel, payload, attempt + 1, sendPolicy.backoffMs(attempt), listener);
+		return true;
+	}
+	
+	private void scheduleAttempt(final DiscoverModel discoverModel, final byte [] payload, final int attempt, long delayMs, 
+			final DeliveryListener listener) {
+		try {
+			sendPolicy.schedule(new Runnable() {
+				public void run() {
+					Exception ex = attemptSend(discoverModel, payload);
+					if (ex == null) {
+						delivered(listener, discoverModel);
+					} else if (! retryLater(discoverModel, payload, attempt, listener)) {
+						metrics.increment(DiscoveryMetrics.Counter.SEND_FAILURES);
+						requestLogger.error(ex, "Giving up on Object Discovery data for requestID %s after %d attempts", 
+								discoverModel.requestId, attempt);
+						failed(listener, discoverModel);
+					}
+				}
+			}, delayMs);
+		} catch (RejectedExecutionException ex) {
+			requestLogger.warn("Dropping Object Discovery data for requestID %s, sender is shutting down", discoverModel.requestId);
+			failed(listener, discoverModel);
+		}
+	}
+	
+	/**
+	 * Waits for scheduled sends and retries to finish, then for queued datagrams to go out.
+	 */
+	public void close(long timeoutMs) {
+		if (decodeExecutor != null) {
+			decodeExecutor.shutdownNow();
+		}
+		sendPolicy.shutdown(timeoutMs);
+		logger.info(String.format("Response send policy stats: %s", sendPolicy));
+		if (transport != null) {
+			transport.close(timeoutMs);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded LRU cache of PER encoded ObjectDiscoveryData payloads keyed by the registrations
+ * they carry. Cached payloads are encoded with a zero requestID and groupID; both are fixed size
+ * fields at a fixed bit position ahead of the service records, so a response for a new request
+ * is a copy of the template with those 32 bit fields overwritten.
+ *
+ * Registrations are identified by id and timestamp, so an updated registration produces a new
+ * key and templates built from the old version are never used again.
+ */
+public class ResponseTemplateCache {
+
+	public static final int ID_FIELD_BITS = 32;
+
+	private final int maxEntries;
+	private final int groupIdBitOffset;
+	private final int requestIdBitOffset;
+	private final Map<List<Object>, byte[]> templates;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ResponseTemplateCache(final int maxEntries, int groupIdBitOffset, int requestIdBitOffset) {
+		this.maxEntries = maxEntries;
+		this.groupIdBitOffset = groupIdBitOffset;
+		this.requestIdBitOffset = requestIdBitOffset;
+		this.templates = new LinkedHashMap<List<Object>, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Object>, byte[]> eldest) {
+				if (size() > ResponseTemplateCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cache key for a response carrying the given registrations, in order, or null
+	 * when a registration has no id and the response can't be cached
+	 */
+	public static List<Object> keyFor(List<RegistrationRecord> records) {
+		if (records.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<Object> key = new ArrayList<Object>(records.size() * 2);
+		for (RegistrationRecord record : records) {
+			if (record.getId() == null) {
+				return null;
+			}
+			key.add(record.getId());
+			key.add(record.getTimestamp());
+		}
+		return key;
+	}
+
+	public synchronized byte[] get(List<Object> key) {
+		byte[] template = templates.get(key);
+		if (template == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return template;
+	}
+
+	public synchronized void put(List<Object> key, byte[] template) {
+		templates.put(key, template);
+	}
+
+	public synchronized void clear() {
+		templates.clear();
+	}
+
+	/**
+	 * @return a new payload with the request's ids written into a copy of the template
+	 */
+	public byte[] render(byte[] template, int requestId, int groupId) {
+		byte[] payload = template.clone();
+		writeBits(payload, groupIdBitOffset, groupId);
+		writeBits(payload, requestIdBitOffset, requestId);
+		return payload;
+	}
+
+	/**
+	 * Finds the single run of exactly {@link #ID_FIELD_BITS} bits where two encodings differ.
+	 * @return the bit offset of the run or -1 when the encodings don't differ in exactly one such run
+	 */
+	public static int locateField(byte[] a, byte[] b) {
+		if (a.length != b.length) {
+			return -1;
+		}
+		int first = -1;
+		int last = -1;
+		for (int bit = 0; bit < a.length * 8; bit++) {
+			if (readBit(a, bit) != readBit(b, bit)) {
+				if (first == -1) {
+					first = bit;
+				} else if (last != bit - 1) {
+					return -1;
+				}
+				last = bit;
+			}
+		}
+		return first != -1 && last - first + 1 == ID_FIELD_BITS ? first : -1;
+	}
+
+	private static int readBit(byte[] buffer, int bit) {
+		return (buffer[bit >>> 3] >>> (7 - (bit & 7))) & 1;
+	}
+
+	private static void writeBits(byte[] buffer, int bitOffset, int value) {
+		for (int i = 0; i < ID_FIELD_BITS; i++) {
+			int bit = bitOffset + i;
+			int mask = 1 << (7 - (bit & 7));
+			if (((value >>> (ID_FIELD_BITS - 1 - i)) & 1) != 0) {
+				buffer[bit >>> 3] |= mask;
+			} else {
+				buffer[bit >>> 3] &= ~mask;
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return templates.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ResponseTemplateCache [size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+				+ ", evictions=" + getEvictions() + "]";
+	}
+}
@@ -0,0 +1,138 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Logging for the per request path. Messages are String.format patterns that are only formatted
+ * when the level is enabled, arguments are summarized (collections and arrays by their size,
+ * long text truncated) and INFO and WARN events are sampled to a configurable number per second
+ * and logger, with a count of the suppressed events added to the next message logged.
+ */
+public class SampledLogger {
+
+	// Longest argument text logged before it is truncated
+	public static final int MAX_ARGUMENT_LENGTH = 256;
+
+	private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	// Shared by every instance, 0 logs every event
+	private static volatile int eventsPerSecond = 0;
+
+	private final Logger logger;
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	private final AtomicInteger eventsInWindow = new AtomicInteger();
+	private final AtomicLong suppressed = new AtomicLong();
+
+	public static SampledLogger getLogger(Class<?> cls) {
+		return new SampledLogger(Logger.getLogger(cls));
+	}
+
+	SampledLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Limits the INFO and WARN events each logger writes per second, 0 to log every event.
+	 */
+	public static void setEventsPerSecond(int limit) {
+		eventsPerSecond = limit;
+	}
+
+	public static int getEventsPerSecond() {
+		return eventsPerSecond;
+	}
+
+	public boolean isDebugEnabled() {
+		return logger.isDebugEnabled();
+	}
+
+	public void debug(String format, Object... args) {
+		if (logger.isDebugEnabled()) {
+			logger.debug(format(format, args));
+		}
+	}
+
+	public void info(String format, Object... args) {
+		if (logger.isInfoEnabled() && sample()) {
+			logger.info(withSuppressed(format(format, args)));
+		}
+	}
+
+	public void warn(String format, Object... args) {
+		if (logger.isEnabledFor(Level.WARN) && sample()) {
+			logger.warn(withSuppressed(format(format, args)));
+		}
+	}
+
+	/**
+	 * Errors are never sampled, only their arguments are summarized.
+	 */
+	public void error(Throwable t, String format, Object... args) {
+		logger.error(format(format, args), t);
+	}
+
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	private boolean sample() {
+		int limit = eventsPerSecond;
+		if (limit <= 0) {
+			return true;
+		}
+		long now = System.nanoTime();
+		long start = windowStart.get();
+		if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+			eventsInWindow.set(0);
+		}
+		if (eventsInWindow.incrementAndGet() <= limit) {
+			return true;
+		}
+		suppressed.incrementAndGet();
+		return false;
+	}
+
+	private String withSuppressed(String message) {
+		long count = suppressed.getAndSet(0);
+		return count == 0 ? message : message + " (" + count + " similar messages suppressed)";
+	}
+
+	static String format(String format, Object... args) {
+		for (int i = 0; i < args.length; i++) {
+			args[i] = summarize(args[i]);
+		}
+		return String.format(format, args);
+	}
+
+	/**
+	 * @return numbers and booleans as they are, collections, maps and arrays as their size and
+	 * anything else as text of at most {@link #MAX_ARGUMENT_LENGTH} characters
+	 */
+	static Object summarize(Object value) {
+		if (value == null || value instanceof Number || value instanceof Boolean || value instanceof Character) {
+			return value;
+		}
+		if (value instanceof Collection) {
+			return "[" + ((Collection<?>) value).size() + " items]";
+		}
+		if (value instanceof Map && ! (value instanceof net.sf.json.JSONObject)) {
+			return "[" + ((Map<?, ?>) value).size() + " entries]";
+		}
+		if (value.getClass().isArray()) {
+			return "[" + Array.getLength(value) + (value instanceof byte[] ? " bytes]" : " items]");
+		}
+		String text = value.toString();
+		if (text.length() <= MAX_ARGUMENT_LENGTH) {
+			return text;
+		}
+		return text.substring(0, MAX_ARGUMENT_LENGTH) + "... (" + text.length() + " chars)";
+	}
+}
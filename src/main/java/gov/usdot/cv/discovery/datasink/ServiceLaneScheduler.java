@@ -0,0 +1,327 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs tasks on a shared pool of worker threads from one lane per serviceId, so a burst for one
+ * service can't starve the others. Each lane has its own bounded queue and may only occupy a
+ * limited number of workers at a time; the workers serve the lanes with weighted round robin,
+ * taking up to weight tasks from a lane before moving on to the next one that has work.
+ *
+ * A task for a lane whose queue is full is rejected rather than run by the caller, since the
+ * caller is shared by every service. Each lane reports its throughput to the discovery metrics
+ * as service&lt;id&gt;... gauges, along with the latency its submitter records through
+ * {@link #recordLatency(int, long)} once the work started by the task is done.
+ *
+ * Lanes are never removed, so their number is capped: services with a weight always get their
+ * own lane, other services get one while fewer than maxLanes lanes are open and share the
+ * lane of {@link #SHARED_SERVICE_ID} (serviceOther... gauges) after that.
+ */
+public class ServiceLaneScheduler {
+
+	private static final Logger logger = Logger.getLogger(ServiceLaneScheduler.class);
+
+	// Service id of the lane shared by the services beyond maxLanes
+	public static final int SHARED_SERVICE_ID = -1;
+
+	private final int laneCapacity;
+	private final int laneConcurrency;
+	private final int maxLanes;
+	private final Map<Integer, Integer> weights;
+	private final DiscoveryMetrics metrics;
+
+	private final Map<Integer, Lane> lanes = new HashMap<Integer, Lane>();
+	private final List<Lane> ring = new ArrayList<Lane>();
+	private int cursor = 0;
+	private boolean shutdown = false;
+
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	public static final class Lane {
+		private final int serviceId;
+		private final int weight;
+		private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+		private int running = 0;
+		private int credits;
+
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicLong completed = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final LatencyTimer latency = new LatencyTimer();
+
+		Lane(int serviceId, int weight) {
+			this.serviceId = serviceId;
+			this.weight = weight;
+			this.credits = weight;
+		}
+
+		public int getServiceId() {
+			return serviceId;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		public int getQueued() {
+			return queued.get();
+		}
+
+		public long getCompleted() {
+			return completed.get();
+		}
+
+		public long getRejected() {
+			return rejected.get();
+		}
+
+		/**
+		 * @return time from submission to the end of the task
+		 */
+		public LatencyTimer getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return "Lane [serviceId=" + serviceId + ", weight=" + weight + ", queued=" + getQueued()
+					+ ", completed=" + getCompleted() + ", rejected=" + getRejected() + ", latency=" + latency + "]";
+		}
+	}
+
+	/**
+	 * @param maxLanes open lanes after which services without a weight share one
+	 * @param weights tasks taken from a service's lane per turn, services not listed get 1
+	 */
+	public ServiceLaneScheduler(String name, int threads, int laneCapacity, int laneConcurrency, int maxLanes,
+			Map<Integer, Integer> weights, DiscoveryMetrics metrics) {
+		this.laneCapacity = laneCapacity;
+		this.laneConcurrency = Math.max(1, laneConcurrency);
+		this.maxLanes = Math.max(1, maxLanes);
+		this.weights = weights;
+		this.metrics = metrics;
+
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "objectdiscovery-" + name + "-" + (i + 1));
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Parses service weights written as serviceId:weight pairs separated by commas, e.g. "2:4,5:1".
+	 */
+	public static Map<Integer, Integer> parseWeights(String weights) throws IllegalArgumentException {
+		Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+		if (weights == null) {
+			return result;
+		}
+		for (String pair : weights.split(",")) {
+			pair = pair.trim();
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int colon = pair.indexOf(':');
+			try {
+				int weight = Integer.parseInt(pair.substring(colon + 1).trim());
+				if (colon <= 0 || weight < 1) {
+					throw new IllegalArgumentException("Invalid service weight '" + pair + "'");
+				}
+				result.put(Integer.parseInt(pair.substring(0, colon).trim()), weight);
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Invalid service weight '" + pair + "'", ex);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Queues the task on the lane of the service.
+	 * @return false if the lane is full or the scheduler is shut down
+	 */
+	public synchronized boolean submit(int serviceId, Runnable task) {
+		Lane lane = lane(serviceId);
+		if (shutdown || lane.queue.size() >= laneCapacity) {
+			lane.rejected.incrementAndGet();
+			return false;
+		}
+		lane.queue.add(task);
+		lane.queued.incrementAndGet();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Records the latency of a request of the service, from startNanos, a value of System.nanoTime(),
+	 * to now. Requests of services without a lane count towards the shared lane.
+	 */
+	public synchronized void recordLatency(int serviceId, long startNanos) {
+		Lane lane = lanes.get(serviceId);
+		if (lane == null) {
+			lane = lanes.get(SHARED_SERVICE_ID);
+		}
+		if (lane != null) {
+			lane.latency.recordSince(startNanos);
+		}
+	}
+
+	private Lane lane(int serviceId) {
+		Lane lane = lanes.get(serviceId);
+		if (lane == null) {
+			Integer weight = weights.get(serviceId);
+			if (weight == null && lanes.size() >= maxLanes) {
+				serviceId = SHARED_SERVICE_ID;
+				lane = lanes.get(serviceId);
+				if (lane != null) {
+					return lane;
+				}
+				logger.warn("Opened shared discovery lane, services without a lane of their own now share it");
+			}
+			lane = new Lane(serviceId, weight == null ? 1 : weight);
+			lanes.put(serviceId, lane);
+			ring.add(lane);
+			logger.info("Opened discovery lane for service " + serviceId + " with weight " + lane.weight);
+
+			final Lane metered = lane;
+			String prefix = serviceId == SHARED_SERVICE_ID ? "serviceOther" : "service" + serviceId;
+			metrics.registerGauge(prefix + "Completed", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return metered.getCompleted(); }
+			});
+			metrics.registerGauge(prefix + "Rejected", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return metered.getRejected(); }
+			});
+			metrics.registerGauge(prefix + "Queued", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return metered.getQueued(); }
+			});
+			metrics.registerGauge(prefix + "MeanMicros", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return metered.latency.getMeanMicros(); }
+			});
+			metrics.registerGauge(prefix + "P99Micros", new DiscoveryMetrics.Gauge() {
+				public long getValue() { return metered.latency.getPercentileMicros(99); }
+			});
+		}
+		return lane;
+	}
+
+	private void work() {
+		while (true) {
+			Lane lane;
+			Runnable task;
+			synchronized (this) {
+				while (true) {
+					lane = next();
+					if (lane != null) {
+						break;
+					}
+					if (shutdown && idle()) {
+						return;
+					}
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+				task = lane.queue.poll();
+				lane.queued.decrementAndGet();
+				lane.running++;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				logger.error("Discovery lane task for service " + lane.serviceId + " failed.", ex);
+			} finally {
+				lane.completed.incrementAndGet();
+				synchronized (this) {
+					lane.running--;
+					// The lane may have been held back by its concurrency budget
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Weighted round robin: stays on the current lane while it has credits and work it may run,
+	 * otherwise refills its credits and moves on. A lane without work forfeits its turn.
+	 */
+	private Lane next() {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		for (int i = 0; i <= ring.size(); i++) {
+			Lane lane = ring.get(cursor);
+			if (lane.credits > 0 && ! lane.queue.isEmpty() && lane.running < laneConcurrency) {
+				lane.credits--;
+				return lane;
+			}
+			lane.credits = lane.weight;
+			cursor = (cursor + 1) % ring.size();
+		}
+		return null;
+	}
+
+	private boolean idle() {
+		for (Lane lane : ring) {
+			if (! lane.queue.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops accepting tasks, lets the workers finish the queued ones and waits for them.
+	 */
+	public void shutdown(long timeoutMs) {
+		synchronized (this) {
+			shutdown = true;
+			notifyAll();
+		}
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		for (Thread worker : workers) {
+			try {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining > 0) {
+					worker.join(remaining);
+				}
+				if (worker.isAlive()) {
+					worker.interrupt();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public synchronized List<Lane> getLanes() {
+		return new ArrayList<Lane>(ring);
+	}
+
+	public synchronized int getQueued() {
+		int queued = 0;
+		for (Lane lane : ring) {
+			queued += lane.queue.size();
+		}
+		return queued;
+	}
+
+	@Override
+	public String toString() {
+		return "ServiceLaneScheduler " + getLanes();
+	}
+}
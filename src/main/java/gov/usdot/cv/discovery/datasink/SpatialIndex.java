@@ -0,0 +1,16 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.List;
+
+/**
+ * Immutable index of items by their latitude/longitude envelope.
+ */
+public interface SpatialIndex<T> {
+
+	public int size();
+
+	/**
+	 * Adds every item whose envelope intersects the given box to the result list, once.
+	 */
+	public void search(double minLat, double maxLat, double minLon, double maxLon, List<T> result);
+}
@@ -0,0 +1,141 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable R-tree bulk loaded with the Sort-Tile-Recursive algorithm. Items are indexed by their
+ * latitude/longitude envelope and searched by envelope intersection.
+ */
+public class StrTree<T> implements SpatialIndex<T> {
+
+	public static final int DEFAULT_NODE_CAPACITY = 16;
+
+	/**
+	 * Envelope of an indexed item.
+	 */
+	public interface Bounded {
+		public double getMinLat();
+		public double getMaxLat();
+		public double getMinLon();
+		public double getMaxLon();
+	}
+
+	private final Node root;
+	private final int size;
+
+	public StrTree(List<? extends Bounded> items) {
+		this(items, DEFAULT_NODE_CAPACITY);
+	}
+
+	public StrTree(List<? extends Bounded> items, int nodeCapacity) {
+		this.size = items.size();
+		List<Node> level = new ArrayList<Node>(items.size());
+		for (Bounded item : items) {
+			level.add(new Node(item));
+		}
+		while (level.size() > 1) {
+			level = pack(level, nodeCapacity);
+		}
+		this.root = level.isEmpty() ? null : level.get(0);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds every item whose envelope intersects the given box to the result list.
+	 */
+	@SuppressWarnings("unchecked")
+	public void search(double minLat, double maxLat, double minLon, double maxLon, List<T> result) {
+		if (root == null) {
+			return;
+		}
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(root);
+		while (! stack.isEmpty()) {
+			Node node = stack.remove(stack.size() - 1);
+			if (! node.intersects(minLat, maxLat, minLon, maxLon)) {
+				continue;
+			}
+			if (node.item != null) {
+				result.add((T) node.item);
+			} else {
+				for (Node child : node.children) {
+					stack.add(child);
+				}
+			}
+		}
+	}
+
+	private static List<Node> pack(List<Node> nodes, int nodeCapacity) {
+		int parentCount = (int) Math.ceil(nodes.size() / (double) nodeCapacity);
+		int sliceCount = (int) Math.ceil(Math.sqrt(parentCount));
+		int sliceSize = sliceCount * nodeCapacity;
+
+		Collections.sort(nodes, BY_CENTER_LON);
+		List<Node> parents = new ArrayList<Node>(parentCount);
+		for (int sliceStart = 0; sliceStart < nodes.size(); sliceStart += sliceSize) {
+			List<Node> slice = new ArrayList<Node>(nodes.subList(sliceStart, Math.min(nodes.size(), sliceStart + sliceSize)));
+			Collections.sort(slice, BY_CENTER_LAT);
+			for (int start = 0; start < slice.size(); start += nodeCapacity) {
+				parents.add(new Node(slice.subList(start, Math.min(slice.size(), start + nodeCapacity))));
+			}
+		}
+		return parents;
+	}
+
+	private static final Comparator<Node> BY_CENTER_LON = new Comparator<Node>() {
+		public int compare(Node a, Node b) {
+			return Double.compare(a.minLon + a.maxLon, b.minLon + b.maxLon);
+		}
+	};
+
+	private static final Comparator<Node> BY_CENTER_LAT = new Comparator<Node>() {
+		public int compare(Node a, Node b) {
+			return Double.compare(a.minLat + a.maxLat, b.minLat + b.maxLat);
+		}
+	};
+
+	private static final class Node {
+		private final double minLat;
+		private final double maxLat;
+		private final double minLon;
+		private final double maxLon;
+		private final Bounded item;
+		private final Node[] children;
+
+		Node(Bounded item) {
+			this.minLat = item.getMinLat();
+			this.maxLat = item.getMaxLat();
+			this.minLon = item.getMinLon();
+			this.maxLon = item.getMaxLon();
+			this.item = item;
+			this.children = null;
+		}
+
+		Node(List<Node> children) {
+			double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+			double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+			for (Node child : children) {
+				minLat = Math.min(minLat, child.minLat);
+				maxLat = Math.max(maxLat, child.maxLat);
+				minLon = Math.min(minLon, child.minLon);
+				maxLon = Math.max(maxLon, child.maxLon);
+			}
+			this.minLat = minLat;
+			this.maxLat = maxLat;
+			this.minLon = minLon;
+			this.maxLon = maxLon;
+			this.item = null;
+			this.children = children.toArray(new Node[children.size()]);
+		}
+
+		boolean intersects(double minLat, double maxLat, double minLon, double maxLon) {
+			return this.minLat <= maxLat && this.maxLat >= minLat && this.minLon <= maxLon && this.maxLon >= minLon;
+		}
+	}
+}
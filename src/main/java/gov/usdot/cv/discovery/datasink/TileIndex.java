@@ -0,0 +1,157 @@
+package gov.usdot.cv.discovery.datasink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable index of items bucketed by the tiles of a fixed level grid, the way geohash cells
+ * and quadkeys divide the map. At level n the world is split into 2^n columns of longitude and
+ * 2^n rows of latitude, and each tile has the key row * 2^n + column.
+ *
+ * Every item is listed under each tile its envelope covers, in one array sorted by tile key, so
+ * a search resolves the box to a range of keys per tile row and scans those ranges followed by
+ * an exact envelope check. Items covering more than {@link #MAX_TILES_PER_ITEM} tiles are kept
+ * aside and checked on every search instead.
+ */
+public class TileIndex<T> implements SpatialIndex<T> {
+
+	public static final int MAX_LEVEL = 24;
+
+	// Items spanning more tiles than this are not bucketed
+	static final int MAX_TILES_PER_ITEM = 64;
+
+	private final int level;
+	private final int tiles;
+	private final double tileLat;
+	private final double tileLon;
+	private final int size;
+
+	private final long[] keys;
+	private final StrTree.Bounded[] items;
+	private final StrTree.Bounded[] oversize;
+
+	private static final class Entry {
+		final long key;
+		final StrTree.Bounded item;
+
+		Entry(long key, StrTree.Bounded item) {
+			this.key = key;
+			this.item = item;
+		}
+	}
+
+	public TileIndex(List<? extends StrTree.Bounded> items, int level) {
+		if (level < 1 || level > MAX_LEVEL) {
+			throw new IllegalArgumentException("Tile level must be between 1 and " + MAX_LEVEL + ", not " + level);
+		}
+		this.level = level;
+		this.tiles = 1 << level;
+		this.tileLat = 180.0 / tiles;
+		this.tileLon = 360.0 / tiles;
+		this.size = items.size();
+
+		List<Entry> entries = new ArrayList<Entry>(items.size());
+		List<StrTree.Bounded> large = new ArrayList<StrTree.Bounded>();
+		for (StrTree.Bounded item : items) {
+			int row0 = row(item.getMinLat()), row1 = row(item.getMaxLat());
+			int col0 = column(item.getMinLon()), col1 = column(item.getMaxLon());
+			if ((long) (row1 - row0 + 1) * (col1 - col0 + 1) > MAX_TILES_PER_ITEM) {
+				large.add(item);
+				continue;
+			}
+			for (int row = row0; row <= row1; row++) {
+				for (int col = col0; col <= col1; col++) {
+					entries.add(new Entry(key(row, col), item));
+				}
+			}
+		}
+		Collections.sort(entries, BY_KEY);
+
+		this.keys = new long[entries.size()];
+		this.items = new StrTree.Bounded[entries.size()];
+		for (int i = 0; i < entries.size(); i++) {
+			this.keys[i] = entries.get(i).key;
+			this.items[i] = entries.get(i).item;
+		}
+		this.oversize = large.toArray(new StrTree.Bounded[large.size()]);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void search(double minLat, double maxLat, double minLon, double maxLon, List<T> result) {
+		int row0 = row(minLat), row1 = row(maxLat);
+		int col0 = column(minLon), col1 = column(maxLon);
+		for (int row = row0; row <= row1; row++) {
+			long last = key(row, col1);
+			for (int i = lowerBound(key(row, col0)); i < keys.length && keys[i] <= last; i++) {
+				StrTree.Bounded item = items[i];
+				if (! intersects(item, minLat, maxLat, minLon, maxLon)) {
+					continue;
+				}
+				// An item listed under several of the tiles searched is reported from the first one only
+				int col = (int) (keys[i] - (long) row * tiles);
+				if (row == Math.max(row0, row(item.getMinLat())) && col == Math.max(col0, column(item.getMinLon()))) {
+					result.add((T) item);
+				}
+			}
+		}
+		for (StrTree.Bounded item : oversize) {
+			if (intersects(item, minLat, maxLat, minLon, maxLon)) {
+				result.add((T) item);
+			}
+		}
+	}
+
+	private int lowerBound(long key) {
+		int low = 0, high = keys.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static boolean intersects(StrTree.Bounded item, double minLat, double maxLat, double minLon, double maxLon) {
+		return item.getMinLat() <= maxLat && item.getMaxLat() >= minLat && item.getMinLon() <= maxLon && item.getMaxLon() >= minLon;
+	}
+
+	private int row(double lat) {
+		return clamp((int) Math.floor((lat + 90) / tileLat));
+	}
+
+	private int column(double lon) {
+		return clamp((int) Math.floor((lon + 180) / tileLon));
+	}
+
+	private int clamp(int index) {
+		return index < 0 ? 0 : (index >= tiles ? tiles - 1 : index);
+	}
+
+	private long key(int row, int col) {
+		return (long) row * tiles + col;
+	}
+
+	private static final Comparator<Entry> BY_KEY = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return a.key < b.key ? -1 : (a.key == b.key ? 0 : 1);
+		}
+	};
+
+	@Override
+	public String toString() {
+		return "TileIndex [level=" + level + ", size=" + size + ", entries=" + keys.length + ", oversize=" + oversize.length + "]";
+	}
+}
@@ -0,0 +1,105 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+
+	@Test
+	public void testExpiredRequestIsRejected() {
+		AdmissionController admission = new AdmissionController(100, 50, 1, 4);
+		assertEquals(AdmissionController.Decision.EXPIRED, admission.tryAcquire(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(150)));
+		assertEquals(AdmissionController.Decision.ADMITTED, admission.tryAcquire(System.nanoTime()));
+		assertEquals(1, admission.getExpired());
+		assertEquals(1, admission.getInFlight());
+	}
+
+	@Test
+	public void testConcurrencyLimit() {
+		AdmissionController admission = new AdmissionController(1000, 1000, 1, 2);
+		long now = System.nanoTime();
+		assertEquals(AdmissionController.Decision.ADMITTED, admission.tryAcquire(now));
+		assertEquals(AdmissionController.Decision.ADMITTED, admission.tryAcquire(now));
+		assertEquals(AdmissionController.Decision.OVER_LIMIT, admission.tryAcquire(now));
+
+		admission.release(System.nanoTime(), true);
+		assertEquals(AdmissionController.Decision.ADMITTED, admission.tryAcquire(now));
+		assertEquals(1, admission.getOverLimit());
+	}
+
+	@Test
+	public void testLimitAdaptsToLatency() throws Exception {
+		AdmissionController admission = new AdmissionController(10000, 50, 2, 10);
+		assertEquals(10, admission.getLimit());
+
+		// Slow queries finishing together count as one congestion event
+		long slowStart = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(200);
+		for (int i = 0; i < 5; i++) {
+			admission.tryAcquire(System.nanoTime());
+			admission.release(slowStart, true);
+		}
+		assertEquals(9, admission.getLimit());
+
+		// Failures lower the limit too, once per target latency, down to the minimum
+		for (int i = 0; i < 20; i++) {
+			Thread.sleep(51);
+			admission.tryAcquire(System.nanoTime());
+			admission.release(System.nanoTime(), false);
+		}
+		assertEquals(2, admission.getLimit());
+
+		// Fast queries grow it back by about one per limit's worth of queries
+		for (int i = 0; i < 5; i++) {
+			admission.tryAcquire(System.nanoTime());
+			admission.release(System.nanoTime(), true);
+		}
+		assertTrue(admission.getLimit() >= 3);
+		assertEquals(0, admission.getInFlight());
+	}
+
+	@Test
+	public void testSlowQueriesShortenTheDeadline() {
+		AdmissionController admission = new AdmissionController(100, 1000, 1, 4);
+		admission.tryAcquire(System.nanoTime());
+		admission.release(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(80), true);
+		// Keeps a query in flight, an idle controller admits regardless
+		assertEquals(AdmissionController.Decision.ADMITTED, admission.tryAcquire(System.nanoTime()));
+
+		// 30 ms left is not enough for an 80 ms query
+		assertEquals(AdmissionController.Decision.EXPIRED, admission.tryAcquire(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(70)));
+		assertEquals(AdmissionController.Decision.ADMITTED, admission.tryAcquire(System.nanoTime()));
+	}
+
+	@Test
+	public void testRecoversFromSlowQuery() throws Exception {
+		AdmissionController admission = new AdmissionController(50, 1000, 1, 4);
+		admission.tryAcquire(System.nanoTime());
+		admission.release(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1500), true);
+
+		// Nothing in flight, so a request is let through to measure the latency again
+		assertEquals(AdmissionController.Decision.ADMITTED, admission.tryAcquire(System.nanoTime()));
+		assertEquals(AdmissionController.Decision.EXPIRED, admission.tryAcquire(System.nanoTime()));
+
+		// The estimate decays while no query finishes
+		Thread.sleep(300);
+		assertTrue(admission.getAverageLatencyMicros() < 50000);
+		assertEquals(AdmissionController.Decision.ADMITTED, admission.tryAcquire(System.nanoTime()));
+
+		// and fast queries keep it down, also with a query in flight
+		admission.release(System.nanoTime(), true);
+		admission.release(System.nanoTime(), true);
+		assertEquals(AdmissionController.Decision.ADMITTED, admission.tryAcquire(System.nanoTime()));
+		int admitted = 0;
+		for (int i = 0; i < 100; i++) {
+			if (admission.tryAcquire(System.nanoTime()) == AdmissionController.Decision.ADMITTED) {
+				admitted++;
+				admission.release(System.nanoTime(), true);
+			}
+		}
+		assertEquals(100, admitted);
+	}
+}
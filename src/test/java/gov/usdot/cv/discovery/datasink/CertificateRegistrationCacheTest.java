@@ -0,0 +1,57 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class CertificateRegistrationCacheTest {
+
+	private static final byte[] CERT_ID_1 = { 1, 2, 3, 4, 5, 6, 7, 8 };
+	private static final byte[] CERT_ID_2 = { 8, 7, 6, 5, 4, 3, 2, 1 };
+
+	@Test
+	public void testHitAndMiss() {
+		CertificateRegistrationCache cache = new CertificateRegistrationCache(10, 60000);
+		assertNull(cache.get("cert1"));
+		cache.put("cert1", CERT_ID_1);
+		assertArrayEquals(CERT_ID_1, cache.get("cert1"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		CertificateRegistrationCache cache = new CertificateRegistrationCache(2, 60000);
+		cache.put("cert1", CERT_ID_1);
+		cache.put("cert2", CERT_ID_2);
+		cache.get("cert1");
+		cache.put("cert3", CERT_ID_2);
+		assertArrayEquals(CERT_ID_1, cache.get("cert1"));
+		assertNull(cache.get("cert2"));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testRemove() {
+		CertificateRegistrationCache cache = new CertificateRegistrationCache(10, 60000);
+		cache.put("cert1", CERT_ID_1);
+		cache.put("cert2", CERT_ID_2);
+		cache.remove("cert1");
+		assertNull(cache.get("cert1"));
+		assertArrayEquals(CERT_ID_2, cache.get("cert2"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testExpires() throws InterruptedException {
+		CertificateRegistrationCache cache = new CertificateRegistrationCache(10, 20);
+		cache.put("cert1", CERT_ID_1);
+		Thread.sleep(50);
+		assertNull(cache.get("cert1"));
+		assertEquals(1, cache.getExpirations());
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,107 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gov.usdot.cv.security.crypto.CryptoProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class CryptoProviderPoolTest {
+
+	@Test
+	public void testBorrowAndRelease() throws Exception {
+		CryptoProviderPool pool = new CryptoProviderPool(2);
+		CryptoProvider first = pool.borrow();
+		CryptoProvider second = pool.borrow();
+		assertTrue(first != second);
+		assertEquals(0, pool.getAvailable());
+		pool.release(first);
+		assertEquals(1, pool.getAvailable());
+		pool.release(second);
+		assertEquals(2, pool.getAvailable());
+	}
+
+	@Test
+	public void testProviderIsNeverShared() throws Exception {
+		final CryptoProviderPool pool = new CryptoProviderPool(3);
+		final Set<CryptoProvider> inUse = Collections.newSetFromMap(new IdentityHashMap<CryptoProvider, Boolean>());
+		final Set<CryptoProvider> seen = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<CryptoProvider, Boolean>()));
+		final AtomicInteger shared = new AtomicInteger();
+		final AtomicInteger maxInUse = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < 500; j++) {
+							CryptoProvider provider = pool.borrow();
+							try {
+								seen.add(provider);
+								synchronized (inUse) {
+									if (! inUse.add(provider)) {
+										shared.incrementAndGet();
+									}
+									maxInUse.set(Math.max(maxInUse.get(), inUse.size()));
+								}
+								Thread.yield();
+								synchronized (inUse) {
+									inUse.remove(provider);
+								}
+							} finally {
+								pool.release(provider);
+							}
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join(30000);
+			assertTrue(! thread.isAlive());
+		}
+
+		assertEquals(0, shared.get());
+		assertTrue(maxInUse.get() <= 3);
+		assertEquals(3, seen.size());
+		assertEquals(3, pool.getAvailable());
+	}
+
+	@Test
+	public void testBorrowWaitsForRelease() throws Exception {
+		final CryptoProviderPool pool = new CryptoProviderPool(1);
+		final CryptoProvider provider = pool.borrow();
+		final AtomicReference<CryptoProvider> borrowed = new AtomicReference<CryptoProvider>();
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					borrowed.set(pool.borrow());
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		waiter.start();
+		waiter.join(100);
+		assertTrue(waiter.isAlive());
+
+		pool.release(provider);
+		waiter.join(5000);
+		assertTrue(borrowed.get() == provider);
+	}
+}
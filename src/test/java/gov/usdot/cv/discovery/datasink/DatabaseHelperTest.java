@@ -1,44 +1,177 @@
-package gov.usdot.cv.discovery.datasink;
-
-import gov.usdot.cv.discovery.datasink.DatabaseHelper;
-import gov.usdot.cv.discovery.datasink.DiscoverModel;
-
-import java.io.File;
-import java.io.IOException;
-import java.util.Collection;
-
-import org.apache.commons.io.FileUtils;
-import org.junit.BeforeClass;
-import org.junit.Test;
-
-import com.mongodb.DBObject;
-
-public class DatabaseHelperTest {
-
-	public static DatabaseHelper dbHelper;
-	
-	@BeforeClass
-	public static void setup() throws Exception {
-		String mongoServerHost = "54.83.140.41";
-		int mongoServerPort = 27017;
-		String databaseName = "cvdb";
-		boolean autoConnectRetry = true;
-		int connectTimeoutMs = 0;
-		String collectionName = "objectRegisterTest";
-		String geospatialFieldName = "region";
-		
-		dbHelper = new DatabaseHelper(mongoServerHost, mongoServerPort, 
-				databaseName, autoConnectRetry, connectTimeoutMs, collectionName, geospatialFieldName);
-	}
-	
-	@Test
-	public void testQuery() throws IOException {
-		String jsonFile = "src/test/resources/discover_good.json";
-		String json = FileUtils.readFileToString(new File(jsonFile));
-		DiscoverModel model = DiscoverModel.fromJSON(json);
-		model.validate();
-		Collection<DBObject> dbObjects = dbHelper.query(model);
-		System.out.println(dbObjects);
-	}
-	
-}
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNotNull;
+import gov.usdot.cv.discovery.datasink.DatabaseHelper;
+import gov.usdot.cv.discovery.datasink.DiscoverModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bson.BsonDocument;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+
+public class DatabaseHelperTest {
+
+	public static DatabaseHelper dbHelper;
+	
+	@BeforeClass
+	public static void setup() throws Exception {
+		// Needs a MongoDB server with the test registrations, given with -DmongoServerHost
+		String mongoServerHost = System.getProperty("mongoServerHost");
+		if (mongoServerHost == null) {
+			return;
+		}
+		int mongoServerPort = 27017;
+		String databaseName = "cvdb";
+		boolean autoConnectRetry = true;
+		int connectTimeoutMs = 0;
+		String collectionName = "objectRegisterTest";
+		String geospatialFieldName = "region";
+		
+		dbHelper = new DatabaseHelper(mongoServerHost, mongoServerPort, 
+				databaseName, autoConnectRetry, connectTimeoutMs, collectionName, geospatialFieldName);
+	}
+	
+	@Test
+	public void testQuery() throws IOException {
+		assumeNotNull(dbHelper);
+		String jsonFile = "src/test/resources/discover_good.json";
+		String json = FileUtils.readFileToString(new File(jsonFile));
+		DiscoverModel model = DiscoverModel.fromJSON(json);
+		model.validate();
+		List<RegistrationRecord> records = dbHelper.query(model).toList();
+		System.out.println(records);
+	}
+	
+	@Test
+	public void testParseServerAddresses() {
+		assertEquals(Arrays.asList(new ServerAddress("mongo1", 27017)), DatabaseHelper.parseServerAddresses("mongo1", 27017));
+		assertEquals(Arrays.asList(new ServerAddress("mongo1", 27017), new ServerAddress("mongo2", 27018)), 
+				DatabaseHelper.parseServerAddresses(" mongo1, mongo2:27018,", 27017));
+	}
+	
+	@Test
+	public void testBuildClientOptions() {
+		MongoClientOptions options = DatabaseHelper.buildClientOptions(true, 3000, 20, 500, 2000, "nearest", " rs0 ");
+		assertEquals(3000, options.getConnectTimeout());
+		assertEquals(20, options.getConnectionsPerHost());
+		assertEquals(500, options.getMaxWaitTime());
+		assertEquals(2000, options.getSocketTimeout());
+		assertEquals(ReadPreference.nearest(), options.getReadPreference());
+		assertEquals("rs0", options.getRequiredReplicaSetName());
+		
+		assertNull(DatabaseHelper.buildClientOptions(true, 0, 100, 120000, 0, "primary", "").getRequiredReplicaSetName());
+	}
+	
+	@Test
+	public void testAutoConnectRetry() {
+		int defaultTimeout = MongoClientOptions.builder().build().getServerSelectionTimeout();
+		assertEquals(defaultTimeout, DatabaseHelper.applyAutoConnectRetry(MongoClientOptions.builder(), true, 3000)
+			.build().getServerSelectionTimeout());
+		assertEquals(3000, DatabaseHelper.applyAutoConnectRetry(MongoClientOptions.builder(), false, 3000)
+			.build().getServerSelectionTimeout());
+		assertEquals(defaultTimeout, DatabaseHelper.applyAutoConnectRetry(MongoClientOptions.builder(), false, 0)
+			.build().getServerSelectionTimeout());
+		assertEquals(3000, DatabaseHelper.buildClientOptions(false, 3000, 100, 120000, 0, "primary", "")
+			.getServerSelectionTimeout());
+	}
+	
+	@Test
+	public void testBoundingBoxQueryMatchesBuildQuery() {
+		BsonDocument expected = DatabaseHelper.buildQuery("region", 2, 42.3, -83.7, 42.2, -83.6)
+			.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+		BsonDocument actual = new BoundingBoxQuery("region", 2, 42.3, -83.7, 42.2, -83.6)
+			.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+		assertEquals(expected.toJson(), actual.toJson());
+	}
+	
+	@Test
+	public void testValidateBoundingBox() {
+		DatabaseHelper.validateBoundingBox(42.3, -83.7, 42.2, -83.6);
+		DatabaseHelper.validateBoundingBox(90, -180, -90, 180);
+		for (double[] box : new double[][] { { 91, -83.7, 42.2, -83.6 }, { 42.3, -83.7, -90.5, -83.6 }, 
+				{ 42.3, -83.7, 42.3, -83.7 }, { 42.3, -83.7, 42.3, -83.6 }, { 42.3, -83.7, 42.2, -83.7 }, 
+				{ 42.3, -183.7, 42.2, -83.6 }, { 42.3, -83.7, 42.2, 180.5 }, 
+				{ 42.2, -83.7, 42.3, -83.6 }, { 42.3, -83.6, 42.2, -83.7 }, 
+				{ Double.NaN, -83.7, 42.2, -83.6 }, { 42.3, -83.7, 42.2, Double.NaN }, 
+				{ Double.POSITIVE_INFINITY, -83.7, 42.2, -83.6 }, { 42.3, Double.NEGATIVE_INFINITY, 42.2, -83.6 } }) {
+			try {
+				DatabaseHelper.validateBoundingBox(box[0], box[1], box[2], box[3]);
+				fail("Expected " + Arrays.toString(box) + " to be rejected");
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void testCoalescedResultIsCutToRequestBox() {
+		RegistrationIndex index = new RegistrationIndex(null, "serviceId", "region", DatabaseHelper.TIMESTAMP_FIELD);
+		index.upsert(RegistrationIndexTest.registration("inside", 2, 42.31, -83.10, 42.30, -83.09, 1000));
+		index.upsert(RegistrationIndexTest.registration("outside1", 2, 42.38, -83.05, 42.37, -83.04, 2000));
+		index.upsert(RegistrationIndexTest.registration("outside2", 2, 42.38, -83.03, 42.37, -83.02, 3000));
+		index.rebuild();
+		
+		// The 0.1 degree grid snaps the request box out to cover all three registrations
+		DatabaseHelper helper = new DatabaseHelper(index);
+		helper.enableQueryCoalescing(100000);
+		DiscoverModel model = QueryResultCacheTest.model(2, 42.31, -83.10, 42.30, -83.09);
+		assertEquals(Arrays.asList("inside"), ids(helper.query(model).toList()));
+		assertEquals(0, helper.getRequeried());
+		
+		// Cut at the limit, the snapped result holds only the newer registrations outside the box
+		helper.setQueryLimit(2);
+		assertEquals(Arrays.asList("inside"), ids(helper.query(model).toList()));
+		assertEquals(1, helper.getRequeried());
+	}
+	
+	@Test
+	public void testCachedResultIsCutToRequestBox() throws InterruptedException {
+		RegistrationIndex index = new RegistrationIndex(null, "serviceId", "region", DatabaseHelper.TIMESTAMP_FIELD);
+		index.upsert(RegistrationIndexTest.registration("inside", 2, 42.31, -83.10, 42.30, -83.09, 1000));
+		index.upsert(RegistrationIndexTest.registration("outside", 2, 42.38, -83.05, 42.37, -83.04, 2000));
+		index.rebuild();
+		RegistrationChangeFeedTest.MemoryReader reader = new RegistrationChangeFeedTest.MemoryReader();
+		
+		DatabaseHelper helper = new DatabaseHelper(index);
+		helper.enableChangeFeed(new RegistrationChangeFeed(new PollingChangeSource(reader, 10), 10));
+		helper.enableResultCache(100, 60000, 100000, 10);
+		try {
+			DiscoverModel model = QueryResultCacheTest.model(2, 42.31, -83.10, 42.30, -83.09);
+			assertEquals(Arrays.asList("inside"), ids(helper.query(model).toList()));
+			assertEquals(Arrays.asList("inside"), ids(helper.query(model).toList()));
+			assertEquals(1, helper.getResultCache().getHits());
+			assertEquals(Arrays.asList("outside", "inside"), 
+					ids(helper.query(QueryResultCacheTest.model(2, 42.39, -83.10, 42.30, -83.01)).toList()));
+			
+			// Any change reported by the feed clears the cache
+			reader.put(1, 3000L, "AAAA");
+			for (int i = 0; i < 500 && helper.getResultCache().size() > 0; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, helper.getResultCache().size());
+		} finally {
+			helper.close();
+		}
+	}
+	
+	private static List<Object> ids(List<RegistrationRecord> records) {
+		List<Object> ids = new ArrayList<Object>();
+		for (RegistrationRecord record : records) {
+			ids.add(record.getId());
+		}
+		return ids;
+	}
+}
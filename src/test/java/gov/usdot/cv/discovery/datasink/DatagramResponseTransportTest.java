@@ -0,0 +1,69 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DatagramResponseTransportTest {
+
+	@Test
+	public void testSendsDirectlyToDestination() throws IOException {
+		DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		receiver.setSoTimeout(5000);
+		DatagramResponseTransport transport = new DatagramResponseTransport(null, false, 512, 4, 60000);
+		int count = 20;
+		try {
+			for (int i = 0; i < count; i++) {
+				byte[] payload = new byte[100 + i];
+				Arrays.fill(payload, (byte) i);
+				transport.send("127.0.0.1", receiver.getLocalPort(), i % 2 == 0, payload);
+			}
+			// Larger than the pooled buffers
+			transport.send("127.0.0.1", receiver.getLocalPort(), false, new byte[2000]);
+
+			byte[] buffer = new byte[4096];
+			for (int i = 0; i < count; i++) {
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				receiver.receive(packet);
+				byte[] expected = new byte[100 + i];
+				Arrays.fill(expected, (byte) i);
+				assertArrayEquals(expected, Arrays.copyOf(packet.getData(), packet.getLength()));
+			}
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			receiver.receive(packet);
+			assertEquals(2000, packet.getLength());
+		} finally {
+			// Waits for the flusher to drain the queue
+			transport.close(1000);
+			receiver.close();
+		}
+
+		assertEquals(1, transport.getResolutions());
+		assertEquals(0, transport.getPending());
+		assertEquals(0, transport.getFailed());
+		// Every datagram is counted once as sent, whether it went out directly or through the queue
+		assertEquals(count + 1, transport.getSent());
+		assertTrue(transport.getPendingHighWater() <= transport.getQueued());
+		assertEquals(transport.getQueued() > 0, transport.getPendingHighWater() > 0);
+	}
+
+	@Test
+	public void testRejectsSendsAfterClose() throws IOException {
+		DatagramResponseTransport transport = new DatagramResponseTransport(null, false, 512, 4, 60000);
+		transport.close(1000);
+		try {
+			transport.send("127.0.0.1", 9, false, new byte[10]);
+			fail("Send after close should fail");
+		} catch (IOException expected) {
+		}
+	}
+}
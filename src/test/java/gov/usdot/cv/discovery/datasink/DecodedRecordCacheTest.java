@@ -0,0 +1,59 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import gov.usdot.asn1.generated.j2735.semi.ObjectRegistrationData;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+public class DecodedRecordCacheTest {
+
+	private static final Date TIMESTAMP_1 = new Date(1000);
+	private static final Date TIMESTAMP_2 = new Date(2000);
+
+	@Test
+	public void testHitAndMiss() {
+		DecodedRecordCache cache = new DecodedRecordCache(10);
+		ObjectRegistrationData record = new ObjectRegistrationData();
+		assertNull(cache.get("id1", TIMESTAMP_1));
+		cache.put("id1", TIMESTAMP_1, record);
+		assertSame(record, cache.get("id1", TIMESTAMP_1));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testUpdatedRegistrationMisses() {
+		DecodedRecordCache cache = new DecodedRecordCache(10);
+		cache.put("id1", TIMESTAMP_1, new ObjectRegistrationData());
+		assertNull(cache.get("id1", TIMESTAMP_2));
+		assertNull(cache.get("id1", null));
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testRemembersNonRegistrations() {
+		DecodedRecordCache cache = new DecodedRecordCache(10);
+		cache.put("id1", null, DecodedRecordCache.NOT_A_REGISTRATION);
+		assertSame(DecodedRecordCache.NOT_A_REGISTRATION, cache.get("id1", null));
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		DecodedRecordCache cache = new DecodedRecordCache(2);
+		ObjectRegistrationData record1 = new ObjectRegistrationData();
+		cache.put("id1", TIMESTAMP_1, record1);
+		cache.put("id2", TIMESTAMP_1, new ObjectRegistrationData());
+		cache.get("id1", TIMESTAMP_1);
+		cache.put("id3", TIMESTAMP_1, new ObjectRegistrationData());
+		assertSame(record1, cache.get("id1", TIMESTAMP_1));
+		assertNull(cache.get("id2", TIMESTAMP_1));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.size());
+	}
+}
@@ -1,20 +1,70 @@
-package gov.usdot.cv.discovery.datasink;
-
-import gov.usdot.cv.discovery.datasink.DiscoverModel;
-
-import java.io.File;
-import java.io.IOException;
-
-import org.apache.commons.io.FileUtils;
-import org.junit.Test;
-
-public class DiscoverModelTest {
-
-	@Test
-	public void testModelDeserialization() throws IOException {
-		String jsonFile = "src/test/resources/discover_good.json";
-		String json = FileUtils.readFileToString(new File(jsonFile));
-		DiscoverModel model = DiscoverModel.fromJSON(json);
-		model.validate();
-	}
-}
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import gov.usdot.cv.discovery.datasink.DiscoverModel;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class DiscoverModelTest {
+
+	@Test
+	public void testModelDeserialization() throws IOException {
+		String jsonFile = "src/test/resources/discover_good.json";
+		String json = FileUtils.readFileToString(new File(jsonFile));
+		DiscoverModel model = DiscoverModel.fromJSON(json);
+		model.validate();
+	}
+	
+	@Test
+	public void testModelFromJSONObjectMatchesJackson() throws IOException {
+		String jsonFile = "src/test/resources/discover_good.json";
+		String json = FileUtils.readFileToString(new File(jsonFile));
+		JSONObject record = JSONObject.fromObject(json);
+		DiscoverModel expected = DiscoverModel.fromJSON(record.toString());
+		DiscoverModel model = DiscoverModel.fromJSONObject(record);
+		model.validate();
+		assertEquals(expected.toString(), model.toString());
+		assertEquals(expected.nwPos.lat, model.nwPos.lat, 0.0);
+		assertEquals(expected.nwPos.lon, model.nwPos.lon, 0.0);
+		assertEquals(expected.sePos.lat, model.sePos.lat, 0.0);
+		assertEquals(expected.sePos.lon, model.sePos.lon, 0.0);
+	}
+	
+	@Test
+	public void testModelFromJSONObjectCoercesValues() throws IOException {
+		String json = "{\"dialogId\":\"161\",\"requestId\":7.0,\"destPort\":\"10000\",\"fromForwarder\":true,"
+				+ "\"certificate\":null,\"unknown\":[1,2],\"nwPos\":{\"lat\":\"43.5\",\"lon\":-85}}";
+		JSONObject record = JSONObject.fromObject(json);
+		DiscoverModel expected = DiscoverModel.fromJSON(record.toString());
+		DiscoverModel model = DiscoverModel.fromJSONObject(record);
+		assertEquals(expected.toString(), model.toString());
+		assertEquals(161, model.dialogId);
+		assertEquals(7, model.requestId);
+		assertEquals(10000, model.destPort);
+		assertEquals("true", model.fromForwarder);
+		assertNull(model.certificate);
+		assertEquals(43.5, model.nwPos.lat, 0.0);
+		assertEquals(-85.0, model.nwPos.lon, 0.0);
+		assertNull(model.sePos);
+	}
+	
+	@Test
+	public void testModelFromJSONObjectRejectsInexactInts() {
+		for (String value : new String[] { "3000000000", "-2147483649", "7.5", "1e10" }) {
+			try {
+				DiscoverModel.fromJSONObject(JSONObject.fromObject("{\"destPort\":" + value + "}"));
+				fail("Expected destPort " + value + " to be rejected");
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+		assertEquals(Integer.MAX_VALUE, DiscoverModel.fromJSONObject(JSONObject.fromObject("{\"destPort\":2147483647}")).destPort);
+	}
+}
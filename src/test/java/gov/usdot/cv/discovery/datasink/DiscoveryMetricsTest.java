@@ -0,0 +1,66 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class DiscoveryMetricsTest {
+
+	@Test
+	public void testBucketBoundsCoverEveryValue() {
+		for (long nanos : new long[] { 0, 1, 3, 4, 7, 8, 9, 1000, 123456789, Long.MAX_VALUE }) {
+			int bucket = LatencyTimer.bucketOf(nanos);
+			assertTrue(nanos + " above its bucket", nanos <= LatencyTimer.upperBoundOf(bucket));
+			assertTrue(nanos + " within the previous bucket", bucket == 0 || nanos > LatencyTimer.upperBoundOf(bucket - 1));
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyTimer timer = new LatencyTimer();
+		for (int i = 1; i <= 100; i++) {
+			timer.record(i * 1000000L);
+		}
+		assertEquals(100, timer.getCount());
+		assertEquals(50500, timer.getMeanMicros());
+		assertEquals(100000, timer.getMaxMicros());
+		long p50 = timer.getPercentileMicros(50);
+		assertTrue("p50 " + p50, p50 >= 50000 && p50 <= 50000 * 1.25);
+		long p99 = timer.getPercentileMicros(99);
+		assertTrue("p99 " + p99, p99 >= 99000 && p99 <= 100000);
+		timer.reset();
+		assertEquals(0, timer.getPercentileMicros(99));
+	}
+
+	@Test
+	public void testMBeanPublishesCountersTimersAndGauges() throws Exception {
+		DiscoveryMetrics metrics = new DiscoveryMetrics();
+		metrics.increment(DiscoveryMetrics.Counter.REQUESTS);
+		metrics.add(DiscoveryMetrics.Counter.RECORDS_RETURNED, 7);
+		metrics.getTimer(DiscoveryMetrics.Stage.QUERY).record(2000000);
+		metrics.registerGauge("resultCacheHits", new DiscoveryMetrics.Gauge() {
+			public long getValue() {
+				return 42;
+			}
+		});
+		metrics.registerMBean("test");
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DiscoveryMetrics.DOMAIN + ":type=ObjectDiscovery,name=\"test\"");
+			assertEquals(1L, server.getAttribute(name, "requests"));
+			assertEquals(7L, server.getAttribute(name, "recordsReturned"));
+			assertEquals(42L, server.getAttribute(name, "resultCacheHits"));
+			assertEquals(1L, server.getAttribute(name, "queryCount"));
+			assertEquals(2000L, server.getAttribute(name, "queryMaxMicros"));
+		} finally {
+			metrics.close();
+		}
+		assertTrue(metrics.toString().contains("query [count=1"));
+	}
+}
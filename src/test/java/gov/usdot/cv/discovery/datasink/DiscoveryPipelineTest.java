@@ -0,0 +1,231 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class DiscoveryPipelineTest {
+
+	private DatabaseHelper dbHelper;
+	private ResponseSender responseSender;
+	private ReceiptSender receiptSender;
+	private DiscoverModel model;
+
+	@Before
+	public void setup() throws Exception {
+		dbHelper = mock(DatabaseHelper.class);
+		responseSender = mock(ResponseSender.class);
+		receiptSender = mock(ReceiptSender.class);
+
+		RegistrationCursor result = RegistrationCursor.fromCollection(Collections.<RegistrationRecord>emptyList());
+		when(dbHelper.query(any(DiscoverModel.class))).thenReturn(result);
+		when(responseSender.encodeResponse(any(DiscoverModel.class), any(RegistrationCursor.class))).thenReturn(new byte[] { 1 });
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				((ResponseSender.DeliveryListener) invocation.getArguments()[2]).delivered((DiscoverModel) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(responseSender).sendPayload(any(DiscoverModel.class), any(byte[].class), any(ResponseSender.DeliveryListener.class));
+
+		model = loadModel();
+	}
+
+	@Test
+	public void testDrainAfterBurst() throws Exception {
+		// A queue capacity of 1 forces the caller runs backpressure path
+		DiscoveryPipeline pipeline = new DiscoveryPipeline(dbHelper, responseSender, receiptSender, 1, 2, 1, 2);
+		int requests = 200;
+		for (int i = 0; i < requests; i++) {
+			pipeline.submit(model);
+		}
+
+		assertTrue(pipeline.drain(10000));
+		assertEquals(0, pipeline.getInFlight());
+		verify(dbHelper, times(requests)).query(model);
+		verify(receiptSender, times(requests)).sendReceipt(model);
+		pipeline.shutdown(1000);
+	}
+
+	@Test
+	public void testFailedStageCompletesRequest() throws Exception {
+		doThrow(new IllegalStateException("send failed")).when(responseSender)
+			.sendPayload(any(DiscoverModel.class), any(byte[].class), any(ResponseSender.DeliveryListener.class));
+
+		DiscoveryPipeline pipeline = new DiscoveryPipeline(dbHelper, responseSender, receiptSender, 10, 1, 1, 1);
+		pipeline.submit(model);
+
+		assertTrue(pipeline.drain(10000));
+		verify(receiptSender, never()).sendReceipt(model);
+		pipeline.shutdown(1000);
+	}
+
+	@Test
+	public void testReceiptWaitsForDelivery() throws Exception {
+		final BlockingQueue<ResponseSender.DeliveryListener> pending = new LinkedBlockingQueue<ResponseSender.DeliveryListener>();
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				// Delivery is left to a retry
+				pending.add((ResponseSender.DeliveryListener) invocation.getArguments()[2]);
+				return null;
+			}
+		}).when(responseSender).sendPayload(any(DiscoverModel.class), any(byte[].class), any(ResponseSender.DeliveryListener.class));
+
+		DiscoveryPipeline pipeline = new DiscoveryPipeline(dbHelper, responseSender, receiptSender, 10, 1, 1, 1);
+		pipeline.submit(model);
+		pipeline.submit(model);
+		ResponseSender.DeliveryListener failed = pending.poll(10, TimeUnit.SECONDS);
+		ResponseSender.DeliveryListener delivered = pending.poll(10, TimeUnit.SECONDS);
+		assertTrue(! pipeline.drain(100));
+		verify(receiptSender, never()).sendReceipt(model);
+
+		failed.failed(model);
+		delivered.delivered(model);
+		assertTrue(pipeline.drain(10000));
+		verify(receiptSender, times(1)).sendReceipt(model);
+		pipeline.shutdown(1000);
+	}
+
+	@Test
+	public void testExpiredRequestIsShed() throws Exception {
+		DiscoveryPipeline pipeline = new DiscoveryPipeline(dbHelper, responseSender, receiptSender, 10, 1, 1, 1);
+		pipeline.setAdmissionController(new AdmissionController(100, 50, 1, 4));
+		pipeline.submit(model, System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+		pipeline.submit(model);
+
+		assertTrue(pipeline.drain(10000));
+		verify(dbHelper, times(1)).query(model);
+		verify(receiptSender, times(1)).sendReceipt(model);
+		pipeline.shutdown(1000);
+	}
+
+	@Test
+	public void testServiceLanes() throws Exception {
+		DiscoveryPipeline pipeline = new DiscoveryPipeline(dbHelper, responseSender, receiptSender, 10, 2, 1, 1);
+		pipeline.enableServiceLanes(1000, 1, 10, Collections.<Integer, Integer>emptyMap());
+		int requests = 100;
+		for (int i = 0; i < requests; i++) {
+			pipeline.submit(model);
+		}
+
+		assertTrue(pipeline.drain(10000));
+		verify(receiptSender, times(requests)).sendReceipt(model);
+		pipeline.shutdown(1000);
+		assertEquals(requests, pipeline.getServiceLanes().getLanes().get(0).getCompleted());
+	}
+
+	@Test
+	public void testBusyServiceDoesNotStarveOthers() throws Exception {
+		final List<Integer> queried = Collections.synchronizedList(new ArrayList<Integer>());
+		when(dbHelper.query(any(DiscoverModel.class))).thenAnswer(new Answer<RegistrationCursor>() {
+			public RegistrationCursor answer(InvocationOnMock invocation) throws Exception {
+				queried.add(((DiscoverModel) invocation.getArguments()[0]).serviceId);
+				Thread.sleep(5);
+				return RegistrationCursor.fromCollection(Collections.<RegistrationRecord>emptyList());
+			}
+		});
+		DiscoverModel busy = loadModel();
+		busy.serviceId = 1;
+		DiscoverModel quiet = loadModel();
+		quiet.serviceId = 2;
+
+		DiscoveryPipeline pipeline = new DiscoveryPipeline(dbHelper, responseSender, receiptSender, 10, 1, 1, 1);
+		pipeline.enableServiceLanes(1000, 1, 10, Collections.<Integer, Integer>emptyMap());
+		for (int i = 0; i < 40; i++) {
+			pipeline.submit(busy);
+		}
+		for (int i = 0; i < 4; i++) {
+			pipeline.submit(quiet);
+		}
+
+		assertTrue(pipeline.drain(10000));
+		assertEquals(44, queried.size());
+		// Round robin between the two lanes serves the quiet service in alternate turns rather than after the burst
+		assertTrue(queried.toString(), queried.lastIndexOf(2) < 12);
+		pipeline.shutdown(1000);
+
+		// Latency is recorded per lane once the request is done, after its receipt
+		List<ServiceLaneScheduler.Lane> lanes = pipeline.getServiceLanes().getLanes();
+		assertEquals(1, lanes.get(0).getServiceId());
+		assertEquals(40, lanes.get(0).getLatency().getCount());
+		assertEquals(2, lanes.get(1).getServiceId());
+		assertEquals(4, lanes.get(1).getLatency().getCount());
+	}
+
+	@Test
+	public void testDroppedEncodeClosesCursor() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean closed = new AtomicBoolean();
+		when(dbHelper.query(any(DiscoverModel.class))).thenAnswer(new Answer<RegistrationCursor>() {
+			public RegistrationCursor answer(InvocationOnMock invocation) {
+				// Outlast the query stage shutdown so that the encode stage is stopped by the time it returns
+				while (release.getCount() > 0) {
+					try {
+						release.await();
+					} catch (InterruptedException ignored) {
+					}
+				}
+				return new RegistrationCursor() {
+					public boolean hasNext() {
+						return false;
+					}
+					
+					public RegistrationRecord next() {
+						return null;
+					}
+					
+					public void close() {
+						closed.set(true);
+					}
+				};
+			}
+		});
+		
+		final DiscoveryPipeline pipeline = new DiscoveryPipeline(dbHelper, responseSender, receiptSender, 10, 1, 1, 1);
+		pipeline.submit(model);
+		Thread shutdown = new Thread() {
+			public void run() {
+				pipeline.shutdown(0);
+			}
+		};
+		shutdown.start();
+		shutdown.join(30000);
+		release.countDown();
+		
+		for (int i = 0; i < 500 && pipeline.getInFlight() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pipeline.getInFlight());
+		assertTrue(closed.get());
+		verify(responseSender, never()).encodeResponse(any(DiscoverModel.class), any(RegistrationCursor.class));
+	}
+
+	private static DiscoverModel loadModel() throws IOException {
+		String jsonFile = "src/test/resources/discover_good.json";
+		String json = FileUtils.readFileToString(new File(jsonFile));
+		return DiscoverModel.fromJSON(json);
+	}
+}
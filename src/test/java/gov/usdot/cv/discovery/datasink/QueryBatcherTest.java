@@ -0,0 +1,255 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class QueryBatcherTest {
+
+	private static final String REGION = "region";
+
+	// Newest first, as the database returns them
+	private static final List<DBObject> DOCUMENTS = Arrays.asList(
+			RegistrationIndexTest.registration("west", 2, 42.31, -83.09, 42.30, -83.08, 4000),
+			RegistrationIndexTest.registration("east", 2, 42.31, -83.01, 42.30, -83.00, 3000),
+			RegistrationIndexTest.registration("both", 2, 42.31, -83.09, 42.30, -83.00, 2000),
+			RegistrationIndexTest.registration("other", 3, 42.31, -83.09, 42.30, -83.00, 1000));
+
+	private final List<DBObject> queries = Collections.synchronizedList(new ArrayList<DBObject>());
+	private final CountDownLatch firstQueryStarted = new CountDownLatch(1);
+	private final CountDownLatch releaseFirstQuery = new CountDownLatch(1);
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private QueryBatcher batcher;
+
+	private final QueryBatcher.Finder finder = new QueryBatcher.Finder() {
+		public List<DBObject> find(DBObject query, DBObject projection, int limit) {
+			queries.add(query);
+			if (queries.size() == 1) {
+				firstQueryStarted.countDown();
+				try {
+					releaseFirstQuery.await();
+				} catch (InterruptedException ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+			// Stands in for the geospatial match, the batcher has to split the results itself
+			List<DBObject> documents = new ArrayList<DBObject>();
+			for (DBObject document : DOCUMENTS) {
+				Object serviceId = query.get(DatabaseHelper.SERVICE_ID_FIELD);
+				if (documents.size() < limit && (serviceId == null || serviceId.equals(document.get(DatabaseHelper.SERVICE_ID_FIELD)))) {
+					documents.add(document);
+				}
+			}
+			return documents;
+		}
+	};
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		if (batcher != null) {
+			batcher.close();
+		}
+	}
+
+	@Test
+	public void testRequestsQueuedTogetherShareOneQuery() throws Exception {
+		batcher = new QueryBatcher(finder, REGION, 1000, 3);
+
+		// The first request runs alone, the next three arrive while it is still being queried
+		Future<List<RegistrationRecord>> first = query(2, 42.32, -83.10, 42.29, -82.99, 10);
+		assertTrue(firstQueryStarted.await(5, TimeUnit.SECONDS));
+		Future<List<RegistrationRecord>> west = query(2, 42.32, -83.10, 42.29, -83.07, 10);
+		Future<List<RegistrationRecord>> east = query(2, 42.32, -83.02, 42.29, -82.99, 10);
+		Future<List<RegistrationRecord>> other = query(3, 42.32, -83.10, 42.29, -82.99, 10);
+		Thread.sleep(100);
+		releaseFirstQuery.countDown();
+
+		assertEquals(3, first.get(5, TimeUnit.SECONDS).size());
+		assertEquals(Arrays.asList("west", "both"), ids(west.get(5, TimeUnit.SECONDS)));
+		assertEquals(Arrays.asList("east", "both"), ids(east.get(5, TimeUnit.SECONDS)));
+		assertEquals(Arrays.asList("other"), ids(other.get(5, TimeUnit.SECONDS)));
+		assertEquals(2, queries.size());
+		assertTrue(queries.get(1).containsField("$or"));
+		assertEquals(2, batcher.getBatches());
+		assertEquals(0, batcher.getFallbacks());
+	}
+
+	@Test
+	public void testTruncatedBatchFallsBackToSingleQueries() throws Exception {
+		batcher = new QueryBatcher(finder, REGION, 1000, 2);
+
+		Future<List<RegistrationRecord>> first = query(2, 42.32, -83.10, 42.29, -82.99, 10);
+		assertTrue(firstQueryStarted.await(5, TimeUnit.SECONDS));
+		// The combined query is cut at two documents, both for service 2
+		Future<List<RegistrationRecord>> west = query(2, 42.32, -83.10, 42.29, -83.07, 1);
+		Future<List<RegistrationRecord>> other = query(3, 42.32, -83.10, 42.29, -82.99, 1);
+		Thread.sleep(100);
+		releaseFirstQuery.countDown();
+
+		first.get(5, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList("west"), ids(west.get(5, TimeUnit.SECONDS)));
+		assertEquals(Arrays.asList("other"), ids(other.get(5, TimeUnit.SECONDS)));
+		assertEquals(1, batcher.getFallbacks());
+	}
+
+	@Test
+	public void testRegionsAreMatchedExactly() throws Exception {
+		// A triangle whose envelope overlaps both boxes but whose shape only reaches the west one
+		BasicDBList ring = new BasicDBList();
+		ring.add(Arrays.asList(-83.09, 42.30));
+		ring.add(Arrays.asList(-83.09, 42.31));
+		ring.add(Arrays.asList(-83.00, 42.30));
+		ring.add(Arrays.asList(-83.09, 42.30));
+		BasicDBList coordinates = new BasicDBList();
+		coordinates.add(ring);
+		DBObject triangle = RegistrationIndexTest.registration("triangle", 2, 42.31, -83.09, 42.30, -83.00, 5000);
+		triangle.put(REGION, new BasicDBObject("type", "Polygon").append("coordinates", coordinates));
+		final List<DBObject> documents = Arrays.asList(triangle);
+
+		batcher = new QueryBatcher(new QueryBatcher.Finder() {
+			public List<DBObject> find(DBObject query, DBObject projection, int limit) {
+				queries.add(query);
+				return documents;
+			}
+		}, REGION, 1000, 2);
+		Future<List<RegistrationRecord>> west = query(2, 42.32, -83.10, 42.29, -83.07, 10);
+		Future<List<RegistrationRecord>> east = query(2, 42.32, -83.02, 42.3095, -82.99, 10);
+
+		assertEquals(Arrays.asList("triangle"), ids(west.get(5, TimeUnit.SECONDS)));
+		assertEquals(Collections.emptyList(), ids(east.get(5, TimeUnit.SECONDS)));
+		assertEquals(1, queries.size());
+		assertEquals(0, batcher.getFallbacks());
+	}
+
+	@Test
+	public void testUnreadableRegionFallsBackToSingleQueries() throws Exception {
+		DBObject malformed = RegistrationIndexTest.registration("malformed", 2, 42.31, -83.09, 42.30, -83.00, 3500);
+		malformed.put(REGION, new BasicDBObject("type", "Polygon").append("coordinates", "42.31,-83.09"));
+		final List<DBObject> documents = Arrays.asList(DOCUMENTS.get(0), malformed, DOCUMENTS.get(3));
+
+		batcher = new QueryBatcher(new QueryBatcher.Finder() {
+			public List<DBObject> find(DBObject query, DBObject projection, int limit) {
+				queries.add(query);
+				// Single queries get the documents of their service, as the database would match them
+				Object serviceId = query.get(DatabaseHelper.SERVICE_ID_FIELD);
+				List<DBObject> result = new ArrayList<DBObject>();
+				for (DBObject document : documents) {
+					if (serviceId == null || serviceId.equals(document.get(DatabaseHelper.SERVICE_ID_FIELD))) {
+						result.add(document);
+					}
+				}
+				return result;
+			}
+		}, REGION, 1000, 3);
+		Future<List<RegistrationRecord>> west = query(2, 42.32, -83.10, 42.29, -83.07, 10);
+		Future<List<RegistrationRecord>> east = query(2, 42.32, -83.02, 42.29, -82.99, 10);
+		Future<List<RegistrationRecord>> other = query(3, 42.32, -83.10, 42.29, -82.99, 10);
+
+		// The malformed region isn't dropped, the requests of its service are queried on their own
+		assertEquals(Arrays.asList("west", "malformed"), ids(west.get(5, TimeUnit.SECONDS)));
+		assertEquals(Arrays.asList("west", "malformed"), ids(east.get(5, TimeUnit.SECONDS)));
+		assertEquals(Arrays.asList("other"), ids(other.get(5, TimeUnit.SECONDS)));
+		assertEquals(3, queries.size());
+		assertTrue(queries.get(0).containsField("$or"));
+		assertEquals(1, batcher.getUnreadable());
+		assertEquals(2, batcher.getFallbacks());
+	}
+
+	@Test
+	public void testBatchesAreQueriedConcurrently() throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final CountDownLatch secondBatchStarted = new CountDownLatch(2);
+		batcher = new QueryBatcher(new QueryBatcher.Finder() {
+			public List<DBObject> find(DBObject query, DBObject projection, int limit) {
+				int now = running.incrementAndGet();
+				maxRunning.set(Math.max(maxRunning.get(), now));
+				secondBatchStarted.countDown();
+				try {
+					// The first batch is held until the second one reaches the database
+					secondBatchStarted.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					throw new IllegalStateException(ex);
+				} finally {
+					running.decrementAndGet();
+				}
+				return Collections.emptyList();
+			}
+		}, REGION, 1000, 2);
+
+		List<Future<List<RegistrationRecord>>> results = new ArrayList<Future<List<RegistrationRecord>>>();
+		for (int i = 0; i < 4; i++) {
+			results.add(query(2, 42.32, -83.10, 42.29, -82.99, 10));
+		}
+		for (Future<List<RegistrationRecord>> result : results) {
+			assertEquals(0, result.get(10, TimeUnit.SECONDS).size());
+		}
+		assertEquals(2, batcher.getBatches());
+		assertEquals(2, maxRunning.get());
+	}
+
+	@Test
+	public void testErrorFailsTheBatch() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		batcher = new QueryBatcher(new QueryBatcher.Finder() {
+			public List<DBObject> find(DBObject query, DBObject projection, int limit) {
+				if (calls.incrementAndGet() == 1) {
+					throw new LinkageError("broken");
+				}
+				return Collections.emptyList();
+			}
+		}, REGION, 1000, 2);
+
+		Future<List<RegistrationRecord>> first = query(2, 42.32, -83.10, 42.29, -83.07, 10);
+		Future<List<RegistrationRecord>> second = query(2, 42.32, -83.02, 42.29, -82.99, 10);
+		int failed = 0;
+		for (Future<List<RegistrationRecord>> result : Arrays.asList(first, second)) {
+			try {
+				result.get(5, TimeUnit.SECONDS);
+			} catch (ExecutionException ex) {
+				failed++;
+			}
+		}
+		assertEquals(2, failed);
+
+		// The batcher keeps working
+		assertEquals(0, query(2, 42.32, -83.10, 42.29, -82.99, 10).get(5, TimeUnit.SECONDS).size());
+	}
+
+	private Future<List<RegistrationRecord>> query(final int serviceId, final double nwLat, final double nwLon,
+			final double seLat, final double seLon, final int limit) {
+		return executor.submit(new Callable<List<RegistrationRecord>>() {
+			public List<RegistrationRecord> call() {
+				return batcher.query(serviceId, nwLat, nwLon, seLat, seLon, limit);
+			}
+		});
+	}
+
+	private static List<Object> ids(List<RegistrationRecord> records) {
+		List<Object> ids = new ArrayList<Object>();
+		for (RegistrationRecord record : records) {
+			ids.add(record.getId());
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,109 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class QueryCoalescerTest {
+
+	private static final List<RegistrationRecord> RESULT = Arrays.asList(
+			new RegistrationRecord(1, 1L, "AAAA"), new RegistrationRecord(2, 2L, "BBBB"));
+
+	@Test
+	public void testConcurrentRequestsShareOneQuery() throws Exception {
+		final QueryCoalescer coalescer = new QueryCoalescer();
+		final QueryKey key = QueryKey.fromModel(QueryResultCacheTest.model(2, 42.3, -83.7, 42.2, -83.6), 1000);
+		final AtomicInteger executions = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<List<RegistrationRecord>> query = new Callable<List<RegistrationRecord>>() {
+			public List<RegistrationRecord> call() throws Exception {
+				executions.incrementAndGet();
+				started.countDown();
+				release.await();
+				return RESULT;
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		try {
+			List<Future<RegistrationCursor>> cursors = new ArrayList<Future<RegistrationCursor>>();
+			Callable<RegistrationCursor> request = new Callable<RegistrationCursor>() {
+				public RegistrationCursor call() {
+					return coalescer.query(key, query);
+				}
+			};
+			cursors.add(executor.submit(request));
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 4; i++) {
+				cursors.add(executor.submit(request));
+			}
+			while (coalescer.getCoalesced() < 4) {
+				Thread.sleep(5);
+			}
+			release.countDown();
+
+			RegistrationCursor first = cursors.get(0).get(5, TimeUnit.SECONDS);
+			assertNotNull(first.getSharedDecodes());
+			for (Future<RegistrationCursor> cursor : cursors) {
+				RegistrationCursor result = cursor.get(5, TimeUnit.SECONDS);
+				assertEquals(RESULT, result.toList());
+				assertSame(first.getSharedDecodes(), result.getSharedDecodes());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, executions.get());
+		assertEquals(1, coalescer.getQueries());
+		assertEquals(0, coalescer.getInFlight());
+	}
+
+	@Test
+	public void testCompletedQueriesAreNotReused() {
+		QueryCoalescer coalescer = new QueryCoalescer();
+		QueryKey key = QueryKey.fromModel(QueryResultCacheTest.model(2, 42.3, -83.7, 42.2, -83.6), 1000);
+		final AtomicInteger executions = new AtomicInteger();
+		Callable<List<RegistrationRecord>> query = new Callable<List<RegistrationRecord>>() {
+			public List<RegistrationRecord> call() {
+				executions.incrementAndGet();
+				return RESULT;
+			}
+		};
+		coalescer.query(key, query);
+		coalescer.query(key, query);
+		assertEquals(2, executions.get());
+		assertEquals(0, coalescer.getCoalesced());
+	}
+
+	@Test
+	public void testFailureIsThrownToTheCaller() {
+		QueryCoalescer coalescer = new QueryCoalescer();
+		QueryKey key = QueryKey.fromModel(QueryResultCacheTest.model(2, 42.3, -83.7, 42.2, -83.6), 1000);
+		try {
+			coalescer.query(key, new Callable<List<RegistrationRecord>>() {
+				public List<RegistrationRecord> call() {
+					throw new IllegalArgumentException("bad box");
+				}
+			});
+			fail("Expected the query failure");
+		} catch (IllegalArgumentException ex) {
+			assertEquals("bad box", ex.getMessage());
+		}
+		assertEquals(0, coalescer.getInFlight());
+	}
+}
@@ -0,0 +1,88 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class QueryResultCacheTest {
+
+	@Test
+	public void testKeySnapsOutward() {
+		DiscoverModel a = model(2, 42.30001, -83.70001, 42.20001, -83.60001);
+		DiscoverModel b = model(2, 42.30049, -83.70049, 42.20049, -83.60049);
+		QueryKey keyA = QueryKey.fromModel(a, 1000);
+		QueryKey keyB = QueryKey.fromModel(b, 1000);
+		assertEquals(keyA, keyB);
+		assertEquals(keyA.hashCode(), keyB.hashCode());
+
+		assertTrue(keyA.getNWLat() >= a.nwPos.lat);
+		assertTrue(keyA.getNWLon() <= a.nwPos.lon);
+		assertTrue(keyA.getSELat() <= a.sePos.lat);
+		assertTrue(keyA.getSELon() >= a.sePos.lon);
+
+		assertTrue(! keyA.equals(QueryKey.fromModel(model(3, 42.30001, -83.70001, 42.20001, -83.60001), 1000)));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		QueryResultCache cache = new QueryResultCache(2, 60000);
+		QueryKey k1 = QueryKey.fromModel(model(1, 42.3, -83.7, 42.2, -83.6), 1000);
+		QueryKey k2 = QueryKey.fromModel(model(2, 42.3, -83.7, 42.2, -83.6), 1000);
+		QueryKey k3 = QueryKey.fromModel(model(3, 42.3, -83.7, 42.2, -83.6), 1000);
+
+		cache.put(k1, result(), cache.getGeneration());
+		cache.put(k2, result(), cache.getGeneration());
+		assertNotNull(cache.get(k1));
+		cache.put(k3, result(), cache.getGeneration());
+
+		assertNull(cache.get(k2));
+		assertNotNull(cache.get(k1));
+		assertNotNull(cache.get(k3));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testInvalidationDiscardsInFlightResult() {
+		QueryResultCache cache = new QueryResultCache(10, 60000);
+		QueryKey key = QueryKey.fromModel(model(1, 42.3, -83.7, 42.2, -83.6), 1000);
+
+		long generation = cache.getGeneration();
+		cache.invalidateAll();
+		cache.put(key, result(), generation);
+		assertNull(cache.get(key));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testExpiredEntry() throws InterruptedException {
+		QueryResultCache cache = new QueryResultCache(10, 1);
+		QueryKey key = QueryKey.fromModel(model(1, 42.3, -83.7, 42.2, -83.6), 1000);
+		cache.put(key, result(), cache.getGeneration());
+		Thread.sleep(5);
+		assertNull(cache.get(key));
+	}
+
+	private static List<RegistrationRecord> result() {
+		return new ArrayList<RegistrationRecord>();
+	}
+
+	static DiscoverModel model(int serviceId, double nwLat, double nwLon, double seLat, double seLon) {
+		DiscoverModel model = new DiscoverModel();
+		model.serviceId = serviceId;
+		model.nwPos = new DiscoverModel.Position();
+		model.nwPos.lat = nwLat;
+		model.nwPos.lon = nwLon;
+		model.sePos = new DiscoverModel.Position();
+		model.sePos.lat = seLat;
+		model.sePos.lon = seLon;
+		return model;
+	}
+}
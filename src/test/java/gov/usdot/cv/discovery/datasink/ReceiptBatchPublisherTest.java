@@ -0,0 +1,105 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReceiptBatchPublisherTest {
+
+	private static final String BROKER_URL = "vm://receipts?create=false";
+	private static final String TOPIC = "cv.receipts";
+
+	private BrokerService broker;
+	private Connection connection;
+	private MessageConsumer consumer;
+
+	@Before
+	public void startBroker() throws Exception {
+		broker = new BrokerService();
+		broker.setBrokerName("receipts");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.start();
+		broker.waitUntilStarted();
+
+		connection = new ActiveMQConnectionFactory(BROKER_URL).createConnection();
+		connection.start();
+		Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		consumer = session.createConsumer(session.createTopic(TOPIC));
+	}
+
+	@After
+	public void stopBroker() throws Exception {
+		connection.close();
+		broker.stop();
+		broker.waitUntilStopped();
+	}
+
+	@Test
+	public void testPublishesAllReceiptsInBatches() throws Exception {
+		ReceiptBatchPublisher publisher = new ReceiptBatchPublisher(BROKER_URL, null, null, TOPIC, 100, 10, 50, 1000);
+		int count = 55;
+		for (int i = 0; i < count; i++) {
+			assertTrue(publisher.publish("receipt-" + i));
+		}
+
+		Set<String> received = new HashSet<String>();
+		for (int i = 0; i < count; i++) {
+			TextMessage message = (TextMessage) consumer.receive(5000);
+			assertNotNull("Missing receipt " + i, message);
+			received.add(message.getText());
+		}
+		assertEquals(count, received.size());
+
+		publisher.close(5000);
+		assertEquals(count, publisher.getPublished());
+		assertTrue(publisher.getBatches() >= count / 10);
+		assertTrue(publisher.getBatches() < count);
+		assertEquals(0, publisher.getDropped());
+	}
+
+	@Test
+	public void testCloseFlushesQueuedReceipts() throws Exception {
+		// Long flush interval, only closing the publisher sends the partial batch
+		ReceiptBatchPublisher publisher = new ReceiptBatchPublisher(BROKER_URL, null, null, TOPIC, 100, 50, 60000, 1000);
+		for (int i = 0; i < 3; i++) {
+			publisher.publish("receipt-" + i);
+		}
+		long start = System.currentTimeMillis();
+		publisher.close(60000);
+		assertTrue("Close waits out the flush interval", System.currentTimeMillis() - start < 10000);
+		assertEquals(3, publisher.getPublished());
+		assertEquals(0, publisher.getDropped());
+		for (int i = 0; i < 3; i++) {
+			assertNotNull(consumer.receive(5000));
+		}
+		assertFalse("Closed publisher accepts no receipts", publisher.publish("late"));
+	}
+
+	@Test
+	public void testUnpublishedReceiptsAreCounted() throws Exception {
+		ReceiptBatchPublisher publisher = new ReceiptBatchPublisher("vm://missing?create=false", null, null, TOPIC, 100, 10, 10, 1000);
+		int count = 25;
+		for (int i = 0; i < count; i++) {
+			assertTrue(publisher.publish("receipt-" + i));
+		}
+		publisher.close(5000);
+		assertEquals(0, publisher.getPublished());
+		assertEquals(count, publisher.getDropped());
+	}
+}
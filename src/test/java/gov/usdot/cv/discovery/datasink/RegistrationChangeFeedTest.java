@@ -0,0 +1,299 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class RegistrationChangeFeedTest {
+
+	// In memory stand-in for the registration collection
+	static class MemoryReader implements PollingChangeSource.Reader {
+		final Map<Object, DBObject> documents = new LinkedHashMap<Object, DBObject>();
+
+		synchronized void put(int id, long timestamp, String encoded) {
+			documents.put(id, new BasicDBObject(RegistrationIndex.ID_FIELD, id)
+				.append(DatabaseHelper.TIMESTAMP_FIELD, timestamp)
+				.append(RegistrationRecord.ENCODED_MSG_FIELD, encoded));
+		}
+
+		synchronized void delete(int id) {
+			documents.remove(id);
+		}
+
+		public synchronized List<DBObject> findSince(Object timestamp) {
+			List<DBObject> result = new ArrayList<DBObject>();
+			for (DBObject document : documents.values()) {
+				if (timestamp == null || RegistrationIndex.compareTimestamps(document.get(DatabaseHelper.TIMESTAMP_FIELD), timestamp) >= 0) {
+					result.add(document);
+				}
+			}
+			Collections.sort(result, new Comparator<DBObject>() {
+				public int compare(DBObject a, DBObject b) {
+					return RegistrationIndex.compareTimestamps(a.get(DatabaseHelper.TIMESTAMP_FIELD), b.get(DatabaseHelper.TIMESTAMP_FIELD));
+				}
+			});
+			return result;
+		}
+
+		public synchronized Set<Object> findIds() {
+			return new HashSet<Object>(documents.keySet());
+		}
+
+		public String getTimestampFieldName() {
+			return DatabaseHelper.TIMESTAMP_FIELD;
+		}
+	}
+
+	/**
+	 * Fails the next read of the collection when told to.
+	 */
+	static class FailingReader extends MemoryReader {
+		boolean failNext;
+
+		public synchronized List<DBObject> findSince(Object timestamp) {
+			if (failNext) {
+				failNext = false;
+				throw new IllegalStateException("connection lost");
+			}
+			return super.findSince(timestamp);
+		}
+	}
+
+	private static class QueueListener implements RegistrationChangeFeed.Listener {
+		final BlockingQueue<RegistrationChange> changes = new LinkedBlockingQueue<RegistrationChange>();
+
+		public void registrationsChanged(List<RegistrationChange> batch) {
+			changes.addAll(batch);
+		}
+
+		RegistrationChange next() throws InterruptedException {
+			return changes.poll(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testPollingDetectsInsertsUpdatesAndDeletes() throws Exception {
+		MemoryReader reader = new MemoryReader();
+		reader.put(1, 100L, "AAAA");
+		reader.put(2, 100L, "BBBB");
+
+		PollingChangeSource source = new PollingChangeSource(reader, 0);
+		source.open(null);
+		assertTrue("existing documents are the baseline", source.poll(10, 0).isEmpty());
+
+		reader.put(3, 200L, "CCCC");
+		reader.put(1, 300L, "AAAB");
+		List<RegistrationChange> changes = source.poll(10, 0);
+		assertEquals(2, changes.size());
+		assertEquals(RegistrationChange.Type.INSERT, changes.get(0).getType());
+		assertEquals(3, changes.get(0).getId());
+		assertEquals(RegistrationChange.Type.UPDATE, changes.get(1).getType());
+		assertEquals(1, changes.get(1).getId());
+		assertEquals("AAAB", changes.get(1).getDocument().get(RegistrationRecord.ENCODED_MSG_FIELD));
+		assertTrue(changes.get(0).getToken().compareTo(changes.get(1).getToken()) < 0);
+
+		reader.delete(2);
+		List<RegistrationChange> deletes = new ArrayList<RegistrationChange>();
+		for (int i = 0; i < 10 && deletes.isEmpty(); i++) {
+			deletes.addAll(source.poll(10, 0));
+		}
+		assertEquals(1, deletes.size());
+		assertEquals(RegistrationChange.Type.DELETE, deletes.get(0).getType());
+		assertEquals(2, deletes.get(0).getId());
+		assertNull(deletes.get(0).getDocument());
+	}
+
+	@Test
+	public void testPollingResumesAfterToken() throws Exception {
+		MemoryReader reader = new MemoryReader();
+		reader.put(1, 100L, "AAAA");
+		reader.put(2, 200L, "BBBB");
+		reader.put(3, 300L, "CCCC");
+
+		PollingChangeSource source = new PollingChangeSource(reader, 0);
+		source.open(new ChangeToken(ChangeToken.POLLING, 200L));
+		List<RegistrationChange> changes = source.poll(1, 0);
+		assertEquals(1, changes.size());
+		assertEquals(2, changes.get(0).getId());
+		changes = source.poll(1, 0);
+		assertEquals(1, changes.size());
+		assertEquals(3, changes.get(0).getId());
+	}
+
+	@Test
+	public void testPollingReopenPublishesChangesWhileClosed() throws Exception {
+		MemoryReader reader = new MemoryReader();
+		reader.put(1, 100L, "AAAA");
+		reader.put(2, 200L, "BBBB");
+		reader.put(3, 300L, "CCCC");
+
+		PollingChangeSource source = new PollingChangeSource(reader, 0);
+		ChangeToken token = source.open(null);
+		assertEquals(new ChangeToken(ChangeToken.POLLING, 300L), token);
+		source.close();
+
+		reader.delete(2);
+		reader.put(3, 400L, "CCCD");
+		reader.put(4, 400L, "DDDD");
+		source.open(token);
+		List<RegistrationChange> changes = source.poll(10, 0);
+		assertEquals(3, changes.size());
+		assertEquals(RegistrationChange.Type.UPDATE, changes.get(0).getType());
+		assertEquals(3, changes.get(0).getId());
+		assertEquals(RegistrationChange.Type.INSERT, changes.get(1).getType());
+		assertEquals(4, changes.get(1).getId());
+		assertEquals(RegistrationChange.Type.DELETE, changes.get(2).getType());
+		assertEquals(2, changes.get(2).getId());
+	}
+
+	@Test
+	public void testFeedPublishesDeleteMadeWhileSourceFails() throws Exception {
+		FailingReader reader = new FailingReader();
+		reader.put(1, 100L, "AAAA");
+		reader.put(2, 200L, "BBBB");
+		RegistrationChangeFeed feed = new RegistrationChangeFeed(new PollingChangeSource(reader, 10), 10);
+		QueueListener listener = new QueueListener();
+		feed.addListener(listener);
+		feed.start();
+		try {
+			// The next poll fails and the feed reopens the source, which finds the delete
+			synchronized (reader) {
+				reader.failNext = true;
+				reader.delete(2);
+			}
+			RegistrationChange change = listener.next();
+			assertEquals(RegistrationChange.Type.DELETE, change.getType());
+			assertEquals(2, change.getId());
+			assertEquals(1, feed.getFailures());
+		} finally {
+			feed.stop();
+		}
+	}
+
+	@Test
+	public void testFeedPublishesChangesInOrder() throws Exception {
+		MemoryReader reader = new MemoryReader();
+		reader.put(1, 100L, "AAAA");
+		RegistrationChangeFeed feed = new RegistrationChangeFeed(new PollingChangeSource(reader, 10), 10);
+		QueueListener listener = new QueueListener();
+		feed.addListener(listener);
+		feed.start();
+		try {
+			for (int i = 2; i <= 5; i++) {
+				reader.put(i, 100L * i, "AAAA");
+			}
+			for (int i = 2; i <= 5; i++) {
+				RegistrationChange change = listener.next();
+				assertEquals(RegistrationChange.Type.INSERT, change.getType());
+				assertEquals(i, change.getId());
+			}
+			while (! new ChangeToken(ChangeToken.POLLING, 500L).equals(feed.getLastToken())) {
+				Thread.sleep(5);
+			}
+			assertEquals(4, feed.getChanges());
+		} finally {
+			feed.stop();
+		}
+	}
+
+	@Test
+	public void testFeedResumesAfterLastTokenWhenSourceFails() throws Exception {
+		final List<ChangeToken> opened = Collections.synchronizedList(new ArrayList<ChangeToken>());
+		final BlockingQueue<Object> script = new LinkedBlockingQueue<Object>(Arrays.<Object>asList(
+				new RegistrationChange(RegistrationChange.Type.INSERT, 1, new BasicDBObject(), new ChangeToken(ChangeToken.OPLOG, 1L)),
+				new IllegalStateException("cursor lost"),
+				new RegistrationChange(RegistrationChange.Type.DELETE, 1, null, new ChangeToken(ChangeToken.OPLOG, 2L))));
+		RegistrationChangeFeed.Source source = new RegistrationChangeFeed.Source() {
+			public ChangeToken open(ChangeToken resumeAfter) {
+				opened.add(resumeAfter);
+				return resumeAfter != null ? resumeAfter : new ChangeToken(ChangeToken.OPLOG, 0L);
+			}
+
+			public List<RegistrationChange> poll(int maxChanges, long waitMs) throws InterruptedException {
+				Object next = script.poll(waitMs, TimeUnit.MILLISECONDS);
+				if (next instanceof RuntimeException) {
+					throw (RuntimeException) next;
+				}
+				return next == null ? Collections.<RegistrationChange>emptyList() : Arrays.asList((RegistrationChange) next);
+			}
+
+			public void close() {
+			}
+		};
+
+		RegistrationChangeFeed feed = new RegistrationChangeFeed(source, 1);
+		QueueListener listener = new QueueListener();
+		feed.addListener(listener);
+		feed.addListener(new RegistrationChangeFeed.Listener() {
+			public void registrationsChanged(List<RegistrationChange> changes) {
+				throw new RuntimeException("listener failures don't stop the feed");
+			}
+		});
+		feed.start();
+		try {
+			assertEquals(RegistrationChange.Type.INSERT, listener.next().getType());
+			assertEquals(RegistrationChange.Type.DELETE, listener.next().getType());
+			assertEquals(Arrays.asList(null, new ChangeToken(ChangeToken.OPLOG, 1L)), opened);
+			assertEquals(1, feed.getFailures());
+		} finally {
+			feed.stop();
+		}
+	}
+
+	@Test
+	public void testFeedResumesFromOpeningPositionBeforeFirstChange() throws Exception {
+		final List<ChangeToken> opened = Collections.synchronizedList(new ArrayList<ChangeToken>());
+		final BlockingQueue<Object> script = new LinkedBlockingQueue<Object>(Arrays.<Object>asList(
+				new IllegalStateException("cursor lost"),
+				new RegistrationChange(RegistrationChange.Type.INSERT, 1, new BasicDBObject(), new ChangeToken(ChangeToken.OPLOG, 8L))));
+		RegistrationChangeFeed.Source source = new RegistrationChangeFeed.Source() {
+			public ChangeToken open(ChangeToken resumeAfter) {
+				opened.add(resumeAfter);
+				// The end of the changes when the feed starts
+				return resumeAfter != null ? resumeAfter : new ChangeToken(ChangeToken.OPLOG, 7L);
+			}
+
+			public List<RegistrationChange> poll(int maxChanges, long waitMs) throws InterruptedException {
+				Object next = script.poll(waitMs, TimeUnit.MILLISECONDS);
+				if (next instanceof RuntimeException) {
+					throw (RuntimeException) next;
+				}
+				return next == null ? Collections.<RegistrationChange>emptyList() : Arrays.asList((RegistrationChange) next);
+			}
+
+			public void close() {
+			}
+		};
+
+		RegistrationChangeFeed feed = new RegistrationChangeFeed(source, 1);
+		QueueListener listener = new QueueListener();
+		feed.addListener(listener);
+		feed.start();
+		try {
+			assertEquals(new ChangeToken(ChangeToken.OPLOG, 7L), feed.getLastToken());
+			assertEquals(RegistrationChange.Type.INSERT, listener.next().getType());
+			// Reopened where the feed started rather than at the end of the changes at the time of the failure
+			assertEquals(Arrays.asList(null, new ChangeToken(ChangeToken.OPLOG, 7L)), opened);
+		} finally {
+			feed.stop();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+public class RegistrationIndexTest {
+
+	private static final String SERVICE_ID = DatabaseHelper.SERVICE_ID_FIELD;
+	private static final String REGION = "region";
+	private static final String TIMESTAMP = DatabaseHelper.TIMESTAMP_FIELD;
+	// Low enough that the larger boxes reach it
+	private static final int MONGO_QUERY_LIMIT = 10;
+
+	@Test
+	public void testMatchesLinearScan() {
+		assertMatchesLinearScan(0);
+	}
+
+	@Test
+	public void testTilesMatchLinearScan() {
+		// Large regions span several level 6 tiles and too many level 12 tiles to be bucketed
+		assertMatchesLinearScan(6);
+		assertMatchesLinearScan(12);
+	}
+
+	private static void assertMatchesLinearScan(int tileLevel) {
+		Random random = new Random(42);
+		List<DBObject> documents = registrations(random);
+		RegistrationIndex index = new RegistrationIndex(null, SERVICE_ID, REGION, TIMESTAMP);
+		index.setTileLevel(tileLevel);
+		for (DBObject document : documents) {
+			index.upsert(document);
+		}
+		index.rebuild();
+
+		for (int i = 0; i < 200; i++) {
+			DiscoverModel box = randomBox(random);
+			List<RegistrationRecord> expected = linearScan(documents, box.serviceId, 
+					box.nwPos.lat, box.nwPos.lon, box.sePos.lat, box.sePos.lon, 25);
+			List<RegistrationRecord> actual = index.query(box.serviceId, 
+					box.nwPos.lat, box.nwPos.lon, box.sePos.lat, box.sePos.lon, 25);
+			assertEquals(expected, actual);
+		}
+	}
+
+	/**
+	 * @return 2000 registrations of services 1 to 3 with small regions and, every hundredth, a large one
+	 */
+	private static List<DBObject> registrations(Random random) {
+		List<DBObject> documents = new ArrayList<DBObject>();
+		for (int i = 0; i < 2000; i++) {
+			double lat = 40 + random.nextDouble() * 4;
+			double lon = -86 + random.nextDouble() * 5;
+			double size = i % 100 == 0 ? 20 : random.nextDouble() * 0.2;
+			documents.add(registration(i, 1 + random.nextInt(3), lat + size, lon, lat, lon + size, i * 1000L));
+		}
+		return documents;
+	}
+
+	private static DiscoverModel randomBox(Random random) {
+		int serviceId = 1 + random.nextInt(3);
+		double seLat = 40 + random.nextDouble() * 4;
+		double nwLon = -86 + random.nextDouble() * 5;
+		double nwLat = seLat + random.nextDouble() * 0.5;
+		double seLon = nwLon + random.nextDouble() * 0.5;
+		return QueryResultCacheTest.model(serviceId, nwLat, nwLon, seLat, seLon);
+	}
+
+	@Test
+	public void testUpsertMovesRegistration() {
+		RegistrationIndex index = new RegistrationIndex(null, SERVICE_ID, REGION, TIMESTAMP);
+		index.upsert(registration(1, 2, 42.3, -83.7, 42.2, -83.6, 1000L));
+		index.rebuild();
+		assertEquals(1, index.query(2, 42.35, -83.75, 42.25, -83.65, 10).size());
+
+		index.upsert(registration(1, 2, 43.3, -84.7, 43.2, -84.6, 2000L));
+		index.rebuild();
+		assertEquals(0, index.query(2, 42.35, -83.75, 42.25, -83.65, 10).size());
+		assertEquals(1, index.query(2, 43.35, -84.75, 43.25, -84.65, 10).size());
+
+		index.remove(1);
+		index.rebuild();
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testApplyChanges() {
+		RegistrationIndex index = new RegistrationIndex(null, SERVICE_ID, REGION, TIMESTAMP);
+		DBObject first = registration(1, 2, 42.3, -83.7, 42.2, -83.6, 1000L);
+		DBObject moved = registration(1, 2, 43.3, -84.7, 43.2, -84.6, 2000L);
+		DBObject second = registration(2, 2, 42.3, -83.7, 42.2, -83.6, 3000L);
+		index.apply(Arrays.asList(
+				new RegistrationChange(RegistrationChange.Type.INSERT, 1, first, new ChangeToken(ChangeToken.POLLING, 1000L)),
+				new RegistrationChange(RegistrationChange.Type.UPDATE, 1, moved, new ChangeToken(ChangeToken.POLLING, 2000L)),
+				new RegistrationChange(RegistrationChange.Type.INSERT, 2, second, new ChangeToken(ChangeToken.POLLING, 3000L))));
+		assertEquals(2, index.size());
+		assertEquals(1, index.query(2, 42.35, -83.75, 42.25, -83.65, 10).size());
+		assertEquals(1, index.query(2, 43.35, -84.75, 43.25, -84.65, 10).size());
+
+		index.apply(Arrays.asList(
+				new RegistrationChange(RegistrationChange.Type.DELETE, 2, null, new ChangeToken(ChangeToken.POLLING, 3000L))));
+		assertEquals(1, index.size());
+		assertEquals(0, index.query(2, 42.35, -83.75, 42.25, -83.65, 10).size());
+	}
+
+	/**
+	 * Compares the index with $geoIntersects over the same registrations and boxes, including
+	 * order and the query limit, when a server is given with -DmongoServerHost. The registrations
+	 * are written to a collection of their own that is dropped afterwards.
+	 */
+	@Test
+	public void testMatchesMongo() throws Exception {
+		String mongoServerHost = System.getProperty("mongoServerHost");
+		assumeNotNull(mongoServerHost);
+
+		String collectionName = "registrationIndexTest" + System.currentTimeMillis();
+		MongoClient mongoClient = new MongoClient(mongoServerHost, 27017);
+		DBCollection collection = mongoClient.getDB("cvdb").getCollection(collectionName);
+		DatabaseHelper mongoPath = null;
+		DatabaseHelper indexPath = null;
+		try {
+			Random random = new Random(42);
+			collection.insert(registrations(random));
+			collection.createIndex(new BasicDBObject(REGION, "2dsphere"));
+
+			mongoPath = new DatabaseHelper(mongoServerHost, 27017, "cvdb", true, 0, collectionName, REGION);
+			mongoPath.setQueryLimit(MONGO_QUERY_LIMIT);
+			indexPath = new DatabaseHelper(mongoServerHost, 27017, "cvdb", true, 0, collectionName, REGION);
+			indexPath.setQueryLimit(MONGO_QUERY_LIMIT);
+			indexPath.enableRegistrationIndex(60000);
+
+			int limited = 0;
+			for (int i = 0; i < 200; i++) {
+				DiscoverModel box = randomBox(random);
+				List<RegistrationRecord> expected = mongoPath.query(box).toList();
+				assertEquals("Box " + i, expected, indexPath.query(box).toList());
+				if (expected.size() == MONGO_QUERY_LIMIT) {
+					limited++;
+				}
+			}
+			// The boxes must exercise the limit as well as ordinary results
+			assertTrue(limited > 0 && limited < 200);
+		} finally {
+			if (mongoPath != null) {
+				mongoPath.close();
+			}
+			if (indexPath != null) {
+				indexPath.close();
+			}
+			collection.drop();
+			mongoClient.close();
+		}
+	}
+
+	private static List<RegistrationRecord> linearScan(List<DBObject> documents, int serviceId,
+			double nwLat, double nwLon, double seLat, double seLon, int limit) {
+		List<DBObject> matches = new ArrayList<DBObject>();
+		for (DBObject document : documents) {
+			if (((Number) document.get(SERVICE_ID)).intValue() != serviceId) {
+				continue;
+			}
+			BasicDBList ring = (BasicDBList) ((BasicDBList) ((DBObject) document.get(REGION)).get("coordinates")).get(0);
+			double north = (Double) ((BasicDBList) ring.get(0)).get(1);
+			double west = (Double) ((BasicDBList) ring.get(0)).get(0);
+			double south = (Double) ((BasicDBList) ring.get(2)).get(1);
+			double east = (Double) ((BasicDBList) ring.get(2)).get(0);
+			if (south <= nwLat && north >= seLat && west <= seLon && east >= nwLon) {
+				matches.add(document);
+			}
+		}
+		Collections.sort(matches, new Comparator<DBObject>() {
+			public int compare(DBObject a, DBObject b) {
+				return ((Date) b.get(TIMESTAMP)).compareTo((Date) a.get(TIMESTAMP));
+			}
+		});
+		List<RegistrationRecord> records = new ArrayList<RegistrationRecord>();
+		for (DBObject document : matches.subList(0, Math.min(limit, matches.size()))) {
+			records.add(RegistrationRecord.fromDocument(document));
+		}
+		return records;
+	}
+
+	static DBObject registration(Object id, int serviceId, double nwLat, double nwLon,
+			double seLat, double seLon, long timestamp) {
+		BasicDBList ring = new BasicDBList();
+		ring.add(position(nwLat, nwLon));
+		ring.add(position(nwLat, seLon));
+		ring.add(position(seLat, seLon));
+		ring.add(position(seLat, nwLon));
+		ring.add(position(nwLat, nwLon));
+		BasicDBList coordinates = new BasicDBList();
+		coordinates.add(ring);
+
+		BasicDBObject document = new BasicDBObject("_id", id);
+		document.put(SERVICE_ID, serviceId);
+		document.put(REGION, new BasicDBObject("type", "Polygon").append("coordinates", coordinates));
+		document.put(TIMESTAMP, new Date(timestamp));
+		document.put("encodedMsg", "");
+		return document;
+	}
+
+	private static BasicDBList position(double lat, double lon) {
+		BasicDBList position = new BasicDBList();
+		position.add(lon);
+		position.add(lat);
+		return position;
+	}
+}
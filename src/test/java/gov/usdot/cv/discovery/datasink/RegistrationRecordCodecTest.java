@@ -0,0 +1,67 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWrapper;
+import org.bson.codecs.DecoderContext;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+public class RegistrationRecordCodecTest {
+
+	private final RegistrationRecordCodec codec = new RegistrationRecordCodec();
+
+	@Test
+	public void testDecodeMatchesLegacyDocument() {
+		DBObject document = RegistrationIndexTest.registration(new ObjectId(), 2, 42.3, -83.7, 42.2, -83.6, 1000L);
+		document.put(RegistrationRecord.ENCODED_MSG_FIELD, "MIIBAQ==");
+
+		RegistrationRecord record = decode(document);
+		assertEquals(RegistrationRecord.fromDocument(document), record);
+		assertEquals(new Date(1000L), record.getTimestamp());
+		assertEquals("MIIBAQ==", record.getEncodedMsg());
+	}
+
+	@Test
+	public void testDecodeWithoutEncodedMessage() {
+		BasicDBObject document = new BasicDBObject(RegistrationRecord.ID_FIELD, "registration-1")
+			.append(RegistrationRecord.ENCODED_MSG_FIELD, 42);
+
+		RegistrationRecord record = decode(document);
+		assertEquals("registration-1", record.getId());
+		assertNull(record.getTimestamp());
+		assertNull(record.getEncodedMsg());
+	}
+
+	@Test
+	public void testDecodeRegion() {
+		DBObject document = RegistrationIndexTest.registration(new ObjectId(), 2, 42.3, -83.7, 42.2, -83.6, 1000L);
+		assertNull(decode(document).getRegion());
+
+		RegistrationRecord record = decode(new RegistrationRecordCodec("region"), document);
+		assertEquals(RegistrationRecord.fromDocument(document, "region"), record);
+		assertTrue(record.getRegion().intersects(42.25, -83.65, 42.24, -83.64));
+		assertFalse(record.getRegion().intersects(42.5, -83.65, 42.4, -83.64));
+		assertEquals(42.3, record.getRegion().getMaxLat(), 0);
+	}
+
+	private RegistrationRecord decode(DBObject document) {
+		return decode(codec, document);
+	}
+
+	private static RegistrationRecord decode(RegistrationRecordCodec codec, DBObject document) {
+		BsonDocument bson = BsonDocumentWrapper.asBsonDocument(document, MongoClient.getDefaultCodecRegistry());
+		return codec.decode(new BsonDocumentReader(bson), DecoderContext.builder().build());
+	}
+}
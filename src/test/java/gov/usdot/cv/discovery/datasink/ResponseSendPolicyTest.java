@@ -0,0 +1,97 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ResponseSendPolicyTest {
+
+	@Test
+	public void testUnlimitedRateNeverPaces() {
+		ResponseSendPolicy policy = new ResponseSendPolicy(0, 1, 3, 10, 1000, 20);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(0, policy.reserve("10.0.0.1:46751"));
+		}
+		assertEquals(0, policy.getPaced());
+		policy.shutdown(0);
+	}
+
+	@Test
+	public void testBurstThenPaced() {
+		ResponseSendPolicy policy = new ResponseSendPolicy(10, 2, 3, 10, 1000, 20);
+		assertEquals(0, policy.reserve("a"));
+		assertEquals(0, policy.reserve("a"));
+		long first = policy.reserve("a");
+		long second = policy.reserve("a");
+		assertTrue(first > 0 && first <= 100);
+		assertTrue("later sends are spaced by the rate", second > first + 50);
+		assertEquals(0, policy.reserve("b"));
+		assertEquals(2, policy.getPaced());
+		policy.shutdown(0);
+	}
+
+	@Test
+	public void testDropsWhenDelayTooLong() {
+		ResponseSendPolicy policy = new ResponseSendPolicy(1, 1, 3, 10, 1000, 20);
+		assertEquals(0, policy.reserve("a"));
+		assertTrue(policy.reserve("a") > 0);
+		assertEquals(-1, policy.reserve("a"));
+		assertEquals(1, policy.getDropped());
+		policy.shutdown(0);
+	}
+
+	@Test
+	public void testRetryBudget() {
+		ResponseSendPolicy policy = new ResponseSendPolicy(0, 1, 3, 10, 1000, 0);
+		assertFalse("attempts are capped", policy.tryAcquireRetry(3));
+		int granted = 0;
+		while (policy.tryAcquireRetry(1)) {
+			granted++;
+		}
+		assertEquals(100, granted);
+		policy.recordFirstAttempt();
+		assertFalse("no budget is earned at 0 percent", policy.tryAcquireRetry(1));
+		policy.shutdown(0);
+
+		policy = new ResponseSendPolicy(0, 1, 3, 10, 1000, 50);
+		while (policy.tryAcquireRetry(1)) {
+		}
+		policy.recordFirstAttempt();
+		assertFalse(policy.tryAcquireRetry(1));
+		policy.recordFirstAttempt();
+		assertTrue(policy.tryAcquireRetry(1));
+		policy.shutdown(0);
+	}
+
+	@Test
+	public void testBackoff() {
+		ResponseSendPolicy policy = new ResponseSendPolicy(0, 1, 10, 10, 100, 20);
+		for (int i = 0; i < 100; i++) {
+			long first = policy.backoffMs(1);
+			assertTrue(first >= 5 && first <= 10);
+			long third = policy.backoffMs(3);
+			assertTrue(third >= 20 && third <= 40);
+			long capped = policy.backoffMs(9);
+			assertTrue(capped >= 50 && capped <= 100);
+		}
+		policy.shutdown(0);
+	}
+
+	@Test
+	public void testShutdownRunsScheduledSends() throws InterruptedException {
+		ResponseSendPolicy policy = new ResponseSendPolicy(0, 1, 3, 10, 1000, 20);
+		final CountDownLatch sent = new CountDownLatch(1);
+		policy.schedule(new Runnable() {
+			public void run() {
+				sent.countDown();
+			}
+		}, 20);
+		policy.shutdown(1000);
+		assertTrue(sent.await(0, TimeUnit.MILLISECONDS));
+	}
+}
@@ -1,45 +1,206 @@
-package gov.usdot.cv.discovery.datasink;
-
-import static org.junit.Assert.fail;
-import gov.usdot.asn1.generated.j2735.J2735;
-
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.IOException;
-
-import org.apache.commons.io.FileUtils;
-import org.junit.Test;
-
-import com.oss.asn1.AbstractData;
-import com.oss.asn1.Coder;
-import com.oss.asn1.ControlTableNotFoundException;
-import com.oss.asn1.EncodeFailedException;
-import com.oss.asn1.EncodeNotSupportedException;
-import com.oss.asn1.InitializationException;
-
-public class ResponseSenderTest {
-
-	@Test
-	public void testBuildDiscoveryDataZeroRecords() throws IOException, ControlTableNotFoundException, InitializationException {
-		String jsonFile = "src/test/resources/discover_good.json";
-		String json = FileUtils.readFileToString(new File(jsonFile));
-		DiscoverModel model = DiscoverModel.fromJSON(json);
-		model.validate();
-		
-		ResponseSender rs = new ResponseSender("127.0.0.1", 27000, false);
-		AbstractData data = rs.buildDiscoveryData(model, null);
-		System.out.println(data);
-		
-		ByteArrayOutputStream sink = new ByteArrayOutputStream();
-		J2735.initialize();
-		Coder coder = J2735.getPERUnalignedCoder();
-		try {
-			coder.encode(data, sink);
-		} catch (EncodeFailedException e) {
-			fail("Zero service records message failed to encode: " + e);
-		} catch (EncodeNotSupportedException e) {
-			fail("Zero service records message failed to encode: " + e);
-		}
-	}
-	
-}
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import gov.usdot.asn1.generated.j2735.J2735;
+import gov.usdot.asn1.generated.j2735.dsrc.Latitude;
+import gov.usdot.asn1.generated.j2735.dsrc.Longitude;
+import gov.usdot.asn1.generated.j2735.dsrc.Position3D;
+import gov.usdot.asn1.generated.j2735.semi.ConnectionPoint;
+import gov.usdot.asn1.generated.j2735.semi.GeoRegion;
+import gov.usdot.asn1.generated.j2735.semi.ObjectRegistrationData;
+import gov.usdot.asn1.generated.j2735.semi.PortNumber;
+import gov.usdot.asn1.generated.j2735.semi.Psid;
+import gov.usdot.asn1.generated.j2735.semi.SemiDialogID;
+import gov.usdot.asn1.generated.j2735.semi.SemiSequenceID;
+import gov.usdot.asn1.generated.j2735.semi.ServiceID;
+import gov.usdot.asn1.generated.j2735.semi.ServiceProviderID;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRecord;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRecord.ConnectionPoints;
+import gov.usdot.asn1.generated.j2735.semi.ServiceRecord.SvcPSIDs;
+import gov.usdot.cv.common.asn1.GroupIDHelper;
+import gov.usdot.cv.common.asn1.TemporaryIDHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.oss.asn1.AbstractData;
+import com.oss.asn1.Coder;
+import com.oss.asn1.ControlTableNotFoundException;
+import com.oss.asn1.EncodeFailedException;
+import com.oss.asn1.EncodeNotSupportedException;
+import com.oss.asn1.InitializationException;
+
+public class ResponseSenderTest {
+
+	@Test
+	public void testBuildDiscoveryDataZeroRecords() throws IOException, ControlTableNotFoundException, InitializationException {
+		String jsonFile = "src/test/resources/discover_good.json";
+		String json = FileUtils.readFileToString(new File(jsonFile));
+		DiscoverModel model = DiscoverModel.fromJSON(json);
+		model.validate();
+		
+		ResponseSender rs = new ResponseSender("127.0.0.1", 27000, false);
+		AbstractData data = rs.buildDiscoveryData(model, null);
+		System.out.println(data);
+		
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		J2735.initialize();
+		Coder coder = J2735.getPERUnalignedCoder();
+		try {
+			coder.encode(data, sink);
+		} catch (EncodeFailedException e) {
+			fail("Zero service records message failed to encode: " + e);
+		} catch (EncodeNotSupportedException e) {
+			fail("Zero service records message failed to encode: " + e);
+		}
+	}
+	
+	@Test
+	public void testListenerHearsOutcomeOfRetries() throws Exception {
+		DiscoverModel model = DiscoverModel.fromJSON(FileUtils.readFileToString(new File("src/test/resources/discover_good.json")));
+		model.destHost = "127.0.0.1";
+		model.fromForwarder = "false";
+		final BlockingQueue<String> outcomes = new LinkedBlockingQueue<String>();
+		ResponseSender.DeliveryListener listener = new ResponseSender.DeliveryListener() {
+			public void delivered(DiscoverModel discoverModel) {
+				outcomes.add("delivered");
+			}
+			
+			public void failed(DiscoverModel discoverModel) {
+				outcomes.add("failed");
+			}
+		};
+		
+		ResponseSender rs = new ResponseSender("127.0.0.1", 27000, false);
+		rs.enableDatagramTransport(1024, 4, 60000);
+		ResponseSendPolicy policy = new ResponseSendPolicy(0, 1, 3, 1, 5, 100);
+		rs.setSendPolicy(policy);
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			// An invalid port fails every attempt, the outcome comes after the retries
+			model.destPort = 70000;
+			rs.sendPayload(model, new byte[] { 1 }, listener);
+			assertEquals("failed", outcomes.poll(5, TimeUnit.SECONDS));
+			assertEquals(2, policy.getRetries());
+			
+			model.destPort = socket.getLocalPort();
+			rs.sendPayload(model, new byte[] { 1 }, listener);
+			assertEquals("delivered", outcomes.poll(5, TimeUnit.SECONDS));
+			assertEquals(0, outcomes.size());
+		} finally {
+			socket.close();
+			rs.close(1000);
+		}
+	}
+	
+	@Test
+	public void testParallelDecodeMatchesSerial() throws Exception {
+		final List<RegistrationRecord> registrations = registrations(25);
+		final DiscoverModel model = DiscoverModel.fromJSON(FileUtils.readFileToString(new File("src/test/resources/discover_good.json")));
+		model.certificate = null;
+		
+		ResponseSender serial = new ResponseSender("127.0.0.1", 27000, false);
+		final List<RegistrationRecord> serialUsed = new ArrayList<RegistrationRecord>();
+		final List<ObjectRegistrationData> serialRecords = 
+				serial.extractRegistrationRecords(RegistrationCursor.fromCollection(registrations), serialUsed);
+		final byte[] serialPayload = serial.encodeResponse(model, RegistrationCursor.fromCollection(registrations));
+		serial.close(1000);
+		assertEquals(10, serialUsed.size());
+		
+		final ResponseSender parallel = new ResponseSender("127.0.0.1", 27000, false);
+		// A threshold of 1 sends every batch to the decode pool
+		parallel.enableParallelDecode(4, 1);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> callers = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread caller = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < 20; j++) {
+							List<RegistrationRecord> used = new ArrayList<RegistrationRecord>();
+							List<ObjectRegistrationData> records = 
+									parallel.extractRegistrationRecords(RegistrationCursor.fromCollection(registrations), used);
+							assertEquals(serialUsed, used);
+							assertEquals(serialRecords, records);
+							assertArrayEquals(serialPayload, parallel.encodeResponse(model, RegistrationCursor.fromCollection(registrations)));
+						}
+					} catch (Throwable ex) {
+						errors.add(ex);
+					}
+				}
+			};
+			caller.start();
+			callers.add(caller);
+		}
+		start.countDown();
+		for (Thread caller : callers) {
+			caller.join(30000);
+		}
+		parallel.close(1000);
+		assertEquals(Collections.<Throwable>emptyList(), errors);
+	}
+	
+	/**
+	 * @return PER encoded registrations, every third one without a message so that the cursor
+	 * has to be read past the first batch to fill a response
+	 */
+	private static List<RegistrationRecord> registrations(int count) throws Exception {
+		J2735.initialize();
+		Coder coder = J2735.getPERUnalignedCoder();
+		List<RegistrationRecord> records = new ArrayList<RegistrationRecord>(count);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			String encodedMsg = null;
+			if (i % 3 != 2) {
+				ByteArrayOutputStream sink = new ByteArrayOutputStream();
+				coder.encode(registration(i), sink);
+				encodedMsg = Base64.encodeBase64String(sink.toByteArray());
+			}
+			records.add(new RegistrationRecord(new ObjectId(), new Date(now - i * 1000L), encodedMsg));
+		}
+		return records;
+	}
+	
+	private static ObjectRegistrationData registration(int index) {
+		ServiceRecord serviceRecord = new ServiceRecord();
+		ConnectionPoints cps = new ConnectionPoints();
+		cps.add(new ConnectionPoint(new PortNumber(46751 + index)));
+		serviceRecord.setConnectionPoints(cps);
+		serviceRecord.setSvcProvider(new ServiceProviderID(ByteBuffer.allocate(4).putInt(index).array()));
+		SvcPSIDs psids = new SvcPSIDs();
+		psids.add(new Psid(ByteBuffer.allocate(4).putInt(0x2fe1).array()));
+		serviceRecord.setSvcPSIDs(psids);
+		Position3D nw = new Position3D(new Latitude(423400000 + index), new Longitude(-830500000));
+		Position3D se = new Position3D(new Latitude(423200000), new Longitude(-830400000 + index));
+		serviceRecord.setServiceRegion(new GeoRegion(nw, se));
+		
+		ObjectRegistrationData registration = new ObjectRegistrationData();
+		registration.setDialogID(SemiDialogID.objReg);
+		registration.setSeqID(SemiSequenceID.data);
+		registration.setGroupID(GroupIDHelper.toGroupID(0));
+		registration.setRequestID(TemporaryIDHelper.toTemporaryID(index));
+		registration.setServiceID(new ServiceID(2));
+		registration.setServiceRecord(serviceRecord);
+		return registration;
+	}
+}
@@ -0,0 +1,64 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ResponseTemplateCacheTest {
+
+	@Test
+	public void testLocateAndRenderUnalignedFields() {
+		// Two 32 bit ids packed at bit offsets 5 and 37, as an unaligned PER encoder would
+		byte[] base = pack(0, 0);
+		int groupIdBitOffset = ResponseTemplateCache.locateField(base, pack(-1, 0));
+		int requestIdBitOffset = ResponseTemplateCache.locateField(base, pack(0, -1));
+		assertEquals(5, groupIdBitOffset);
+		assertEquals(37, requestIdBitOffset);
+
+		ResponseTemplateCache cache = new ResponseTemplateCache(10, groupIdBitOffset, requestIdBitOffset);
+		assertArrayEquals(pack(0x0A0B0C0D, 0x12345678), cache.render(base, 0x12345678, 0x0A0B0C0D));
+		assertArrayEquals(pack(-7, Integer.MIN_VALUE), cache.render(base, Integer.MIN_VALUE, -7));
+	}
+
+	@Test
+	public void testLocateRejectsOtherDifferences() {
+		byte[] a = new byte[] { 0, 0, 0, 0, 0, 0 };
+		byte[] b = new byte[] { 0, (byte) 0xFF, (byte) 0xFF, 0, 0, 1 };
+		assertEquals(-1, ResponseTemplateCache.locateField(a, b));
+		assertEquals(-1, ResponseTemplateCache.locateField(a, new byte[5]));
+	}
+
+	@Test
+	public void testKeyIdentifiesRegistrationVersions() {
+		List<RegistrationRecord> records = new ArrayList<RegistrationRecord>();
+		records.add(new RegistrationRecord("a", new Date(1), "msg"));
+		List<RegistrationRecord> updated = new ArrayList<RegistrationRecord>();
+		updated.add(new RegistrationRecord("a", new Date(2), "msg"));
+
+		assertEquals(Arrays.<Object>asList("a", new Date(1)), ResponseTemplateCache.keyFor(records));
+		assertEquals(false, ResponseTemplateCache.keyFor(records).equals(ResponseTemplateCache.keyFor(updated)));
+
+		records.add(new RegistrationRecord(null, null, "msg"));
+		assertNull(ResponseTemplateCache.keyFor(records));
+	}
+
+	private static byte[] pack(int groupId, int requestId) {
+		long bits = 0x15L; // 5 bit prefix
+		byte[] buffer = new byte[10];
+		long value = (bits << 59) | ((groupId & 0xFFFFFFFFL) << 27) | ((requestId & 0xFFFFFFFFL) >>> 5);
+		for (int i = 0; i < 8; i++) {
+			buffer[i] = (byte) (value >>> (56 - 8 * i));
+		}
+		// Remaining 5 request id bits followed by a trailing marker
+		buffer[8] = (byte) (((requestId & 0x1F) << 3) | 0x5);
+		buffer[9] = (byte) 0xA5;
+		return buffer;
+	}
+}
@@ -0,0 +1,85 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SampledLoggerTest {
+
+	private final Logger logger = Logger.getLogger(SampledLoggerTest.class);
+	private final List<String> messages = new ArrayList<String>();
+	private final AppenderSkeleton appender = new AppenderSkeleton() {
+		protected void append(LoggingEvent event) {
+			messages.add(event.getRenderedMessage());
+		}
+		public boolean requiresLayout() {
+			return false;
+		}
+		public void close() {
+		}
+	};
+
+	@Before
+	public void setUp() {
+		logger.addAppender(appender);
+		logger.setLevel(Level.INFO);
+	}
+
+	@After
+	public void tearDown() {
+		logger.removeAppender(appender);
+		SampledLogger.setEventsPerSecond(0);
+	}
+
+	@Test
+	public void testDebugIsNotFormattedWhenDisabled() {
+		Object expensive = new Object() {
+			@Override
+			public String toString() {
+				throw new AssertionError("formatted a disabled debug message");
+			}
+		};
+		new SampledLogger(logger).debug("Query results %s", expensive);
+		assertTrue(messages.isEmpty());
+	}
+
+	@Test
+	public void testSummarizesLargeArguments() {
+		StringBuilder longText = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			longText.append('x');
+		}
+		new SampledLogger(logger).info("%s %s %s %d", Arrays.asList(1, 2, 3), new byte[42], longText, 7);
+		assertEquals(1, messages.size());
+		String message = messages.get(0);
+		assertTrue(message, message.startsWith("[3 items] [42 bytes] xxx"));
+		assertTrue(message, message.endsWith("... (1000 chars) 7"));
+	}
+
+	@Test
+	public void testSamplesInfoAndReportsSuppressed() throws InterruptedException {
+		SampledLogger.setEventsPerSecond(2);
+		SampledLogger sampled = new SampledLogger(logger);
+		for (int i = 0; i < 10; i++) {
+			sampled.info("event %d", i);
+		}
+		assertEquals(Arrays.asList("event 0", "event 1"), messages);
+		assertEquals(8, sampled.getSuppressed());
+
+		Thread.sleep(1100);
+		sampled.info("event %d", 10);
+		assertEquals("event 10 (8 similar messages suppressed)", messages.get(2));
+		assertEquals(0, sampled.getSuppressed());
+	}
+}
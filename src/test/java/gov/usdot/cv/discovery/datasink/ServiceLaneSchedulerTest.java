@@ -0,0 +1,192 @@
+package gov.usdot.cv.discovery.datasink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ServiceLaneSchedulerTest {
+
+	private final DiscoveryMetrics metrics = new DiscoveryMetrics();
+
+	@Test
+	public void testParseWeights() {
+		Map<Integer, Integer> weights = ServiceLaneScheduler.parseWeights(" 2:4, 5:1 ,");
+		assertEquals(2, weights.size());
+		assertEquals(Integer.valueOf(4), weights.get(2));
+		assertEquals(Integer.valueOf(1), weights.get(5));
+		assertTrue(ServiceLaneScheduler.parseWeights("").isEmpty());
+		assertTrue(ServiceLaneScheduler.parseWeights(null).isEmpty());
+
+		for (String invalid : new String[] { "2", ":3", "2:0", "2:x", "a:1" }) {
+			try {
+				ServiceLaneScheduler.parseWeights(invalid);
+				fail("Expected '" + invalid + "' to be rejected");
+			} catch (IllegalArgumentException ex) {
+			}
+		}
+	}
+
+	@Test
+	public void testFullLaneIsRejected() throws Exception {
+		ServiceLaneScheduler lanes = new ServiceLaneScheduler("test", 1, 2, 1, 10, Collections.<Integer, Integer>emptyMap(), metrics);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		assertTrue(lanes.submit(1, block(started, release)));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		assertTrue(lanes.submit(1, noop()));
+		assertTrue(lanes.submit(1, noop()));
+		assertFalse(lanes.submit(1, noop()));
+		// Other services have their own queue
+		assertTrue(lanes.submit(2, noop()));
+
+		release.countDown();
+		lanes.shutdown(5000);
+		assertFalse(lanes.submit(2, noop()));
+
+		Map<Integer, ServiceLaneScheduler.Lane> byService = byService(lanes);
+		assertEquals(3, byService.get(1).getCompleted());
+		assertEquals(1, byService.get(1).getRejected());
+		assertEquals(1, byService.get(2).getCompleted());
+		assertEquals(1, byService.get(2).getRejected());
+		assertEquals(0, lanes.getQueued());
+	}
+
+	@Test
+	public void testWeightedRoundRobin() throws Exception {
+		Map<Integer, Integer> weights = new HashMap<Integer, Integer>();
+		weights.put(1, 3);
+		ServiceLaneScheduler lanes = new ServiceLaneScheduler("test", 1, 100, 1, 10, weights, metrics);
+
+		// Holds the only worker until both lanes are queued up
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		lanes.submit(3, block(started, release));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		for (int i = 0; i < 6; i++) {
+			lanes.submit(1, record(order, 1));
+		}
+		lanes.submit(2, record(order, 2));
+		lanes.submit(2, record(order, 2));
+
+		release.countDown();
+		lanes.shutdown(5000);
+
+		// The busy service gets three turns for every one of the other, but can't starve it
+		assertEquals(Arrays.asList(1, 1, 1, 2, 1, 1, 1, 2), order);
+
+		Map<String, Long> snapshot = metrics.snapshot();
+		assertEquals(Long.valueOf(6), snapshot.get("service1Completed"));
+		assertEquals(Long.valueOf(2), snapshot.get("service2Completed"));
+		assertEquals(Long.valueOf(0), snapshot.get("service2Queued"));
+		assertTrue(snapshot.containsKey("service1P99Micros"));
+	}
+
+	@Test
+	public void testLaneConcurrencyBudget() throws Exception {
+		ServiceLaneScheduler lanes = new ServiceLaneScheduler("test", 4, 100, 2, 10, Collections.<Integer, Integer>emptyMap(), metrics);
+		final AtomicInteger running = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		for (int i = 0; i < 4; i++) {
+			lanes.submit(1, new Runnable() {
+				public void run() {
+					running.incrementAndGet();
+					await(release);
+				}
+			});
+		}
+
+		// Two workers stay free for the other services
+		CountDownLatch otherStarted = new CountDownLatch(1);
+		lanes.submit(2, block(otherStarted, new CountDownLatch(0)));
+		assertTrue(otherStarted.await(5, TimeUnit.SECONDS));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (running.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Thread.sleep(50);
+		assertEquals(2, running.get());
+
+		release.countDown();
+		lanes.shutdown(5000);
+		assertEquals(4, running.get());
+		assertEquals(4, byService(lanes).get(1).getCompleted());
+	}
+
+	@Test
+	public void testLaneCount() throws Exception {
+		Map<Integer, Integer> weights = new HashMap<Integer, Integer>();
+		weights.put(9, 2);
+		ServiceLaneScheduler lanes = new ServiceLaneScheduler("test", 2, 100, 1, 2, weights, metrics);
+		for (int serviceId = 1; serviceId <= 5; serviceId++) {
+			assertTrue(lanes.submit(serviceId, noop()));
+		}
+		// Weighted services always get a lane of their own
+		assertTrue(lanes.submit(9, noop()));
+		lanes.shutdown(5000);
+
+		Map<Integer, ServiceLaneScheduler.Lane> byService = byService(lanes);
+		assertEquals(4, byService.size());
+		assertEquals(1, byService.get(1).getCompleted());
+		assertEquals(1, byService.get(2).getCompleted());
+		assertEquals(3, byService.get(ServiceLaneScheduler.SHARED_SERVICE_ID).getCompleted());
+		assertEquals(1, byService.get(9).getCompleted());
+		assertEquals(Long.valueOf(3), metrics.snapshot().get("serviceOtherCompleted"));
+		assertTrue(! metrics.snapshot().containsKey("service3Completed"));
+	}
+
+	private static Map<Integer, ServiceLaneScheduler.Lane> byService(ServiceLaneScheduler lanes) {
+		Map<Integer, ServiceLaneScheduler.Lane> result = new HashMap<Integer, ServiceLaneScheduler.Lane>();
+		for (ServiceLaneScheduler.Lane lane : lanes.getLanes()) {
+			result.put(lane.getServiceId(), lane);
+		}
+		return result;
+	}
+
+	private static Runnable noop() {
+		return new Runnable() {
+			public void run() {
+			}
+		};
+	}
+
+	private static Runnable record(final List<Integer> order, final int serviceId) {
+		return new Runnable() {
+			public void run() {
+				order.add(serviceId);
+			}
+		};
+	}
+
+	private static Runnable block(final CountDownLatch started, final CountDownLatch release) {
+		return new Runnable() {
+			public void run() {
+				started.countDown();
+				await(release);
+			}
+		};
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}